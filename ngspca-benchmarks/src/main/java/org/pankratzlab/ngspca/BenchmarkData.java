@@ -0,0 +1,78 @@
+package org.pankratzlab.ngspca;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * Reproducible inputs for the benchmarks, shaped like ngspca data: bins (rows) by samples (columns)
+ */
+class BenchmarkData {
+
+  static final long SEED = 42;
+  static final int BIN_WIDTH = 1000;
+
+  private BenchmarkData() {
+
+  }
+
+  /**
+   * @param bins number of rows
+   * @param samples number of columns
+   * @return positive, mosdepth like depths centered around 30x
+   */
+  static RealMatrix depths(int bins, int samples) {
+    Random random = new Random(SEED);
+    double[][] data = new double[bins][samples];
+    for (double[] row : data) {
+      for (int column = 0; column < samples; column++) {
+        row[column] = Math.max(0, 30 + 5 * random.nextGaussian());
+      }
+    }
+    return new Array2DRowRealMatrix(data, false);
+  }
+
+  /**
+   * @param rows
+   * @param columns
+   * @return standard normal entries
+   */
+  static double[][] gaussian(int rows, int columns) {
+    Random random = new Random(SEED + 1);
+    double[][] data = new double[rows][columns];
+    for (double[] row : data) {
+      for (int column = 0; column < columns; column++) {
+        row[column] = random.nextGaussian();
+      }
+    }
+    return data;
+  }
+
+  /**
+   * @param bins
+   * @return mosdepth regions.bed lines for consecutive bins on chr1, without line separator
+   */
+  static List<String> mosdepthLines(int bins) {
+    Random random = new Random(SEED + 2);
+    List<String> lines = new ArrayList<>(bins);
+    for (int bin = 0; bin < bins; bin++) {
+      lines.add("chr1\t" + bin * BIN_WIDTH + "\t" + (bin + 1) * BIN_WIDTH + "\t"
+                + Math.round(3000 + 500 * random.nextGaussian()) / 100.0);
+    }
+    return lines;
+  }
+
+  /**
+   * @param bins
+   * @return UCSC names (chr:start-end, 1-based) of the bins in {@link #mosdepthLines(int)}
+   */
+  static List<String> ucscNames(int bins) {
+    List<String> names = new ArrayList<>(bins);
+    for (int bin = 0; bin < bins; bin++) {
+      names.add("chr1:" + (bin * BIN_WIDTH + 1) + "-" + (bin + 1) * BIN_WIDTH);
+    }
+    return names;
+  }
+}
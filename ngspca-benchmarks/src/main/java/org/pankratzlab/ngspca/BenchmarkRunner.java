@@ -0,0 +1,34 @@
+package org.pankratzlab.ngspca;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line (e.g. "-p bins=300000 -p samples=2500
+ * GemmBenchmark"), but writes a JSON report to {@link #DEFAULT_RESULT} unless -rf or -rff is given
+ */
+public class BenchmarkRunner {
+
+  static final String DEFAULT_RESULT = "ngspca-benchmarks.json";
+
+  private BenchmarkRunner() {
+
+  }
+
+  public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+    if (!commandLine.getResultFormat().hasValue()) {
+      options.resultFormat(ResultFormatType.JSON);
+    }
+    if (!commandLine.getResult().hasValue()) {
+      options.result(DEFAULT_RESULT);
+    }
+    new Runner(options.build()).run();
+  }
+}
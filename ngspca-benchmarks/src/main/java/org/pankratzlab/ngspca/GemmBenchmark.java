@@ -0,0 +1,65 @@
+package org.pankratzlab.ngspca;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.pankratzlab.ngspca.LinearAlgebraBackend.BACKEND;
+
+/**
+ * The two products of each randomized SVD pass over the tall-skinny bins by samples matrix A: Y =
+ * A * Omega and A^T * Y, with k = number of PCs + oversamples sampling columns
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class GemmBenchmark {
+
+  @Param({"100000"})
+  int bins;
+
+  @Param({"500"})
+  int samples;
+
+  @Param({"30"})
+  int k;
+
+  /**
+   * A {@link BACKEND}, as a String since the enum is not visible to the generated JMH code
+   */
+  @Param({"COMMONS_MATH", "EJML", "PURE_JAVA"})
+  String backend;
+
+  @Param({"1"})
+  int threads;
+
+  private LinearAlgebraBackend<Object> linearAlgebra;
+  private Object a;
+  private Object omega;
+  private Object y;
+
+  @SuppressWarnings("unchecked")
+  @Setup
+  public void setup() {
+    BACKEND selected = BACKEND.valueOf(backend);
+    linearAlgebra = (LinearAlgebraBackend<Object>) LinearAlgebraBackend.create(selected, threads);
+    a = linearAlgebra.fromRows(BenchmarkData.gaussian(bins, samples));
+    omega = linearAlgebra.fromRows(BenchmarkData.gaussian(samples, k));
+    y = linearAlgebra.multiply(a, omega);
+  }
+
+  @Benchmark
+  public Object multiply() {
+    return linearAlgebra.multiply(a, omega);
+  }
+
+  @Benchmark
+  public Object transposeMultiply() {
+    return linearAlgebra.transposeMultiply(a, y);
+  }
+}
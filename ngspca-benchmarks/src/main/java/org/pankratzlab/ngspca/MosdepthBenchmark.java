@@ -0,0 +1,86 @@
+package org.pankratzlab.ngspca;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.bed.BEDCodec;
+
+/**
+ * Parsing of mosdepth regions.bed.gz output, per file
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MosdepthBenchmark {
+
+  @Param({"250000"})
+  int bins;
+
+  /**
+   * Load every n-th bin in {@link #loadSpecificRegions()}
+   */
+  @Param({"10"})
+  int loadEvery;
+
+  private List<String> lines;
+  private Set<String> regions;
+  private File directory;
+  private String file;
+
+  @Setup
+  public void setup() throws IOException {
+    lines = BenchmarkData.mosdepthLines(bins);
+    List<String> names = BenchmarkData.ucscNames(bins);
+    regions = new HashSet<>();
+    for (int bin = 0; bin < bins; bin += loadEvery) {
+      regions.add(names.get(bin));
+    }
+    directory = File.createTempFile("ngspca-benchmark", "");
+    directory.delete();
+    directory.mkdirs();
+    file = new File(directory, "sample.regions.bed.gz").getAbsolutePath();
+    try (OutputStream out = new BlockCompressedOutputStream(file)) {
+      for (String line : lines) {
+        out.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+      }
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  /**
+   * Decoding of uncompressed lines, without any I/O
+   */
+  @Benchmark
+  public void decodeLines(Blackhole blackhole) {
+    BEDCodec codec = new BEDCodec();
+    for (String line : lines) {
+      blackhole.consume(codec.decode(line));
+    }
+  }
+
+  @Benchmark
+  public BedUtils.BedRegionResult loadSpecificRegions() {
+    return BedUtils.loadSpecificRegions(file, regions);
+  }
+}
@@ -0,0 +1,56 @@
+package org.pankratzlab.ngspca;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Column medians (fold change) and row medians (centering) of {@link NormalizationOperations}.
+ * Both work in place, so every invocation gets a fresh copy of the depths
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NormalizationBenchmark {
+
+  @Param({"100000"})
+  int bins;
+
+  @Param({"200"})
+  int samples;
+
+  private final Logger log = Logger.getLogger(NormalizationBenchmark.class.getName());
+  private RealMatrix depths;
+  private RealMatrix dm;
+
+  @Setup(Level.Trial)
+  public void setupTrial() {
+    depths = BenchmarkData.depths(bins, samples);
+  }
+
+  @Setup(Level.Invocation)
+  public void setupInvocation() {
+    dm = depths.copy();
+  }
+
+  @Benchmark
+  public RealMatrix computeFoldChangeByColumn() {
+    NormalizationOperations.computeFoldChangeByColumn(dm, log);
+    return dm;
+  }
+
+  @Benchmark
+  public RealMatrix centerRowsToMedian() {
+    NormalizationOperations.centerRowsToMedian(dm);
+    return dm;
+  }
+}
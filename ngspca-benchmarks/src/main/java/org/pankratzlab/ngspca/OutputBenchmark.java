@@ -0,0 +1,77 @@
+package org.pankratzlab.ngspca;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.pankratzlab.ngspca.OutputConfig.OUTPUT_FORMAT;
+
+/**
+ * Writing the bins by k loadings as text, with {@link MatrixWriter}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OutputBenchmark {
+
+  @Param({"100000"})
+  int bins;
+
+  @Param({"20"})
+  int k;
+
+  @Param({"false", "true"})
+  boolean bgzip;
+
+  @Param({"1"})
+  int threads;
+
+  private final Logger log = Logger.getLogger(OutputBenchmark.class.getName());
+  private RowBlocks loadings;
+  private List<String> columnNames;
+  private List<String> rowNames;
+  private File directory;
+  private MatrixWriter writer;
+
+  @Setup
+  public void setup() throws IOException {
+    log.setLevel(Level.WARNING);
+    loadings = RowBlocks.of(new Array2DRowRealMatrix(BenchmarkData.gaussian(bins, k), false));
+    columnNames = new ArrayList<>();
+    for (int component = 1; component <= k; component++) {
+      columnNames.add("PC" + component);
+    }
+    rowNames = BenchmarkData.ucscNames(bins);
+    directory = File.createTempFile("ngspca-benchmark", "");
+    directory.delete();
+    directory.mkdirs();
+    writer = new MatrixWriter(new OutputConfig(OUTPUT_FORMAT.TEXT, bgzip, false, 1,
+                                               Integer.MAX_VALUE, threads),
+                              log);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  @Benchmark
+  public void write() {
+    writer.write(new File(directory, "svd.loadings.txt").getAbsolutePath(), loadings, "BIN",
+                 columnNames, rowNames);
+  }
+}
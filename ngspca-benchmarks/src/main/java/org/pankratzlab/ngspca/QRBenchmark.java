@@ -0,0 +1,52 @@
+package org.pankratzlab.ngspca;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.pankratzlab.ngspca.LinearAlgebraBackend.BACKEND;
+
+/**
+ * Orthonormalization of the bins by k range finder matrix Y
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class QRBenchmark {
+
+  @Param({"100000"})
+  int bins;
+
+  @Param({"30"})
+  int k;
+
+  /**
+   * A {@link BACKEND}, as a String since the enum is not visible to the generated JMH code
+   */
+  @Param({"COMMONS_MATH", "EJML", "PURE_JAVA"})
+  String backend;
+
+  @Param({"1"})
+  int threads;
+
+  private LinearAlgebraBackend<Object> linearAlgebra;
+  private Object y;
+
+  @SuppressWarnings("unchecked")
+  @Setup
+  public void setup() {
+    BACKEND selected = BACKEND.valueOf(backend);
+    linearAlgebra = (LinearAlgebraBackend<Object>) LinearAlgebraBackend.create(selected, threads);
+    y = linearAlgebra.fromRows(BenchmarkData.gaussian(bins, k));
+  }
+
+  @Benchmark
+  public Object orthonormalize() {
+    return linearAlgebra.orthonormalize(y);
+  }
+}
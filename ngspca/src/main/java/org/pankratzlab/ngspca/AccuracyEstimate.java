@@ -0,0 +1,148 @@
+package org.pankratzlab.ngspca;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.StringJoiner;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+import org.pankratzlab.ngspca.RandomMatrixGenerator.DISTRIBUTION;
+
+/**
+ * A-posteriori accuracy of a randomized SVD, estimated from Gaussian probe vectors g projected off
+ * the range finder basis Q. With p = (I - QQ^T)g, the probes see the residual A - QQ^T A through
+ * A^T p, which is computed in the same pass over A as B = Q^T A (see
+ * https://arxiv.org/pdf/0909.4061.pdf, section 4.3)
+ * <p>
+ * For a component with right singular vector v and singular value s, A v - s u = (I - QQ^T) A v,
+ * so the same probes also give the residual of each component without another pass over A
+ */
+class AccuracyEstimate {
+
+  /**
+   * Number of probe vectors, the spectral bound fails with probability at most 10^-NUM_PROBES
+   */
+  static final int NUM_PROBES = 10;
+
+  private static final double SPECTRAL_BOUND_FACTOR = 10 * Math.sqrt(2 / Math.PI);
+
+  private final double residualFrobenius;
+  private final double relativeResidualFrobenius;
+  private final double residualSpectralBound;
+  private final double[] singularValues;
+  private final double[] componentResiduals;
+
+  /**
+   * @param probeRows the rows p^T A, one per probe
+   * @param V right singular vectors of the reduced matrix, one per row
+   * @param reducedSingularValues all singular values of the reduced matrix B = Q^T A
+   * @param numComponents number of components to report
+   */
+  AccuracyEstimate(double[][] probeRows, double[][] V, double[] reducedSingularValues,
+                   int numComponents) {
+    int numProbes = probeRows.length;
+    double sumSquares = 0;
+    double maxNorm = 0;
+    for (double[] probeRow : probeRows) {
+      double squaredNorm = PureJavaBackend.dot(probeRow, probeRow, 0, probeRow.length);
+      sumSquares += squaredNorm;
+      maxNorm = Math.max(maxNorm, Math.sqrt(squaredNorm));
+    }
+    // E ||A^T p||^2 = ||(I - QQ^T) A||_F^2
+    this.residualFrobenius = Math.sqrt(sumSquares / numProbes);
+    // ||A||_F^2 = ||Q^T A||_F^2 + ||(I - QQ^T) A||_F^2
+    double reducedSquares = 0;
+    for (double singularValue : reducedSingularValues) {
+      reducedSquares += singularValue * singularValue;
+    }
+    this.relativeResidualFrobenius = residualFrobenius
+                                     / Math.sqrt(reducedSquares
+                                                 + residualFrobenius * residualFrobenius);
+    this.residualSpectralBound = SPECTRAL_BOUND_FACTOR * maxNorm;
+
+    this.singularValues = new double[numComponents];
+    this.componentResiduals = new double[numComponents];
+    for (int component = 0; component < numComponents; component++) {
+      singularValues[component] = reducedSingularValues[component];
+      double componentSquares = 0;
+      for (double[] probeRow : probeRows) {
+        double projection = PureJavaBackend.dot(probeRow, V[component], 0, probeRow.length);
+        componentSquares += projection * projection;
+      }
+      componentResiduals[component] = Math.sqrt(componentSquares / numProbes);
+    }
+  }
+
+  /**
+   * @param randomSeed random seed of the SVD
+   * @return the generator for the probe vectors, independent of the sampling matrix
+   */
+  static RandomMatrixGenerator probeGenerator(long randomSeed) {
+    return new RandomMatrixGenerator(DISTRIBUTION.GAUSSIAN, ~randomSeed);
+  }
+
+  /**
+   * @return estimate of ||A - QQ^T A||_F
+   */
+  double getResidualFrobenius() {
+    return residualFrobenius;
+  }
+
+  /**
+   * @return estimate of ||A - QQ^T A||_F / ||A||_F
+   */
+  double getRelativeResidualFrobenius() {
+    return relativeResidualFrobenius;
+  }
+
+  /**
+   * @return an upper bound on ||A - QQ^T A||_2, holding with probability at least 1 -
+   *         10^-{@link #NUM_PROBES}
+   */
+  double getResidualSpectralBound() {
+    return residualSpectralBound;
+  }
+
+  /**
+   * @return estimate of ||A v - s u|| for each component
+   */
+  double[] getComponentResiduals() {
+    return componentResiduals;
+  }
+
+  /**
+   * @param log log the overall residual estimates
+   */
+  void log(Logger log) {
+    log.info("Estimated residual ||A - QQ^T A||_F: " + residualFrobenius + " (relative "
+             + relativeResidualFrobenius + "), spectral norm bound: " + residualSpectralBound);
+  }
+
+  /**
+   * @param file residual estimates and per-component convergence will be dumped to this file
+   * @param log
+   */
+  boolean dumpToText(String file, Logger log) {
+    StringJoiner joiner = new StringJoiner("\n");
+    joiner.add("# NUM_PROBES\t" + NUM_PROBES);
+    joiner.add("# RESIDUAL_FROBENIUS_ESTIMATE\t" + residualFrobenius);
+    joiner.add("# RELATIVE_RESIDUAL_FROBENIUS_ESTIMATE\t" + relativeResidualFrobenius);
+    joiner.add("# RESIDUAL_SPECTRAL_BOUND\t" + residualSpectralBound);
+    joiner.add("PC\tSINGULAR_VALUES\tRESIDUAL_ESTIMATE\tRELATIVE_RESIDUAL_ESTIMATE");
+    for (int component = 0; component < singularValues.length; component++) {
+      joiner.add(component + 1 + "\t" + singularValues[component] + "\t"
+                 + componentResiduals[component] + "\t"
+                 + componentResiduals[component] / singularValues[component]);
+    }
+
+    try {
+      FileUtils.writeStringToFile(new File(file), joiner.toString(), Charset.defaultCharset(),
+                                  false);
+      return true;
+    } catch (IOException e) {
+      log.log(Level.SEVERE, "unable to write to file " + file, e);
+      return false;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package org.pankratzlab.ngspca;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import htsjdk.samtools.util.Interval;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+
+/**
+ * Writes loadings as a coordinate sorted, bgzipped BED file (chrom, 0-based start, end, then one
+ * column per loading) with a tabix index, so that the loadings of a locus can be queried without
+ * reading the whole file (e.g. tabix svd.loadings.bed.gz chr1:1000000-2000000)
+ */
+class BedLoadingsWriter {
+
+  static final String EXTENSION = ".bed.gz";
+  static final String INDEX_EXTENSION = ".tbi";
+
+  private BedLoadingsWriter() {
+
+  }
+
+  /**
+   * @param file write to this file, and the index to file + {@link #INDEX_EXTENSION}
+   * @param loadings one row per marker
+   * @param markerNames UCSC formatted marker of each row
+   * @param loadingNames header of each column of the loadings
+   * @param outputConfig {@link OutputConfig} for writing
+   * @param log
+   * @return true if written, false if the markers are not genomic regions or writing failed
+   */
+  static boolean write(String file, RowBlocks loadings, List<String> markerNames,
+                       List<String> loadingNames, OutputConfig outputConfig, Logger log) {
+    // 1-based inclusive, as parsed from UCSC format
+    List<Interval> markers = new ArrayList<>(markerNames.size());
+    for (String markerName : markerNames) {
+      try {
+        markers.add(BedUtils.parseUCSC(markerName));
+      } catch (IllegalArgumentException e) {
+        // includes the NumberFormatException of a non numeric start or end
+        log.severe("Marker " + markerName
+                   + " is not a genomic region (chr:start-end), skipping BED output of loadings");
+        return false;
+      }
+    }
+
+    // contigs stay in the order they are first seen, markers are sorted within a contig
+    Map<String, Integer> contigOrder = new HashMap<>();
+    int[] contigIndex = new int[markers.size()];
+    for (int i = 0; i < markers.size(); i++) {
+      contigOrder.putIfAbsent(markers.get(i).getContig(), contigOrder.size());
+      contigIndex[i] = contigOrder.get(markers.get(i).getContig());
+    }
+    Comparator<Integer> comparator = Comparator.<Integer> comparingInt(i -> contigIndex[i])
+                                               .thenComparingInt(i -> markers.get(i).getStart())
+                                               .thenComparingInt(i -> markers.get(i).getEnd());
+    Integer[] sorted = new Integer[markers.size()];
+    Arrays.setAll(sorted, i -> i);
+    Arrays.sort(sorted, comparator);
+    int[] rowOrder = new int[sorted.length];
+    List<String> rowNames = new ArrayList<>(sorted.length);
+    for (int i = 0; i < sorted.length; i++) {
+      rowOrder[i] = sorted[i];
+      Interval marker = markers.get(sorted[i]);
+      // BED starts are 0-based
+      rowNames.add(marker.getContig() + "\t" + (marker.getStart() - 1) + "\t" + marker.getEnd());
+    }
+
+    TabixRowIndexer indexer = new TabixRowIndexer(markers, rowOrder);
+    OutputConfig bgzipConfig = new OutputConfig(outputConfig.format, true,
+                                                outputConfig.bedLoadings,
+                                                outputConfig.firstLoadingPC,
+                                                outputConfig.lastLoadingPC, outputConfig.threads);
+    if (!new MatrixWriter(bgzipConfig, log).write(file, loadings, rowOrder, "#CHROM\tSTART\tEND",
+                                                  loadingNames, rowNames, indexer)) {
+      return false;
+    }
+    if (indexer.index == null) {
+      log.severe("Unable to index " + file);
+      return false;
+    }
+    String indexFile = file + INDEX_EXTENSION;
+    try {
+      indexer.index.write(Paths.get(indexFile));
+    } catch (IOException e) {
+      log.log(Level.SEVERE, "unable to write to file " + indexFile, e);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Adds each written row to a tabix index
+   */
+  private static class TabixRowIndexer implements MatrixWriter.RowIndexer {
+
+    private final TabixIndexCreator indexCreator = new TabixIndexCreator(TabixFormat.BED);
+    private final List<Interval> markers;
+    private final int[] rowOrder;
+    private Index index = null;
+
+    private TabixRowIndexer(List<Interval> markers, int[] rowOrder) {
+      this.markers = markers;
+      this.rowOrder = rowOrder;
+    }
+
+    @Override
+    public void row(int outputRow, long virtualOffset) {
+      Interval marker = markers.get(rowOrder[outputRow]);
+      indexCreator.addFeature(new SimpleFeature(marker.getContig(), marker.getStart(),
+                                                marker.getEnd()),
+                              virtualOffset);
+    }
+
+    @Override
+    public void end(long virtualOffset) {
+      index = indexCreator.finalizeIndex(virtualOffset);
+    }
+  }
+}
@@ -1,20 +1,37 @@
 package org.pankratzlab.ngspca;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.apache.commons.lang3.StringUtils;
 import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.Locatable;
-import htsjdk.samtools.util.OverlapDetector;
 import htsjdk.tribble.AbstractFeatureReader;
 import htsjdk.tribble.FeatureReader;
 import htsjdk.tribble.TribbleException;
 import htsjdk.tribble.bed.BEDCodec;
 import htsjdk.tribble.bed.BEDFeature;
+import htsjdk.tribble.util.TabixUtils;
 
 public class BedUtils {
 
@@ -24,14 +41,235 @@ public class BedUtils {
 
   /**
    * @param file load autosomal {@link BEDFeature}s from this file and convert to UCSC format
-   * @param excluder autosomal regions that return true for
-   *          {@link BEDOverlapDetector#overlapsAny(Locatable)} will not be included
+   * @param excluder autosomal regions that overlap a region of this {@link BEDOverlapDetector}
+   *          will not be included
+   * @param threads number of contigs to filter at once
    * @return {@link List} of ucsc regions
    */
-  static List<String> loadAutosomalUCSC(String file, BEDOverlapDetector excluder) {
-    return BedUtils.loadAll(file).stream().filter(BedUtils::autosomal)
-                   .filter(excluder::overlapsNone).map(BedUtils::getBedUCSC)
-                   .collect(Collectors.toList());
+  static List<String> loadAutosomalUCSC(String file, BEDOverlapDetector excluder, int threads) {
+    List<BEDFeature> bins = BedUtils.loadAll(file, threads);
+    BitSet kept = excluder.nonOverlapping(bins, autosomal(bins), threads);
+    return toUCSC(bins, kept, threads);
+  }
+
+  /**
+   * @param file load autosomal {@link BEDFeature}s overlapping the targets from this file and
+   *          convert to UCSC format. If the file has a tabix index only the targets are read
+   * @param targets only autosomal regions that overlap a region of this {@link BEDOverlapDetector}
+   *          will be included
+   * @param excluder regions that overlap a region of this {@link BEDOverlapDetector} will not be
+   *          included
+   * @param threads number of contigs to filter at once
+   * @param log
+   * @return {@link List} of ucsc regions
+   */
+  static List<String> loadTargetedUCSC(String file, BEDOverlapDetector targets,
+                                       BEDOverlapDetector excluder, int threads, Logger log) {
+    List<BEDFeature> bins;
+    if (hasTabixIndex(file)) {
+      log.info("Reading the targeted regions of " + file + " using its tabix index");
+      BEDFileReader reader = new BEDFileReader(file, true);
+      List<String> contigs = reader.getSequenceNames();
+      reader.close();
+      bins = query(file, targets.getIntervals(contigs));
+    } else {
+      log.info("No tabix index (" + TabixUtils.STANDARD_INDEX_EXTENSION + ") found for " + file
+               + ", reading all regions");
+      bins = BedUtils.loadAll(file, threads);
+    }
+    BitSet kept = targets.overlapping(bins, autosomal(bins), threads);
+    kept = excluder.nonOverlapping(bins, kept, threads);
+    return toUCSC(bins, kept, threads);
+  }
+
+  private static List<String> toUCSC(List<BEDFeature> bins, BitSet kept, int threads) {
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+    try {
+      return pool.submit(() -> IntStream.range(0, bins.size()).parallel().filter(kept::get)
+                                        .mapToObj(i -> getBedUCSC(bins.get(i)))
+                                        .collect(Collectors.toList()))
+                 .join();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Contigs are classified once each, rather than once per bin
+   */
+  private static BitSet autosomal(List<BEDFeature> bins) {
+    BitSet autosomal = new BitSet(bins.size());
+    String contig = null;
+    boolean isAutosomal = false;
+    for (int i = 0; i < bins.size(); i++) {
+      String binContig = bins.get(i).getContig();
+      if (!binContig.equals(contig)) {
+        contig = binContig;
+        isAutosomal = autosomal(contig);
+      }
+      if (isAutosomal) {
+        autosomal.set(i);
+      }
+    }
+    return autosomal;
+  }
+
+  /**
+   * @param file a bgzipped bed file
+   * @return true if the file has a tabix index, see {@link #query(String, List)}
+   */
+  static boolean hasTabixIndex(String file) {
+    return FileOps.fileExists(file + TabixUtils.STANDARD_INDEX_EXTENSION);
+  }
+
+  /**
+   * Reads only the blocks of an indexed file that hold the intervals
+   *
+   * @param file a bgzipped bed file with a tabix index
+   * @param intervals sorted, non-overlapping intervals, with the intervals of each contig together
+   * @return the {@link BEDFeature}s overlapping the intervals in file order, each once
+   */
+  static List<BEDFeature> query(String file, List<? extends Locatable> intervals) {
+    try (CloseableIterator<BEDFeature> iter = iterate(file, intervals)) {
+      List<BEDFeature> result = new ArrayList<>();
+      iter.forEachRemaining(result::add);
+      return result;
+    }
+  }
+
+  /**
+   * @param file a bgzipped bed file
+   * @param intervals if not null, the file must have a tabix index and only the intervals are
+   *          read, as for {@link #query(String, List)}
+   * @return a lazy iterator over the {@link BEDFeature}s in file order, closing it closes the file
+   */
+  static CloseableIterator<BEDFeature> iterate(String file, List<? extends Locatable> intervals) {
+    return new FeatureIterator(new BEDFileReader(file, intervals != null), intervals);
+  }
+
+  /**
+   * Iterates over a whole file, or over the features overlapping sorted intervals of an indexed
+   * file, opening one query at a time
+   */
+  private static class FeatureIterator implements CloseableIterator<BEDFeature> {
+
+    private final BEDFileReader reader;
+    private final Iterator<? extends Locatable> intervals;
+    private final Set<String> contigs;
+    private CloseableIterator<BEDFeature> current;
+    private BEDFeature next;
+    private String contig;
+    private int lastEnd;
+
+    private FeatureIterator(BEDFileReader reader, List<? extends Locatable> intervals) {
+      this.reader = reader;
+      if (intervals == null) {
+        this.intervals = null;
+        this.contigs = null;
+        this.current = reader.iterator();
+      } else {
+        this.intervals = intervals.iterator();
+        this.contigs = new HashSet<>(reader.getSequenceNames());
+      }
+    }
+
+    private void advance() {
+      while (next == null) {
+        if (current != null && current.hasNext()) {
+          BEDFeature feature = current.next();
+          // a region spanning two intervals is returned by both queries
+          if (intervals == null || feature.getStart() > lastEnd) {
+            next = feature;
+            lastEnd = feature.getEnd();
+          }
+          continue;
+        }
+        if (current != null) {
+          current.close();
+          current = null;
+        }
+        if (intervals == null || !intervals.hasNext()) {
+          return;
+        }
+        Locatable interval = intervals.next();
+        if (contigs.contains(interval.getContig())) {
+          if (!interval.getContig().equals(contig)) {
+            contig = interval.getContig();
+            lastEnd = Integer.MIN_VALUE;
+          }
+          current = reader.query(interval);
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      advance();
+      return next != null;
+    }
+
+    @Override
+    public BEDFeature next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      BEDFeature feature = next;
+      next = null;
+      return feature;
+    }
+
+    @Override
+    public void close() {
+      if (current != null) {
+        current.close();
+        current = null;
+      }
+      reader.close();
+    }
+  }
+
+  /**
+   * @param ucsc a region formatted by {@link #getBedUCSC(BEDFeature)}
+   * @return the region as an {@link Interval}
+   */
+  static Interval parseUCSC(String ucsc) {
+    int colon = ucsc.lastIndexOf(':');
+    int dash = ucsc.lastIndexOf('-');
+    if (colon < 0 || dash < colon) {
+      throw new IllegalArgumentException("Invalid region " + ucsc + ", expected chr:start-end");
+    }
+    return new Interval(ucsc.substring(0, colon), Integer.parseInt(ucsc.substring(colon + 1, dash)),
+                        Integer.parseInt(ucsc.substring(dash + 1)));
+  }
+
+  /**
+   * @param ucscRegions sorted ucsc regions, see {@link #getBedUCSC(BEDFeature)}
+   * @return the regions with adjacent regions joined, as the fewest intervals to query with
+   *         {@link #query(String, List)}
+   */
+  static List<Interval> toQueryIntervals(List<String> ucscRegions) {
+    List<Interval> intervals = new ArrayList<>();
+    String contig = null;
+    int start = 0;
+    int end = 0;
+    for (String ucsc : ucscRegions) {
+      Interval region = parseUCSC(ucsc);
+      if (region.getContig().equals(contig) && region.getStart() <= end + 1
+          && region.getStart() >= start) {
+        end = Math.max(end, region.getEnd());
+      } else {
+        if (contig != null) {
+          intervals.add(new Interval(contig, start, end));
+        }
+        contig = region.getContig();
+        start = region.getStart();
+        end = region.getEnd();
+      }
+    }
+    if (contig != null) {
+      intervals.add(new Interval(contig, start, end));
+    }
+    return intervals;
   }
 
   /**
@@ -46,6 +284,28 @@ public class BedUtils {
 
   }
 
+  /**
+   * As {@link #loadAll(String)}, decoding lines on multiple threads while the file is decompressed
+   * 
+   * @param file load all {@link BEDFeature}s in this (optionally gzipped) file
+   * @param threads number of threads decoding lines
+   * @return {@link List} of {@link BEDFeature}s, in file order
+   */
+  static List<BEDFeature> loadAll(String file, int threads) {
+    // a codec per thread, header lines decode to null
+    ThreadLocal<BEDCodec> codecs = ThreadLocal.withInitial(BEDCodec::new);
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+    try (BufferedReader reader = IOUtil.openFileForBufferedReading(new File(file))) {
+      return pool.submit(() -> reader.lines().parallel().map(line -> codecs.get().decode(line))
+                                     .filter(Objects::nonNull).collect(Collectors.toList()))
+                 .join();
+    } catch (IOException e) {
+      throw new TribbleException("Could not read " + file, e);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
   /**
    * TODO, currently not an index-based query. Reads all records and filters
    * 
@@ -65,6 +325,20 @@ public class BedUtils {
 
   }
 
+  /**
+   * @param file an indexed file, see {@link #hasTabixIndex(String)}
+   * @param intervals the regions to load, see {@link #toQueryIntervals(List)}
+   * @param ucscRegions {@link Set} of ucsc formatted regions to load
+   * @return
+   */
+  static BedRegionResult loadIndexedRegions(String file, List<? extends Locatable> intervals,
+                                            Set<String> ucscRegions) {
+    List<BEDFeature> result = query(file, intervals).stream()
+                                                    .filter(bf -> ucscRegions.contains(getBedUCSC(bf)))
+                                                    .collect(Collectors.toList());
+    return new BedRegionResult(file, result);
+  }
+
   /**
    * Stores the results of loading a bed file to memory
    */
@@ -94,9 +368,9 @@ public class BedUtils {
 
   }
 
-  private static boolean autosomal(BEDFeature bedFeature) {
-    String contig = bedFeature.getContig().replaceAll("chr", "");
-    return StringUtils.isNumeric(contig) && Integer.parseInt(contig) < 23;
+  private static boolean autosomal(String contig) {
+    String number = contig.replaceAll("chr", "");
+    return StringUtils.isNumeric(number) && Integer.parseInt(number) < 23;
   }
 
   /**
@@ -119,16 +393,19 @@ public class BedUtils {
       reader = AbstractFeatureReader.getFeatureReader(file, new BEDCodec(), requireIndex);
     }
 
-    // /** Queries for records within the region specified. */
-    // public CloseableIterator<BEDFeature> query(final String chrom, final int
-    // start, final int end) {
-    // try {
-    // return reader.query(chrom, start, end);
-    // } catch (final IOException ioe) {
-    // throw new TribbleException("Could not create an iterator from a feature
-    // reader.", ioe);
-    // }
-    // }
+    /** Queries for records within the region specified, requires an index */
+    public CloseableIterator<BEDFeature> query(final Locatable region) {
+      try {
+        return reader.query(region.getContig(), region.getStart(), region.getEnd());
+      } catch (final IOException ioe) {
+        throw new TribbleException("Could not create an iterator from a feature reader.", ioe);
+      }
+    }
+
+    /** Returns the contigs of the index, in index order */
+    public List<String> getSequenceNames() {
+      return reader.getSequenceNames();
+    }
 
     public void close() {
       try {
@@ -150,19 +427,52 @@ public class BedUtils {
   }
 
   /**
-   * Helper to test for overlapping regions sourced from a bed file
+   * Excludes (or keeps only) regions that overlap a bed file. The bed's regions are sorted and
+   * merged by contig, and a coordinate sorted list of regions is filtered with a single merge-join
+   * per contig rather than an interval tree query per region
    */
   static class BEDOverlapDetector {
 
-    private OverlapDetector<BEDFeature> detector;
-    private int numOverlapped;
+    /**
+     * Sorted, merged, 1-based closed intervals of a contig
+     */
+    private static class Intervals {
+
+      private final int[] starts;
+      private final int[] ends;
+
+      private Intervals(int[] starts, int[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+      }
+
+      /**
+       * @return index of the first interval ending at or after this position
+       */
+      private int firstEndingAtOrAfter(int position) {
+        int low = 0;
+        int high = ends.length;
+        while (low < high) {
+          int mid = (low + high) >>> 1;
+          if (ends[mid] < position) {
+            low = mid + 1;
+          } else {
+            high = mid;
+          }
+        }
+        return low;
+      }
+    }
+
+    private final Map<String, Intervals> contigs = new HashMap<>();
+    private final AtomicInteger numRemoved = new AtomicInteger();
 
     /**
-     * @param bedFile
+     * @param bedFile regions to detect, or null for none
+     * @param log
      */
     BEDOverlapDetector(String bedFile, Logger log) {
       super();
-      numOverlapped = 0;
       if (bedFile != null) {
         if (!FileOps.fileExists(bedFile)) {
           String err = "BED file to exclude did not exist: " + bedFile;
@@ -171,29 +481,140 @@ public class BedUtils {
         }
         List<BEDFeature> regions = loadAll(bedFile);
         log.info("Loaded " + regions.size() + " regions to detect overlaps from " + bedFile);
-        detector = OverlapDetector.create(loadAll(bedFile));
-      } else {
-        detector = OverlapDetector.create(new ArrayList<>());
+        Map<String, List<BEDFeature>> byContig = regions.stream()
+                                                        .collect(Collectors.groupingBy(BEDFeature::getContig));
+        for (Entry<String, List<BEDFeature>> contig : byContig.entrySet()) {
+          contigs.put(contig.getKey(), merge(contig.getValue()));
+        }
+      }
+    }
+
+    private static Intervals merge(List<BEDFeature> regions) {
+      regions.sort(Comparator.comparingInt(BEDFeature::getStart));
+      int[] starts = new int[regions.size()];
+      int[] ends = new int[regions.size()];
+      int merged = -1;
+      for (BEDFeature region : regions) {
+        if (region.getEnd() < region.getStart()) {
+          // zero length, covers no bases
+          continue;
+        }
+        if (merged >= 0 && region.getStart() <= ends[merged]) {
+          ends[merged] = Math.max(ends[merged], region.getEnd());
+        } else {
+          merged++;
+          starts[merged] = region.getStart();
+          ends[merged] = region.getEnd();
+        }
       }
+      return new Intervals(Arrays.copyOf(starts, merged + 1), Arrays.copyOf(ends, merged + 1));
     }
 
-    boolean overlapsAny(Locatable query) {
-      boolean olap = detector.overlapsAny(query);
-      if (olap) {
-        numOverlapped++;
+    /**
+     * @param contigOrder order of the contigs, e.g. of an index
+     * @return the merged intervals of the contigs in this order, see
+     *         {@link BedUtils#query(String, List)}
+     */
+    List<Interval> getIntervals(List<String> contigOrder) {
+      List<Interval> result = new ArrayList<>();
+      for (String contig : contigOrder) {
+        Intervals intervals = contigs.get(contig);
+        if (intervals != null) {
+          for (int i = 0; i < intervals.starts.length; i++) {
+            result.add(new Interval(contig, intervals.starts[i], intervals.ends[i]));
+          }
+        }
       }
-      return olap;
+      return result;
+    }
+
+    /**
+     * @param regions coordinate sorted regions, with the regions of each contig together
+     * @param candidates indices of the regions to consider
+     * @param threads number of contigs to filter at once
+     * @return the indices of candidate regions that do not overlap any region of this detector
+     */
+    <T extends Locatable> BitSet nonOverlapping(List<T> regions, BitSet candidates, int threads) {
+      return filter(regions, candidates, false, threads);
     }
 
-    boolean overlapsNone(Locatable query) {
-      return !overlapsAny(query);
+    /**
+     * @param regions coordinate sorted regions, with the regions of each contig together
+     * @param candidates indices of the regions to consider
+     * @param threads number of contigs to filter at once
+     * @return the indices of candidate regions that overlap a region of this detector
+     */
+    <T extends Locatable> BitSet overlapping(List<T> regions, BitSet candidates, int threads) {
+      return filter(regions, candidates, true, threads);
+    }
+
+    private <T extends Locatable> BitSet filter(List<T> regions, BitSet candidates,
+                                                boolean keepOverlapping, int threads) {
+      // [start, end) of each contig's run of regions
+      List<int[]> runs = new ArrayList<>();
+      for (int start = 0, end; start < regions.size(); start = end) {
+        String contig = regions.get(start).getContig();
+        end = start + 1;
+        while (end < regions.size() && contig.equals(regions.get(end).getContig())) {
+          end++;
+        }
+        runs.add(new int[] {start, end});
+      }
+      ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+      try {
+        List<BitSet> kept = pool.submit(() -> runs.parallelStream()
+                                                  .map(run -> filter(regions, run[0], run[1],
+                                                                     candidates,
+                                                                     keepOverlapping))
+                                                  .collect(Collectors.toList()))
+                                .join();
+        BitSet result = new BitSet(regions.size());
+        kept.forEach(result::or);
+        return result;
+      } finally {
+        pool.shutdown();
+      }
+    }
+
+    /**
+     * Merge-join of one contig's regions with its intervals
+     */
+    private <T extends Locatable> BitSet filter(List<T> regions, int from, int to,
+                                                BitSet candidates, boolean keepOverlapping) {
+      BitSet kept = new BitSet(to);
+      Intervals intervals = contigs.get(regions.get(from).getContig());
+      int removed = 0;
+      int next = 0;
+      int previousStart = Integer.MIN_VALUE;
+      for (int i = candidates.nextSetBit(from); i >= 0 && i < to; i = candidates.nextSetBit(i + 1)) {
+        T region = regions.get(i);
+        boolean overlaps = false;
+        if (intervals != null) {
+          if (region.getStart() < previousStart) {
+            // not sorted, search again rather than fail
+            next = intervals.firstEndingAtOrAfter(region.getStart());
+          }
+          previousStart = region.getStart();
+          while (next < intervals.ends.length && intervals.ends[next] < region.getStart()) {
+            next++;
+          }
+          overlaps = next < intervals.ends.length && intervals.starts[next] <= region.getEnd();
+        }
+        if (overlaps == keepOverlapping) {
+          kept.set(i);
+        } else {
+          removed++;
+        }
+      }
+      numRemoved.addAndGet(removed);
+      return kept;
     }
 
     /**
-     * @return the numExcluded
+     * @return number of candidate regions removed by this detector so far
      */
     int getNumExcluded() {
-      return numOverlapped;
+      return numRemoved.get();
     }
 
   }
@@ -0,0 +1,98 @@
+package org.pankratzlab.ngspca;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Compresses byte ranges into self-contained BGZF blocks
+ * (https://samtools.github.io/hts-specs/SAMv1.pdf, section 4.1). Since every block is independent,
+ * different threads can compress different parts of a file, and the blocks are concatenated in
+ * order. Each thread should use its own {@link BgzfCompressor}
+ */
+class BgzfCompressor {
+
+  /**
+   * Uncompressed bytes per block
+   */
+  static final int BLOCK_SIZE = BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE;
+
+  private final Deflater deflater = new Deflater(BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL,
+                                                 true);
+  private final Deflater noCompression = new Deflater(Deflater.NO_COMPRESSION, true);
+  private final CRC32 crc = new CRC32();
+  private final byte[] block = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+
+  /**
+   * @param input the bytes to compress
+   * @param output BGZF blocks are appended to this chunk, each holding {@link #BLOCK_SIZE} bytes of
+   *          input (the last may hold fewer)
+   * @return the compressed size of each block
+   */
+  int[] compress(ByteChunk input, ByteChunk output) {
+    int[] blockSizes = new int[(input.length + BLOCK_SIZE - 1) / BLOCK_SIZE];
+    for (int b = 0; b < blockSizes.length; b++) {
+      int offset = b * BLOCK_SIZE;
+      int length = Math.min(BLOCK_SIZE, input.length - offset);
+      int blockSize = compressBlock(input.data, offset, length);
+      output.ensureAvailable(blockSize);
+      System.arraycopy(block, 0, output.data, output.length, blockSize);
+      output.length += blockSize;
+      blockSizes[b] = blockSize;
+    }
+    return blockSizes;
+  }
+
+  /**
+   * @return the size of the block written to {@link #block}
+   */
+  private int compressBlock(byte[] data, int offset, int length) {
+    int maxCompressed = block.length - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH
+                        - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+    int compressed = deflate(deflater, data, offset, length, maxCompressed);
+    if (compressed < 0) {
+      // incompressible data, store it
+      compressed = deflate(noCompression, data, offset, length, maxCompressed);
+    }
+    int blockSize = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + compressed
+                    + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+    System.arraycopy(BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE, 0, block, 0,
+                     BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET);
+    writeShort(blockSize - 1, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET);
+    crc.reset();
+    crc.update(data, offset, length);
+    int footer = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + compressed;
+    writeInt((int) crc.getValue(), footer);
+    writeInt(length, footer + 4);
+    return blockSize;
+  }
+
+  /**
+   * @return the compressed length, or -1 if it did not fit
+   */
+  private int deflate(Deflater deflater, byte[] data, int offset, int length, int maxCompressed) {
+    deflater.reset();
+    deflater.setInput(data, offset, length);
+    deflater.finish();
+    int compressed = deflater.deflate(block, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH,
+                                      maxCompressed);
+    return deflater.finished() ? compressed : -1;
+  }
+
+  private void writeShort(int value, int offset) {
+    block[offset] = (byte) value;
+    block[offset + 1] = (byte) (value >>> 8);
+  }
+
+  private void writeInt(int value, int offset) {
+    writeShort(value, offset);
+    writeShort(value >>> 16, offset + 2);
+  }
+
+  /**
+   * @return the BGZF end of file marker
+   */
+  static byte[] eofBlock() {
+    return BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+  }
+}
@@ -0,0 +1,190 @@
+package org.pankratzlab.ngspca;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.math3.linear.BlockRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * Optional removal of uninformative bins before the SVD: bins with coverage in too few samples, bins
+ * that are (nearly) constant across samples after normalization, or all but the most variable bins.
+ * Every power iteration multiplies by each bin, so bins that carry no signal only add memory and
+ * time.
+ * <p>
+ * The statistics of every bin, and whether it was kept, are written to {@link #FILE} next to
+ * svd.bins.txt
+ */
+class BinFilter {
+
+  static final String FILE = "svd.bins.stats.txt";
+
+  /**
+   * Minimum fraction of samples with nonzero (raw) coverage, 0 to keep all
+   */
+  final double minNonzeroFraction;
+  /**
+   * Minimum variance of the normalized values, 0 to keep all
+   */
+  final double minVariance;
+  /**
+   * Keep only this many of the most variable bins that pass the other filters, 0 to keep all
+   */
+  final int topVariable;
+
+  /**
+   * @param minNonzeroFraction minimum fraction of samples with nonzero coverage, 0 to keep all
+   * @param minVariance minimum variance of the normalized values, 0 to keep all
+   * @param topVariable keep only this many of the most variable bins, 0 to keep all
+   */
+  BinFilter(double minNonzeroFraction, double minVariance, int topVariable) {
+    if (minNonzeroFraction < 0 || minNonzeroFraction > 1 || minVariance < 0 || topVariable < 0) {
+      throw new IllegalArgumentException("Invalid bin filter: minimum nonzero fraction "
+                                         + minNonzeroFraction + ", minimum variance "
+                                         + minVariance + ", top variable " + topVariable);
+    }
+    this.minNonzeroFraction = minNonzeroFraction;
+    this.minVariance = minVariance;
+    this.topVariable = topVariable;
+  }
+
+  /**
+   * @return a {@link BinFilter} that keeps every bin
+   */
+  static BinFilter none() {
+    return new BinFilter(0, 0, 0);
+  }
+
+  boolean isEnabled() {
+    return minNonzeroFraction > 0 || minVariance > 0 || topVariable > 0;
+  }
+
+  /**
+   * @param raw the raw (not normalized) matrix
+   * @return the fraction of samples with nonzero coverage, of each row
+   */
+  static double[] nonzeroFraction(RealMatrix raw) {
+    double[] fraction = new double[raw.getRowDimension()];
+    for (int row = 0; row < fraction.length; row++) {
+      int nonzero = 0;
+      for (double value : raw.getRow(row)) {
+        if (value != 0) {
+          nonzero++;
+        }
+      }
+      fraction[row] = nonzero / (double) Math.max(1, raw.getColumnDimension());
+    }
+    return fraction;
+  }
+
+  /**
+   * @param dm the normalized matrix
+   * @return the sample variance of each row
+   */
+  static double[] variance(RealMatrix dm) {
+    double[] variance = new double[dm.getRowDimension()];
+    for (int row = 0; row < variance.length; row++) {
+      // Welford's single pass
+      double mean = 0;
+      double m2 = 0;
+      int n = 0;
+      for (double value : dm.getRow(row)) {
+        n++;
+        double delta = value - mean;
+        mean += delta / n;
+        m2 += delta * (value - mean);
+      }
+      variance[row] = n > 1 ? m2 / (n - 1) : 0;
+    }
+    return variance;
+  }
+
+  /**
+   * @param nonzero see {@link #nonzeroFraction(RealMatrix)}
+   * @param variance see {@link #variance(RealMatrix)}
+   * @return the rows to keep
+   */
+  BitSet select(double[] nonzero, double[] variance) {
+    BitSet kept = new BitSet(variance.length);
+    for (int row = 0; row < variance.length; row++) {
+      if (nonzero[row] >= minNonzeroFraction && variance[row] >= minVariance) {
+        kept.set(row);
+      }
+    }
+    if (topVariable > 0 && kept.cardinality() > topVariable) {
+      int[] byVariance = kept.stream().boxed()
+                             .sorted((a, b) -> Double.compare(variance[b], variance[a]))
+                             .limit(topVariable).mapToInt(Integer::intValue).toArray();
+      kept.clear();
+      for (int row : byVariance) {
+        kept.set(row);
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * @param dm the matrix
+   * @param kept the rows to keep, see {@link #select(double[], double[])}
+   * @return a new {@link BlockRealMatrix} of the kept rows, in order
+   */
+  static BlockRealMatrix subset(RealMatrix dm, BitSet kept) {
+    int[] rows = kept.stream().toArray();
+    BlockRealMatrix subset = new BlockRealMatrix(rows.length, dm.getColumnDimension());
+    for (int i = 0; i < rows.length; i++) {
+      subset.setRow(i, dm.getRow(rows[i]));
+    }
+    return subset;
+  }
+
+  /**
+   * @param file write the statistics of each bin, and whether it was kept, to this file
+   * @param bins the bin (row) names
+   * @param nonzero see {@link #nonzeroFraction(RealMatrix)}
+   * @param variance see {@link #variance(RealMatrix)}
+   * @param kept see {@link #select(double[], double[])}
+   * @param log
+   */
+  static void dumpToText(String file, List<String> bins, double[] nonzero, double[] variance,
+                         BitSet kept, Logger log) {
+    try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(file),
+                                                         StandardCharsets.UTF_8)) {
+      writer.write("BIN\tNONZERO_FRACTION\tVARIANCE\tKEPT");
+      writer.newLine();
+      for (int row = 0; row < bins.size(); row++) {
+        writer.write(bins.get(row) + "\t" + nonzero[row] + "\t" + variance[row] + "\t"
+                     + kept.get(row));
+        writer.newLine();
+      }
+    } catch (IOException e) {
+      log.log(Level.SEVERE, "unable to write to file " + file, e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "minNonzeroFraction=" + minNonzeroFraction + ", minVariance=" + minVariance
+           + ", topVariable=" + topVariable;
+  }
+
+  /**
+   * @param values values of each bin
+   * @return a short summary for logging
+   */
+  static String summarize(double[] values) {
+    if (values.length == 0) {
+      return "none";
+    }
+    double[] sorted = Arrays.copyOf(values, values.length);
+    Arrays.sort(sorted);
+    return "min " + sorted[0] + ", median " + sorted[sorted.length / 2] + ", max "
+           + sorted[sorted.length - 1];
+  }
+}
@@ -0,0 +1,118 @@
+package org.pankratzlab.ngspca;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import htsjdk.samtools.util.Interval;
+
+/**
+ * Maps the selected mosdepth bins to the rows of the input matrix. Runs of adjacent bins can be
+ * averaged into coarser windows (e.g. ten 1 kb bins into a 10 kb window), so that the matrix
+ * shrinks while every cell still uses all of the coverage. A window never spans a gap left by
+ * exclusion or a contig boundary, so windows at either side of a gap may hold fewer bins
+ */
+class BinWindows {
+
+  /**
+   * The bins to load, in file order
+   */
+  final List<String> bins;
+  /**
+   * The windows, i.e. the rows of the matrix
+   */
+  final List<String> windows;
+  /**
+   * The window (row) of each bin
+   */
+  private final int[] rows;
+  /**
+   * Fraction of its window's length covered by each bin, so that the row is the length weighted
+   * mean coverage of its bins
+   */
+  private final double[] weights;
+
+  private BinWindows(List<String> bins, List<String> windows, int[] rows, double[] weights) {
+    this.bins = bins;
+    this.windows = windows;
+    this.rows = rows;
+    this.weights = weights;
+  }
+
+  /**
+   * @param bins selected bins in file order, see {@link BedUtils#getBedUCSC}
+   * @param binsPerWindow average up to this many adjacent bins into each window, 1 to use each bin
+   * @param sampleAt then keep one window per this number
+   * @return the {@link BinWindows}
+   */
+  static BinWindows create(List<String> bins, int binsPerWindow, int sampleAt) {
+    if (binsPerWindow < 1 || sampleAt < 1) {
+      throw new IllegalArgumentException("Invalid bins per window " + binsPerWindow
+                                         + " or sampling " + sampleAt);
+    }
+    List<Interval> intervals = new ArrayList<>(bins.size());
+    for (String bin : bins) {
+      intervals.add(BedUtils.parseUCSC(bin));
+    }
+    List<String> keptBins = new ArrayList<>();
+    List<String> windows = new ArrayList<>();
+    int[] rows = new int[bins.size()];
+    double[] weights = new double[bins.size()];
+    int window = 0;
+    for (int start = 0, end; start < intervals.size(); start = end, window++) {
+      // extend the window over adjacent bins of the same contig
+      end = start + 1;
+      while (end < intervals.size() && end - start < binsPerWindow
+             && adjacent(intervals.get(end - 1), intervals.get(end))) {
+        end++;
+      }
+      if (window % sampleAt != 0) {
+        continue;
+      }
+      Interval first = intervals.get(start);
+      Interval last = intervals.get(end - 1);
+      double length = 0;
+      for (int i = start; i < end; i++) {
+        length += intervals.get(i).length();
+      }
+      for (int i = start; i < end; i++) {
+        rows[keptBins.size()] = windows.size();
+        weights[keptBins.size()] = intervals.get(i).length() / length;
+        keptBins.add(bins.get(i));
+      }
+      windows.add(binsPerWindow == 1 ? bins.get(start)
+                                     : first.getContig() + ":" + first.getStart() + "-"
+                                       + last.getEnd());
+    }
+    int kept = keptBins.size();
+    return new BinWindows(keptBins, windows, Arrays.copyOf(rows, kept),
+                          Arrays.copyOf(weights, kept));
+  }
+
+  private static boolean adjacent(Interval previous, Interval next) {
+    return previous.getContig().equals(next.getContig())
+           && next.getStart() == previous.getEnd() + 1;
+  }
+
+  /**
+   * @return true if any window holds more than one bin
+   */
+  boolean isAggregated() {
+    return bins.size() > windows.size();
+  }
+
+  /**
+   * @param bin index of a bin in {@link #bins}
+   * @return the row of the bin's window
+   */
+  int getRow(int bin) {
+    return rows[bin];
+  }
+
+  /**
+   * @param bin index of a bin in {@link #bins}
+   * @return weight of the bin's coverage in its window
+   */
+  double getWeight(int bin) {
+    return weights[bin];
+  }
+}
@@ -0,0 +1,52 @@
+package org.pankratzlab.ngspca;
+
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer that is filled by one thread, handed to a writer, and then cleared and
+ * reused, so that formatting output does not allocate per value
+ */
+class ByteChunk {
+
+  byte[] data;
+  int length = 0;
+
+  /**
+   * @param capacity initial capacity in bytes
+   */
+  ByteChunk(int capacity) {
+    this.data = new byte[capacity];
+  }
+
+  void clear() {
+    length = 0;
+  }
+
+  /**
+   * @param additional make room for this many more bytes
+   */
+  void ensureAvailable(int additional) {
+    if (length + additional > data.length) {
+      data = Arrays.copyOf(data, Math.max(length + additional, 2 * data.length));
+    }
+  }
+
+  void append(byte b) {
+    ensureAvailable(1);
+    data[length++] = b;
+  }
+
+  void append(byte[] bytes) {
+    ensureAvailable(bytes.length);
+    System.arraycopy(bytes, 0, data, length, bytes.length);
+    length += bytes.length;
+  }
+
+  /**
+   * @param value appended as formatted by {@link DoubleFormatter}
+   */
+  void append(double value) {
+    ensureAvailable(DoubleFormatter.MAX_LENGTH);
+    length = DoubleFormatter.format(value, data, length);
+  }
+}
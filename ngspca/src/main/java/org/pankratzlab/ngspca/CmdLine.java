@@ -2,6 +2,7 @@ package org.pankratzlab.ngspca;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Arrays;
 import java.util.logging.Logger;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -10,6 +11,11 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.pankratzlab.ngspca.LinearAlgebraBackend.BACKEND;
+import org.pankratzlab.ngspca.MosdepthUtils.REGION_STRATEGY;
+import org.pankratzlab.ngspca.OutputConfig.OUTPUT_FORMAT;
+import org.pankratzlab.ngspca.RandomMatrixGenerator.DISTRIBUTION;
+import org.pankratzlab.ngspca.SketchOperator.SKETCH_TYPE;
 
 /**
  * Utility class to process cmdline arguments
@@ -25,14 +31,45 @@ class CmdLine {
   static final String NUM_THREADS_ARG = "threads";
   static final String NUM_SAMPLE_ARG = "sampleEvery";
   static final String EXCLUDE_BED_FILE = "bedExclude";
+  static final String TARGETS_BED_FILE = "bedTargets";
+  static final String REGION_STRATEGY_ARG = "regionStrategy";
+  static final String BIN_AGGREGATE_ARG = "binAggregate";
+  static final String STREAM_BATCH_ARG = "streamBatch";
+  static final String IO_THREADS_ARG = "ioThreads";
+  static final String IO_BUFFER_MB_ARG = "ioBufferMB";
+  static final String MIN_NONZERO_FRACTION_ARG = "minNonzeroFraction";
+  static final String MIN_BIN_VARIANCE_ARG = "minBinVariance";
+  static final String TOP_VARIABLE_BINS_ARG = "topVariableBins";
   static final String N_ITERS = "iters";
   static final String OVERSAMPLE = "oversample";
   static final String RANDOM_SEED = "randomSeed";
+  static final String RANDOM_DISTRIBUTION = "randomDistribution";
+  static final String SKETCH = "sketch";
+  static final String BACKEND_ARG = "backend";
+  static final String SWEEP_ARG = "sweep";
+  static final String BGZIP_ARG = "bgzip";
+  static final String OUTPUT_FORMAT_ARG = "outputFormat";
+  static final String BED_LOADINGS_ARG = "bedLoadings";
+  static final String LOADING_PCS_ARG = "loadingPCs";
+  static final String IGNORE_PLAN_ARG = "ignorePlan";
+  static final String CHECKPOINT_EVERY_ARG = "checkpointEvery";
+  static final String COMPRESS_BITS_ARG = "compressBits";
 
   static final int DEFAULT_RANDOM_SEED = 42;
+  static final DISTRIBUTION DEFAULT_RANDOM_DISTRIBUTION = DISTRIBUTION.GAUSSIAN;
+  static final SKETCH_TYPE DEFAULT_SKETCH = SKETCH_TYPE.DENSE;
+  static final BACKEND DEFAULT_BACKEND = BACKEND.COMMONS_MATH;
+  static final OUTPUT_FORMAT DEFAULT_OUTPUT_FORMAT = OUTPUT_FORMAT.TEXT;
+  static final int DEFAULT_CHECKPOINT_EVERY = 0;
+  static final int DEFAULT_COMPRESS_BITS = 0;
   static final int DEFAULT_PCS = 20;
   static final int DEFAULT_SAMPLE = 1;
+  static final int DEFAULT_BIN_AGGREGATE = 1;
+  static final int DEFAULT_STREAM_BATCH = 0;
+  static final int DEFAULT_IO_THREADS = 0;
+  static final int DEFAULT_IO_BUFFER_MB = 256;
   static final String DEFAULT_EXCLUDE_BED_FILE = null;
+  static final REGION_STRATEGY DEFAULT_REGION_STRATEGY = REGION_STRATEGY.AUTOSOMAL;
 
   static final int DEFAULT_THREADS = 4;
 
@@ -73,7 +110,7 @@ class CmdLine {
 
     final Option numThreads = Option.builder("t").hasArg(true).required().longOpt(NUM_THREADS_ARG)
                                     .hasArg()
-                                    .desc("Number of threads to utilize when loading data. Default is "
+                                    .desc("Number of threads to utilize when loading data and computing PCs. Default is "
                                           + DEFAULT_THREADS)
                                     .required(false).build();
 
@@ -84,11 +121,69 @@ class CmdLine {
                                            + DEFAULT_SAMPLE + "(use every bin)")
                                      .required(false).build();
 
+    final Option binAggregate = Option.builder(BIN_AGGREGATE_ARG).hasArg(true)
+                                      .longOpt(BIN_AGGREGATE_ARG)
+                                      .desc("Average up to this many adjacent mosdepth bins into each row (e.g. 10 for 10 kb windows of 1 kb bins), rather than discarding bins with --"
+                                            + NUM_SAMPLE_ARG
+                                            + ". Windows do not span excluded regions or contigs. Applied before --"
+                                            + NUM_SAMPLE_ARG + ". Default is "
+                                            + DEFAULT_BIN_AGGREGATE + " (use every bin)")
+                                      .required(false).build();
+
+    final Option streamBatch = Option.builder(STREAM_BATCH_ARG).hasArg(true)
+                                     .longOpt(STREAM_BATCH_ARG)
+                                     .desc("Read this many mosdepth files at once in lockstep, a block of rows at a time, rather than one whole file per thread. Bounds the open files and per file buffers of large cohorts. Default is "
+                                           + DEFAULT_STREAM_BATCH + " (one whole file per thread)")
+                                     .required(false).build();
+
+    final Option ioThreads = Option.builder(IO_THREADS_ARG).hasArg(true).longOpt(IO_THREADS_ARG)
+                                   .desc("Read the compressed mosdepth files on this many I/O threads, ahead of the --"
+                                         + NUM_THREADS_ARG
+                                         + " threads that decompress and parse them. Many I/O threads hide the latency of network file systems. Default is "
+                                         + DEFAULT_IO_THREADS + " (the parsing threads read)")
+                                   .required(false).build();
+
+    final Option ioBufferMB = Option.builder(IO_BUFFER_MB_ARG).hasArg(true)
+                                    .longOpt(IO_BUFFER_MB_ARG)
+                                    .desc("With --" + IO_THREADS_ARG
+                                          + ", at most this many MB of compressed files are read ahead of parsing. Default is "
+                                          + DEFAULT_IO_BUFFER_MB)
+                                    .required(false).build();
+
+    final Option minNonzeroFraction = Option.builder(MIN_NONZERO_FRACTION_ARG).hasArg(true)
+                                            .longOpt(MIN_NONZERO_FRACTION_ARG)
+                                            .desc("Before the SVD, remove bins with nonzero coverage in less than this fraction of samples. The statistics of every bin are written to "
+                                                  + BinFilter.FILE + ". Default is 0 (keep all)")
+                                            .required(false).build();
+    final Option minBinVariance = Option.builder(MIN_BIN_VARIANCE_ARG).hasArg(true)
+                                        .longOpt(MIN_BIN_VARIANCE_ARG)
+                                        .desc("Before the SVD, remove bins whose normalized values have less than this variance across samples. Default is 0 (keep all)")
+                                        .required(false).build();
+    final Option topVariableBins = Option.builder(TOP_VARIABLE_BINS_ARG).hasArg(true)
+                                         .longOpt(TOP_VARIABLE_BINS_ARG)
+                                         .desc("Before the SVD, keep only this many of the most variable bins that pass the other filters. Default is 0 (keep all)")
+                                         .required(false).build();
+
     final Option bedExcludes = Option.builder("b").hasArg(true).required().longOpt(EXCLUDE_BED_FILE)
                                      .hasArg()
                                      .desc("Optional: Provide a file to exclude specific regions from PCA input, prior to sampling with "
                                            + NUM_SAMPLE_ARG)
                                      .required(false).build();
+    final Option regionStrategy = Option.builder(REGION_STRATEGY_ARG).hasArg(true)
+                                        .longOpt(REGION_STRATEGY_ARG)
+                                        .desc("How to select mosdepth bins. Options are: "
+                                              + Arrays.toString(REGION_STRATEGY.values())
+                                              + ". " + REGION_STRATEGY.TARGETS
+                                              + " selects the autosomal bins overlapping --"
+                                              + TARGETS_BED_FILE
+                                              + " (e.g. buffered exome targets), reading only those bins from files with a tabix (.tbi) index. Default is "
+                                              + DEFAULT_REGION_STRATEGY)
+                                        .required(false).build();
+    final Option bedTargets = Option.builder(TARGETS_BED_FILE).hasArg(true)
+                                    .longOpt(TARGETS_BED_FILE)
+                                    .desc("Bed file of targets, required for --" + REGION_STRATEGY_ARG
+                                          + " " + REGION_STRATEGY.TARGETS)
+                                    .required(false).build();
     final Option niter = Option.builder(N_ITERS).hasArg(true).required().longOpt(N_ITERS).hasArg()
                                .desc("specifies the number of power (subspace) iterations to reduce the approximation error. The power scheme is recommended, if the singular values decay slowly. In practice, 2 or 3 iterations achieve good results, however, computing power iterations increases the computational costs "
                                      + RandomizedSVD.DEFAULT_NITERS)
@@ -104,6 +199,66 @@ class CmdLine {
                                     .desc("Random seed for generating sampling matrix for randomized PCA (probably not worth changing the default)"
                                           + DEFAULT_RANDOM_SEED)
                                     .required(false).build();
+    final Option randomDistribution = Option.builder(RANDOM_DISTRIBUTION).hasArg(true)
+                                            .longOpt(RANDOM_DISTRIBUTION)
+                                            .desc("Distribution of the entries in the sampling matrix for randomized PCA, one of "
+                                                  + Arrays.toString(DISTRIBUTION.values())
+                                                  + ". Default is "
+                                                  + DEFAULT_RANDOM_DISTRIBUTION)
+                                            .required(false).build();
+    final Option sketch = Option.builder(SKETCH).hasArg(true).longOpt(SKETCH)
+                                .desc("Structure of the sampling matrix used for the initial range finder of randomized PCA, one of "
+                                      + Arrays.toString(SKETCH_TYPE.values())
+                                      + ". Sparse sign and SRHT sketches are cheaper to apply than a dense matrix. Default is "
+                                      + DEFAULT_SKETCH)
+                                .required(false).build();
+    final Option backend = Option.builder(BACKEND_ARG).hasArg(true).longOpt(BACKEND_ARG)
+                                 .desc("Linear algebra backend used for randomized PCA, one of "
+                                       + Arrays.toString(BACKEND.values()) + ". "
+                                       + BACKEND.PURE_JAVA + " uses --" + NUM_THREADS_ARG
+                                       + " threads. Default is " + DEFAULT_BACKEND)
+                                 .required(false).build();
+    final Option sweep = Option.builder(SWEEP_ARG).hasArg(false).longOpt(SWEEP_ARG)
+                               .desc("Parameter sweep: --" + N_ITERS + ", --" + OVERSAMPLE + " and --"
+                                     + NUM_COMPONENTS_ARG
+                                     + " accept comma separated lists, and PCs are computed for every combination (each in its own sub-directory of --"
+                                     + OUTPUT_DIR_ARG
+                                     + "), loading the input once and continuing the subspace iterations from one iteration count to the next")
+                               .required(false).build();
+    final Option bgzip = Option.builder(BGZIP_ARG).hasArg(false).longOpt(BGZIP_ARG)
+                               .desc("bgzip compress the text PCs and loadings output (svd.pcs.txt.gz and svd.loadings.txt.gz)")
+                               .required(false).build();
+    final Option outputFormat = Option.builder(OUTPUT_FORMAT_ARG).hasArg(true)
+                                      .longOpt(OUTPUT_FORMAT_ARG)
+                                      .desc("Format of the PCs, loadings and singular values, one of "
+                                            + Arrays.toString(OUTPUT_FORMAT.values()) + ". "
+                                            + OUTPUT_FORMAT.NPY
+                                            + " writes column-major NumPy .npy files, so a single component can be memory mapped. Rows follow svd.samples.txt (PCs) and svd.bins.txt (loadings). Default is "
+                                            + DEFAULT_OUTPUT_FORMAT)
+                                      .required(false).build();
+    final Option bedLoadings = Option.builder(BED_LOADINGS_ARG).hasArg(false)
+                                     .longOpt(BED_LOADINGS_ARG)
+                                     .desc("Also write the loadings as a coordinate sorted, bgzipped BED file with a tabix index (svd.loadings.bed.gz and svd.loadings.bed.gz.tbi), for locus queries. Requires markers formatted as chr:start-end")
+                                     .required(false).build();
+    final Option loadingPCs = Option.builder(LOADING_PCS_ARG).hasArg(true).longOpt(LOADING_PCS_ARG)
+                                    .desc("Only compute and write loadings for this 1-based, inclusive range of components (e.g. 1-20). Default is all of --"
+                                          + NUM_COMPONENTS_ARG)
+                                    .required(false).build();
+    final Option ignorePlan = Option.builder(IGNORE_PLAN_ARG).hasArg(false)
+                                    .longOpt(IGNORE_PLAN_ARG)
+                                    .desc("Run even if the up-front resource plan estimates that the max heap (-Xmx) is too small for any backend")
+                                    .required(false).build();
+    final Option checkpointEvery = Option.builder(CHECKPOINT_EVERY_ARG).hasArg(true)
+                                         .longOpt(CHECKPOINT_EVERY_ARG)
+                                         .desc("Save the subspace iteration state to the output directory every this many iterations, so that a rerun with the same input and arguments resumes from the last saved iteration. Default is "
+                                               + DEFAULT_CHECKPOINT_EVERY + " (never)")
+                                         .required(false).build();
+    final Option compressBits = Option.builder(COMPRESS_BITS_ARG).hasArg(true)
+                                      .longOpt(COMPRESS_BITS_ARG)
+                                      .desc("Hold the normalized matrix with lossy, block quantized compression of 8 or 16 bits per entry during the SVD, so that each pass over it reads 8 or 4 times fewer bytes. The error against full precision is logged. Only supported by the "
+                                            + BACKEND.PURE_JAVA + " backend. Default is "
+                                            + DEFAULT_COMPRESS_BITS + " (full precision)")
+                                      .required(false).build();
     final Option matrix = Option.builder(MATRIX_INPUT_ARG).hasArg(false).longOpt(MATRIX_INPUT_ARG)
                                 .desc("The input provided by " + INPUT_ARG
                                       + " is a matrix (i.e. SVD will be performed directly on the matrix, without normalization, to generate PCS")
@@ -123,10 +278,30 @@ class CmdLine {
     options.addOption(numComponents);
     options.addOption(numThreads);
     options.addOption(sampleEvery);
+    options.addOption(binAggregate);
+    options.addOption(streamBatch);
+    options.addOption(ioThreads);
+    options.addOption(ioBufferMB);
+    options.addOption(minNonzeroFraction);
+    options.addOption(minBinVariance);
+    options.addOption(topVariableBins);
     options.addOption(bedExcludes);
+    options.addOption(regionStrategy);
+    options.addOption(bedTargets);
     options.addOption(niter);
     options.addOption(oversamples);
     options.addOption(randomSeed);
+    options.addOption(randomDistribution);
+    options.addOption(sketch);
+    options.addOption(backend);
+    options.addOption(sweep);
+    options.addOption(bgzip);
+    options.addOption(outputFormat);
+    options.addOption(bedLoadings);
+    options.addOption(loadingPCs);
+    options.addOption(ignorePlan);
+    options.addOption(checkpointEvery);
+    options.addOption(compressBits);
     options.addOption(overwrite);
 
     return options;
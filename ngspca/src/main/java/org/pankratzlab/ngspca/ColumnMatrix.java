@@ -0,0 +1,56 @@
+package org.pankratzlab.ngspca;
+
+/**
+ * Column-major dense matrix used by {@link PureJavaBackend}. Each column is its own array, so the
+ * matrix is not limited to 2^31 - 1 entries. The columns may instead be {@link CompressedColumns}
+ */
+class ColumnMatrix {
+
+  final int rows;
+  /**
+   * Column data, null if compressed
+   */
+  final double[][] columns;
+  /**
+   * Compressed column data, null if dense
+   */
+  final CompressedColumns compressed;
+
+  /**
+   * @param rows number of rows
+   * @param columns column data, each of length rows
+   */
+  ColumnMatrix(int rows, double[][] columns) {
+    this.rows = rows;
+    this.columns = columns;
+    this.compressed = null;
+  }
+
+  /**
+   * @param compressed compressed column data
+   */
+  ColumnMatrix(CompressedColumns compressed) {
+    this.rows = compressed.rows;
+    this.columns = null;
+    this.compressed = compressed;
+  }
+
+  /**
+   * @return a zeroed rows x columns matrix
+   */
+  static ColumnMatrix zeros(int rows, int columns) {
+    return new ColumnMatrix(rows, new double[columns][rows]);
+  }
+
+  boolean isCompressed() {
+    return compressed != null;
+  }
+
+  int numColumns() {
+    return compressed != null ? compressed.numColumns() : columns.length;
+  }
+
+  double get(int row, int column) {
+    return compressed != null ? compressed.get(row, column) : columns[column][row];
+  }
+}
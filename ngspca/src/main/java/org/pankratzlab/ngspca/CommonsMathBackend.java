@@ -0,0 +1,100 @@
+package org.pankratzlab.ngspca;
+
+import java.util.concurrent.ForkJoinPool;
+import org.apache.commons.math3.linear.BlockRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+
+/**
+ * {@link LinearAlgebraBackend} on commons-math {@link BlockRealMatrix}. Input matrices that are
+ * already a {@link BlockRealMatrix} are used without a copy
+ */
+class CommonsMathBackend implements LinearAlgebraBackend<BlockRealMatrix> {
+
+  @Override
+  public BlockRealMatrix fromRealMatrix(RealMatrix matrix) {
+    if (matrix instanceof BlockRealMatrix) {
+      return (BlockRealMatrix) matrix;
+    }
+    return new BlockRealMatrix(matrix.getData());
+  }
+
+  @Override
+  public BlockRealMatrix fromRows(double[][] rows) {
+    return new BlockRealMatrix(rows);
+  }
+
+  @Override
+  public RealMatrix toRealMatrix(BlockRealMatrix matrix) {
+    return matrix;
+  }
+
+  @Override
+  public int rows(BlockRealMatrix matrix) {
+    return matrix.getRowDimension();
+  }
+
+  @Override
+  public int columns(BlockRealMatrix matrix) {
+    return matrix.getColumnDimension();
+  }
+
+  @Override
+  public BlockRealMatrix transpose(BlockRealMatrix a) {
+    return a.transpose();
+  }
+
+  @Override
+  public BlockRealMatrix multiply(BlockRealMatrix a, BlockRealMatrix b) {
+    return a.multiply(b);
+  }
+
+  @Override
+  public BlockRealMatrix transposeMultiply(BlockRealMatrix a, BlockRealMatrix b) {
+    // only the operand with fewer entries is transposed: the panel Y in the iterations, where
+    // A^T Y = (Y^T A)^T, and the panel Q in the projection Q^T A, never the input matrix
+    if ((long) a.getRowDimension() * a.getColumnDimension() <= (long) b.getRowDimension()
+                                                                * b.getColumnDimension()) {
+      return a.transpose().multiply(b);
+    }
+    return b.transpose().multiply(a).transpose();
+  }
+
+  @Override
+  public BlockRealMatrix orthonormalize(BlockRealMatrix y) {
+    double[][] columns = new double[y.getColumnDimension()][];
+    for (int j = 0; j < columns.length; j++) {
+      columns[j] = y.getColumn(j);
+    }
+    // HouseholderQR runs parallel streams, keep them on one thread like the rest of the backend
+    ForkJoinPool pool = new ForkJoinPool(1);
+    double[][] Q;
+    try {
+      Q = pool.submit(() -> HouseholderQR.decompose(columns, y.getRowDimension()).Q).join();
+    } finally {
+      pool.shutdown();
+    }
+    BlockRealMatrix q = new BlockRealMatrix(y.getRowDimension(), y.getColumnDimension());
+    for (int j = 0; j < Q.length; j++) {
+      q.setColumn(j, Q[j]);
+    }
+    return q;
+  }
+
+  @Override
+  public CompactSVD<BlockRealMatrix> svd(BlockRealMatrix b) {
+    SingularValueDecomposition svd = new SingularValueDecomposition(b);
+    return new CompactSVD<>(fromRealMatrix(svd.getU()), svd.getSingularValues(),
+                            fromRealMatrix(svd.getV()));
+  }
+
+  @Override
+  public double[] getColumn(BlockRealMatrix matrix, int column) {
+    return matrix.getColumn(column);
+  }
+
+  @Override
+  public double[] getRow(BlockRealMatrix matrix, int row) {
+    return matrix.getRow(row);
+  }
+}
@@ -0,0 +1,142 @@
+package org.pankratzlab.ngspca;
+
+/**
+ * Lossy, block quantized columns of a {@link ColumnMatrix}. Each block of {@link #BLOCK_ROWS} rows
+ * of a column is stored as 8 or 16 bit codes, with the block's own offset (its minimum) and scale,
+ * and is decoded a tile at a time inside the {@link PureJavaBackend} kernels. The power iterations
+ * then stream an eighth or a quarter of the bytes of the dense matrix per pass
+ */
+class CompressedColumns {
+
+  /**
+   * Rows per block, divides the tiles of {@link PureJavaBackend}
+   */
+  static final int BLOCK_ROWS = 256;
+
+  final int rows;
+  final int bits;
+  /**
+   * Codes of each column, for 8 bits
+   */
+  private final byte[][] bytes;
+  /**
+   * Codes of each column, for 16 bits
+   */
+  private final short[][] shorts;
+  /**
+   * Offset and scale of each block of each column
+   */
+  private final double[][] offsets;
+  private final double[][] scales;
+
+  /**
+   * @param rows number of rows
+   * @param columns number of columns
+   * @param bits 8 or 16 bits per entry
+   */
+  CompressedColumns(int rows, int columns, int bits) {
+    if (bits != 8 && bits != 16) {
+      throw new IllegalArgumentException("Invalid number of bits per entry " + bits
+                                         + ", must be 8 or 16");
+    }
+    this.rows = rows;
+    this.bits = bits;
+    this.bytes = bits == 8 ? new byte[columns][] : null;
+    this.shorts = bits == 16 ? new short[columns][] : null;
+    this.offsets = new double[columns][];
+    this.scales = new double[columns][];
+  }
+
+  int numColumns() {
+    return offsets.length;
+  }
+
+  /**
+   * Encode a column. Columns may be set from multiple threads
+   *
+   * @param column index of the column
+   * @param values the column's values, of length {@link #rows}
+   */
+  void set(int column, double[] values) {
+    int blocks = (rows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+    double[] blockOffsets = new double[blocks];
+    double[] blockScales = new double[blocks];
+    byte[] byteCodes = bits == 8 ? new byte[rows] : null;
+    short[] shortCodes = bits == 16 ? new short[rows] : null;
+    int levels = (1 << bits) - 1;
+    for (int block = 0; block < blocks; block++) {
+      int start = block * BLOCK_ROWS;
+      int end = Math.min(rows, start + BLOCK_ROWS);
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      for (int row = start; row < end; row++) {
+        min = Math.min(min, values[row]);
+        max = Math.max(max, values[row]);
+      }
+      double scale = max > min ? (max - min) / levels : 0;
+      blockOffsets[block] = min;
+      blockScales[block] = scale;
+      for (int row = start; row < end; row++) {
+        int code = scale > 0 ? (int) Math.round((values[row] - min) / scale) : 0;
+        if (byteCodes != null) {
+          byteCodes[row] = (byte) code;
+        } else {
+          shortCodes[row] = (short) code;
+        }
+      }
+    }
+    offsets[column] = blockOffsets;
+    scales[column] = blockScales;
+    if (byteCodes != null) {
+      bytes[column] = byteCodes;
+    } else {
+      shorts[column] = shortCodes;
+    }
+  }
+
+  /**
+   * @param column index of the column
+   * @param start first row, a multiple of {@link #BLOCK_ROWS}
+   * @param end row after the last row
+   * @param buffer rows [start, end) of the column are decoded to buffer[0, end - start)
+   */
+  void decode(int column, int start, int end, double[] buffer) {
+    double[] blockOffsets = offsets[column];
+    double[] blockScales = scales[column];
+    for (int blockStart = start; blockStart < end; blockStart += BLOCK_ROWS) {
+      int block = blockStart / BLOCK_ROWS;
+      int blockEnd = Math.min(end, blockStart + BLOCK_ROWS);
+      double offset = blockOffsets[block];
+      double scale = blockScales[block];
+      if (bytes != null) {
+        byte[] codes = bytes[column];
+        for (int row = blockStart; row < blockEnd; row++) {
+          buffer[row - start] = offset + scale * (codes[row] & 0xFF);
+        }
+      } else {
+        short[] codes = shorts[column];
+        for (int row = blockStart; row < blockEnd; row++) {
+          buffer[row - start] = offset + scale * (codes[row] & 0xFFFF);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the decoded entry
+   */
+  double get(int row, int column) {
+    int block = row / BLOCK_ROWS;
+    int code = bytes != null ? bytes[column][row] & 0xFF : shorts[column][row] & 0xFFFF;
+    return offsets[column][block] + scales[column][block] * code;
+  }
+
+  /**
+   * @return a decoded copy of the column
+   */
+  double[] getColumn(int column) {
+    double[] values = new double[rows];
+    decode(column, 0, rows, values);
+    return values;
+  }
+}
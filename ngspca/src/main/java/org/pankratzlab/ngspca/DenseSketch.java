@@ -0,0 +1,26 @@
+package org.pankratzlab.ngspca;
+
+import org.pankratzlab.ngspca.RandomMatrixGenerator.DISTRIBUTION;
+
+/**
+ * The default {@link SketchOperator}, a full multiply against a dense random matrix
+ */
+class DenseSketch implements SketchOperator {
+
+  private final RandomMatrixGenerator generator;
+
+  /**
+   * @param distribution {@link DISTRIBUTION} of the entries of Omega
+   * @param randomSeed random seed for Omega
+   */
+  DenseSketch(DISTRIBUTION distribution, long randomSeed) {
+    this.generator = new RandomMatrixGenerator(distribution, randomSeed);
+  }
+
+  @Override
+  public <M> M sketch(LinearAlgebraBackend<M> backend, M A, int columns) {
+    return backend.multiply(A, backend.fromRows(generator.generateRows(backend.columns(A),
+                                                                        columns,
+                                                                        backend.threads())));
+  }
+}
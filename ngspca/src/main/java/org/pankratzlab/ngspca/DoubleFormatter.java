@@ -0,0 +1,336 @@
+package org.pankratzlab.ngspca;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Formats doubles straight into a byte array, with the shortest decimal digits that parse back to
+ * the same double (Ryu, https://doi.org/10.1145/3192366.3192369) laid out the same way as
+ * {@link Double#toString(double)}. Unlike {@link Double#toString(double)} no intermediate objects
+ * are created, so many threads can format in parallel without contending on allocation
+ */
+class DoubleFormatter {
+
+  /**
+   * Longest possible output, e.g. -2.2250738585072014E-308
+   */
+  static final int MAX_LENGTH = 24;
+
+  private static final int MANTISSA_BITS = 52;
+  private static final long MANTISSA_MASK = (1L << MANTISSA_BITS) - 1;
+  private static final int EXPONENT_MASK = (1 << 11) - 1;
+  private static final int EXPONENT_BIAS = 1023;
+
+  private static final int POW5_BITCOUNT = 125;
+  private static final int POW5_INV_BITCOUNT = 125;
+  private static final int POW5_TABLE_SIZE = 326;
+  private static final int POW5_INV_TABLE_SIZE = 342;
+  /**
+   * 5^i normalized to {@link #POW5_BITCOUNT} bits, as {low, high} 64 bit words
+   */
+  private static final long[][] POW5_SPLIT = new long[POW5_TABLE_SIZE][2];
+  /**
+   * floor(2^(pow5bits(i) - 1 + {@link #POW5_INV_BITCOUNT}) / 5^i) + 1, as {low, high} 64 bit words
+   */
+  private static final long[][] POW5_INV_SPLIT = new long[POW5_INV_TABLE_SIZE][2];
+
+  static {
+    BigInteger mask = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+    for (int i = 0; i < POW5_INV_TABLE_SIZE; i++) {
+      BigInteger pow = BigInteger.valueOf(5).pow(i);
+      int bits = pow5bits(i);
+      if (i < POW5_TABLE_SIZE) {
+        BigInteger split = bits > POW5_BITCOUNT ? pow.shiftRight(bits - POW5_BITCOUNT)
+                                                : pow.shiftLeft(POW5_BITCOUNT - bits);
+        POW5_SPLIT[i][0] = split.and(mask).longValue();
+        POW5_SPLIT[i][1] = split.shiftRight(64).longValue();
+      }
+      BigInteger inv = BigInteger.ONE.shiftLeft(bits - 1 + POW5_INV_BITCOUNT).divide(pow)
+                                     .add(BigInteger.ONE);
+      POW5_INV_SPLIT[i][0] = inv.and(mask).longValue();
+      POW5_INV_SPLIT[i][1] = inv.shiftRight(64).longValue();
+    }
+  }
+
+  private DoubleFormatter() {
+
+  }
+
+  /**
+   * @param value the value to format
+   * @param buffer destination, with at least {@link #MAX_LENGTH} bytes available from offset
+   * @param offset position of the first byte written
+   * @return the position after the last byte written
+   */
+  static int format(double value, byte[] buffer, int offset) {
+    long bits = Double.doubleToRawLongBits(value);
+    boolean sign = bits < 0;
+    long ieeeMantissa = bits & MANTISSA_MASK;
+    int ieeeExponent = (int) ((bits >>> MANTISSA_BITS) & EXPONENT_MASK);
+    if (ieeeExponent == EXPONENT_MASK) {
+      return appendAscii(ieeeMantissa != 0 ? "NaN" : sign ? "-Infinity" : "Infinity", buffer,
+                         offset);
+    }
+    if (ieeeExponent == 0 && ieeeMantissa == 0) {
+      return appendAscii(sign ? "-0.0" : "0.0", buffer, offset);
+    }
+
+    int e2;
+    long m2;
+    if (ieeeExponent == 0) {
+      e2 = 1 - EXPONENT_BIAS - MANTISSA_BITS - 2;
+      m2 = ieeeMantissa;
+    } else {
+      e2 = ieeeExponent - EXPONENT_BIAS - MANTISSA_BITS - 2;
+      m2 = ieeeMantissa | (1L << MANTISSA_BITS);
+    }
+    boolean even = (m2 & 1) == 0;
+    boolean acceptBounds = even;
+
+    // Step 2: Determine the interval of valid decimal representations
+    long mv = 4 * m2;
+    int mmShift = ieeeMantissa != 0 || ieeeExponent <= 1 ? 1 : 0;
+
+    // Step 3: Convert to a decimal power base using 128-bit arithmetic
+    long vr;
+    long vp;
+    long vm;
+    int e10;
+    boolean vmIsTrailingZeros = false;
+    boolean vrIsTrailingZeros = false;
+    if (e2 >= 0) {
+      int q = log10Pow2(e2) - (e2 > 3 ? 1 : 0);
+      e10 = q;
+      int k = POW5_INV_BITCOUNT + pow5bits(q) - 1;
+      int i = -e2 + q + k;
+      long[] mul = POW5_INV_SPLIT[q];
+      vr = mulShift(mv, mul, i);
+      vp = mulShift(mv + 2, mul, i);
+      vm = mulShift(mv - 1 - mmShift, mul, i);
+      if (q <= 21) {
+        if (mv % 5 == 0) {
+          vrIsTrailingZeros = multipleOfPowerOf5(mv, q);
+        } else if (acceptBounds) {
+          vmIsTrailingZeros = multipleOfPowerOf5(mv - 1 - mmShift, q);
+        } else if (multipleOfPowerOf5(mv + 2, q)) {
+          vp--;
+        }
+      }
+    } else {
+      int q = log10Pow5(-e2) - (-e2 > 1 ? 1 : 0);
+      e10 = q + e2;
+      int i = -e2 - q;
+      int k = pow5bits(i) - POW5_BITCOUNT;
+      int j = q - k;
+      long[] mul = POW5_SPLIT[i];
+      vr = mulShift(mv, mul, j);
+      vp = mulShift(mv + 2, mul, j);
+      vm = mulShift(mv - 1 - mmShift, mul, j);
+      if (q <= 1) {
+        vrIsTrailingZeros = true;
+        if (acceptBounds) {
+          vmIsTrailingZeros = mmShift == 1;
+        } else {
+          vp--;
+        }
+      } else if (q < 63) {
+        vrIsTrailingZeros = (mv & ((1L << q) - 1)) == 0;
+      }
+    }
+
+    // Step 4: Find the shortest decimal representation in the interval of valid representations
+    int removed = 0;
+    int lastRemovedDigit = 0;
+    long output;
+    if (vmIsTrailingZeros || vrIsTrailingZeros) {
+      while (vp / 10 > vm / 10) {
+        vmIsTrailingZeros &= vm % 10 == 0;
+        vrIsTrailingZeros &= lastRemovedDigit == 0;
+        lastRemovedDigit = (int) (vr % 10);
+        vr /= 10;
+        vp /= 10;
+        vm /= 10;
+        removed++;
+      }
+      if (vmIsTrailingZeros) {
+        while (vm % 10 == 0) {
+          vrIsTrailingZeros &= lastRemovedDigit == 0;
+          lastRemovedDigit = (int) (vr % 10);
+          vr /= 10;
+          vp /= 10;
+          vm /= 10;
+          removed++;
+        }
+      }
+      if (vrIsTrailingZeros && lastRemovedDigit == 5 && vr % 2 == 0) {
+        // round even
+        lastRemovedDigit = 4;
+      }
+      boolean roundUp = (vr == vm && (!acceptBounds || !vmIsTrailingZeros))
+                        || lastRemovedDigit >= 5;
+      output = vr + (roundUp ? 1 : 0);
+    } else {
+      boolean roundUp = false;
+      while (vp / 10 > vm / 10) {
+        roundUp = vr % 10 >= 5;
+        vr /= 10;
+        vp /= 10;
+        vm /= 10;
+        removed++;
+      }
+      output = vr + (vr == vm || roundUp ? 1 : 0);
+    }
+    int exponent = e10 + removed;
+
+    // Step 5: Lay out the digits like Double.toString
+    int position = offset;
+    if (sign) {
+      buffer[position++] = '-';
+    }
+    int length = decimalLength(output);
+    int scientificExponent = exponent + length - 1;
+    if (scientificExponent >= -3 && scientificExponent < 7) {
+      if (scientificExponent < 0) {
+        buffer[position++] = '0';
+        buffer[position++] = '.';
+        for (int zero = -1; zero > scientificExponent; zero--) {
+          buffer[position++] = '0';
+        }
+        writeDigits(output, length, buffer, position);
+        position += length;
+      } else if (exponent >= 0) {
+        writeDigits(output, length, buffer, position);
+        position += length;
+        for (int zero = 0; zero < exponent; zero++) {
+          buffer[position++] = '0';
+        }
+        buffer[position++] = '.';
+        buffer[position++] = '0';
+      } else {
+        // the decimal point falls inside the digits
+        int integerDigits = scientificExponent + 1;
+        writeDigits(output, length, buffer, position);
+        System.arraycopy(buffer, position + integerDigits, buffer, position + integerDigits + 1,
+                         length - integerDigits);
+        buffer[position + integerDigits] = '.';
+        position += length + 1;
+      }
+    } else {
+      writeDigits(output, length, buffer, position + 1);
+      buffer[position] = buffer[position + 1];
+      buffer[position + 1] = '.';
+      if (length == 1) {
+        buffer[position + 2] = '0';
+        position += 3;
+      } else {
+        position += length + 1;
+      }
+      buffer[position++] = 'E';
+      if (scientificExponent < 0) {
+        buffer[position++] = '-';
+        scientificExponent = -scientificExponent;
+      }
+      int exponentLength = decimalLength(scientificExponent);
+      writeDigits(scientificExponent, exponentLength, buffer, position);
+      position += exponentLength;
+    }
+    return position;
+  }
+
+  /**
+   * @param value format this value
+   * @return the formatted value, see {@link #format(double, byte[], int)}
+   */
+  static String toString(double value) {
+    byte[] buffer = new byte[MAX_LENGTH];
+    int length = format(value, buffer, 0);
+    return new String(buffer, 0, length, StandardCharsets.US_ASCII);
+  }
+
+  private static int appendAscii(String text, byte[] buffer, int offset) {
+    for (int i = 0; i < text.length(); i++) {
+      buffer[offset + i] = (byte) text.charAt(i);
+    }
+    return offset + text.length();
+  }
+
+  private static void writeDigits(long value, int length, byte[] buffer, int offset) {
+    for (int i = offset + length - 1; i >= offset; i--) {
+      buffer[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+  }
+
+  private static int decimalLength(long value) {
+    int length = 1;
+    for (long limit = 10; length < 19 && value >= limit; limit *= 10) {
+      length++;
+    }
+    return length;
+  }
+
+  /**
+   * @return ((m * mul) >> j), for the 128 bit mul and 0 < m < 2^57
+   */
+  private static long mulShift(long m, long[] mul, int j) {
+    long high0 = unsignedMultiplyHigh(m, mul[0]);
+    long low2 = m * mul[1];
+    long high2 = unsignedMultiplyHigh(m, mul[1]);
+    long sumLow = low2 + high0;
+    if (Long.compareUnsigned(sumLow, low2) < 0) {
+      high2++;
+    }
+    int shift = j - 64;
+    if (shift == 0) {
+      return sumLow;
+    } else if (shift >= 64) {
+      return high2 >>> (shift - 64);
+    }
+    return (high2 << (64 - shift)) | (sumLow >>> shift);
+  }
+
+  /**
+   * @return the high 64 bits of the unsigned 128 bit product
+   */
+  private static long unsignedMultiplyHigh(long a, long b) {
+    long aLow = a & 0xFFFFFFFFL;
+    long aHigh = a >>> 32;
+    long bLow = b & 0xFFFFFFFFL;
+    long bHigh = b >>> 32;
+    long lowLow = aLow * bLow;
+    long highLow = aHigh * bLow;
+    long lowHigh = aLow * bHigh;
+    long cross = (lowLow >>> 32) + (highLow & 0xFFFFFFFFL) + lowHigh;
+    return aHigh * bHigh + (highLow >>> 32) + (cross >>> 32);
+  }
+
+  /**
+   * @return ceil(log2(5^e)), or 1 for e = 0
+   */
+  private static int pow5bits(int e) {
+    return (int) (((e * 1217359L) >>> 19) + 1);
+  }
+
+  /**
+   * @return floor(log10(2^e))
+   */
+  private static int log10Pow2(int e) {
+    return (int) ((e * 78913L) >>> 18);
+  }
+
+  /**
+   * @return floor(log10(5^e))
+   */
+  private static int log10Pow5(int e) {
+    return (int) ((e * 732923L) >>> 20);
+  }
+
+  private static boolean multipleOfPowerOf5(long value, int p) {
+    int count = 0;
+    while (value > 0 && value % 5 == 0) {
+      value /= 5;
+      count++;
+    }
+    return count >= p;
+  }
+}
@@ -0,0 +1,124 @@
+package org.pankratzlab.ngspca;
+
+import org.apache.commons.math3.linear.BlockRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.factory.DecompositionFactory;
+import org.ejml.interfaces.decomposition.QRDecomposition;
+import org.ejml.interfaces.decomposition.SingularValueDecomposition;
+import org.ejml.ops.CommonOps;
+import org.ejml.ops.SingularOps;
+
+/**
+ * {@link LinearAlgebraBackend} on EJML row-major {@link DenseMatrix64F}
+ */
+class EjmlBackend implements LinearAlgebraBackend<DenseMatrix64F> {
+
+  @Override
+  public DenseMatrix64F fromRealMatrix(RealMatrix matrix) {
+    DenseMatrix64F dm = create(matrix.getRowDimension(), matrix.getColumnDimension());
+    for (int row = 0; row < matrix.getRowDimension(); row++) {
+      System.arraycopy(matrix.getRow(row), 0, dm.data, row * dm.numCols, dm.numCols);
+    }
+    return dm;
+  }
+
+  @Override
+  public DenseMatrix64F fromRows(double[][] rows) {
+    return new DenseMatrix64F(rows);
+  }
+
+  @Override
+  public RealMatrix toRealMatrix(DenseMatrix64F matrix) {
+    BlockRealMatrix m = new BlockRealMatrix(matrix.numRows, matrix.numCols);
+    double[] row = new double[matrix.numCols];
+    for (int i = 0; i < matrix.numRows; i++) {
+      System.arraycopy(matrix.data, i * matrix.numCols, row, 0, matrix.numCols);
+      m.setRow(i, row);
+    }
+    return m;
+  }
+
+  @Override
+  public int rows(DenseMatrix64F matrix) {
+    return matrix.numRows;
+  }
+
+  @Override
+  public int columns(DenseMatrix64F matrix) {
+    return matrix.numCols;
+  }
+
+  @Override
+  public DenseMatrix64F transpose(DenseMatrix64F a) {
+    return CommonOps.transpose(a, null);
+  }
+
+  @Override
+  public DenseMatrix64F multiply(DenseMatrix64F a, DenseMatrix64F b) {
+    DenseMatrix64F c = create(a.numRows, b.numCols);
+    CommonOps.mult(a, b, c);
+    return c;
+  }
+
+  @Override
+  public DenseMatrix64F transposeMultiply(DenseMatrix64F a, DenseMatrix64F b) {
+    DenseMatrix64F c = create(a.numCols, b.numCols);
+    CommonOps.multTransA(a, b, c);
+    return c;
+  }
+
+  @Override
+  public DenseMatrix64F orthonormalize(DenseMatrix64F y) {
+    QRDecomposition<DenseMatrix64F> qr = DecompositionFactory.qr(y.numRows, y.numCols);
+    if (!qr.decompose(qr.inputModified() ? y.copy() : y)) {
+      throw new IllegalStateException("EJML QR decomposition failed");
+    }
+    return qr.getQ(null, true);
+  }
+
+  @Override
+  public CompactSVD<DenseMatrix64F> svd(DenseMatrix64F b) {
+    SingularValueDecomposition<DenseMatrix64F> svd = DecompositionFactory.svd(b.numRows,
+                                                                              b.numCols, true,
+                                                                              true, true);
+    if (!svd.decompose(svd.inputModified() ? b.copy() : b)) {
+      throw new IllegalStateException("EJML SVD failed");
+    }
+    DenseMatrix64F U = svd.getU(null, false);
+    DenseMatrix64F W = svd.getW(null);
+    DenseMatrix64F V = svd.getV(null, false);
+    SingularOps.descendingOrder(U, false, W, V, false);
+    double[] singularValues = new double[Math.min(W.numRows, W.numCols)];
+    for (int i = 0; i < singularValues.length; i++) {
+      singularValues[i] = W.get(i, i);
+    }
+    return new CompactSVD<>(U, singularValues, V);
+  }
+
+  @Override
+  public double[] getColumn(DenseMatrix64F matrix, int column) {
+    double[] values = new double[matrix.numRows];
+    for (int row = 0; row < matrix.numRows; row++) {
+      values[row] = matrix.data[row * matrix.numCols + column];
+    }
+    return values;
+  }
+
+  @Override
+  public double[] getRow(DenseMatrix64F matrix, int row) {
+    double[] values = new double[matrix.numCols];
+    System.arraycopy(matrix.data, row * matrix.numCols, values, 0, matrix.numCols);
+    return values;
+  }
+
+  private static DenseMatrix64F create(int rows, int columns) {
+    if ((long) rows * columns > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("A " + rows + " x " + columns
+                                         + " matrix exceeds the maximum size of an EJML matrix, use the "
+                                         + BACKEND.PURE_JAVA + " or " + BACKEND.COMMONS_MATH
+                                         + " backend instead");
+    }
+    return new DenseMatrix64F(rows, columns);
+  }
+}
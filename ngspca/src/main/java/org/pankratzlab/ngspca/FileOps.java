@@ -18,7 +18,9 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
@@ -58,9 +60,39 @@ public class FileOps {
     return FileUtils.readLines(new File(path), Charset.defaultCharset());
   }
 
-  static List<String> listFilesWithExtension(String dir, String[] extensions) {
-    return FileUtils.listFiles(new File(dir), extensions, true).stream().map(File::getAbsolutePath)
-                    .collect(Collectors.toList());
+  /**
+   * Recursively list the files with the extensions. The entries of each directory are checked on
+   * multiple threads, and sub directories are walked at once, since every check can wait on a
+   * network file system. Files are listed in the same order as
+   * {@link FileUtils#listFiles(File, String[], boolean)}
+   *
+   * @param dir directory to search
+   * @param extensions extensions of the files to list, without the leading "."
+   * @param threads number of entries checked at once
+   * @return absolute paths of the files
+   */
+  static List<String> listFilesWithExtension(String dir, String[] extensions, int threads) {
+    String[] suffixes = Arrays.stream(extensions).map(e -> "." + e).toArray(String[]::new);
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+    try {
+      return pool.submit(() -> listFiles(new File(dir), suffixes)).join();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static List<String> listFiles(File dir, String[] suffixes) {
+    File[] entries = dir.listFiles();
+    if (entries == null) {
+      return new ArrayList<>();
+    }
+    return Arrays.stream(entries).parallel().flatMap(entry -> {
+      if (entry.isDirectory()) {
+        return listFiles(entry, suffixes).stream();
+      }
+      boolean matches = Arrays.stream(suffixes).anyMatch(entry.getName()::endsWith);
+      return matches ? Stream.of(entry.getAbsolutePath()) : Stream.empty();
+    }).collect(Collectors.toList());
   }
 
   static boolean writeSerial(Object o, String filename, Logger log) {
@@ -88,17 +120,20 @@ public class FileOps {
 
   }
 
-  static void writeToText(List<String> list, String filename, Logger log) {
+  /**
+   * @return true if the file was written
+   */
+  static boolean writeToText(List<String> list, String filename, Logger log) {
 
-    try {
-      FileWriter writer = new FileWriter(filename);
+    try (FileWriter writer = new FileWriter(filename)) {
       for (String str : list) {
         writer.write(str + System.lineSeparator());
 
       }
-      writer.close();
+      return true;
     } catch (IOException e1) {
       log.log(Level.SEVERE, "an exception was thrown while writing to " + filename, e1);
+      return false;
     }
 
   }
@@ -156,9 +191,8 @@ public class FileOps {
 
   static List<String> getFileHeader(String filename, boolean gz, String delim, Logger log) {
     List<String> header = new ArrayList<String>();
-    try {
-      Stream<String> stream = gz ? gzLines(Paths.get(filename), log)
-                                 : Files.lines(Paths.get(filename));
+    try (Stream<String> stream = gz ? gzLines(Paths.get(filename), log)
+                                    : Files.lines(Paths.get(filename))) {
       String[] tmpA = stream.findFirst().get().split(delim);
       for (String tmp : tmpA) {
         header.add(tmp);
@@ -0,0 +1,97 @@
+package org.pankratzlab.ngspca;
+
+import java.util.stream.IntStream;
+
+/**
+ * Thin Householder QR of a column-major matrix, used by the {@link LinearAlgebraBackend}s. Only the
+ * m x n Q is ever formed, never the full m x m Q. Columns are updated in parallel, so run it inside
+ * a {@link java.util.concurrent.ForkJoinPool} to control the number of threads
+ */
+class HouseholderQR {
+
+  /**
+   * thin Q, as columns
+   */
+  final double[][] Q;
+  /**
+   * n x n upper triangular R, row-major
+   */
+  final double[][] R;
+
+  private HouseholderQR(double[][] Q, double[][] R) {
+    this.Q = Q;
+    this.R = R;
+  }
+
+  /**
+   * @param columns the columns of the matrix to decompose (rows >= columns), overwritten with the
+   *          Householder vectors
+   * @param rows number of rows
+   * @return the {@link HouseholderQR}
+   */
+  static HouseholderQR decompose(double[][] columns, int rows) {
+    int n = columns.length;
+    if (rows < n) {
+      throw new IllegalArgumentException("QR requires rows (" + rows + ") >= columns (" + n + ")");
+    }
+    double[][] R = new double[n][n];
+    double[] betas = new double[n];
+
+    for (int k = 0; k < n; k++) {
+      double[] v = columns[k];
+      double norm = 0;
+      for (int i = k; i < rows; i++) {
+        norm += v[i] * v[i];
+      }
+      norm = Math.sqrt(norm);
+      if (norm == 0) {
+        // nothing to reflect, Q keeps e_k for this column
+        betas[k] = 0;
+        continue;
+      }
+      double alpha = v[k] > 0 ? -norm : norm;
+      R[k][k] = alpha;
+      v[k] -= alpha;
+      // v^T v = 2 * norm * (norm + |x_k|)
+      double beta = 1 / (norm * (norm + Math.abs(v[k] + alpha)));
+      betas[k] = beta;
+      int start = k;
+      IntStream.range(k + 1, n).parallel().forEach(j -> reflect(v, beta, columns[j], start, rows));
+      for (int j = k + 1; j < n; j++) {
+        R[k][j] = columns[j][k];
+      }
+    }
+
+    double[][] Q = new double[n][rows];
+    for (int c = 0; c < n; c++) {
+      Q[c][c] = 1;
+    }
+    // Q = H_0 ... H_(n-1) [I; 0], reflector k only touches columns >= k
+    for (int k = n - 1; k >= 0; k--) {
+      if (betas[k] == 0) {
+        continue;
+      }
+      double[] v = columns[k];
+      double beta = betas[k];
+      int start = k;
+      IntStream.range(k, n).parallel().forEach(c -> reflect(v, beta, Q[c], start, rows));
+    }
+    return new HouseholderQR(Q, R);
+  }
+
+  /**
+   * x = (I - beta * v * v^T) x, over rows [start, rows)
+   */
+  private static void reflect(double[] v, double beta, double[] x, int start, int rows) {
+    double s = 0;
+    for (int i = start; i < rows; i++) {
+      s += v[i] * x[i];
+    }
+    s *= beta;
+    if (s != 0) {
+      for (int i = start; i < rows; i++) {
+        x[i] -= s * v[i];
+      }
+    }
+  }
+}
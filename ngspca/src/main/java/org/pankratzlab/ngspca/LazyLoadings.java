@@ -0,0 +1,73 @@
+package org.pankratzlab.ngspca;
+
+/**
+ * Loadings W = Q * U of a randomized SVD, computed block by block for a range of components, so
+ * that the full markers x components matrix is never formed
+ *
+ * @param <M> matrix type of the backend
+ */
+class LazyLoadings<M> implements RowBlocks {
+
+  private final LinearAlgebraBackend<M> backend;
+  private final M Q;
+  /**
+   * Columns of U for the selected components
+   */
+  private final double[][] components;
+
+  /**
+   * @param backend {@link LinearAlgebraBackend} holding Q and U
+   * @param Q orthonormal basis of the range finder
+   * @param U left singular vectors of Q^T A
+   * @param start first component
+   * @param end component after the last component
+   */
+  LazyLoadings(LinearAlgebraBackend<M> backend, M Q, M U, int start, int end) {
+    this(backend, Q, columns(backend, U, start, end));
+  }
+
+  private LazyLoadings(LinearAlgebraBackend<M> backend, M Q, double[][] components) {
+    this.backend = backend;
+    this.Q = Q;
+    this.components = components;
+  }
+
+  private static <M> double[][] columns(LinearAlgebraBackend<M> backend, M U, int start,
+                                        int end) {
+    double[][] columns = new double[end - start][];
+    for (int component = start; component < end; component++) {
+      columns[component - start] = backend.getColumn(U, component);
+    }
+    return columns;
+  }
+
+  @Override
+  public int rows() {
+    return backend.rows(Q);
+  }
+
+  @Override
+  public int columns() {
+    return components.length;
+  }
+
+  @Override
+  public double[][] getRows(int start, int end) {
+    double[][] rows = new double[end - start][components.length];
+    for (int row = start; row < end; row++) {
+      double[] q = backend.getRow(Q, row);
+      double[] loadings = rows[row - start];
+      for (int component = 0; component < components.length; component++) {
+        loadings[component] = PureJavaBackend.dot(q, components[component], 0, q.length);
+      }
+    }
+    return rows;
+  }
+
+  @Override
+  public RowBlocks selectColumns(int start, int end) {
+    double[][] selected = new double[end - start][];
+    System.arraycopy(components, start, selected, 0, end - start);
+    return new LazyLoadings<>(backend, Q, selected);
+  }
+}
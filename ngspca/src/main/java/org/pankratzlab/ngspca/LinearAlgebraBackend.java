@@ -0,0 +1,167 @@
+package org.pankratzlab.ngspca;
+
+import java.util.concurrent.ForkJoinPool;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * The matrix kernels used by {@link RandomizedSVD}, so that the same SVD code can run on
+ * interchangeable matrix libraries. All operations take and return the backend's own matrix type
+ * M, so no conversion copies are needed between steps
+ *
+ * @param <M> matrix type of the backend
+ */
+interface LinearAlgebraBackend<M> {
+
+  /**
+   * Available backends
+   */
+  enum BACKEND {
+    /**
+     * commons-math {@link org.apache.commons.math3.linear.BlockRealMatrix}, single threaded
+     */
+    COMMONS_MATH,
+    /**
+     * EJML {@link org.ejml.data.DenseMatrix64F}, single threaded and limited to 2^31 - 1 entries
+     */
+    EJML,
+    /**
+     * Column-major arrays with cache tiled, multi-threaded kernels
+     */
+    PURE_JAVA;
+  }
+
+  /**
+   * @param matrix a {@link RealMatrix} to import
+   * @return the matrix in this backend's format (may be the same instance)
+   */
+  M fromRealMatrix(RealMatrix matrix);
+
+  /**
+   * @param rows row-major data
+   * @return the matrix in this backend's format
+   */
+  M fromRows(double[][] rows);
+
+  /**
+   * @param matrix the matrix to export
+   * @return a {@link RealMatrix} view or copy of the matrix
+   */
+  RealMatrix toRealMatrix(M matrix);
+
+  /**
+   * @return number of threads of the backend's kernels
+   */
+  default int threads() {
+    return 1;
+  }
+
+  /**
+   * Run a task that uses parallel streams on {@link #threads()} threads, so that the work done
+   * around the kernels (sketching, random matrices) is bounded like the kernels themselves
+   *
+   * @param task the task
+   */
+  default void parallel(Runnable task) {
+    ForkJoinPool pool = new ForkJoinPool(threads());
+    try {
+      pool.submit(task).join();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  int rows(M matrix);
+
+  int columns(M matrix);
+
+  /**
+   * @return a^T
+   */
+  M transpose(M a);
+
+  /**
+   * @return a * b
+   */
+  M multiply(M a, M b);
+
+  /**
+   * @return a^T * b, without forming a^T
+   */
+  M transposeMultiply(M a, M b);
+
+  /**
+   * @param y a (typically tall and thin) matrix
+   * @return the thin Q of the QR decomposition of y, with orthonormal columns spanning y
+   */
+  M orthonormalize(M y);
+
+  /**
+   * @param b a short and wide matrix (rows <= columns)
+   * @return the compact SVD of b, with singular values in descending order
+   */
+  CompactSVD<M> svd(M b);
+
+  /**
+   * @return true if {@link #compress(Object, int)} is supported
+   */
+  default boolean supportsCompression() {
+    return false;
+  }
+
+  /**
+   * @param matrix a matrix to store with lossy compression, see {@link CompressedColumns}
+   * @param bits bits per entry, 8 or 16
+   * @return the compressed matrix, which can only be used as either operand of
+   *         {@link #transposeMultiply(Object, Object)}, as the left operand of
+   *         {@link #multiply(Object, Object)}, and read by rows and columns
+   */
+  default M compress(M matrix, int bits) {
+    throw new UnsupportedOperationException("Compression is not supported by " + getClass());
+  }
+
+  /**
+   * @return a copy of the column
+   */
+  double[] getColumn(M matrix, int column);
+
+  /**
+   * @return a copy of the row
+   */
+  double[] getRow(M matrix, int row);
+
+  /**
+   * Compact SVD, b = U * diag(singularValues) * V^T
+   *
+   * @param <M> matrix type of the backend
+   */
+  class CompactSVD<M> {
+
+    final M U;
+    final double[] singularValues;
+    final M V;
+
+    CompactSVD(M U, double[] singularValues, M V) {
+      this.U = U;
+      this.singularValues = singularValues;
+      this.V = V;
+    }
+  }
+
+  /**
+   * @param backend the {@link BACKEND} to create
+   * @param threads number of threads for multi-threaded backends
+   * @return the {@link LinearAlgebraBackend}
+   */
+  static LinearAlgebraBackend<?> create(BACKEND backend, int threads) {
+    switch (backend) {
+      case COMMONS_MATH:
+        return new CommonsMathBackend();
+      case EJML:
+        return new EjmlBackend();
+      case PURE_JAVA:
+        return new PureJavaBackend(threads);
+      default:
+        throw new IllegalArgumentException("Invalid backend " + backend);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package org.pankratzlab.ngspca;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.Interval;
+import htsjdk.tribble.bed.BEDFeature;
+
+/**
+ * Reads mosdepth files, which share the same bins in the same order, in lockstep rather than one
+ * whole file at a time. A batch of files is opened at once and every file of the batch is advanced
+ * over the same block of rows, so that each block of rows (for all files of the batch) is handed
+ * to a {@link RowBlockConsumer} as soon as it is read. Only the open files of a batch and one
+ * block per file are held, however many rows the files have
+ */
+class LockstepReader {
+
+  /**
+   * Default number of rows (windows) read per block
+   */
+  static final int DEFAULT_BLOCK_ROWS = 8192;
+
+  /**
+   * Receives the blocks of rows read by a {@link LockstepReader}, in row order for each batch
+   */
+  interface RowBlockConsumer {
+
+    /**
+     * @param startRow first row of the block
+     * @param startColumn index of the first file of the batch
+     * @param block block[file][row - startRow], one array per file of the batch
+     */
+    void accept(int startRow, int startColumn, double[][] block);
+  }
+
+  private final List<String> files;
+  private final BinWindows windows;
+  private final List<Interval> queryIntervals;
+  private final int batchSize;
+  private final int blockRows;
+  private final int threads;
+  private final Logger log;
+
+  /**
+   * @param files mosdepth output bed files to read
+   * @param windows only the bins of these {@link BinWindows} are read, one row per window
+   * @param queryIntervals if not null, files with a tabix index are only read at these intervals
+   * @param batchSize number of files open at once
+   * @param blockRows number of rows read per block
+   * @param threads number of files of a batch read at once
+   * @param log
+   */
+  LockstepReader(List<String> files, BinWindows windows, List<Interval> queryIntervals,
+                 int batchSize, int blockRows, int threads, Logger log) {
+    if (batchSize < 1 || blockRows < 1) {
+      String err = "Invalid batch size " + batchSize + " or block rows " + blockRows;
+      log.severe(err);
+      throw new IllegalArgumentException(err);
+    }
+    this.files = files;
+    this.windows = windows;
+    this.queryIntervals = queryIntervals;
+    this.batchSize = batchSize;
+    this.blockRows = blockRows;
+    this.threads = threads;
+    this.log = log;
+  }
+
+  /**
+   * Read all files, batch by batch
+   *
+   * @param consumer receives each block of rows
+   */
+  void read(RowBlockConsumer consumer) {
+    Set<String> ucscRegions = new HashSet<>(windows.bins);
+    int rows = windows.windows.size();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+    try {
+      for (int batchStart = 0; batchStart < files.size(); batchStart += batchSize) {
+        List<String> batch = files.subList(batchStart,
+                                           Math.min(files.size(), batchStart + batchSize));
+        log.info("Reading files " + (batchStart + 1) + " to " + (batchStart + batch.size())
+                 + " of " + files.size() + " in lockstep, " + blockRows + " rows at a time");
+        List<CloseableIterator<BEDFeature>> iterators = new ArrayList<>();
+        try {
+          for (String file : batch) {
+            iterators.add(BedUtils.iterate(file, queryIntervals != null
+                                                 && BedUtils.hasTabixIndex(file) ? queryIntervals
+                                                                                 : null));
+          }
+          int startBin = 0;
+          for (int startRow = 0; startRow < rows; startRow += blockRows) {
+            int endRow = Math.min(rows, startRow + blockRows);
+            int endBin = startBin;
+            while (endBin < windows.bins.size() && windows.getRow(endBin) < endRow) {
+              endBin++;
+            }
+            List<Future<double[]>> reads = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+              reads.add(executor.submit(readBlock(batch.get(i), iterators.get(i), ucscRegions,
+                                                  startRow, endRow, startBin, endBin)));
+            }
+            double[][] block = new double[batch.size()][];
+            for (int i = 0; i < block.length; i++) {
+              block[i] = MosdepthUtils.getResult(reads.get(i));
+            }
+            consumer.accept(startRow, batchStart, block);
+            startBin = endBin;
+          }
+          for (int i = 0; i < batch.size(); i++) {
+            MosdepthUtils.checkExhausted(batch.get(i), iterators.get(i), ucscRegions, log);
+          }
+        } finally {
+          iterators.forEach(CloseableIterator::close);
+        }
+        log.info("Memory used: "
+                 + (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return a task reading bins [startBin, endBin) of a file into rows [startRow, endRow)
+   */
+  private Callable<double[]> readBlock(String file, CloseableIterator<BEDFeature> iterator,
+                                       Set<String> ucscRegions, int startRow, int endRow,
+                                       int startBin, int endBin) {
+    return () -> {
+      double[] block = new double[endRow - startRow];
+      MosdepthUtils.readBins(file, iterator, ucscRegions, windows, startBin, endBin, startRow,
+                             block, log);
+      return block;
+    };
+  }
+}
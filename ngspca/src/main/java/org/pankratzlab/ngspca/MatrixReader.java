@@ -0,0 +1,404 @@
+package org.pankratzlab.ngspca;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.math3.linear.BlockRealMatrix;
+
+/**
+ * Reads a named matrix from (optionally gzipped) delimited text in a single pass, the counterpart
+ * of {@link MatrixWriter}. One thread reads (and decompresses) the file into chunks of whole lines,
+ * the chunks are parsed in parallel into primitive arrays, and the rows are copied in order
+ * directly into the blocks of a {@link BlockRealMatrix}, so the matrix is never held twice and the
+ * number of rows does not need to be known in advance
+ */
+class MatrixReader {
+
+  /**
+   * Approximate size of the text parsed by a single task
+   */
+  private static final int TARGET_CHUNK_BYTES = 4 * 1024 * 1024;
+  private static final int BUFFER_SIZE = 1 << 16;
+  /**
+   * Values with more significant digits than this may not be exact as a long converted to double
+   */
+  private static final int MAX_EXACT_DIGITS = 15;
+  /**
+   * Powers of ten that are exact doubles
+   */
+  private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8,
+                                                 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+                                                 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+  private static final Future<Chunk> END = CompletableFuture.completedFuture(null);
+
+  private final byte delim;
+  private final int threads;
+  private final Logger log;
+
+  /**
+   * A parsed matrix
+   */
+  static class Result {
+
+    /**
+     * Header of each column, excluding the row name column
+     */
+    final List<String> columnNames;
+    final List<String> rowNames;
+    final BlockRealMatrix matrix;
+
+    private Result(List<String> columnNames, List<String> rowNames, BlockRealMatrix matrix) {
+      this.columnNames = columnNames;
+      this.rowNames = rowNames;
+      this.matrix = matrix;
+    }
+  }
+
+  /**
+   * Rows parsed from a chunk of lines, values of all rows in a single row-major array
+   */
+  private static class Chunk {
+
+    private final List<String> rowNames = new ArrayList<>();
+    private double[] values;
+    private int invalid = 0;
+
+    private Chunk(int capacity) {
+      this.values = new double[capacity];
+    }
+  }
+
+  /**
+   * @param delim the delimiter, a single ASCII character
+   * @param threads number of threads parsing lines, in addition to the thread reading the file
+   * @param log
+   */
+  MatrixReader(char delim, int threads, Logger log) {
+    this.delim = (byte) delim;
+    this.threads = Math.max(threads, 1);
+    this.log = log;
+  }
+
+  /**
+   * @param file a header line with the title of the row name column and the name of each column,
+   *          followed by a line per row with the row name and a value for each column. Non-numeric
+   *          values are set to 0
+   * @param gz true if the file is gzipped
+   * @return the parsed {@link Result}
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  Result read(String file, boolean gz) throws IOException, InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+    try (InputStream in = gz ? new GZIPInputStream(Files.newInputStream(Paths.get(file)),
+                                                   BUFFER_SIZE)
+                             : Files.newInputStream(Paths.get(file))) {
+      // the header is needed to parse the rows, so it is read first
+      ByteChunk text = new ByteChunk(TARGET_CHUNK_BYTES + BUFFER_SIZE);
+      int headerEnd = -1;
+      while (headerEnd < 0 && fill(in, text)) {
+        headerEnd = indexOf(text, (byte) '\n');
+      }
+      if (headerEnd < 0) {
+        headerEnd = text.length;
+      }
+      List<String> columnNames = split(text.data, 0, trimEnd(text.data, 0, headerEnd));
+      if (columnNames.size() < 2) {
+        String err = "No columns found in the header of " + file;
+        log.severe(err);
+        throw new IllegalArgumentException(err);
+      }
+      columnNames.remove(0);
+      int columns = columnNames.size();
+      ByteChunk first = new ByteChunk(TARGET_CHUNK_BYTES + BUFFER_SIZE);
+      int remaining = Math.max(0, text.length - headerEnd - 1);
+      first.ensureAvailable(remaining);
+      System.arraycopy(text.data, text.length - remaining, first.data, 0, remaining);
+      first.length = remaining;
+
+      BlockingQueue<Future<Chunk>> blockingQueue = new LinkedBlockingDeque<>(2 * threads);
+      Future<Void> producer = executor.submit(() -> {
+        try {
+          produce(in, first, columns, executor, blockingQueue);
+        } finally {
+          blockingQueue.put(END);
+        }
+        return null;
+      });
+
+      List<String> rowNames = new ArrayList<>();
+      BlockBuilder builder = new BlockBuilder(columns);
+      int invalid = 0;
+      for (Future<Chunk> future = blockingQueue.take(); future != END; future = blockingQueue.take()) {
+        Chunk chunk = future.get();
+        for (int row = 0; row < chunk.rowNames.size(); row++) {
+          builder.addRow(chunk.values, row * columns);
+        }
+        rowNames.addAll(chunk.rowNames);
+        invalid += chunk.invalid;
+      }
+      producer.get();
+      if (invalid > 0) {
+        log.severe(invalid + " non-numeric values in " + file + " were set to 0");
+      }
+      if (rowNames.isEmpty()) {
+        String err = "No rows found in " + file;
+        log.severe(err);
+        throw new IllegalArgumentException(err);
+      }
+      return new Result(columnNames, rowNames, builder.build());
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IllegalArgumentException) {
+        log.severe(e.getCause().getMessage());
+        throw (IllegalArgumentException) e.getCause();
+      }
+      throw new IOException("unable to read " + file, e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Read the rest of the file, submitting a parse task for each chunk of whole lines
+   */
+  private void produce(InputStream in, ByteChunk text, int columns, ExecutorService executor,
+                       BlockingQueue<Future<Chunk>> blockingQueue) throws IOException,
+                                                                   InterruptedException {
+    boolean more = true;
+    while (more) {
+      more = fill(in, text);
+      int end = more ? lastIndexOf(text, (byte) '\n') + 1 : text.length;
+      if (end > 0 && (text.length >= TARGET_CHUNK_BYTES || !more)) {
+        ByteChunk next = new ByteChunk(TARGET_CHUNK_BYTES + BUFFER_SIZE);
+        next.ensureAvailable(text.length - end);
+        System.arraycopy(text.data, end, next.data, 0, text.length - end);
+        next.length = text.length - end;
+        ByteChunk lines = text;
+        int length = end;
+        blockingQueue.put(executor.submit(() -> parse(lines.data, length, columns)));
+        text = next;
+      }
+    }
+  }
+
+  /**
+   * @return false once the end of the stream has been reached
+   */
+  private static boolean fill(InputStream in, ByteChunk text) throws IOException {
+    text.ensureAvailable(BUFFER_SIZE);
+    int read = in.read(text.data, text.length, BUFFER_SIZE);
+    if (read < 0) {
+      return false;
+    }
+    text.length += read;
+    return true;
+  }
+
+  private static int indexOf(ByteChunk text, byte b) {
+    for (int i = 0; i < text.length; i++) {
+      if (text.data[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int lastIndexOf(ByteChunk text, byte b) {
+    for (int i = text.length - 1; i >= 0; i--) {
+      if (text.data[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return end of the line, excluding a trailing carriage return
+   */
+  private static int trimEnd(byte[] data, int start, int end) {
+    return end > start && data[end - 1] == '\r' ? end - 1 : end;
+  }
+
+  private List<String> split(byte[] data, int start, int end) {
+    List<String> fields = new ArrayList<>();
+    for (int fieldStart = start, i = start; i <= end; i++) {
+      if (i == end || data[i] == delim) {
+        fields.add(new String(data, fieldStart, i - fieldStart, StandardCharsets.UTF_8));
+        fieldStart = i + 1;
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * @param data whole lines
+   * @param length bytes of data to parse
+   * @param columns expected number of values on each line
+   * @return the parsed {@link Chunk}, skipping empty lines
+   */
+  private Chunk parse(byte[] data, int length, int columns) {
+    Chunk chunk = new Chunk(Math.max(columns, length / 8));
+    int rows = 0;
+    for (int lineStart = 0; lineStart < length;) {
+      int lineEnd = lineStart;
+      while (lineEnd < length && data[lineEnd] != '\n') {
+        lineEnd++;
+      }
+      int end = trimEnd(data, lineStart, lineEnd);
+      if (end > lineStart) {
+        int nameEnd = lineStart;
+        while (nameEnd < end && data[nameEnd] != delim) {
+          nameEnd++;
+        }
+        String rowName = new String(data, lineStart, nameEnd - lineStart, StandardCharsets.UTF_8);
+        if ((rows + 1) * columns > chunk.values.length) {
+          chunk.values = Arrays.copyOf(chunk.values,
+                                       Math.max((rows + 1) * columns, 2 * chunk.values.length));
+        }
+        int offset = rows * columns;
+        int column = 0;
+        for (int fieldStart = nameEnd + 1, i = fieldStart; nameEnd < end && i <= end; i++) {
+          if (i == end || data[i] == delim) {
+            if (column == columns) {
+              column++;
+              break;
+            }
+            double value;
+            try {
+              value = parseDouble(data, fieldStart, i);
+            } catch (NumberFormatException nfe) {
+              chunk.invalid++;
+              value = 0;
+            }
+            chunk.values[offset + column++] = value;
+            fieldStart = i + 1;
+          }
+        }
+        if (column != columns) {
+          throw new IllegalArgumentException("Expected " + columns + " values for row " + rowName
+                                             + ", found " + (column > columns ? "more" : column));
+        }
+        chunk.rowNames.add(rowName);
+        rows++;
+      }
+      lineStart = lineEnd + 1;
+    }
+    return chunk;
+  }
+
+  /**
+   * Plain decimals with few enough digits to be exact (almost every coverage value) are converted
+   * directly, which is correctly rounded since both the digits and the power of ten are exact
+   * doubles. Anything else falls back to {@link Double#parseDouble(String)}
+   *
+   * @param data text
+   * @param start first byte of the value
+   * @param end byte after the value
+   * @return the value
+   * @throws NumberFormatException if the value is not numeric
+   */
+  static double parseDouble(byte[] data, int start, int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end && (data[i] == '-' || data[i] == '+')) {
+      negative = data[i] == '-';
+      i++;
+    }
+    long digits = 0;
+    int significant = 0;
+    int fraction = 0;
+    boolean dot = false;
+    boolean any = false;
+    for (; i < end; i++) {
+      byte b = data[i];
+      if (b >= '0' && b <= '9') {
+        any = true;
+        if (significant > 0 || b != '0') {
+          significant++;
+        }
+        digits = 10 * digits + (b - '0');
+        if (dot) {
+          fraction++;
+        }
+      } else if (b == '.' && !dot) {
+        dot = true;
+      } else {
+        break;
+      }
+    }
+    if (i < end || !any || significant > MAX_EXACT_DIGITS || fraction >= POWERS_OF_TEN.length) {
+      return Double.parseDouble(new String(data, start, end - start, StandardCharsets.ISO_8859_1));
+    }
+    double value = digits / POWERS_OF_TEN[fraction];
+    return negative ? -value : value;
+  }
+
+  /**
+   * Growable storage of rows, laid out as the blocks of a {@link BlockRealMatrix}
+   */
+  private static class BlockBuilder {
+
+    private final int columns;
+    private final int blockColumns;
+    private final List<double[]> blocks = new ArrayList<>();
+    private int rows = 0;
+
+    private BlockBuilder(int columns) {
+      this.columns = columns;
+      this.blockColumns = (columns + BlockRealMatrix.BLOCK_SIZE - 1) / BlockRealMatrix.BLOCK_SIZE;
+    }
+
+    private int width(int blockColumn) {
+      return Math.min(BlockRealMatrix.BLOCK_SIZE,
+                      columns - blockColumn * BlockRealMatrix.BLOCK_SIZE);
+    }
+
+    /**
+     * @param values source of the row
+     * @param offset the row's first value in values
+     */
+    private void addRow(double[] values, int offset) {
+      int rowInBlock = rows % BlockRealMatrix.BLOCK_SIZE;
+      if (rowInBlock == 0) {
+        for (int blockColumn = 0; blockColumn < blockColumns; blockColumn++) {
+          blocks.add(new double[BlockRealMatrix.BLOCK_SIZE * width(blockColumn)]);
+        }
+      }
+      int first = blocks.size() - blockColumns;
+      for (int blockColumn = 0; blockColumn < blockColumns; blockColumn++) {
+        int width = width(blockColumn);
+        System.arraycopy(values, offset + blockColumn * BlockRealMatrix.BLOCK_SIZE,
+                         blocks.get(first + blockColumn), rowInBlock * width, width);
+      }
+      rows++;
+    }
+
+    private BlockRealMatrix build() {
+      // the last row of blocks may be partially filled
+      int height = rows - (rows - 1) / BlockRealMatrix.BLOCK_SIZE * BlockRealMatrix.BLOCK_SIZE;
+      if (height < BlockRealMatrix.BLOCK_SIZE) {
+        int first = blocks.size() - blockColumns;
+        for (int blockColumn = 0; blockColumn < blockColumns; blockColumn++) {
+          blocks.set(first + blockColumn, Arrays.copyOf(blocks.get(first + blockColumn),
+                                                        height * width(blockColumn)));
+        }
+      }
+      return new BlockRealMatrix(rows, columns, blocks.toArray(new double[blocks.size()][]),
+                                 false);
+    }
+  }
+}
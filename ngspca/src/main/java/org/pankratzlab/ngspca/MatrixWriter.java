@@ -0,0 +1,260 @@
+package org.pankratzlab.ngspca;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes a named matrix as tab delimited text. Chunks of rows are formatted (and optionally bgzip
+ * compressed) in parallel into reusable {@link ByteChunk}s, and written in order to a
+ * {@link FileChannel}. The BGZF virtual offset of each row can be reported to a
+ * {@link RowIndexer}, for building an index
+ */
+class MatrixWriter {
+
+  /**
+   * Approximate size of the text formatted by a single task
+   */
+  private static final int TARGET_CHUNK_BYTES = 4 * 1024 * 1024;
+  /**
+   * Conservative estimate of the formatted size of a value, including the delimiter
+   */
+  private static final int BYTES_PER_VALUE = 24;
+  private static final byte[] LINE_SEPARATOR = System.lineSeparator()
+                                                     .getBytes(StandardCharsets.UTF_8);
+
+  private final OutputConfig outputConfig;
+  private final Logger log;
+  private final ConcurrentLinkedQueue<ByteChunk> free = new ConcurrentLinkedQueue<>();
+  private final ThreadLocal<BgzfCompressor> compressors = ThreadLocal.withInitial(BgzfCompressor::new);
+
+  /**
+   * Receives the BGZF virtual file offset of each output row, in output order
+   */
+  interface RowIndexer {
+
+    /**
+     * @param outputRow index of the output row
+     * @param virtualOffset virtual offset of the start of the row
+     */
+    void row(int outputRow, long virtualOffset);
+
+    /**
+     * @param virtualOffset virtual offset of the end of the data
+     */
+    void end(long virtualOffset);
+  }
+
+  /**
+   * Formatted (and compressed) output of a chunk of rows
+   */
+  private static class Chunk {
+
+    private final int start;
+    private final ByteChunk text;
+    private final ByteChunk compressed;
+    /**
+     * Offset of each row within {@link #text}, when indexing
+     */
+    private final int[] rowOffsets;
+    /**
+     * Size of each BGZF block within {@link #compressed}, when indexing
+     */
+    private final int[] blockSizes;
+
+    private Chunk(int start, ByteChunk text, ByteChunk compressed, int[] rowOffsets,
+                  int[] blockSizes) {
+      this.start = start;
+      this.text = text;
+      this.compressed = compressed;
+      this.rowOffsets = rowOffsets;
+      this.blockSizes = blockSizes;
+    }
+  }
+
+  /**
+   * @param outputConfig {@link OutputConfig} with the number of threads and compression
+   * @param log
+   */
+  MatrixWriter(OutputConfig outputConfig, Logger log) {
+    this.outputConfig = outputConfig;
+    this.log = log;
+  }
+
+  /**
+   * @param file write to this file
+   * @param m the matrix, one output row per row of m
+   * @param rowTitle header of the row name column
+   * @param columnNames header of each column of m
+   * @param rowNames name of each row of m
+   * @return true if the file was written
+   */
+  boolean write(String file, RowBlocks m, String rowTitle, List<String> columnNames,
+                List<String> rowNames) {
+    return write(file, m, null, rowTitle, columnNames, rowNames, null);
+  }
+
+  /**
+   * @param file write to this file
+   * @param m the matrix
+   * @param rowOrder if not null, output row i is row rowOrder[i] of m
+   * @param rowTitle header of the row name column(s)
+   * @param columnNames header of each column of m
+   * @param rowNames name of each output row
+   * @param indexer if not null, receives the virtual offset of each output row (requires bgzip)
+   * @return true if the file was written
+   */
+  boolean write(String file, RowBlocks m, int[] rowOrder, String rowTitle, List<String> columnNames,
+             List<String> rowNames, RowIndexer indexer) {
+    if (indexer != null && !outputConfig.bgzip) {
+      throw new IllegalArgumentException("Indexing requires bgzip compressed output");
+    }
+    log.info(rowNames.size() + " output rows by " + columnNames.size() + " output columns");
+    int rowsPerChunk = Math.max(1, TARGET_CHUNK_BYTES
+                                   / ((columnNames.size() + 1) * BYTES_PER_VALUE));
+    // the header is written with the first chunk, even if there are no rows
+    int numChunks = Math.max(1, (rowNames.size() + rowsPerChunk - 1) / rowsPerChunk);
+    int threads = Math.max(outputConfig.threads, 1);
+
+    BlockingQueue<Future<Chunk>> blockingQueue = new LinkedBlockingDeque<>(2 * threads);
+    ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+    Runnable producerTask = () -> {
+      try {
+        for (int chunk = 0; chunk < numChunks; chunk++) {
+          int start = chunk * rowsPerChunk;
+          int end = Math.min(rowNames.size(), start + rowsPerChunk);
+          boolean header = chunk == 0;
+          blockingQueue.put(executor.submit(() -> format(m, rowOrder, start, end, header,
+                                                         rowTitle, columnNames, rowNames,
+                                                         indexer != null)));
+        }
+      } catch (InterruptedException e) {
+        log.severe(e.getMessage());
+      }
+    };
+    executor.submit(producerTask);
+
+    try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                                                StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+      for (int chunk = 0; chunk < numChunks; chunk++) {
+        Chunk current = blockingQueue.take().get();
+        if (indexer != null) {
+          index(current, channel.position(), indexer);
+        }
+        writeFully(channel, outputConfig.bgzip ? current.compressed : current.text);
+        free.add(current.text);
+        if (current.compressed != null) {
+          free.add(current.compressed);
+        }
+      }
+      if (outputConfig.bgzip) {
+        if (indexer != null) {
+          indexer.end(channel.position() << 16);
+        }
+        writeFully(channel, BgzfCompressor.eofBlock(), BgzfCompressor.eofBlock().length);
+      }
+      return true;
+    } catch (IOException | ExecutionException e) {
+      log.log(Level.SEVERE, "unable to write to file " + file, e);
+      return false;
+    } catch (InterruptedException e) {
+      log.severe(e.getMessage());
+      return false;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Report the virtual offset of each row in a chunk that will be written at chunkStart
+   */
+  private static void index(Chunk chunk, long chunkStart, RowIndexer indexer) {
+    long[] blockStarts = new long[chunk.blockSizes.length];
+    long blockStart = chunkStart;
+    for (int block = 0; block < chunk.blockSizes.length; block++) {
+      blockStarts[block] = blockStart;
+      blockStart += chunk.blockSizes[block];
+    }
+    for (int row = 0; row < chunk.rowOffsets.length; row++) {
+      int block = chunk.rowOffsets[row] / BgzfCompressor.BLOCK_SIZE;
+      int offsetInBlock = chunk.rowOffsets[row] % BgzfCompressor.BLOCK_SIZE;
+      indexer.row(chunk.start + row, (blockStarts[block] << 16) | offsetInBlock);
+    }
+  }
+
+  private Chunk format(RowBlocks m, int[] rowOrder, int start, int end, boolean header,
+                       String rowTitle, List<String> columnNames, List<String> rowNames,
+                       boolean index) {
+    ByteChunk text = borrow();
+    if (header) {
+      text.append(rowTitle.getBytes(StandardCharsets.UTF_8));
+      for (String columnName : columnNames) {
+        text.append((byte) '\t');
+        text.append(columnName.getBytes(StandardCharsets.UTF_8));
+      }
+      text.append(LINE_SEPARATOR);
+    }
+    double[][] rows;
+    if (rowOrder != null) {
+      rows = new double[end - start][];
+      for (int row = start; row < end; row++) {
+        rows[row - start] = m.getRow(rowOrder[row]);
+      }
+    } else {
+      rows = m.getRows(start, end);
+    }
+    int[] rowOffsets = index ? new int[end - start] : null;
+    for (int row = start; row < end; row++) {
+      if (index) {
+        rowOffsets[row - start] = text.length;
+      }
+      text.append(rowNames.get(row).getBytes(StandardCharsets.UTF_8));
+      for (double value : rows[row - start]) {
+        text.append((byte) '\t');
+        text.append(value);
+      }
+      text.append(LINE_SEPARATOR);
+    }
+    ByteChunk compressed = null;
+    int[] blockSizes = null;
+    if (outputConfig.bgzip) {
+      compressed = borrow();
+      blockSizes = compressors.get().compress(text, compressed);
+    }
+    return new Chunk(start, text, compressed, rowOffsets, blockSizes);
+  }
+
+  private ByteChunk borrow() {
+    ByteChunk chunk = free.poll();
+    if (chunk == null) {
+      return new ByteChunk(TARGET_CHUNK_BYTES + TARGET_CHUNK_BYTES / 4);
+    }
+    chunk.clear();
+    return chunk;
+  }
+
+  private static void writeFully(FileChannel channel, ByteChunk chunk) throws IOException {
+    writeFully(channel, chunk.data, chunk.length);
+  }
+
+  private static void writeFully(FileChannel channel, byte[] data, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+}
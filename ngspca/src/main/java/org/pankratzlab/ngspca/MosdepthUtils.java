@@ -1,20 +1,38 @@
 package org.pankratzlab.ngspca;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 import org.apache.commons.math3.linear.BlockRealMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
-import org.ejml.data.DenseMatrix64F;
 import org.pankratzlab.ngspca.BedUtils.BEDOverlapDetector;
 import org.pankratzlab.ngspca.BedUtils.BedRegionResult;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.Interval;
+import htsjdk.tribble.bed.BEDCodec;
 import htsjdk.tribble.bed.BEDFeature;
 
 /**
@@ -25,29 +43,44 @@ class MosdepthUtils {
   static final String MOSDEPHT_BED_EXT = "regions.bed.gz";
 
   /**
-   * TODO, region strategies for specific targets
+   * How regions are selected for PCA
    */
   enum REGION_STRATEGY {
     /**
      * Load all autosomal regions
      */
-    AUTOSOMAL;
+    AUTOSOMAL,
+    /**
+     * Load the autosomal regions overlapping a bed of targets (e.g. buffered exome targets). Files
+     * with a tabix index are read only at the targets
+     */
+    TARGETS;
   }
 
   /**
    * @param mosDepthResultFile an example file to load regions from
    * @param rStrategy {@link REGION_STRATEGY} to use
-   * @param excluder autosomal regions that return true for
+   * @param excluder autosomal regions that overlap a region of this {@link BEDOverlapDetector}
+   *          will not be included
+   * @param targets for {@link REGION_STRATEGY#TARGETS}, only regions that overlap a region of this
+   *          {@link BEDOverlapDetector} will be included
+   * @param threads number of threads for filtering regions
    * @param log
    * @return {@link List} of regions
    */
   static List<String> getRegionsToUse(String mosDepthResultFile, REGION_STRATEGY rStrategy,
-                                      BEDOverlapDetector excluder, Logger log) {
+                                      BEDOverlapDetector excluder, BEDOverlapDetector targets,
+                                      int threads, Logger log) {
 
     log.info("Selecting regions using " + rStrategy + " region strategy");
 
     if (rStrategy == REGION_STRATEGY.AUTOSOMAL) {
-      return BedUtils.loadAutosomalUCSC(mosDepthResultFile, excluder);
+      return BedUtils.loadAutosomalUCSC(mosDepthResultFile, excluder, threads);
+    } else if (rStrategy == REGION_STRATEGY.TARGETS) {
+      List<String> regions = BedUtils.loadTargetedUCSC(mosDepthResultFile, targets, excluder,
+                                                       threads, log);
+      log.info(targets.getNumExcluded() + " autosomal regions removed for not overlapping a target");
+      return regions;
     } else {
       String err = "Invalid region strategy type " + rStrategy;
       log.severe(err);
@@ -57,43 +90,320 @@ class MosdepthUtils {
 
   /**
    * @param mosDepthResultFiles mosdepth output bed files to be processed
-   * @param ucscRegions {@link Set} of regions to process
+   * @param windows {@link BinWindows} of the regions to process
+   * @param queryIntervals if not null, files with a tabix index are only read at these intervals,
+   *          see {@link BedUtils#toQueryIntervals(List)}
    * @param threads number of threads to use when loading
+   * @param streamBatch if positive, read this many files at a time in lockstep with a
+   *          {@link LockstepReader}, rather than one whole file per thread
+   * @param ioThreads if positive, read the compressed bytes of the files on this many I/O
+   *          threads, separately from the threads decompressing and parsing them
+   * @param ioBufferBytes at most this many compressed bytes are read ahead of parsing
+   * @param metrics loading is recorded to this {@link RunMetrics}
    * @param log
-   * @return
+   * @return the raw (not normalized) matrix, see
+   *         {@link NormalizationOperations#foldChangeAndCenterRows(RealMatrix, RealMatrix, Logger)}.
+   *         A {@link QuantizedMatrix} unless bins were averaged into windows
    * @throws InterruptedException
    * @throws ExecutionException
    */
-  static BlockRealMatrix processFiles(List<String> mosDepthResultFiles, Set<String> ucscRegions,
-                                      String tmpRawFile, int threads,
-                                      Logger log) throws InterruptedException, ExecutionException {
+  static RealMatrix processFiles(List<String> mosDepthResultFiles, BinWindows windows,
+                                      List<Interval> queryIntervals, int threads,
+                                      int streamBatch, int ioThreads, long ioBufferBytes,
+                                      RunMetrics metrics, Logger log) throws InterruptedException, ExecutionException {
     if (mosDepthResultFiles.isEmpty()) {
       String err = "No input files provided";
       log.severe(err);
       throw new IllegalArgumentException(err);
     }
-    return loadAndNormalizeData(mosDepthResultFiles, ucscRegions, tmpRawFile, threads, log);
+    if (queryIntervals != null) {
+      long indexed = mosDepthResultFiles.stream().filter(BedUtils::hasTabixIndex).count();
+      log.info(indexed + " of " + mosDepthResultFiles.size() + " files have a tabix index, and will"
+               + " only be read at " + queryIntervals.size() + " intervals");
+    }
+    if (streamBatch > 0) {
+      if (ioThreads > 0) {
+        log.warning("Files read in lockstep are read by their parsing threads, ignoring "
+                    + ioThreads + " I/O threads");
+      }
+      return loadDataLockstep(mosDepthResultFiles, windows, queryIntervals, threads, streamBatch,
+                              metrics, log);
+    }
+    if (ioThreads > 0) {
+      return loadDataPrefetched(mosDepthResultFiles, windows, queryIntervals, threads, ioThreads,
+                                ioBufferBytes, metrics, log);
+    }
+    return loadData(mosDepthResultFiles, windows, queryIntervals, threads, metrics, log);
+  }
+
+  /**
+   * As {@link #loadData(List, BinWindows, List, int, RunMetrics, Logger)}, reading batches of
+   * files in lockstep and setting the matrix a block of rows at a time
+   * 
+   * @param batchSize number of files open at once
+   */
+  private static RealMatrix loadDataLockstep(List<String> mosDepthResultFiles, BinWindows windows,
+                                             List<Interval> queryIntervals, int threads,
+                                             int batchSize, RunMetrics metrics, Logger log) {
+    RealMatrix dm = initMatrix(mosDepthResultFiles, windows, log);
+    RunMetrics.Stage ingest = startIngest(mosDepthResultFiles, windows, metrics);
+    LockstepReader reader = new LockstepReader(mosDepthResultFiles, windows, queryIntervals,
+                                               batchSize, LockstepReader.DEFAULT_BLOCK_ROWS,
+                                               threads, log);
+    reader.read((startRow, startColumn, block) -> {
+      for (int file = 0; file < block.length; file++) {
+        for (int row = 0; row < block[file].length; row++) {
+          dm.setEntry(startRow + row, startColumn + file, block[file][row]);
+        }
+      }
+    });
+    ingest.close();
+    return dm;
+  }
+
+  /**
+   * As {@link #loadData(List, BinWindows, List, int, RunMetrics, Logger)}, with reading and
+   * parsing split into two stages. A pool of I/O threads reads the compressed bytes of whole files
+   * into memory, as far ahead as a budget of in-flight bytes allows, so that many slow reads (e.g.
+   * from a network file system) can be outstanding at once. A pool of parsing threads, sized to
+   * the cores, decompresses and parses the bytes as they arrive. Files that are queried with a
+   * tabix index are read by the parsing threads
+   * 
+   * @param ioThreads number of files read at once
+   * @param ioBufferBytes at most this many compressed bytes are held before they are parsed, a
+   *          larger file is read once nothing else is held
+   */
+  private static RealMatrix loadDataPrefetched(List<String> mosDepthResultFiles,
+                                               BinWindows windows, List<Interval> queryIntervals,
+                                               int threads, int ioThreads, long ioBufferBytes,
+                                               RunMetrics metrics, Logger log) {
+    Set<String> ucscRegions = new HashSet<>(windows.bins);
+    RealMatrix dm = initMatrix(mosDepthResultFiles, windows, log);
+    log.info("Starting input processing of " + mosDepthResultFiles.size() + " files, reading on "
+             + ioThreads + " I/O threads with a " + ioBufferBytes + " byte buffer and parsing on "
+             + threads + " threads");
+    RunMetrics.Stage ingest = startIngest(mosDepthResultFiles, windows, metrics);
+    // permits are KB, so that the budget fits an int
+    int budgetKb = (int) Math.max(1, Math.min(Integer.MAX_VALUE, ioBufferBytes / 1024));
+    Semaphore budget = new Semaphore(budgetKb);
+    ExecutorService io = Executors.newFixedThreadPool(ioThreads);
+    ExecutorService parsers = Executors.newFixedThreadPool(Math.max(threads, 1));
+    ExecutorService producer = Executors.newSingleThreadExecutor();
+    // parsed columns are small, so the queue only has to keep the I/O threads busy
+    BlockingQueue<Future<double[]>> blockingQueue = new LinkedBlockingDeque<>(ioThreads + threads);
+
+    producer.submit(() -> {
+      try {
+        for (String file : mosDepthResultFiles) {
+          if (queryIntervals != null && BedUtils.hasTabixIndex(file)) {
+            blockingQueue.put(parsers.submit(() -> readColumn(file,
+                                                              BedUtils.iterate(file, queryIntervals),
+                                                              ucscRegions, windows, log)));
+            continue;
+          }
+          int permits = (int) Math.min(budgetKb, Math.max(1, new File(file).length() / 1024));
+          budget.acquire(permits);
+          Function<byte[], double[]> parse = bytes -> readColumn(file, bytes, ucscRegions,
+                                                                 windows, log);
+          CompletableFuture<double[]> column = CompletableFuture.supplyAsync(() -> readBytes(file),
+                                                                             io)
+                                                                .thenApplyAsync(parse, parsers);
+          column.whenComplete((c, e) -> budget.release(permits));
+          blockingQueue.put(column);
+        }
+      } catch (InterruptedException e) {
+        log.severe(e.getMessage());
+      }
+    });
+
+    try {
+      for (int col = 0; col < mosDepthResultFiles.size(); col++) {
+        dm.setColumn(col, getResult(blockingQueue.take()));
+        if (col == 0 || (col + 1) % 200 == 0) {
+          log.info("Set data for file " + Integer.toString(col + 1));
+          log.info("Memory used: "
+                   + (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } finally {
+      producer.shutdownNow();
+      io.shutdownNow();
+      parsers.shutdownNow();
+    }
+    ingest.close();
+    return dm;
+  }
+
+  private static byte[] readBytes(String file) {
+    try {
+      return Files.readAllBytes(Paths.get(file));
+    } catch (IOException e) {
+      throw new UncheckedIOException("unable to read " + file, e);
+    }
+  }
+
+  /**
+   * @param bytes the compressed (gzip or bgzip) contents of a mosdepth bed file
+   * @return the file's column of the raw matrix
+   */
+  private static double[] readColumn(String file, byte[] bytes, Set<String> ucscRegions,
+                                     BinWindows windows, Logger log) {
+    BEDCodec codec = new BEDCodec();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(bytes)),
+                                                                          StandardCharsets.UTF_8))) {
+      // header lines decode to null
+      Iterator<BEDFeature> features = reader.lines().map(codec::decode).filter(Objects::nonNull)
+                                            .iterator();
+      double[] column = new double[windows.windows.size()];
+      readBins(file, features, ucscRegions, windows, 0, windows.bins.size(), 0, column, log);
+      checkExhausted(file, features, ucscRegions, log);
+      return column;
+    } catch (IOException e) {
+      throw new UncheckedIOException("unable to decompress " + file, e);
+    } catch (UncheckedIOException e) {
+      throw new UncheckedIOException("unable to decompress " + file, e.getCause());
+    }
+  }
+
+  /**
+   * @param features the features of a mosdepth bed file, closed once read
+   * @return the file's column of the raw matrix
+   */
+  private static double[] readColumn(String file, CloseableIterator<BEDFeature> features,
+                                     Set<String> ucscRegions, BinWindows windows, Logger log) {
+    try {
+      double[] column = new double[windows.windows.size()];
+      readBins(file, features, ucscRegions, windows, 0, windows.bins.size(), 0, column, log);
+      checkExhausted(file, features, ucscRegions, log);
+      return column;
+    } finally {
+      features.close();
+    }
+  }
+
+  /**
+   * Read the next bins of a file, which must be bins [startBin, endBin) of the {@link BinWindows}
+   * in order, and add their weighted coverage to their windows
+   * 
+   * @param file the file the features are read from
+   * @param features the file's features, features of regions that were not selected are skipped
+   * @param ucscRegions the selected regions, {@link BinWindows#bins}
+   * @param windows {@link BinWindows} of the bins
+   * @param startBin first bin to read
+   * @param endBin bin after the last bin to read
+   * @param startRow row of the first element of rows
+   * @param rows coverage is added to rows[window - startRow]
+   * @param log
+   */
+  static void readBins(String file, Iterator<BEDFeature> features, Set<String> ucscRegions,
+                       BinWindows windows, int startBin, int endBin, int startRow, double[] rows,
+                       Logger log) {
+    for (int bin = startBin; bin < endBin; bin++) {
+      BEDFeature feature = nextSelected(features, ucscRegions);
+      String expected = windows.bins.get(bin);
+      if (feature == null || !expected.equals(BedUtils.getBedUCSC(feature))) {
+        String err = "Invalid region in file " + file + ", expected " + expected + " and got "
+                     + (feature == null ? "the end of the file" : BedUtils.getBedUCSC(feature));
+        log.severe(err);
+        throw new IllegalArgumentException(err);
+      }
+      // mosdepth coverage parsed to "name" by htsjdk
+      double coverage;
+      try {
+        coverage = Double.parseDouble(feature.getName());
+      } catch (NumberFormatException nfe) {
+        String err = "Invalid (non-numeric) coverage value in file " + file + " at " + expected;
+        log.severe(err);
+        throw new IllegalArgumentException(err);
+      }
+      rows[windows.getRow(bin) - startRow] += windows.getWeight(bin) * coverage;
+    }
+  }
+
+  /**
+   * @throws IllegalArgumentException if any selected region is left in the features
+   */
+  static void checkExhausted(String file, Iterator<BEDFeature> features, Set<String> ucscRegions,
+                             Logger log) {
+    BEDFeature extra = nextSelected(features, ucscRegions);
+    if (extra != null) {
+      String err = "Invalid number of features from " + file + ", unexpected region "
+                   + BedUtils.getBedUCSC(extra) + " after the last expected region";
+      log.severe(err);
+      throw new IllegalArgumentException(err);
+    }
+  }
+
+  /**
+   * @return the next feature of a selected region, or null at the end of the features
+   */
+  private static BEDFeature nextSelected(Iterator<BEDFeature> features, Set<String> ucscRegions) {
+    while (features.hasNext()) {
+      BEDFeature feature = features.next();
+      if (ucscRegions.contains(BedUtils.getBedUCSC(feature))) {
+        return feature;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the result of a parallel read, rethrowing its exception
+   */
+  static <T> T getResult(Future<T> read) {
+    try {
+      return read.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private static RealMatrix initMatrix(List<String> mosDepthResultFiles, BinWindows windows,
+                                       Logger log) {
+    log.info("Initializing matrix to " + mosDepthResultFiles.size() + " columns and "
+             + windows.windows.size() + " rows");
+    // averages of windows are rarely exact at two decimals, so they are not quantized
+    return windows.isAggregated() ? new BlockRealMatrix(windows.windows.size(),
+                                                        mosDepthResultFiles.size())
+                                  : new QuantizedMatrix(windows.windows.size(),
+                                                        mosDepthResultFiles.size());
+  }
+
+  private static RunMetrics.Stage startIngest(List<String> mosDepthResultFiles,
+                                              BinWindows windows, RunMetrics metrics) {
+    long bytes = mosDepthResultFiles.stream().mapToLong(f -> new File(f).length()).sum();
+    return metrics.start("ingest").bytesRead(bytes)
+                  .dimensions(windows.windows.size(), mosDepthResultFiles.size());
   }
 
   /**
    * @param mosDepthResultFiles mosdepth output bed files to be processed
-   * @param ucscRegions only these regions will be used
+   * @param windows only the bins of these {@link BinWindows} will be used, one row per window
+   * @param queryIntervals if not null, indexed files are only read at these intervals
    * @param threads number of threads to use when loading
+   * @param metrics loading is recorded to this {@link RunMetrics}
    * @param log
-   * @return normalized {@link DenseMatrix64F} holding all input files
-   * @throws InterruptedException
-   * @throws ExecutionException
+   * @return raw matrix holding all input files
    */
 
-  private static BlockRealMatrix loadAndNormalizeData(List<String> mosDepthResultFiles,
-                                                      Set<String> ucscRegions, String tmpRawFile,
-                                                      int threads, Logger log) {
+  private static RealMatrix loadData(List<String> mosDepthResultFiles, BinWindows windows,
+                                          List<Interval> queryIntervals, int threads,
+                                          RunMetrics metrics, Logger log) {
 
-    log.info("Initializing matrix to " + mosDepthResultFiles.size() + " columns and "
-             + ucscRegions.size() + " rows");
-    BlockRealMatrix dm = new BlockRealMatrix(ucscRegions.size(), mosDepthResultFiles.size());
+    Set<String> ucscRegions = new HashSet<>(windows.bins);
+    RealMatrix dm = initMatrix(mosDepthResultFiles, windows, log);
 
     log.info("Starting input processing of " + mosDepthResultFiles.size() + " files");
+    RunMetrics.Stage ingest = startIngest(mosDepthResultFiles, windows, metrics);
     int col = 0;
     //    https://dzone.com/articles/the-evolution-of-producer-consumer-problem-in-java
     BlockingQueue<Future<BedRegionResult>> blockingQueue = new LinkedBlockingDeque<>(threads);
@@ -102,8 +412,8 @@ class MosdepthUtils {
     Runnable producerTask = () -> {
       try {
         for (String mosDepthResultFile : mosDepthResultFiles) {
-          blockingQueue.put(executor.submit(() -> BedUtils.loadSpecificRegions(mosDepthResultFile,
-                                                                               ucscRegions)));
+          blockingQueue.put(executor.submit(() -> load(mosDepthResultFile, ucscRegions,
+                                                       queryIntervals)));
         }
       } catch (InterruptedException e) {
         log.severe(e.getMessage());
@@ -125,7 +435,7 @@ class MosdepthUtils {
                                              + "\n expected" + ucscRegions.size() + " and got "
                                              + current.features.size());
         }
-        setColumnData(dm, col, mosDepthResultFile, current.features, log);
+        setColumnData(dm, col, mosDepthResultFile, current.features, windows, log);
         col++;
         if (col == 1 || col % 200 == 0) {
           log.info("Set data for file " + Integer.toString(col));
@@ -142,31 +452,38 @@ class MosdepthUtils {
 
     }
     executor.shutdown();
-    log.info("Saving temporary raw matrix to " + tmpRawFile);
-    FileOps.writeSerial(dm, tmpRawFile, log);
-
-    log.info("Normalizing input matrix");
-    NormalizationOperations.foldChangeAndCenterRows(dm, log);
+    ingest.close();
     return dm;
 
   }
 
+  private static BedRegionResult load(String mosDepthResultFile, Set<String> ucscRegions,
+                                      List<Interval> queryIntervals) {
+    if (queryIntervals != null && BedUtils.hasTabixIndex(mosDepthResultFile)) {
+      return BedUtils.loadIndexedRegions(mosDepthResultFile, queryIntervals, ucscRegions);
+    }
+    return BedUtils.loadSpecificRegions(mosDepthResultFile, ucscRegions);
+  }
+
   private static void setColumnData(RealMatrix dm, int col, String inputFile,
-                                    List<BEDFeature> features, Logger log) {
+                                    List<BEDFeature> features, BinWindows windows, Logger log) {
 
-    for (int row = 0; row < features.size(); row++) {
+    double[] column = new double[dm.getRowDimension()];
+    for (int bin = 0; bin < features.size(); bin++) {
       // mosdepth coverage parsed to "name" by htsjdk
       try {
         //        dm.add(v)
         //        dm.data
-        dm.addToEntry(row, col, Double.parseDouble(features.get(row).getName()));
+        double coverage = Double.parseDouble(features.get(bin).getName());
+        column[windows.getRow(bin)] += windows.getWeight(bin) * coverage;
       } catch (NumberFormatException nfe) {
         log.log(Level.SEVERE, "an exception was thrown", nfe);
         throw new IllegalArgumentException("Invalid (non-numeric) coverage value in file "
-                                           + inputFile + " in  row " + row);
+                                           + inputFile + " in  row " + bin);
       }
 
     }
+    dm.setColumn(col, column);
   }
 
 }
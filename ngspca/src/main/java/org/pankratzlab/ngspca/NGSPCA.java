@@ -2,21 +2,26 @@ package org.pankratzlab.ngspca;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.math3.linear.BlockRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
 import org.pankratzlab.ngspca.BedUtils.BEDOverlapDetector;
+import org.pankratzlab.ngspca.LinearAlgebraBackend.BACKEND;
 import org.pankratzlab.ngspca.MosdepthUtils.REGION_STRATEGY;
+import org.pankratzlab.ngspca.OutputConfig.OUTPUT_FORMAT;
+import org.pankratzlab.ngspca.RandomMatrixGenerator.DISTRIBUTION;
+import org.pankratzlab.ngspca.SketchOperator.SKETCH_TYPE;
+import org.pankratzlab.ngspca.StageCache.STAGE;
+import htsjdk.samtools.util.Interval;
 
 /**
  * A simplified version of BamImport that uses MosDepth output or a custom input matrix to generate
@@ -24,10 +29,28 @@ import org.pankratzlab.ngspca.MosdepthUtils.REGION_STRATEGY;
  */
 public class NGSPCA {
 
-  private static void runInputMatrix(String inputMatrixFile, String outputDir, int numPcs,
-                                     int niters, int numOversamples, int sampleAt, int randomSeed,
-                                     boolean overwrite, boolean normMatrix,
-                                     Logger log) throws InterruptedException, ExecutionException,
+  /**
+   * Regions (rows) of the cached matrices, see {@link StageCache}
+   */
+  private static final String TMP_REGIONS = "tmp.regions.txt";
+  /**
+   * Results of the SVD, see {@link #svdFiles(String, OutputConfig)}
+   */
+  private static final String PCS = "svd.pcs";
+  private static final String LOADINGS = "svd.loadings";
+  private static final String SINGULAR_VALUES = "svd.singularvalues";
+  private static final String ACCURACY = "svd.accuracy.txt";
+  private static final String BINS_USED = "svd.bins.txt";
+  private static final String SAMPLES_USED = "svd.samples.txt";
+  /**
+   * See {@link BinFilter#nonzeroFraction}, cached with the normalized matrix
+   */
+  private static final String TMP_NONZERO = "tmp.nonzero.ser.gz";
+
+  private static void runInputMatrix(String inputMatrixFile, String outputDir, int sampleAt,
+                                     boolean overwrite, boolean normMatrix, boolean ignorePlan,
+                                     BinFilter binFilter, SVDConfig svdConfig, OutputConfig outputConfig,
+                                     RunMetrics metrics, Logger log) throws InterruptedException, ExecutionException,
                                                  IOException {
     new File(outputDir).mkdirs();
 
@@ -37,45 +60,94 @@ public class NGSPCA {
       log.info("Assuming " + inputMatrixFile + " is gzipped");
     }
 
-    log.info("Determining number of samples in " + inputMatrixFile);
-
-    List<String> samples = FileOps.getFileHeader(inputMatrixFile, gz, delim, log);
-    samples.remove(0);
-    log.info("Found a total of " + samples.size() + " samples in " + inputMatrixFile);
-
-    log.info("Determining number of regions in " + inputMatrixFile);
-    List<String> regions = FileOps.getColumn(inputMatrixFile, gz, delim, 0, log);
-
-    regions.remove(0);
-    log.info("Found a total of " + regions.size() + " regions in " + inputMatrixFile);
+    StageCache cache = new StageCache(outputDir, overwrite, log);
+    String tmpRegions = outputDir + TMP_REGIONS;
+    List<String> inputFiles = Collections.singletonList(inputMatrixFile);
+    String regionsKey = StageCache.key(StageCache.describeFiles(inputFiles));
+    String normKey = StageCache.key(regionsKey, normMatrix);
+    String svdKey = svdKey(normKey, binFilter, svdConfig, outputConfig);
+    String tmpNormDm = outputDir + "tmp.mat.ser.gz";
+    String tmpNonzero = outputDir + TMP_NONZERO;
+
+    List<String> samples = null;
+    List<String> regions = null;
+    MatrixReader.Result parsed = null;
+    try (RunMetrics.Stage ingest = metrics.start("ingest")) {
+      if (cache.isValid(STAGE.SVD, svdKey, svdFiles(outputDir, binFilter, svdConfig,
+                                                    outputConfig))) {
+        return;
+      }
+      if (cache.isValid(STAGE.REGIONS, regionsKey, tmpRegions)) {
+        samples = FileOps.getFileHeader(inputMatrixFile, gz, delim, log);
+        samples.remove(0);
+        regions = FileOps.readFile(tmpRegions);
+        log.info("Found a total of " + samples.size() + " samples and " + regions.size()
+                 + " regions in " + inputMatrixFile);
+      }
+      boolean load = regions == null
+                     || !cache.isValid(STAGE.NORMALIZED, normKey, tmpNormDm, tmpNonzero);
+      if (regions != null) {
+        // otherwise the number of regions is only known once the matrix has been read
+        svdConfig = ResourcePlan.apply(regions.size(), samples.size(),
+                                       load ? new File(inputMatrixFile).length() : 0, svdConfig,
+                                       Runtime.getRuntime().maxMemory(), !ignorePlan, metrics,
+                                       log);
+      }
+      if (load) {
+        cache.invalidate(STAGE.NORMALIZED);
+        log.info("Populating matrix from " + inputMatrixFile);
+        parsed = new MatrixReader(delim.charAt(0), svdConfig.threads, log).read(inputMatrixFile,
+                                                                               gz);
+        log.info("Found a total of " + parsed.columnNames.size() + " samples and "
+                 + parsed.rowNames.size() + " regions in " + inputMatrixFile);
+        ingest.bytesRead(new File(inputMatrixFile).length())
+              .dimensions(parsed.matrix.getRowDimension(), parsed.matrix.getColumnDimension());
+      }
+    }
 
     BlockRealMatrix dm;
-
-    String tmpNormDm = outputDir + "tmp.mat.ser.gz";
-    if (!FileOps.fileExists(tmpNormDm) || overwrite) {
-      log.info("Populating matrix from " + inputMatrixFile);
-      log.info("Initializing matrix to " + samples.size() + " columns and " + regions.size()
-               + " rows");
-      dm = new BlockRealMatrix(regions.size(), samples.size());
-      int[] rowIndex = {0};
-      //add data to matrix, skipping header and first column of file
-      Stream<String> stream = gz ? FileOps.gzLines(Paths.get(inputMatrixFile), log)
-                                 : Files.lines(Paths.get(inputMatrixFile));
-      stream.skip(1).map(l -> l.split(delim))
-            .forEach(a -> dm.setRow(rowIndex[0]++,
-                                    Utils.convertToDoubleArray(Arrays.copyOfRange(a, 1, a.length),
-                                                               0, log)));
+    double[] nonzero;
+    if (parsed != null) {
+      samples = parsed.columnNames;
+      dm = parsed.matrix;
+      if (regions == null) {
+        cache.invalidate(STAGE.REGIONS);
+        regions = parsed.rowNames;
+        if (FileOps.writeToText(regions, tmpRegions, log)) {
+          cache.store(STAGE.REGIONS, regionsKey);
+        }
+        svdConfig = ResourcePlan.apply(regions.size(), samples.size(),
+                                       new File(inputMatrixFile).length(), svdConfig,
+                                       Runtime.getRuntime().maxMemory(), !ignorePlan, metrics,
+                                       log);
+      }
+      nonzero = BinFilter.nonzeroFraction(dm);
       if (normMatrix) {
-        log.info("Normalizing input matrix");
-        NormalizationOperations.foldChangeAndCenterRows(dm, log);
+        normalize(dm, metrics, log);
+      }
+      if (serialize(dm, tmpNormDm, "serialize", metrics, log)
+          && FileOps.writeSerial(nonzero, tmpNonzero, log)) {
+        cache.store(STAGE.NORMALIZED, normKey);
       }
-      FileOps.writeSerial(dm, tmpNormDm, log);
     } else {
-      log.info("Loading existing serialized file " + tmpNormDm);
-      dm = (BlockRealMatrix) FileOps.readSerial(tmpNormDm, log);
+      dm = deserialize(tmpNormDm, "deserialize", metrics, log);
+      nonzero = (double[]) FileOps.readSerial(tmpNonzero, log);
+    }
+    BlockRealMatrix svdInput = dm;
+    List<String> svdRegions = regions;
+    if (binFilter.isEnabled()) {
+      BitSet kept = filterBins(dm, regions, nonzero, binFilter, outputDir, metrics, log);
+      svdInput = BinFilter.subset(dm, kept);
+      svdRegions = subset(regions, kept);
+    }
+    cache.invalidate(STAGE.SVD);
+    if (computeSVD(outputDir, svdConfig, outputConfig, metrics, log, samples, svdRegions,
+                   svdInput)) {
+      cache.store(STAGE.SVD, svdKey);
+    } else {
+      log.severe("Not all SVD results were written to " + outputDir
+                 + ", they will be recomputed by the next run");
     }
-    computeSVD(outputDir, numPcs, niters, numOversamples, randomSeed, log, samples, regions, dm);
-
   }
 
   /**
@@ -83,22 +155,37 @@ public class NGSPCA {
    *          {@link MosdepthUtils#MOSDEPHT_BED_EXT}
    * @param outputDir where results will be written
    * @param bedExclude if not null, regions overlapping this bed file will not be included
+   * @param bedTargets for {@link REGION_STRATEGY#TARGETS}, only regions overlapping this bed file
+   *          will be included
    * @param regionStrategy how to select markers for PCA
-   * @param numPcs number of PCs to retain in the output file
-   * @param sampleAt sample the mosdepth bins, once per this number
-   * @param randomSeed random seed for sampling matrix
-   * @param overwrite overwrite any existing output
+   * @param sampleAt sample the mosdepth bins (or windows), once per this number
+   * @param binAggregate average up to this many adjacent bins into each row, see
+   *          {@link BinWindows}
+   * @param overwrite recompute every stage, even if a {@link StageCache} stage is unchanged
+   * @param ignorePlan continue even if the {@link ResourcePlan} does not fit the heap
+   * @param binFilter {@link BinFilter} applied to the normalized matrix before the SVD
    * @param threads number of threads for loading bed files
+   * @param streamBatch if positive, read this many bed files at once in lockstep, see
+   *          {@link LockstepReader}
+   * @param ioThreads if positive, read the bed files on this many I/O threads, separately from
+   *          the threads parsing them
+   * @param ioBufferBytes at most this many compressed bytes are read ahead of parsing
+   * @param svdConfig {@link SVDConfig} for the randomized SVD
+   * @param outputConfig {@link OutputConfig} for writing results
+   * @param metrics each stage is recorded to this {@link RunMetrics}
    * @param log
    * @throws InterruptedException
    * @throws ExecutionException
    * @throws IOException
    */
   private static void runMosdepth(String input, String outputDir, String bedExclude,
-                                  REGION_STRATEGY regionStrategy, int numPcs, int niters,
-                                  int numOversamples, int sampleAt, int randomSeed,
-                                  boolean overwrite, int threads,
-                                  Logger log) throws InterruptedException, ExecutionException,
+                                  String bedTargets, REGION_STRATEGY regionStrategy, int sampleAt,
+                                  int binAggregate,
+                                  boolean overwrite, boolean ignorePlan, BinFilter binFilter,
+                                  int threads, int streamBatch, int ioThreads,
+                                  long ioBufferBytes,
+                                  SVDConfig svdConfig, OutputConfig outputConfig,
+                                  RunMetrics metrics, Logger log) throws InterruptedException, ExecutionException,
                                               IOException {
     new File(outputDir).mkdirs();
 
@@ -109,7 +196,7 @@ public class NGSPCA {
     if (FileOps.isDir(input) && FileOps.dirExists(input)) {
       log.info("Detected " + input + " is a directory, searching for "
                + MosdepthUtils.MOSDEPHT_BED_EXT + " extensions");
-      mosDepthResultFiles = FileOps.listFilesWithExtension(input, extensions);
+      mosDepthResultFiles = FileOps.listFilesWithExtension(input, extensions, threads);
     } else if (FileOps.fileExists(input)) {
       log.info("Detected " + input + " is a file, reading mosdepth result file paths");
       mosDepthResultFiles = FileOps.readFile(input);
@@ -133,36 +220,93 @@ public class NGSPCA {
                                                                                            MosdepthUtils.MOSDEPHT_BED_EXT))
                                               .collect(Collectors.toList());
 
-    // load ucsc regions to use
-
-    BEDOverlapDetector overlapDetector = new BEDOverlapDetector(bedExclude, log);
-    List<String> regions = MosdepthUtils.getRegionsToUse(mosDepthResultFiles.get(0), regionStrategy,
-                                                         overlapDetector, log);
-    log.info(overlapDetector.getNumExcluded() + " regions removed during up-front filtering");
+    StageCache cache = new StageCache(outputDir, overwrite, log);
+    // load ucsc regions to use, which are selected from the first file
+    String tmpRegions = outputDir + TMP_REGIONS;
+    String regionsKey = StageCache.key(StageCache.describeFiles(mosDepthResultFiles.subList(0, 1)),
+                                       StageCache.hashContents(bedExclude, log), regionStrategy,
+                                       StageCache.hashContents(bedTargets, log));
+    List<String> bins;
+    if (cache.isValid(STAGE.REGIONS, regionsKey, tmpRegions)) {
+      bins = FileOps.readFile(tmpRegions);
+    } else {
+      cache.invalidate(STAGE.REGIONS);
+      bins = selectRegions(mosDepthResultFiles.get(0), bedExclude, bedTargets, regionStrategy,
+                           threads, metrics, log);
+      if (FileOps.writeToText(bins, tmpRegions, log)) {
+        cache.store(STAGE.REGIONS, regionsKey);
+      }
+    }
+    BinWindows windows = BinWindows.create(bins, binAggregate, sampleAt);
+    if (binAggregate > 1) {
+      log.info("Averaged " + bins.size() + " bins into " + windows.windows.size()
+               + " windows of up to " + binAggregate + " adjacent bins");
+    }
     if (sampleAt > 1) {
-      log.info("Sampling the" + regions.size() + " mosdepth regions once every " + sampleAt
-               + " bins");
-      regions = IntStream.range(0, regions.size()).filter(n -> n % sampleAt == 0)
-                         .mapToObj(regions::get).collect(Collectors.toList());
-      log.info("Sampled " + regions.size() + " bins");
-
+      log.info("Sampled " + windows.windows.size() + " rows, once every " + sampleAt);
+    }
+    List<String> regions = windows.windows;
+    String rawKey = StageCache.key(regionsKey, StageCache.describeFiles(mosDepthResultFiles),
+                                   sampleAt, binAggregate);
+    String normKey = StageCache.key(rawKey, "foldChangeAndCenterRows");
+    String svdKey = svdKey(normKey, binFilter, svdConfig, outputConfig);
+    if (cache.isValid(STAGE.SVD, svdKey, svdFiles(outputDir, binFilter, svdConfig,
+                                                  outputConfig))) {
+      return;
     }
     // Store the raw input matrix
     String tmpRawDm = outputDir + "tmp.raw.ser.gz";
     // Store the temporary input matrix
     String tmpNormDm = outputDir + "tmp.mat.ser.gz";
 
+    // per bin fraction of samples with coverage, before normalization
+    String tmpNonzero = outputDir + TMP_NONZERO;
+
     // populate input matrix and normalize
+    boolean loadNorm = !cache.isValid(STAGE.NORMALIZED, normKey, tmpNormDm, tmpNonzero);
+    boolean loadRaw = loadNorm && !cache.isValid(STAGE.RAW, rawKey, tmpRawDm);
+    long inputBytes = loadRaw ? mosDepthResultFiles.stream().mapToLong(f -> new File(f).length())
+                                                   .sum()
+                              : 0;
+    svdConfig = ResourcePlan.apply(regions.size(), samples.size(), inputBytes, svdConfig,
+                                   Runtime.getRuntime().maxMemory(), !ignorePlan, metrics, log);
     BlockRealMatrix dm;
-    if (!FileOps.fileExists(tmpNormDm) || overwrite) {
-      dm = MosdepthUtils.processFiles(mosDepthResultFiles, new HashSet<String>(regions), tmpRawDm,
-                                      threads, log);
-      FileOps.writeSerial(dm, tmpNormDm, log);
+    double[] nonzero;
+    if (loadNorm) {
+      RealMatrix raw;
+      if (loadRaw) {
+        cache.invalidate(STAGE.RAW);
+        List<Interval> queryIntervals = regionStrategy == REGION_STRATEGY.TARGETS
+                                                                          ? BedUtils.toQueryIntervals(windows.bins)
+                                                                          : null;
+        raw = MosdepthUtils.processFiles(mosDepthResultFiles, windows, queryIntervals, threads,
+                                         streamBatch, ioThreads, ioBufferBytes, metrics, log);
+        log.info("Saving temporary raw matrix to " + tmpRawDm);
+        if (serialize(raw, tmpRawDm, "serializeRaw", metrics, log)) {
+          cache.store(STAGE.RAW, rawKey);
+        }
+      } else {
+        raw = deserialize(tmpRawDm, "deserializeRaw", metrics, log);
+      }
+      cache.invalidate(STAGE.NORMALIZED);
+      nonzero = BinFilter.nonzeroFraction(raw);
+      dm = normalize(raw, metrics, log);
+      if (serialize(dm, tmpNormDm, "serialize", metrics, log)
+          && FileOps.writeSerial(nonzero, tmpNonzero, log)) {
+        cache.store(STAGE.NORMALIZED, normKey);
+      }
     } else {
       System.out.print("Loading");
       System.err.print("Loading");
-      log.info("Loading existing serialized file " + tmpNormDm);
-      dm = (BlockRealMatrix) FileOps.readSerial(tmpNormDm, log);
+      dm = deserialize(tmpNormDm, "deserialize", metrics, log);
+      nonzero = (double[]) FileOps.readSerial(tmpNonzero, log);
+    }
+    BlockRealMatrix svdInput = dm;
+    List<String> svdRegions = regions;
+    if (binFilter.isEnabled()) {
+      BitSet kept = filterBins(dm, regions, nonzero, binFilter, outputDir, metrics, log);
+      svdInput = BinFilter.subset(dm, kept);
+      svdRegions = subset(regions, kept);
     }
     //    String inputMatrix = outputDir + "svd.norm.input.txt";
     //    log.info("Writing to " + inputMatrix);
@@ -170,36 +314,275 @@ public class NGSPCA {
     //    RandomizedSVD.dumpMatrix(inputMatrix, dm, "BIN", samples.toArray(new String[samples.size()]),
     //                             regions.toArray(new String[regions.size()]), false, log);
 
-    computeSVD(outputDir, numPcs, niters, numOversamples, randomSeed, log, samples, regions, dm);
+    cache.invalidate(STAGE.SVD);
+    if (computeSVD(outputDir, svdConfig, outputConfig, metrics, log, samples, svdRegions,
+                   svdInput)) {
+      cache.store(STAGE.SVD, svdKey);
+    } else {
+      log.severe("Not all SVD results were written to " + outputDir
+                 + ", they will be recomputed by the next run");
+    }
+  }
+
+  /**
+   * @param mosDepthResultFile select regions from this file
+   * @param bedExclude if not null, regions overlapping this bed file will not be included
+   * @param bedTargets for {@link REGION_STRATEGY#TARGETS}, only regions overlapping this bed file
+   *          will be included
+   * @param regionStrategy how to select markers for PCA
+   * @param threads number of threads for filtering regions
+   * @param metrics region selection is recorded to this {@link RunMetrics}
+   * @param log
+   * @return the selected regions
+   */
+  private static List<String> selectRegions(String mosDepthResultFile, String bedExclude,
+                                            String bedTargets, REGION_STRATEGY regionStrategy,
+                                            int threads, RunMetrics metrics, Logger log) {
+    if (regionStrategy == REGION_STRATEGY.TARGETS && bedTargets == null) {
+      String err = "A bed file of targets (--" + CmdLine.TARGETS_BED_FILE + ") is required for the "
+                   + regionStrategy + " region strategy";
+      log.severe(err);
+      throw new IllegalArgumentException(err);
+    }
+    long regionBytes = new File(mosDepthResultFile).length();
+    RunMetrics.Stage regionSelection = metrics.start("regionSelection").bytesRead(regionBytes);
+    BEDOverlapDetector overlapDetector = new BEDOverlapDetector(bedExclude, log);
+    BEDOverlapDetector targets = new BEDOverlapDetector(bedTargets, log);
+    List<String> regions = MosdepthUtils.getRegionsToUse(mosDepthResultFile, regionStrategy,
+                                                         overlapDetector, targets, threads, log);
+    log.info(overlapDetector.getNumExcluded() + " regions removed during up-front filtering");
+    regionSelection.dimensions(regions.size(), 1).close();
+    return regions;
+  }
+
+  /**
+   * @param dm the normalized matrix
+   * @param regions its rows
+   * @param nonzero see {@link BinFilter#nonzeroFraction}
+   * @param binFilter the {@link BinFilter}
+   * @param outputDir the statistics of each bin are written to {@link BinFilter#FILE} in this
+   *          directory
+   * @param metrics filtering is recorded to this {@link RunMetrics}
+   * @param log
+   * @return the rows to keep
+   */
+  @SuppressWarnings("try")
+  private static BitSet filterBins(BlockRealMatrix dm, List<String> regions, double[] nonzero,
+                                   BinFilter binFilter, String outputDir, RunMetrics metrics,
+                                   Logger log) {
+    try (RunMetrics.Stage stage = metrics.start("binFilter")
+                                         .dimensions(dm.getRowDimension(),
+                                                     dm.getColumnDimension())) {
+      double[] variance = BinFilter.variance(dm);
+      log.info("Bin variance: " + BinFilter.summarize(variance));
+      log.info("Bin nonzero fraction: " + BinFilter.summarize(nonzero));
+      BitSet kept = binFilter.select(nonzero, variance);
+      log.info("Keeping " + kept.cardinality() + " of " + regions.size() + " bins (" + binFilter
+               + ")");
+      String stats = outputDir + BinFilter.FILE;
+      log.info("Writing to " + stats);
+      BinFilter.dumpToText(stats, regions, nonzero, variance, kept, log);
+      return kept;
+    }
+  }
+
+  private static List<String> subset(List<String> regions, BitSet kept) {
+    return kept.stream().mapToObj(regions::get).collect(Collectors.toList());
   }
 
-  static void computeSVD(String outputDir, int numPcs, int niters, int numOversamples,
-                         int randomSeed, Logger log, List<String> samples, List<String> regions,
-                         BlockRealMatrix dm) {
-    RandomizedSVD svd = new RandomizedSVD(samples, regions, log);
+  /**
+   * @param normKey {@link StageCache} key of the normalized matrix
+   * @param binFilter the {@link BinFilter}
+   * @param svdConfig the requested {@link SVDConfig}
+   * @param outputConfig the {@link OutputConfig}
+   * @return {@link StageCache} key of the SVD results
+   */
+  private static String svdKey(String normKey, BinFilter binFilter, SVDConfig svdConfig,
+                               OutputConfig outputConfig) {
+    return StageCache.key(normKey, binFilter, Arrays.toString(svdConfig.numPcs),
+                          Arrays.toString(svdConfig.niters),
+                          Arrays.toString(svdConfig.numOversamples), svdConfig.sweep,
+                          svdConfig.randomSeed, svdConfig.distribution, svdConfig.sketchType,
+                          svdConfig.backend, svdConfig.threads, svdConfig.compressBits,
+                          outputConfig.format,
+                          outputConfig.bgzip, outputConfig.bedLoadings,
+                          outputConfig.firstLoadingPC, outputConfig.lastLoadingPC);
+  }
 
-    log.info("Oversampling set to: " + numOversamples);
-    log.info("Subspace iterations set to: " + niters);
-    log.info("Random seed set to: " + randomSeed);
-    svd.fit(dm, numPcs, niters, numOversamples, randomSeed);
+  /**
+   * @return every file written by {@link #computeSVD}, and the bin statistics of the
+   *         {@link BinFilter} if it is enabled
+   */
+  private static String[] svdFiles(String outputDir, BinFilter binFilter, SVDConfig svdConfig,
+                                   OutputConfig outputConfig) {
+    List<String> files = new ArrayList<>();
+    if (binFilter.isEnabled()) {
+      files.add(outputDir + BinFilter.FILE);
+    }
+    if (!svdConfig.sweep) {
+      files.addAll(svdFiles(outputDir, outputConfig));
+      return files.toArray(new String[0]);
+    }
+    for (int numPcs : svdConfig.numPcs) {
+      for (int numOversamples : svdConfig.numOversamples) {
+        for (int niters : svdConfig.niters) {
+          files.addAll(svdFiles(outputDir + ParameterSweep.getConfigDirectory(numPcs,
+                                                                              numOversamples,
+                                                                              niters),
+                                outputConfig));
+        }
+      }
+    }
+    files.add(outputDir + ParameterSweep.SUMMARY_FILE);
+    return files.toArray(new String[0]);
+  }
+
+  /**
+   * @return every file written by {@link #writeSVD} to a directory
+   */
+  private static List<String> svdFiles(String dir, OutputConfig outputConfig) {
+    List<String> files = new ArrayList<>();
+    if (outputConfig.writeText()) {
+      files.add(outputConfig.getFileName(dir + PCS + ".txt"));
+      files.add(outputConfig.getFileName(dir + LOADINGS + ".txt"));
+      files.add(dir + SINGULAR_VALUES + ".txt");
+    }
+    if (outputConfig.writeNpy()) {
+      files.add(dir + PCS + NpyWriter.EXTENSION);
+      files.add(dir + LOADINGS + NpyWriter.EXTENSION);
+      files.add(dir + SINGULAR_VALUES + NpyWriter.EXTENSION);
+    }
+    if (outputConfig.bedLoadings) {
+      files.add(dir + LOADINGS + BedLoadingsWriter.EXTENSION);
+      files.add(dir + LOADINGS + BedLoadingsWriter.EXTENSION + BedLoadingsWriter.INDEX_EXTENSION);
+    }
+    files.add(dir + ACCURACY);
+    files.add(dir + BINS_USED);
+    files.add(dir + SAMPLES_USED);
+    return files;
+  }
+
+  /**
+   * @param raw the raw matrix, normalized in place if it is a {@link BlockRealMatrix}
+   * @return the normalized matrix
+   */
+  @SuppressWarnings("try")
+  private static BlockRealMatrix normalize(RealMatrix raw, RunMetrics metrics, Logger log) {
+    log.info("Normalizing input matrix");
+    try (RunMetrics.Stage stage = metrics.start("normalization")
+                                         .dimensions(raw.getRowDimension(),
+                                                     raw.getColumnDimension())) {
+      BlockRealMatrix dm = raw instanceof BlockRealMatrix ? (BlockRealMatrix) raw
+                                                          : new BlockRealMatrix(raw.getRowDimension(),
+                                                                                raw.getColumnDimension());
+      NormalizationOperations.foldChangeAndCenterRows(raw, dm, log);
+      return dm;
+    }
+  }
+
+  /**
+   * @return true if the matrix was written
+   */
+  @SuppressWarnings("try")
+  private static boolean serialize(RealMatrix dm, String file, String stageName,
+                                   RunMetrics metrics, Logger log) {
+    try (RunMetrics.Stage stage = metrics.start(stageName)) {
+      return FileOps.writeSerial(dm, file, log);
+    }
+  }
+
+  @SuppressWarnings({"unchecked", "try"})
+  private static <T extends RealMatrix> T deserialize(String file, String stageName,
+                                                      RunMetrics metrics, Logger log) {
+    log.info("Loading existing serialized file " + file);
+    try (RunMetrics.Stage stage = metrics.start(stageName).bytesRead(new File(file).length())) {
+      return (T) FileOps.readSerial(file, log);
+    }
+  }
+
+  /**
+   * @return true if every result was written
+   */
+  static boolean computeSVD(String outputDir, SVDConfig svdConfig, OutputConfig outputConfig,
+                            RunMetrics metrics, Logger log, List<String> samples,
+                            List<String> regions, BlockRealMatrix dm) {
+    RandomizedSVD svd = new RandomizedSVD(samples, regions, metrics,
+                                          new SubspaceCheckpoint(outputDir,
+                                                                 svdConfig.checkpointEvery),
+                                          svdConfig.compressBits, log);
+
+    log.info("Oversampling set to: " + Arrays.toString(svdConfig.numOversamples));
+    log.info("Subspace iterations set to: " + Arrays.toString(svdConfig.niters));
+    log.info("Random seed set to: " + svdConfig.randomSeed);
+    log.info("Sampling matrix distribution set to: " + svdConfig.distribution);
+    log.info("Sampling matrix sketch set to: " + svdConfig.sketchType);
+    if (svdConfig.sweep) {
+      return ParameterSweep.run(svd, dm, outputDir, svdConfig, outputConfig, log);
+    }
     // perform SVD
+    svd.fit(dm, svdConfig.getNumPcs(), svdConfig.getNiters(), svdConfig.getNumOversamples(),
+            svdConfig.randomSeed, svdConfig.distribution, svdConfig.sketchType,
+            svdConfig.backend, svdConfig.threads);
+    return writeSVD(svd, outputDir, outputConfig, log);
+  }
 
-    String pcs = outputDir + "svd.pcs.txt";
-    String loadings = outputDir + "svd.loadings.txt";
-    String singularValues = outputDir + "svd.singularvalues.txt";
-    String binsUsed = outputDir + "svd.bins.txt";
-    String samplesUsed = outputDir + "svd.samples.txt";
-
-    log.info("Writing to " + pcs);
-    svd.dumpPCsToText(pcs, log);
-    log.info("Writing to " + loadings);
-    svd.computeAndDumpLoadings(loadings, log);
-    log.info("Writing to " + singularValues);
-    svd.dumpSingularValuesToText(singularValues, log);
+  /**
+   * @param svd write the results of this fitted {@link RandomizedSVD}
+   * @param outputDir to this directory
+   * @param outputConfig {@link OutputConfig} for the PCs and loadings
+   * @param log
+   * @return true if every file was written
+   */
+  @SuppressWarnings("try")
+  static boolean writeSVD(RandomizedSVD svd, String outputDir, OutputConfig outputConfig,
+                          Logger log) {
+    try (RunMetrics.Stage stage = svd.getMetrics().start("output")
+                                     .dimensions(svd.getRowNames().size(),
+                                                 svd.getColumnNames().size())) {
+      return writeSVDFiles(svd, outputDir, outputConfig, log);
+    }
+  }
+
+  private static boolean writeSVDFiles(RandomizedSVD svd, String outputDir,
+                                       OutputConfig outputConfig, Logger log) {
+    String pcs = outputDir + PCS;
+    String loadings = outputDir + LOADINGS;
+    String singularValues = outputDir + SINGULAR_VALUES;
+    String accuracy = outputDir + ACCURACY;
+    String binsUsed = outputDir + BINS_USED;
+    String samplesUsed = outputDir + SAMPLES_USED;
+
+    boolean written = true;
+    if (outputConfig.writeText()) {
+      String pcsText = outputConfig.getFileName(pcs + ".txt");
+      String loadingsText = outputConfig.getFileName(loadings + ".txt");
+      log.info("Writing to " + pcsText);
+      written &= svd.dumpPCsToText(pcsText, outputConfig, log);
+      log.info("Writing to " + loadingsText);
+      written &= svd.computeAndDumpLoadings(loadingsText, outputConfig, log);
+      log.info("Writing to " + singularValues + ".txt");
+      written &= svd.dumpSingularValuesToText(singularValues + ".txt", log);
+    }
+    if (outputConfig.writeNpy()) {
+      log.info("Writing to " + pcs + NpyWriter.EXTENSION);
+      written &= svd.dumpPCsToNpy(pcs + NpyWriter.EXTENSION, outputConfig, log);
+      log.info("Writing to " + loadings + NpyWriter.EXTENSION);
+      written &= svd.dumpLoadingsToNpy(loadings + NpyWriter.EXTENSION, outputConfig, log);
+      log.info("Writing to " + singularValues + NpyWriter.EXTENSION);
+      written &= svd.dumpSingularValuesToNpy(singularValues + NpyWriter.EXTENSION, log);
+    }
+    if (outputConfig.bedLoadings) {
+      String loadingsBed = loadings + BedLoadingsWriter.EXTENSION;
+      log.info("Writing to " + loadingsBed);
+      written &= svd.dumpLoadingsToBed(loadingsBed, outputConfig, log);
+    }
+    log.info("Writing to " + accuracy);
+    written &= svd.getAccuracy().dumpToText(accuracy, log);
     log.info("Writing to " + binsUsed);
-    FileOps.writeToText(svd.getRowNames(), binsUsed, log);
+    written &= FileOps.writeToText(svd.getRowNames(), binsUsed, log);
     log.info("Writing to " + samplesUsed);
-    FileOps.writeToText(svd.getColumnNames(), samplesUsed, log);
+    written &= FileOps.writeToText(svd.getColumnNames(), samplesUsed, log);
+    return written;
   }
 
   public static void main(String[] args) {
@@ -212,39 +595,98 @@ public class NGSPCA {
 
     String input = cmd.getOptionValue(CmdLine.INPUT_ARG);
     String outputDir = cmd.getOptionValue(CmdLine.OUTPUT_DIR_ARG);
+    RunMetrics metrics = new RunMetrics();
 
     try {
-      int numPcs = Integer.parseInt(cmd.getOptionValue(CmdLine.NUM_COMPONENTS_ARG,
-                                                       Integer.toString(CmdLine.DEFAULT_PCS)));
+      int[] numPcs = SVDConfig.parseList(cmd.getOptionValue(CmdLine.NUM_COMPONENTS_ARG,
+                                                            Integer.toString(CmdLine.DEFAULT_PCS)));
 
       int threads = Integer.parseInt(cmd.getOptionValue(CmdLine.NUM_THREADS_ARG,
                                                         Integer.toString(CmdLine.DEFAULT_THREADS)));
 
       int sampleAt = Integer.parseInt(cmd.getOptionValue(CmdLine.NUM_SAMPLE_ARG,
                                                          Integer.toString(CmdLine.DEFAULT_SAMPLE)));
-
-      int niters = Integer.parseInt(cmd.getOptionValue(CmdLine.N_ITERS,
-                                                       Integer.toString(RandomizedSVD.DEFAULT_NITERS)));
-      int numOversamples = Integer.parseInt(cmd.getOptionValue(CmdLine.OVERSAMPLE,
-                                                               Integer.toString(RandomizedSVD.DEFAULT_OVERSAMPLES)));
+      int binAggregate = Integer.parseInt(cmd.getOptionValue(CmdLine.BIN_AGGREGATE_ARG,
+                                                             Integer.toString(CmdLine.DEFAULT_BIN_AGGREGATE)));
+      int streamBatch = Integer.parseInt(cmd.getOptionValue(CmdLine.STREAM_BATCH_ARG,
+                                                            Integer.toString(CmdLine.DEFAULT_STREAM_BATCH)));
+      int ioThreads = Integer.parseInt(cmd.getOptionValue(CmdLine.IO_THREADS_ARG,
+                                                          Integer.toString(CmdLine.DEFAULT_IO_THREADS)));
+      long ioBufferBytes = Long.parseLong(cmd.getOptionValue(CmdLine.IO_BUFFER_MB_ARG,
+                                                             Integer.toString(CmdLine.DEFAULT_IO_BUFFER_MB)))
+                           * 1024 * 1024;
+
+      int[] niters = SVDConfig.parseList(cmd.getOptionValue(CmdLine.N_ITERS,
+                                                            Integer.toString(RandomizedSVD.DEFAULT_NITERS)));
+      int[] numOversamples = SVDConfig.parseList(cmd.getOptionValue(CmdLine.OVERSAMPLE,
+                                                                    Integer.toString(RandomizedSVD.DEFAULT_OVERSAMPLES)));
 
       int randomSeed = Integer.parseInt(cmd.getOptionValue(CmdLine.RANDOM_SEED,
                                                            Integer.toString(CmdLine.DEFAULT_RANDOM_SEED)));
+      DISTRIBUTION distribution = DISTRIBUTION.valueOf(cmd.getOptionValue(CmdLine.RANDOM_DISTRIBUTION,
+                                                                          CmdLine.DEFAULT_RANDOM_DISTRIBUTION.toString())
+                                                          .toUpperCase());
+      SKETCH_TYPE sketchType = SKETCH_TYPE.valueOf(cmd.getOptionValue(CmdLine.SKETCH,
+                                                                      CmdLine.DEFAULT_SKETCH.toString())
+                                                      .toUpperCase());
+      BACKEND backend = BACKEND.valueOf(cmd.getOptionValue(CmdLine.BACKEND_ARG,
+                                                           CmdLine.DEFAULT_BACKEND.toString())
+                                           .toUpperCase());
       String bedExclude = cmd.getOptionValue(CmdLine.EXCLUDE_BED_FILE,
                                              CmdLine.DEFAULT_EXCLUDE_BED_FILE);
+      String bedTargets = cmd.getOptionValue(CmdLine.TARGETS_BED_FILE);
+      REGION_STRATEGY regionStrategy = REGION_STRATEGY.valueOf(cmd.getOptionValue(CmdLine.REGION_STRATEGY_ARG,
+                                                                                  CmdLine.DEFAULT_REGION_STRATEGY.toString())
+                                                                  .toUpperCase());
+      int checkpointEvery = Integer.parseInt(cmd.getOptionValue(CmdLine.CHECKPOINT_EVERY_ARG,
+                                                                Integer.toString(CmdLine.DEFAULT_CHECKPOINT_EVERY)));
+      int compressBits = Integer.parseInt(cmd.getOptionValue(CmdLine.COMPRESS_BITS_ARG,
+                                                             Integer.toString(CmdLine.DEFAULT_COMPRESS_BITS)));
+      SVDConfig svdConfig = new SVDConfig(numPcs, niters, numOversamples,
+                                          cmd.hasOption(CmdLine.SWEEP_ARG), randomSeed,
+                                          distribution, sketchType, backend, threads,
+                                          checkpointEvery, compressBits);
+      OUTPUT_FORMAT outputFormat = OUTPUT_FORMAT.valueOf(cmd.getOptionValue(CmdLine.OUTPUT_FORMAT_ARG,
+                                                                            CmdLine.DEFAULT_OUTPUT_FORMAT.toString())
+                                                            .toUpperCase());
+      int[] loadingPCs = OutputConfig.parseRange(cmd.getOptionValue(CmdLine.LOADING_PCS_ARG,
+                                                                    "1-" + Integer.MAX_VALUE));
+      OutputConfig outputConfig = new OutputConfig(outputFormat, cmd.hasOption(CmdLine.BGZIP_ARG),
+                                                   cmd.hasOption(CmdLine.BED_LOADINGS_ARG),
+                                                   loadingPCs[0], loadingPCs[1], threads);
+      BinFilter binFilter = new BinFilter(Double.parseDouble(cmd.getOptionValue(CmdLine.MIN_NONZERO_FRACTION_ARG,
+                                                                                "0")),
+                                          Double.parseDouble(cmd.getOptionValue(CmdLine.MIN_BIN_VARIANCE_ARG,
+                                                                                "0")),
+                                          Integer.parseInt(cmd.getOptionValue(CmdLine.TOP_VARIABLE_BINS_ARG,
+                                                                              "0")));
+      metrics.put("threads", threads);
+      metrics.put("backend", backend.toString());
+      metrics.put("sampleEvery", sampleAt);
+      metrics.put("binAggregate", binAggregate);
+      metrics.put("streamBatch", streamBatch);
+      metrics.put("ioThreads", ioThreads);
       if (cmd.hasOption(CmdLine.MATRIX_INPUT_ARG)) {
-        runInputMatrix(input, outputDir, numPcs, niters, numOversamples, sampleAt, randomSeed,
-                       cmd.hasOption(CmdLine.OVERWRITE_ARG),
-                       cmd.hasOption(CmdLine.NORM_MATRIX_INPUT_ARG), log);
+        runInputMatrix(input, outputDir, sampleAt, cmd.hasOption(CmdLine.OVERWRITE_ARG),
+                       cmd.hasOption(CmdLine.NORM_MATRIX_INPUT_ARG),
+                       cmd.hasOption(CmdLine.IGNORE_PLAN_ARG), binFilter, svdConfig, outputConfig,
+                       metrics, log);
       } else {
-        runMosdepth(input, outputDir, bedExclude, REGION_STRATEGY.AUTOSOMAL, numPcs, niters,
-                    numOversamples, sampleAt, randomSeed, cmd.hasOption(CmdLine.OVERWRITE_ARG),
-                    threads, log);
+        runMosdepth(input, outputDir, bedExclude, bedTargets, regionStrategy, sampleAt,
+                    binAggregate,
+                    cmd.hasOption(CmdLine.OVERWRITE_ARG), cmd.hasOption(CmdLine.IGNORE_PLAN_ARG),
+                    binFilter, threads, streamBatch, ioThreads, ioBufferBytes, svdConfig,
+                    outputConfig, metrics, log);
       }
     } catch (Exception e) {
       log.log(Level.SEVERE, "an exception was thrown", e);
       log.severe("An exception occured while running\nFeel free to open an issue at https://github.com/PankratzLab/NGS-PCA after reviewing the help message below");
       CmdLine.printHelp(log, CmdLine.generateOptions());
+    } finally {
+      if (FileOps.dirExists(outputDir)) {
+        log.info("Writing to " + outputDir + RunMetrics.FILE);
+        metrics.write(outputDir + RunMetrics.FILE, log);
+      }
     }
   }
 }
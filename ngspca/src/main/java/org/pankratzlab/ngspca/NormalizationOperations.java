@@ -25,8 +25,19 @@ public class NormalizationOperations {
    * @param m an {@link RealMatrix} that has been FC-ed by column and centered by row
    */
   static void foldChangeAndCenterRows(RealMatrix dm, Logger log) {
+    foldChangeAndCenterRows(dm, dm, log);
+  }
+
+  /**
+   * As {@link #foldChangeAndCenterRows(RealMatrix, Logger)}, reading from a separate raw matrix
+   * such as a {@link QuantizedMatrix}
+   * 
+   * @param raw the raw matrix, read one column at a time
+   * @param dm the normalized values are written to this {@link RealMatrix}, may be raw
+   */
+  static void foldChangeAndCenterRows(RealMatrix raw, RealMatrix dm, Logger log) {
     // compute fold change
-    computeFoldChangeByColumn(dm, log);
+    computeFoldChangeByColumn(raw, dm, log);
     // center rows to median of 0
     centerRowsToMedian(dm);
   }
@@ -36,21 +47,21 @@ public class NormalizationOperations {
    * 
    * @param dm the {@link RealMatrix} that will be converted
    */
-  private static void computeFoldChangeByColumn(RealMatrix dm, Logger log) {
-    double[] medians = new double[dm.getColumnDimension()];
+  static void computeFoldChangeByColumn(RealMatrix dm, Logger log) {
+    computeFoldChangeByColumn(dm, dm, log);
+  }
 
+  /**
+   * @param raw the raw matrix, read (and if quantized, dequantized) one column at a time
+   * @param dm the log 2 fold change is written to this {@link RealMatrix}, may be raw
+   */
+  static void computeFoldChangeByColumn(RealMatrix raw, RealMatrix dm, Logger log) {
     // convert columns to log2 fold-change from median
-    for (int column = 0; column < dm.getColumnDimension(); column++) {
-      double[] tmp = new double[dm.getRowDimension()];
-      for (int row = 0; row < dm.getRowDimension(); row++) {
-        tmp[row] += dm.getEntry(row, column);
-      }
-      medians[column] = Math.max(median(tmp), MIN_DEPTH);
-    }
-    for (int row = 0; row < dm.getRowDimension(); row++) {
-      for (int column = 0; column < dm.getColumnDimension(); column++) {
-        double entry = dm.getEntry(row, column);
-        double standard = log2(Math.max(entry, MIN_DEPTH) / medians[column]);
+    for (int column = 0; column < raw.getColumnDimension(); column++) {
+      double[] tmp = raw.getColumn(column);
+      double median = Math.max(median(tmp), MIN_DEPTH);
+      for (int row = 0; row < tmp.length; row++) {
+        double standard = log2(Math.max(tmp[row], MIN_DEPTH) / median);
         if (Double.isNaN(standard)) {
           throw new IllegalArgumentException("Invalid sample normalized value ("
                                              + Double.toString(Double.NaN) + ") detected");
@@ -71,7 +82,7 @@ public class NormalizationOperations {
   /**
    * @param dm Center the rows of this {@link RealMatrix} to a median of 0
    */
-  private static void centerRowsToMedian(RealMatrix dm) {
+  static void centerRowsToMedian(RealMatrix dm) {
     for (int row = 0; row < dm.getRowDimension(); row++) {
       double[] tmp = new double[dm.getColumnDimension()];
       for (int col = 0; col < dm.getColumnDimension(); col++) {
@@ -0,0 +1,148 @@
+package org.pankratzlab.ngspca;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * Writes matrices as NumPy .npy files
+ * (https://numpy.org/doc/stable/reference/generated/numpy.lib.format.html) of little-endian doubles in column-major (fortran) order, so that a single column can be memory
+ * mapped at offset header + column * rows * 8 without parsing the rest of the file
+ */
+class NpyWriter {
+
+  static final String EXTENSION = ".npy";
+
+  private static final byte[] MAGIC = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0};
+  /**
+   * The header is padded so that the data starts at a multiple of this
+   */
+  private static final int ALIGNMENT = 64;
+  private static final int BUFFER_BYTES = 8 * 1024 * 1024;
+
+  private NpyWriter() {
+
+  }
+
+  /**
+   * @param file write to this file
+   * @param m the matrix, computed and written in parallel blocks of rows. Each block is written to
+   *          its place in every column
+   * @param threads number of blocks computed and written at once
+   * @param log
+   * @return true if the file was written
+   */
+  static boolean write(String file, RowBlocks m, int threads, Logger log) {
+    int rows = m.rows();
+    int columns = m.columns();
+    log.info(rows + " rows by " + columns + " columns, column-major");
+    try (FileChannel channel = open(file)) {
+      ByteBuffer header = header("(" + rows + ", " + columns + ")");
+      long dataStart = header.position();
+      flush(channel, header);
+      int rowsPerBlock = Math.max(1, BUFFER_BYTES / Double.BYTES / Math.max(columns, 1));
+      int numBlocks = (rows + rowsPerBlock - 1) / rowsPerBlock;
+      ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+      try {
+        pool.submit(() -> IntStream.range(0, numBlocks).parallel().forEach(block -> {
+          int start = block * rowsPerBlock;
+          int end = Math.min(rows, start + rowsPerBlock);
+          double[][] data = m.getRows(start, end);
+          ByteBuffer buffer = ByteBuffer.allocate((end - start) * Double.BYTES)
+                                        .order(ByteOrder.LITTLE_ENDIAN);
+          for (int column = 0; column < columns; column++) {
+            buffer.clear();
+            for (double[] row : data) {
+              buffer.putDouble(row[column]);
+            }
+            buffer.flip();
+            long position = dataStart + ((long) column * rows + start) * Double.BYTES;
+            try {
+              while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+              }
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+        })).join();
+      } finally {
+        pool.shutdown();
+      }
+      return true;
+    } catch (IOException | UncheckedIOException e) {
+      log.log(Level.SEVERE, "unable to write to file " + file, e);
+      return false;
+    }
+  }
+
+  /**
+   * @param file write to this file
+   * @param values a one dimensional array
+   * @param log
+   * @return true if the file was written
+   */
+  static boolean write(String file, double[] values, Logger log) {
+    try (FileChannel channel = open(file)) {
+      flush(channel, header("(" + values.length + ",)"));
+      int bytes = (int) Math.min(BUFFER_BYTES, Math.max(values.length, 1) * (long) Double.BYTES);
+      ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+      for (double value : values) {
+        if (!buffer.hasRemaining()) {
+          flush(channel, buffer);
+        }
+        buffer.putDouble(value);
+      }
+      flush(channel, buffer);
+      return true;
+    } catch (IOException e) {
+      log.log(Level.SEVERE, "unable to write to file " + file, e);
+      return false;
+    }
+  }
+
+  private static FileChannel open(String file) throws IOException {
+    return FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  /**
+   * @return a buffer holding just the version 1.0 header for the shape
+   */
+  private static ByteBuffer header(String shape) {
+    StringBuilder dictionary = new StringBuilder();
+    dictionary.append("{'descr': '<f8', 'fortran_order': True, 'shape': ").append(shape);
+    dictionary.append(", }");
+    // magic, 2 byte header length, dictionary, padding and a terminating newline
+    int unpadded = MAGIC.length + 2 + dictionary.length() + 1;
+    int padding = (ALIGNMENT - unpadded % ALIGNMENT) % ALIGNMENT;
+    for (int i = 0; i < padding; i++) {
+      dictionary.append(' ');
+    }
+    dictionary.append('\n');
+
+    ByteBuffer buffer = ByteBuffer.allocate(MAGIC.length + 2 + dictionary.length())
+                                  .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.put(MAGIC);
+    buffer.putShort((short) dictionary.length());
+    buffer.put(dictionary.toString().getBytes(StandardCharsets.US_ASCII));
+    return buffer;
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+}
@@ -0,0 +1,104 @@
+package org.pankratzlab.ngspca;
+
+/**
+ * Settings for writing the PCs and loadings
+ */
+class OutputConfig {
+
+  /**
+   * Formats for the PCs, loadings and singular values
+   */
+  enum OUTPUT_FORMAT {
+    /**
+     * Tab delimited text
+     */
+    TEXT,
+    /**
+     * Column-major NumPy .npy files, with row names in svd.samples.txt and svd.bins.txt
+     */
+    NPY,
+    /**
+     * Both text and .npy
+     */
+    BOTH;
+  }
+
+  final OUTPUT_FORMAT format;
+  final boolean bgzip;
+  final boolean bedLoadings;
+  /**
+   * 1-based, inclusive range of components to write loadings for
+   */
+  final int firstLoadingPC;
+  final int lastLoadingPC;
+  final int threads;
+
+  /**
+   * @param format {@link OUTPUT_FORMAT} of the PCs, loadings and singular values
+   * @param bgzip bgzip compress the text PCs and loadings
+   * @param bedLoadings also write the loadings as a bgzipped, tabix indexed BED file
+   * @param firstLoadingPC first component (1-based) to write loadings for
+   * @param lastLoadingPC last component (1-based, inclusive) to write loadings for
+   * @param threads number of threads for formatting (and compressing) output
+   */
+  OutputConfig(OUTPUT_FORMAT format, boolean bgzip, boolean bedLoadings, int firstLoadingPC,
+               int lastLoadingPC, int threads) {
+    if (firstLoadingPC < 1 || lastLoadingPC < firstLoadingPC) {
+      throw new IllegalArgumentException("Invalid range of loading components " + firstLoadingPC
+                                         + "-" + lastLoadingPC);
+    }
+    this.format = format;
+    this.bgzip = bgzip;
+    this.bedLoadings = bedLoadings;
+    this.firstLoadingPC = firstLoadingPC;
+    this.lastLoadingPC = lastLoadingPC;
+    this.threads = threads;
+  }
+
+  boolean writeText() {
+    return format != OUTPUT_FORMAT.NPY;
+  }
+
+  boolean writeNpy() {
+    return format != OUTPUT_FORMAT.TEXT;
+  }
+
+  /**
+   * @param numComponents number of components computed
+   * @return index of the first component to write loadings for
+   */
+  int getLoadingStart(int numComponents) {
+    return Math.min(firstLoadingPC - 1, numComponents);
+  }
+
+  /**
+   * @param numComponents number of components computed
+   * @return index after the last component to write loadings for
+   */
+  int getLoadingEnd(int numComponents) {
+    return Math.min(lastLoadingPC, numComponents);
+  }
+
+  /**
+   * @param range a 1-based inclusive range, first-last, or a single component
+   * @return the first and last component
+   */
+  static int[] parseRange(String range) {
+    String[] bounds = range.trim().split("-");
+    if (bounds.length == 1) {
+      int component = Integer.parseInt(bounds[0]);
+      return new int[] {component, component};
+    } else if (bounds.length == 2) {
+      return new int[] {Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1])};
+    }
+    throw new IllegalArgumentException("Invalid range " + range);
+  }
+
+  /**
+   * @param file a text output file
+   * @return the file name, with the bgzip extension if compressing
+   */
+  String getFileName(String file) {
+    return bgzip ? file + ".gz" : file;
+  }
+}
@@ -0,0 +1,168 @@
+package org.pankratzlab.ngspca;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.math3.linear.BlockRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * Runs a {@link RandomizedSVD} over every combination of the number of PCs, iterations and
+ * oversamples in a {@link SVDConfig}, writing each to its own sub-directory, and summarizes how the
+ * singular values and PCs change across the configurations
+ */
+class ParameterSweep {
+
+  static final String SUMMARY_FILE = "sweep.summary.txt";
+
+  private ParameterSweep() {
+
+  }
+
+  /**
+   * Results of a single configuration that are needed for the summary
+   */
+  private static class Result {
+
+    private final int numPcs;
+    private final int numOversamples;
+    private final int niters;
+    private final double[] singularValues;
+    private final RealMatrix pcs;
+    private final double relativeResidual;
+
+    private Result(int numPcs, int numOversamples, int niters, double[] singularValues,
+                   RealMatrix pcs, double relativeResidual) {
+      this.numPcs = numPcs;
+      this.numOversamples = numOversamples;
+      this.niters = niters;
+      this.singularValues = singularValues;
+      this.pcs = pcs;
+      this.relativeResidual = relativeResidual;
+    }
+  }
+
+  /**
+   * @param svd {@link RandomizedSVD} to fit
+   * @param dm the data matrix, loaded once for all configurations
+   * @param outputDir each configuration is written to a sub-directory of this directory
+   * @param svdConfig {@link SVDConfig} listing the configurations
+   * @param outputConfig {@link OutputConfig} for the outputs of each configuration
+   * @param log
+   * @return true if the results of every configuration and the summary were written
+   */
+  static boolean run(RandomizedSVD svd, BlockRealMatrix dm, String outputDir, SVDConfig svdConfig,
+                  OutputConfig outputConfig, Logger log) {
+    List<Result> results = new ArrayList<>();
+    boolean[] written = {true};
+    log.info("Sweeping numPC " + Arrays.toString(svdConfig.numPcs) + ", oversample "
+             + Arrays.toString(svdConfig.numOversamples) + ", iters "
+             + Arrays.toString(svdConfig.niters));
+    svd.sweep(dm, svdConfig.numPcs, svdConfig.niters, svdConfig.numOversamples,
+              svdConfig.randomSeed, svdConfig.distribution, svdConfig.sketchType,
+              svdConfig.backend, svdConfig.threads, (numPcs, numOversamples, niters) -> {
+                String configDir = outputDir + getConfigDirectory(numPcs, numOversamples, niters);
+                new File(configDir).mkdirs();
+                written[0] &= NGSPCA.writeSVD(svd, configDir, outputConfig, log);
+                results.add(new Result(numPcs, numOversamples, niters,
+                                       svd.getW().getColumn(0), svd.getPCs().copy(),
+                                       svd.getAccuracy().getRelativeResidualFrobenius()));
+              });
+    String summary = outputDir + SUMMARY_FILE;
+    log.info("Writing sweep summary to " + summary);
+    return writeSummary(results, summary, log) && written[0];
+  }
+
+  /**
+   * @return the sub-directory name (with trailing separator) for a configuration
+   */
+  static String getConfigDirectory(int numPcs, int numOversamples, int niters) {
+    return "numPC" + numPcs + "_oversample" + numOversamples + "_iters" + niters + File.separator;
+  }
+
+  /**
+   * Each configuration is compared to the previous iteration count with the same number of PCs and
+   * oversamples (convergence with iterations), and to the reference configuration with the most
+   * iterations, then oversamples, then PCs. Singular values are compared by maximum relative
+   * difference, and PCs by the minimum absolute correlation of matching components
+   */
+  private static boolean writeSummary(List<Result> results, String file, Logger log) {
+    Result reference = results.stream()
+                              .max(Comparator.<Result> comparingInt(r -> r.niters)
+                                             .thenComparingInt(r -> r.numOversamples)
+                                             .thenComparingInt(r -> r.numPcs))
+                              .orElse(null);
+    StringJoiner joiner = new StringJoiner("\n");
+    joiner.add("NUM_PC\tOVERSAMPLE\tITERS\tSV1\tRELATIVE_RESIDUAL_FROBENIUS_ESTIMATE\tMAX_REL_SV_CHANGE_PREV\tMIN_PC_CORRELATION_PREV\tMAX_REL_SV_DIFF_REF\tMIN_PC_CORRELATION_REF");
+    for (Result result : results) {
+      Result previous = null;
+      for (Result candidate : results) {
+        if (candidate.numPcs == result.numPcs && candidate.numOversamples == result.numOversamples
+            && candidate.niters < result.niters
+            && (previous == null || candidate.niters > previous.niters)) {
+          previous = candidate;
+        }
+      }
+      StringJoiner line = new StringJoiner("\t");
+      line.add(Integer.toString(result.numPcs));
+      line.add(Integer.toString(result.numOversamples));
+      line.add(Integer.toString(result.niters));
+      line.add(Double.toString(result.singularValues[0]));
+      line.add(Double.toString(result.relativeResidual));
+      addComparison(line, result, previous);
+      addComparison(line, result, result == reference ? null : reference);
+      joiner.add(line.toString());
+    }
+    try {
+      FileUtils.writeStringToFile(new File(file), joiner.toString(), Charset.defaultCharset(),
+                                  false);
+      return true;
+    } catch (IOException e) {
+      log.log(Level.SEVERE, "unable to write to file " + file, e);
+      return false;
+    }
+  }
+
+  private static void addComparison(StringJoiner line, Result result, Result other) {
+    if (other == null) {
+      line.add("NA");
+      line.add("NA");
+      return;
+    }
+    int common = Math.min(result.singularValues.length, other.singularValues.length);
+    double maxRelativeDiff = 0;
+    double minCorrelation = 1;
+    for (int i = 0; i < common; i++) {
+      maxRelativeDiff = Math.max(maxRelativeDiff,
+                                 Math.abs(result.singularValues[i] - other.singularValues[i])
+                                                  / other.singularValues[i]);
+      minCorrelation = Math.min(minCorrelation,
+                                correlation(result.pcs.getColumn(i), other.pcs.getColumn(i)));
+    }
+    line.add(Double.toString(maxRelativeDiff));
+    line.add(Double.toString(minCorrelation));
+  }
+
+  /**
+   * @return the absolute cosine similarity of two PCs (the sign of a PC is arbitrary)
+   */
+  private static double correlation(double[] x, double[] y) {
+    double dot = 0;
+    double normX = 0;
+    double normY = 0;
+    for (int i = 0; i < x.length; i++) {
+      dot += x[i] * y[i];
+      normX += x[i] * x[i];
+      normY += y[i] * y[i];
+    }
+    return Math.abs(dot) / Math.sqrt(normX * normY);
+  }
+}
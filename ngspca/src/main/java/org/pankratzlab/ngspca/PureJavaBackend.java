@@ -0,0 +1,320 @@
+package org.pankratzlab.ngspca;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.BlockRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+
+/**
+ * {@link LinearAlgebraBackend} on column-major {@link ColumnMatrix}, with cache tiled kernels
+ * whose inner loops run over contiguous column segments (so the JIT can vectorize them), spread
+ * over a fixed number of threads. {@link CompressedColumns} are decoded a tile at a time within the
+ * multiplies
+ */
+class PureJavaBackend implements LinearAlgebraBackend<ColumnMatrix> {
+
+  /**
+   * Rows per tile in {@link #multiply(ColumnMatrix, ColumnMatrix)}, keeps the output tile in cache
+   */
+  static final int MULTIPLY_TILE = 256;
+  /**
+   * Rows per tile in {@link #transposeMultiply(ColumnMatrix, ColumnMatrix)}
+   */
+  static final int TRANSPOSE_MULTIPLY_TILE = 2048;
+  /**
+   * Columns of a handled by a single task in {@link #transposeMultiply(ColumnMatrix, ColumnMatrix)}
+   */
+  static final int TRANSPOSE_MULTIPLY_GROUP = 16;
+
+  private final ForkJoinPool pool;
+  private final int threads;
+
+  /**
+   * @param threads number of threads to use in the kernels
+   */
+  PureJavaBackend(int threads) {
+    this.threads = Math.max(1, threads);
+    this.pool = new ForkJoinPool(this.threads);
+  }
+
+  @Override
+  public int threads() {
+    return threads;
+  }
+
+  @Override
+  public void parallel(Runnable task) {
+    run(task);
+  }
+
+  @Override
+  public ColumnMatrix fromRealMatrix(RealMatrix matrix) {
+    double[][] columns = new double[matrix.getColumnDimension()][];
+    run(() -> IntStream.range(0, columns.length).parallel()
+                       .forEach(j -> columns[j] = matrix.getColumn(j)));
+    return new ColumnMatrix(matrix.getRowDimension(), columns);
+  }
+
+  @Override
+  public ColumnMatrix fromRows(double[][] rows) {
+    int numColumns = rows.length == 0 ? 0 : rows[0].length;
+    ColumnMatrix m = ColumnMatrix.zeros(rows.length, numColumns);
+    for (int i = 0; i < rows.length; i++) {
+      for (int j = 0; j < numColumns; j++) {
+        m.columns[j][i] = rows[i][j];
+      }
+    }
+    return m;
+  }
+
+  @Override
+  public RealMatrix toRealMatrix(ColumnMatrix matrix) {
+    BlockRealMatrix m = new BlockRealMatrix(matrix.rows, matrix.numColumns());
+    for (int j = 0; j < matrix.numColumns(); j++) {
+      m.setColumn(j, matrix.isCompressed() ? matrix.compressed.getColumn(j) : matrix.columns[j]);
+    }
+    return m;
+  }
+
+  @Override
+  public int rows(ColumnMatrix matrix) {
+    return matrix.rows;
+  }
+
+  @Override
+  public int columns(ColumnMatrix matrix) {
+    return matrix.numColumns();
+  }
+
+  @Override
+  public ColumnMatrix transpose(ColumnMatrix a) {
+    requireDense(a, "transpose");
+    ColumnMatrix t = ColumnMatrix.zeros(a.numColumns(), a.rows);
+    run(() -> IntStream.range(0, a.rows).parallel().forEach(i -> {
+      double[] column = t.columns[i];
+      for (int j = 0; j < column.length; j++) {
+        column[j] = a.columns[j][i];
+      }
+    }));
+    return t;
+  }
+
+  @Override
+  public ColumnMatrix multiply(ColumnMatrix a, ColumnMatrix b) {
+    checkInner(a.numColumns(), b.rows);
+    requireDense(b, "multiply by");
+    int n = a.numColumns();
+    int l = b.numColumns();
+    // row-major copy of the small right hand side
+    double[][] bRows = new double[n][l];
+    for (int c = 0; c < l; c++) {
+      for (int j = 0; j < n; j++) {
+        bRows[j][c] = b.columns[c][j];
+      }
+    }
+    ColumnMatrix result = ColumnMatrix.zeros(a.rows, l);
+    int tiles = (a.rows + MULTIPLY_TILE - 1) / MULTIPLY_TILE;
+    run(() -> IntStream.range(0, tiles).parallel().forEach(tile -> {
+      int start = tile * MULTIPLY_TILE;
+      int end = Math.min(a.rows, start + MULTIPLY_TILE);
+      double[] decoded = a.isCompressed() ? new double[MULTIPLY_TILE] : null;
+      for (int j = 0; j < n; j++) {
+        double[] aj = decoded == null ? a.columns[j] : decoded;
+        // the decoded tile starts at index 0
+        int offset = decoded == null ? 0 : start;
+        if (decoded != null) {
+          a.compressed.decode(j, start, end, decoded);
+        }
+        double[] bj = bRows[j];
+        for (int c = 0; c < l; c++) {
+          double bjc = bj[c];
+          if (bjc != 0) {
+            double[] rc = result.columns[c];
+            for (int i = start; i < end; i++) {
+              rc[i] += aj[i - offset] * bjc;
+            }
+          }
+        }
+      }
+    }));
+    return result;
+  }
+
+  @Override
+  public ColumnMatrix transposeMultiply(ColumnMatrix a, ColumnMatrix b) {
+    checkInner(a.rows, b.rows);
+    if (b.isCompressed()) {
+      // a^T b = (b^T a)^T, so that the compressed matrix is decoded by column groups
+      requireDense(a, "multiply by");
+      return transpose(transposeMultiply(b, a));
+    }
+    int n = a.numColumns();
+    int l = b.numColumns();
+    int m = a.rows;
+    int groups = (n + TRANSPOSE_MULTIPLY_GROUP - 1) / TRANSPOSE_MULTIPLY_GROUP;
+    // split the rows as well when there are too few column groups to keep every thread busy
+    int rowTiles = (m + TRANSPOSE_MULTIPLY_TILE - 1) / TRANSPOSE_MULTIPLY_TILE;
+    int rowChunks = Math.max(1, Math.min(rowTiles, (4 * threads + groups - 1) / groups));
+    int tilesPerChunk = (rowTiles + rowChunks - 1) / rowChunks;
+    double[][][] partial = new double[rowChunks][n][l];
+
+    run(() -> IntStream.range(0, groups * rowChunks).parallel().forEach(task -> {
+      int group = task % groups;
+      int chunk = task / groups;
+      int firstColumn = group * TRANSPOSE_MULTIPLY_GROUP;
+      int lastColumn = Math.min(n, firstColumn + TRANSPOSE_MULTIPLY_GROUP);
+      int chunkEnd = Math.min(m, (chunk + 1) * tilesPerChunk * TRANSPOSE_MULTIPLY_TILE);
+      double[][] sums = partial[chunk];
+      // a compressed tile is decoded once for all columns of b, and the tile of each column of b
+      // is copied to align with it
+      double[][] decoded = a.isCompressed() ? new double[lastColumn - firstColumn][TRANSPOSE_MULTIPLY_TILE]
+                                            : null;
+      double[] bTile = a.isCompressed() ? new double[TRANSPOSE_MULTIPLY_TILE] : null;
+      for (int start = chunk * tilesPerChunk
+                       * TRANSPOSE_MULTIPLY_TILE; start < chunkEnd; start += TRANSPOSE_MULTIPLY_TILE) {
+        int end = Math.min(chunkEnd, start + TRANSPOSE_MULTIPLY_TILE);
+        if (decoded != null) {
+          for (int j = firstColumn; j < lastColumn; j++) {
+            a.compressed.decode(j, start, end, decoded[j - firstColumn]);
+          }
+          for (int c = 0; c < l; c++) {
+            System.arraycopy(b.columns[c], start, bTile, 0, end - start);
+            for (int j = firstColumn; j < lastColumn; j++) {
+              sums[j][c] += dot(decoded[j - firstColumn], bTile, 0, end - start);
+            }
+          }
+          continue;
+        }
+        for (int c = 0; c < l; c++) {
+          double[] bc = b.columns[c];
+          for (int j = firstColumn; j < lastColumn; j++) {
+            sums[j][c] += dot(a.columns[j], bc, start, end);
+          }
+        }
+      }
+    }));
+
+    ColumnMatrix result = ColumnMatrix.zeros(n, l);
+    for (int j = 0; j < n; j++) {
+      for (int c = 0; c < l; c++) {
+        double sum = 0;
+        for (int chunk = 0; chunk < rowChunks; chunk++) {
+          sum += partial[chunk][j][c];
+        }
+        result.columns[c][j] = sum;
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public ColumnMatrix orthonormalize(ColumnMatrix y) {
+    requireDense(y, "orthonormalize");
+    double[][] columns = new double[y.numColumns()][];
+    for (int j = 0; j < columns.length; j++) {
+      columns[j] = y.columns[j].clone();
+    }
+    HouseholderQR[] qr = new HouseholderQR[1];
+    run(() -> qr[0] = HouseholderQR.decompose(columns, y.rows));
+    return new ColumnMatrix(y.rows, qr[0].Q);
+  }
+
+  /**
+   * b = R^T Q_b^T from the QR of b^T, and R^T = U_r S V_r^T is a small square SVD, so b = U_r S
+   * (Q_b V_r)^T
+   */
+  @Override
+  public CompactSVD<ColumnMatrix> svd(ColumnMatrix b) {
+    requireDense(b, "decompose");
+    int l = b.rows;
+    int n = b.numColumns();
+    if (l > n) {
+      throw new IllegalArgumentException("Expected a short and wide matrix, got " + l + " x " + n);
+    }
+    double[][] bt = transpose(b).columns;
+    HouseholderQR[] qr = new HouseholderQR[1];
+    run(() -> qr[0] = HouseholderQR.decompose(bt, n));
+
+    double[][] rt = new double[l][l];
+    for (int i = 0; i < l; i++) {
+      for (int j = 0; j < l; j++) {
+        rt[i][j] = qr[0].R[j][i];
+      }
+    }
+    SingularValueDecomposition small = new SingularValueDecomposition(new Array2DRowRealMatrix(rt,
+                                                                                              false));
+    ColumnMatrix qb = new ColumnMatrix(n, qr[0].Q);
+    ColumnMatrix vr = fromRows(small.getV().getData());
+    return new CompactSVD<>(fromRows(small.getU().getData()), small.getSingularValues(),
+                            multiply(qb, vr));
+  }
+
+  @Override
+  public boolean supportsCompression() {
+    return true;
+  }
+
+  @Override
+  public ColumnMatrix compress(ColumnMatrix matrix, int bits) {
+    requireDense(matrix, "compress");
+    CompressedColumns compressed = new CompressedColumns(matrix.rows, matrix.numColumns(), bits);
+    run(() -> IntStream.range(0, matrix.numColumns()).parallel()
+                       .forEach(j -> compressed.set(j, matrix.columns[j])));
+    return new ColumnMatrix(compressed);
+  }
+
+  @Override
+  public double[] getColumn(ColumnMatrix matrix, int column) {
+    return matrix.isCompressed() ? matrix.compressed.getColumn(column)
+                                 : matrix.columns[column].clone();
+  }
+
+  @Override
+  public double[] getRow(ColumnMatrix matrix, int row) {
+    double[] values = new double[matrix.numColumns()];
+    for (int j = 0; j < values.length; j++) {
+      values[j] = matrix.get(row, j);
+    }
+    return values;
+  }
+
+  /**
+   * Dot product over [start, end), with independent accumulators to break the dependency chain
+   */
+  static double dot(double[] x, double[] y, int start, int end) {
+    double s0 = 0;
+    double s1 = 0;
+    double s2 = 0;
+    double s3 = 0;
+    int i = start;
+    for (; i + 3 < end; i += 4) {
+      s0 += x[i] * y[i];
+      s1 += x[i + 1] * y[i + 1];
+      s2 += x[i + 2] * y[i + 2];
+      s3 += x[i + 3] * y[i + 3];
+    }
+    for (; i < end; i++) {
+      s0 += x[i] * y[i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  private void run(Runnable task) {
+    pool.submit(task).join();
+  }
+
+  private static void requireDense(ColumnMatrix matrix, String operation) {
+    if (matrix.isCompressed()) {
+      throw new IllegalArgumentException("Unable to " + operation + " a compressed matrix");
+    }
+  }
+
+  private static void checkInner(int aDimension, int bDimension) {
+    if (aDimension != bDimension) {
+      throw new IllegalArgumentException("Mismatched inner dimensions " + aDimension + " and "
+                                         + bDimension);
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package org.pankratzlab.ngspca;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.math3.linear.AbstractRealMatrix;
+import org.apache.commons.math3.linear.MatrixDimensionMismatchException;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * Raw coverage stored as fixed point integers. mosdepth reports depths with two decimals, so every
+ * depth times {@link #SCALE} is an exact integer: a column is stored as shorts (depths up to
+ * 327.67x), or as ints if too many of its depths are deeper. A value that does not round trip
+ * exactly (an extreme depth, more decimals or a non-finite value) is escaped, and kept as a double
+ * in a sparse map of its column. Values are dequantized as they are read, so this holds exactly the
+ * same doubles as a {@link org.apache.commons.math3.linear.BlockRealMatrix} in a quarter (or half)
+ * of the memory and of the serialized size
+ */
+class QuantizedMatrix extends AbstractRealMatrix implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  static final int SCALE = 100;
+  /**
+   * A column with more escaped values than this fraction is stored as ints instead
+   */
+  private static final double MAX_ESCAPED_FRACTION = 1.0 / 64;
+  /**
+   * Marks an escaped value in a short column
+   */
+  private static final short SHORT_ESCAPE = Short.MIN_VALUE;
+  /**
+   * Marks an escaped value in an int column
+   */
+  private static final int INT_ESCAPE = Integer.MIN_VALUE;
+
+  private final int rows;
+  private final Column[] columns;
+
+  /**
+   * A column stored as either shorts or ints, and the escaped values of its rows
+   */
+  private static class Column implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private short[] shorts;
+    private int[] ints;
+    private final Map<Integer, Double> escaped = new HashMap<>();
+
+    private Column(int rows, boolean wide) {
+      if (wide) {
+        ints = new int[rows];
+      } else {
+        shorts = new short[rows];
+      }
+    }
+
+    private double get(int row) {
+      if (shorts != null) {
+        return shorts[row] == SHORT_ESCAPE ? escaped.get(row) : shorts[row] / (double) SCALE;
+      }
+      return ints[row] == INT_ESCAPE ? escaped.get(row) : ints[row] / (double) SCALE;
+    }
+
+    private void set(int row, double value) {
+      long quantized = quantize(value);
+      boolean fits = shorts != null ? fitsShort(quantized) : fitsInt(quantized);
+      if (fits) {
+        escaped.remove(row);
+      } else {
+        escaped.put(row, value);
+      }
+      if (shorts != null) {
+        shorts[row] = fits ? (short) quantized : SHORT_ESCAPE;
+        if (escaped.size() > MAX_ESCAPED_FRACTION * shorts.length) {
+          widen();
+        }
+      } else {
+        ints[row] = fits ? (int) quantized : INT_ESCAPE;
+      }
+    }
+
+    /**
+     * Store the column as ints, once it is set entry by entry and too many values are escaped
+     */
+    private void widen() {
+      ints = new int[shorts.length];
+      for (int row = 0; row < shorts.length; row++) {
+        if (shorts[row] != SHORT_ESCAPE) {
+          ints[row] = shorts[row];
+        } else {
+          long quantized = quantize(escaped.get(row));
+          if (fitsInt(quantized)) {
+            ints[row] = (int) quantized;
+            escaped.remove(row);
+          } else {
+            ints[row] = INT_ESCAPE;
+          }
+        }
+      }
+      shorts = null;
+    }
+  }
+
+  /**
+   * @param rows
+   * @param columns
+   */
+  QuantizedMatrix(int rows, int columns) {
+    super(rows, columns);
+    this.rows = rows;
+    this.columns = new Column[columns];
+    for (int column = 0; column < columns; column++) {
+      this.columns[column] = new Column(rows, false);
+    }
+  }
+
+  /**
+   * @param value
+   * @return value times {@link #SCALE} if that is an integer that exactly dequantizes back to
+   *         value, otherwise {@link Long#MIN_VALUE}
+   */
+  static long quantize(double value) {
+    double scaled = Math.rint(value * SCALE);
+    if (Math.abs(scaled) < Integer.MAX_VALUE) {
+      long quantized = (long) scaled;
+      if (Double.doubleToLongBits(quantized / (double) SCALE) == Double.doubleToLongBits(value)) {
+        return quantized;
+      }
+    }
+    return Long.MIN_VALUE;
+  }
+
+  private static boolean fitsShort(long quantized) {
+    return quantized > SHORT_ESCAPE && quantized <= Short.MAX_VALUE;
+  }
+
+  private static boolean fitsInt(long quantized) {
+    return quantized > INT_ESCAPE && quantized <= Integer.MAX_VALUE;
+  }
+
+  /**
+   * Set a whole column, storing it as ints if too many of its values would be escaped as shorts
+   */
+  @Override
+  public void setColumn(int column, double[] values) {
+    MatrixUtils.checkColumnIndex(this, column);
+    if (values.length != rows) {
+      throw new MatrixDimensionMismatchException(values.length, 1, rows, 1);
+    }
+    int escapedShorts = 0;
+    for (double value : values) {
+      if (!fitsShort(quantize(value))) {
+        escapedShorts++;
+      }
+    }
+    Column quantized = new Column(rows, escapedShorts > MAX_ESCAPED_FRACTION * rows);
+    for (int row = 0; row < rows; row++) {
+      quantized.set(row, values[row]);
+    }
+    columns[column] = quantized;
+  }
+
+  @Override
+  public double[] getColumn(int column) {
+    MatrixUtils.checkColumnIndex(this, column);
+    Column quantized = columns[column];
+    double[] values = new double[rows];
+    for (int row = 0; row < rows; row++) {
+      values[row] = quantized.get(row);
+    }
+    return values;
+  }
+
+  @Override
+  public double getEntry(int row, int column) {
+    MatrixUtils.checkMatrixIndex(this, row, column);
+    return columns[column].get(row);
+  }
+
+  @Override
+  public void setEntry(int row, int column, double value) {
+    MatrixUtils.checkMatrixIndex(this, row, column);
+    columns[column].set(row, value);
+  }
+
+  @Override
+  public int getRowDimension() {
+    return rows;
+  }
+
+  @Override
+  public int getColumnDimension() {
+    return columns.length;
+  }
+
+  @Override
+  public RealMatrix createMatrix(int rowDimension, int columnDimension) {
+    return new QuantizedMatrix(rowDimension, columnDimension);
+  }
+
+  @Override
+  public RealMatrix copy() {
+    QuantizedMatrix copy = new QuantizedMatrix(rows, columns.length);
+    for (int column = 0; column < columns.length; column++) {
+      copy.setColumn(column, getColumn(column));
+    }
+    return copy;
+  }
+}
@@ -0,0 +1,147 @@
+package org.pankratzlab.ngspca;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Generates random test matrices for the randomized range finder. Rows are filled in fixed-size
+ * blocks, and each block draws from its own {@link SplittableRandom} seeded from the random seed
+ * and the block index. The output for a given seed is therefore the same no matter how many
+ * threads fill the blocks, or in which order.
+ */
+class RandomMatrixGenerator {
+
+  /**
+   * Number of rows filled by a single random stream
+   */
+  static final int ROW_BLOCK_SIZE = 1024;
+
+  /**
+   * Distribution of the entries of a random test matrix
+   */
+  enum DISTRIBUTION {
+    /**
+     * Standard normal entries
+     */
+    GAUSSIAN,
+    /**
+     * Entries of +1 or -1 with equal probability
+     */
+    RADEMACHER,
+    /**
+     * Achlioptas' sparse projection, sqrt(3) * (+1 with probability 1/6, 0 with probability 2/3, -1
+     * with probability 1/6)
+     */
+    SPARSE;
+  }
+
+  private static final double SQRT_3 = Math.sqrt(3);
+
+  private final DISTRIBUTION distribution;
+  private final long randomSeed;
+
+  /**
+   * @param distribution {@link DISTRIBUTION} of the generated entries
+   * @param randomSeed random seed, the same seed always produces the same matrix
+   */
+  RandomMatrixGenerator(DISTRIBUTION distribution, long randomSeed) {
+    this.distribution = distribution;
+    this.randomSeed = randomSeed;
+  }
+
+  /**
+   * @param rows
+   * @param columns
+   * @param threads number of row blocks filled at once
+   * @return row major array populated with random values from this generator's
+   *         {@link DISTRIBUTION}, filled in parallel by row block
+   */
+  double[][] generateRows(int rows, int columns, int threads) {
+    double[][] data = new double[rows][columns];
+    int numBlocks = (rows + ROW_BLOCK_SIZE - 1) / ROW_BLOCK_SIZE;
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+    try {
+      pool.submit(() -> IntStream.range(0, numBlocks).parallel()
+                                 .forEach(block -> fillBlock(data, block, columns)))
+          .join();
+    } finally {
+      pool.shutdown();
+    }
+    return data;
+  }
+
+  private void fillBlock(double[][] data, int block, int columns) {
+    BlockStream stream = new BlockStream(blockSeed(randomSeed, block));
+    int end = Math.min(data.length, (block + 1) * ROW_BLOCK_SIZE);
+    for (int row = block * ROW_BLOCK_SIZE; row < end; row++) {
+      double[] rowData = data[row];
+      for (int column = 0; column < columns; column++) {
+        rowData[column] = stream.next(distribution);
+      }
+    }
+  }
+
+  /**
+   * @param seed the random seed
+   * @param block the block index
+   * @return a well mixed seed for this block (the SplitMix64 finalizer applied to the seed and
+   *         block counter), so that neighboring blocks get unrelated streams
+   */
+  static long blockSeed(long seed, long block) {
+    long z = seed * 0x9E3779B97F4A7C15L + (block + 1) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * A single random stream, with the spare Gaussian deviate from the polar method
+   */
+  private static class BlockStream {
+
+    private final SplittableRandom random;
+    private double spareGaussian;
+    private boolean hasSpareGaussian = false;
+
+    private BlockStream(long seed) {
+      this.random = new SplittableRandom(seed);
+    }
+
+    private double next(DISTRIBUTION distribution) {
+      switch (distribution) {
+        case GAUSSIAN:
+          return nextGaussian();
+        case RADEMACHER:
+          return random.nextBoolean() ? 1 : -1;
+        case SPARSE:
+          int draw = random.nextInt(6);
+          return draw == 0 ? SQRT_3 : draw == 1 ? -SQRT_3 : 0;
+        default:
+          throw new IllegalArgumentException("Invalid distribution " + distribution);
+      }
+    }
+
+    /**
+     * Marsaglia polar method
+     */
+    private double nextGaussian() {
+      if (hasSpareGaussian) {
+        hasSpareGaussian = false;
+        return spareGaussian;
+      }
+      double u;
+      double v;
+      double s;
+      do {
+        u = 2 * random.nextDouble() - 1;
+        v = 2 * random.nextDouble() - 1;
+        s = u * u + v * v;
+      } while (s >= 1 || s == 0);
+      double multiplier = Math.sqrt(-2 * Math.log(s) / s);
+      spareGaussian = v * multiplier;
+      hasSpareGaussian = true;
+      return u * multiplier;
+    }
+  }
+}
@@ -1,22 +1,25 @@
 package org.pankratzlab.ngspca;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.StringJoiner;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.math3.linear.BlockRealMatrix;
 import org.apache.commons.math3.linear.MatrixUtils;
 import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.SingularValueDecomposition;
-import org.apache.commons.math3.random.MersenneTwister;
-import Jama.Matrix;
-import Jama.QRDecomposition;
+import org.pankratzlab.ngspca.LinearAlgebraBackend.BACKEND;
+import org.pankratzlab.ngspca.LinearAlgebraBackend.CompactSVD;
+import org.pankratzlab.ngspca.RandomMatrixGenerator.DISTRIBUTION;
+import org.pankratzlab.ngspca.SketchOperator.SKETCH_TYPE;
 
 public class RandomizedSVD {
 
@@ -27,7 +30,23 @@ public class RandomizedSVD {
   static final int DEFAULT_NITERS = 10;
   static final int DEFAULT_OVERSAMPLES = 200;
   private boolean transpose = false;
+  /**
+   * Dimensions of the input data
+   */
+  private int rows;
+  private int columns;
   private RealMatrix[] rsvd = new RealMatrix[3];
+  /**
+   * Loadings, which are only computed as they are written unless the input was transposed
+   */
+  private RowBlocks loadings;
+  private AccuracyEstimate accuracy;
+  private final RunMetrics metrics;
+  private final SubspaceCheckpoint checkpoint;
+  /**
+   * Bits per entry of the compressed A during the iterations, or 0 for full precision
+   */
+  private final int compressBits;
   private final Logger log;
 
   /**
@@ -40,11 +59,32 @@ public class RandomizedSVD {
   private final List<String> originalRowNames;
 
   public RandomizedSVD(List<String> originalColNames, List<String> originalRowNames, Logger log) {
+    this(originalColNames, originalRowNames, new RunMetrics(), SubspaceCheckpoint.none(), 0, log);
+  }
+
+  /**
+   * @param originalColNames column names of the input data
+   * @param originalRowNames row names of the input data
+   * @param metrics each step of the SVD is recorded to this {@link RunMetrics}
+   * @param checkpoint {@link SubspaceCheckpoint} to save and resume the subspace iterations
+   * @param compressBits if 8 or 16, A is held as {@link CompressedColumns} with this many bits per
+   *          entry by backends that support it
+   * @param log
+   */
+  RandomizedSVD(List<String> originalColNames, List<String> originalRowNames, RunMetrics metrics,
+                SubspaceCheckpoint checkpoint, int compressBits, Logger log) {
     this.originalColNames = originalColNames;
     this.originalRowNames = originalRowNames;
+    this.metrics = metrics;
+    this.checkpoint = checkpoint;
+    this.compressBits = compressBits;
     this.log = log;
   }
 
+  RunMetrics getMetrics() {
+    return metrics;
+  }
+
   List<String> getColumnNames() {
     return originalColNames;
   }
@@ -63,98 +103,390 @@ public class RandomizedSVD {
    * @param numOversamples is an oversampling parameter to improve the approximation. A value of at
    *          least 10 is recommended,
    * @param randomSeed random seed for sampling matrix
+   * @param distribution {@link DISTRIBUTION} of the entries in the sampling matrix
+   * @param sketchType {@link SKETCH_TYPE} of the sampling matrix
+   * @param backendType {@link BACKEND} used for the matrix operations
+   * @param threads number of threads for multi-threaded backends
    */
   public void fit(BlockRealMatrix A, int numberOfComponentsToStore, int niters, int numOversamples,
-                  int randomSeed) {
-    this.numComponents = Math.min(numberOfComponentsToStore,
-                                  Math.min(A.getColumnDimension(), A.getRowDimension()));
-    if (numComponents < numberOfComponentsToStore) {
-      log.info(numberOfComponentsToStore + " PCs requested, but only be able to compute "
-               + numComponents);
+                  int randomSeed, DISTRIBUTION distribution, SKETCH_TYPE sketchType,
+                  BACKEND backendType, int threads) {
+    log.info("Using " + backendType + " linear algebra backend");
+    fit(LinearAlgebraBackend.create(backendType, threads), A, numberOfComponentsToStore, niters,
+        numOversamples, SketchOperator.create(sketchType, distribution, randomSeed),
+        AccuracyEstimate.probeGenerator(randomSeed),
+        fingerprint(A, randomSeed, distribution, sketchType, backendType));
+  }
+
+  private <M> void fit(LinearAlgebraBackend<M> backend, BlockRealMatrix A,
+                       int numberOfComponentsToStore, int niters, int numOversamples,
+                       SketchOperator sketch, RandomMatrixGenerator probes, long fingerprint) {
+    M a = prepare(backend, A);
+    int sketchColumns = sketchColumns(numberOfComponentsToStore, numOversamples);
+    Subspace<M> subspace = new Subspace<>(backend, a, sketch, sketchColumns, probes, checkpoint,
+                                          fingerprint, metrics, log);
+    subspace.iterateTo(niters);
+    setResults(subspace.reduce(), numberOfComponentsToStore);
+    checkpoint.delete(sketchColumns);
+  }
+
+  /**
+   * @return the {@link SubspaceCheckpoint#fingerprint(RealMatrix, Object...)} of this input and
+   *         settings, if checkpoints are enabled
+   */
+  private long fingerprint(BlockRealMatrix A, int randomSeed, DISTRIBUTION distribution,
+                           SKETCH_TYPE sketchType, BACKEND backendType) {
+    if (!checkpoint.isEnabled()) {
+      return 0;
     }
-    log.info("Initializing matrices");
+    return SubspaceCheckpoint.fingerprint(A, randomSeed, distribution, sketchType, backendType,
+                                          compressBits);
+  }
 
-    int m = A.getRowDimension();
-    int n = A.getColumnDimension();
-    transpose = m < n;
-    rsvd[0] = MatrixUtils.createRealMatrix(A.getRowDimension(), numComponents);
-    rsvd[1] = MatrixUtils.createRealMatrix(numComponents, 1);
-    rsvd[2] = MatrixUtils.createRealMatrix(A.getColumnDimension(), numComponents);
+  /**
+   * Notified each time a configuration of a parameter sweep has been fit, while the results of that
+   * configuration are held by the {@link RandomizedSVD}
+   */
+  interface SweepListener {
 
-    if (transpose) {
-      log.info("Transposing, since row N <column N");
-      A = A.transpose();
-      n = A.getColumnDimension();
+    void fitted(int numberOfComponentsToStore, int numOversamples, int niters);
+  }
+
+  /**
+   * Fit every combination of the parameters, importing A once. Configurations with the same sketch
+   * size share a subspace, and each iteration count continues from the previous one, so that e.g.
+   * 20 iterations only costs 10 more than 10 iterations. See
+   * {@link #fit(BlockRealMatrix, int, int, int, int, DISTRIBUTION, SKETCH_TYPE, BACKEND, int)} for
+   * the parameters
+   * 
+   * @param listener notified after each configuration is fit
+   */
+  void sweep(BlockRealMatrix A, int[] numberOfComponentsToStore, int[] niters,
+             int[] numOversamples, int randomSeed, DISTRIBUTION distribution,
+             SKETCH_TYPE sketchType, BACKEND backendType, int threads, SweepListener listener) {
+    log.info("Using " + backendType + " linear algebra backend");
+    sweep(LinearAlgebraBackend.create(backendType, threads), A, numberOfComponentsToStore, niters,
+          numOversamples, SketchOperator.create(sketchType, distribution, randomSeed),
+          AccuracyEstimate.probeGenerator(randomSeed),
+          fingerprint(A, randomSeed, distribution, sketchType, backendType), listener);
+  }
+
+  private <M> void sweep(LinearAlgebraBackend<M> backend, BlockRealMatrix A,
+                         int[] numberOfComponentsToStore, int[] niters, int[] numOversamples,
+                         SketchOperator sketch, RandomMatrixGenerator probes, long fingerprint,
+                         SweepListener listener) {
+    M a = prepare(backend, A);
+    // group configurations by sketch size
+    Map<Integer, List<int[]>> bySketchColumns = new TreeMap<>();
+    for (int numComponentsToStore : numberOfComponentsToStore) {
+      for (int numOversample : numOversamples) {
+        bySketchColumns.computeIfAbsent(sketchColumns(numComponentsToStore, numOversample),
+                                        k -> new ArrayList<>())
+                       .add(new int[] {numComponentsToStore, numOversample});
+      }
+    }
+    int[] sortedIters = IntStream.of(niters).distinct().sorted().toArray();
+    for (Entry<Integer, List<int[]>> group : bySketchColumns.entrySet()) {
+      log.info("Sweeping " + group.getValue().size() + " configuration(s) with a sketch of "
+               + group.getKey() + " columns");
+      Subspace<M> subspace = new Subspace<>(backend, a, sketch, group.getKey(), probes,
+                                              checkpoint, fingerprint, metrics, log);
+      for (int iters : sortedIters) {
+        subspace.iterateTo(iters);
+        Reduced<M> reduced = subspace.reduce();
+        for (int[] configuration : group.getValue()) {
+          setResults(reduced, configuration[0]);
+          listener.fitted(configuration[0], configuration[1], iters);
+        }
+      }
+      checkpoint.delete(group.getKey());
     }
+  }
 
-    log.info("Selecting randomized Q");
+  /**
+   * Import A to the backend, transposing if needed so that rows >= columns
+   */
+  @SuppressWarnings("try")
+  private <M> M prepare(LinearAlgebraBackend<M> backend, BlockRealMatrix A) {
+    log.info("Initializing matrices");
+    rows = A.getRowDimension();
+    columns = A.getColumnDimension();
+    transpose = rows < columns;
+    try (RunMetrics.Stage stage = metrics.start("import").dimensions(rows, columns)) {
+      M a = backend.fromRealMatrix(A);
+      if (transpose) {
+        log.info("Transposing, since row N <column N");
+        a = backend.transpose(a);
+      }
+      if (compressBits > 0) {
+        if (backend.supportsCompression()) {
+          return compress(backend, a);
+        }
+        log.warning("The backend does not support compression, using full precision");
+      }
+      return a;
+    }
+  }
 
-    RealMatrix Y = A.multiply(randn(n, Math.min(n, numComponents + numOversamples), randomSeed));
+  /**
+   * @return a compressed to {@link #compressBits} per entry, with its error against a logged
+   */
+  @SuppressWarnings("try")
+  private <M> M compress(LinearAlgebraBackend<M> backend, M a) {
+    log.info("Compressing to " + compressBits + " bits per entry");
+    M compressed;
+    try (RunMetrics.Stage stage = metrics.start("compress")
+                                         .dimensions(backend.rows(a), backend.columns(a))) {
+      compressed = backend.compress(a, compressBits);
+    }
+    double squaredError = 0;
+    double squaredNorm = 0;
+    double maxError = 0;
+    for (int column = 0; column < backend.columns(a); column++) {
+      double[] exact = backend.getColumn(a, column);
+      double[] decoded = backend.getColumn(compressed, column);
+      for (int row = 0; row < exact.length; row++) {
+        double error = Math.abs(decoded[row] - exact[row]);
+        squaredError += error * error;
+        squaredNorm += exact[row] * exact[row];
+        maxError = Math.max(maxError, error);
+      }
+    }
+    double relativeError = squaredNorm > 0 ? Math.sqrt(squaredError / squaredNorm) : 0;
+    log.info("Compression error against full precision: relative (Frobenius) " + relativeError
+             + ", max absolute " + maxError);
+    metrics.put("compressBits", compressBits);
+    metrics.put("compressRelativeError", relativeError);
+    metrics.put("compressMaxAbsoluteError", maxError);
+    return compressed;
+  }
 
-    log.info("Caching A_t");
-    BlockRealMatrix A_t = A.transpose();
+  private int sketchColumns(int numberOfComponentsToStore, int numOversamples) {
+    int n = Math.min(rows, columns);
+    return Math.min(n, Math.min(numberOfComponentsToStore, n) + numOversamples);
+  }
 
-    log.info("Beginning LU decomp iterations");
-    for (int i = 0; i < niters; i++) {
-      log.info("Subspace iteration: " + Integer.toString(i));
-      log.info("Y QR decomp");
-      QRDecomposition qr = new QRDecomposition(new Matrix(Y.getData()));
-      log.info("Converting to RealMatrix");
-      Y = MatrixUtils.createRealMatrix(qr.getQ().getArray());
-      log.info("Computing A Y cross prod");
-      RealMatrix Z = A_t.multiply(Y);
-      log.info("Z QR decomp");
-      Z = MatrixUtils.createRealMatrix(new QRDecomposition(new Matrix(Z.getData())).getQ()
-                                                                                   .getArray());
-      log.info("A %*% Z");
-      Y = A.multiply(Z);
+  /**
+   * The range finder subspace, which can be advanced by more iterations at any time
+   */
+  private static class Subspace<M> {
+
+    private final LinearAlgebraBackend<M> backend;
+    private final M a;
+    private final SketchOperator sketch;
+    private final int sketchColumns;
+    private final RandomMatrixGenerator probes;
+    private final SubspaceCheckpoint checkpoint;
+    private final long fingerprint;
+    private final RunMetrics metrics;
+    private final Logger log;
+    /**
+     * The panel, sketched (or resumed from a checkpoint) when first needed
+     */
+    private M Y;
+    private int iterations = 0;
+
+    private Subspace(LinearAlgebraBackend<M> backend, M a, SketchOperator sketch,
+                     int sketchColumns, RandomMatrixGenerator probes,
+                     SubspaceCheckpoint checkpoint, long fingerprint, RunMetrics metrics,
+                     Logger log) {
+      this.backend = backend;
+      this.a = a;
+      this.sketch = sketch;
+      this.sketchColumns = sketchColumns;
+      this.probes = probes;
+      this.checkpoint = checkpoint;
+      this.fingerprint = fingerprint;
+      this.metrics = metrics;
+      this.log = log;
     }
 
-    RealMatrix Q = MatrixUtils.createRealMatrix(new QRDecomposition(new Matrix(Y.getData())).getQ()
-                                                                                            .getArray());
-    log.info("Q %*% Y");
-    RealMatrix B = Q.transpose().multiply(A);
-    log.info("SVD of reduced matrix");
-    SingularValueDecomposition svd = new SingularValueDecomposition(B);
+    /**
+     * @param niters resume from a checkpoint at or before this iteration, or sketch A
+     */
+    @SuppressWarnings("try")
+    private void initialize(int niters) {
+      if (Y != null) {
+        return;
+      }
+      SubspaceCheckpoint.State state = checkpoint.load(fingerprint, backend.rows(a),
+                                                       sketchColumns, niters, log);
+      if (state != null) {
+        Y = backend.fromRows(state.rows);
+        iterations = state.iteration;
+        return;
+      }
+      log.info("Selecting randomized Q");
+      try (RunMetrics.Stage stage = start("sketch")) {
+        Y = sketch.sketch(backend, a, sketchColumns);
+      }
+    }
 
-    log.info("Finding W");
-    RealMatrix W = Q.multiply(svd.getU());
+    /**
+     * @return a {@link RunMetrics.Stage} that passes over A
+     */
+    private RunMetrics.Stage start(String name) {
+      return metrics.start(name).dimensions(backend.rows(a), backend.columns(a));
+    }
 
-    log.info("Setting SVD V/W/U results");
-    if (transpose) {
-      for (int i = 0; i < numComponents; i++) {
+    /**
+     * @param niters perform subspace iterations until this many have been completed
+     */
+    @SuppressWarnings("try")
+    private void iterateTo(int niters) {
+      initialize(niters);
+      for (; iterations < niters; iterations++) {
+        log.info("Subspace iteration: " + Integer.toString(iterations));
+        String name = "iteration" + (iterations + 1);
+        try (RunMetrics.Stage iteration = start(name)) {
+          log.info("Y QR decomp");
+          try (RunMetrics.Stage stage = metrics.start(name + ".qrY")) {
+            Y = backend.orthonormalize(Y);
+          }
+          log.info("Computing A Y cross prod");
+          M Z;
+          try (RunMetrics.Stage stage = start(name + ".transposeMultiply")) {
+            Z = backend.transposeMultiply(a, Y);
+          }
+          log.info("Z QR decomp");
+          try (RunMetrics.Stage stage = metrics.start(name + ".qrZ")) {
+            Z = backend.orthonormalize(Z);
+          }
+          log.info("A %*% Z");
+          try (RunMetrics.Stage stage = start(name + ".multiply")) {
+            Y = backend.multiply(a, Z);
+          }
+        }
+        if (checkpoint.isDue(iterations + 1)) {
+          try (RunMetrics.Stage stage = metrics.start(name + ".checkpoint")) {
+            double[][] rows = new double[backend.rows(Y)][];
+            for (int row = 0; row < rows.length; row++) {
+              rows[row] = backend.getRow(Y, row);
+            }
+            checkpoint.save(fingerprint, iterations + 1, rows, log);
+          }
+        }
+      }
+    }
 
-        rsvd[0].setColumn(i, svd.getV().getColumn(i));
-        rsvd[1].setEntry(i, 0, svd.getSingularValues()[i]);
-        rsvd[2].setColumn(i, W.getColumn(i));
+    /**
+     * @return the SVD of the matrix projected to the current subspace, with the
+     *         {@link AccuracyEstimate} probes computed in the same pass over A as the projection
+     */
+    @SuppressWarnings("try")
+    private Reduced<M> reduce() {
+      initialize(iterations);
+      M Q;
+      try (RunMetrics.Stage stage = metrics.start("qr")) {
+        Q = backend.orthonormalize(Y);
       }
-    } else {
-      for (int i = 0; i < numComponents; i++) {
-        rsvd[0].setColumn(i, W.getColumn(i));
-        rsvd[1].setEntry(i, 0, svd.getSingularValues()[i]);
-        rsvd[2].setColumn(i, svd.getV().getColumn(i));
+      log.info("Q %*% Y, with " + AccuracyEstimate.NUM_PROBES + " accuracy probes");
+      int sketchColumns = backend.columns(Q);
+      M C;
+      try (RunMetrics.Stage stage = start("projection")) {
+        C = backend.transposeMultiply(appendProbes(Q), a);
+      }
+      double[][] projected = new double[sketchColumns][];
+      double[][] probeRows = new double[AccuracyEstimate.NUM_PROBES][];
+      for (int row = 0; row < backend.rows(C); row++) {
+        if (row < sketchColumns) {
+          projected[row] = backend.getRow(C, row);
+        } else {
+          probeRows[row - sketchColumns] = backend.getRow(C, row);
+        }
       }
+      log.info("SVD of reduced matrix");
+      try (RunMetrics.Stage stage = metrics.start("svd")) {
+        return new Reduced<>(backend, Q, backend.svd(backend.fromRows(projected)), probeRows);
+      }
+    }
 
-      log.info("Finished SVD");
+    /**
+     * @return [Q | (I - QQ^T) G] for Gaussian probes G
+     */
+    private M appendProbes(M Q) {
+      double[][] g = probes.generateRows(backend.rows(Q), AccuracyEstimate.NUM_PROBES,
+                                         backend.threads());
+      M projection = backend.multiply(Q, backend.transposeMultiply(Q, backend.fromRows(g)));
+      double[][] combined = new double[g.length][];
+      backend.parallel(() -> IntStream.range(0, g.length).parallel().forEach(row -> {
+        double[] q = backend.getRow(Q, row);
+        double[] p = backend.getRow(projection, row);
+        double[] combinedRow = new double[q.length + p.length];
+        System.arraycopy(q, 0, combinedRow, 0, q.length);
+        for (int probe = 0; probe < p.length; probe++) {
+          combinedRow[q.length + probe] = g[row][probe] - p[probe];
+        }
+        combined[row] = combinedRow;
+      }));
+      return backend.fromRows(combined);
     }
   }
 
   /**
-   * @param rows
-   * @param columns
-   * @return a {@link RealMatrix} populated with random values (deterministic random using
-   *         {@link MersenneTwister})
+   * A = Q * B, with the SVD of B
    */
-  private static RealMatrix randn(int rows, int columns, int randomSeed) {
-    RealMatrix m = MatrixUtils.createRealMatrix(rows, columns);
-    MersenneTwister twister = new MersenneTwister(randomSeed);
+  private static class Reduced<M> {
+
+    private final LinearAlgebraBackend<M> backend;
+    private final M Q;
+    private final CompactSVD<M> svd;
+    /**
+     * p^T A for the {@link AccuracyEstimate} probes
+     */
+    private final double[][] probeRows;
+
+    private Reduced(LinearAlgebraBackend<M> backend, M Q, CompactSVD<M> svd,
+                    double[][] probeRows) {
+      this.backend = backend;
+      this.Q = Q;
+      this.svd = svd;
+      this.probeRows = probeRows;
+    }
+  }
 
-    for (int i = 0; i < rows; i++) {
-      for (int j = 0; j < columns; j++) {
-        m.setEntry(i, j, twister.nextDouble());
+  private <M> void setResults(Reduced<M> reduced, int numberOfComponentsToStore) {
+    this.numComponents = Math.min(numberOfComponentsToStore, Math.min(columns, rows));
+    if (numComponents < numberOfComponentsToStore) {
+      log.info(numberOfComponentsToStore + " PCs requested, but only be able to compute "
+               + numComponents);
+    }
+    LinearAlgebraBackend<M> backend = reduced.backend;
+    CompactSVD<M> svd = reduced.svd;
+    rsvd[1] = MatrixUtils.createRealMatrix(numComponents, 1);
+    rsvd[2] = MatrixUtils.createRealMatrix(columns, numComponents);
+
+    double[][] V = new double[numComponents][];
+    for (int i = 0; i < numComponents; i++) {
+      V[i] = backend.getColumn(svd.V, i);
+    }
+    accuracy = new AccuracyEstimate(reduced.probeRows, V, svd.singularValues, numComponents);
+    accuracy.log(log);
+
+    // W = Q * U is only formed for the stored components, and only up front if it holds the PCs
+    LazyLoadings<M> W = new LazyLoadings<>(backend, reduced.Q, svd.U, 0, numComponents);
+
+    log.info("Setting SVD V/W/U results");
+    if (transpose) {
+      rsvd[0] = MatrixUtils.createRealMatrix(rows, numComponents);
+      for (int i = 0; i < numComponents; i++) {
+
+        rsvd[0].setColumn(i, backend.getColumn(svd.V, i));
+        rsvd[1].setEntry(i, 0, svd.singularValues[i]);
       }
+      rsvd[2] = MatrixUtils.createRealMatrix(W.getRows(0, columns));
+      loadings = RowBlocks.of(rsvd[0]);
+    } else {
+      rsvd[0] = null;
+      for (int i = 0; i < numComponents; i++) {
+        rsvd[1].setEntry(i, 0, svd.singularValues[i]);
+        rsvd[2].setColumn(i, backend.getColumn(svd.V, i));
+      }
+      // loadings are computed by block when written
+      loadings = W;
+
+      log.info("Finished SVD");
     }
-    return m;
   }
 
   public RealMatrix getV() {
@@ -165,74 +497,121 @@ public class RandomizedSVD {
     return rsvd[1];
   }
 
+  /**
+   * @return the {@link AccuracyEstimate} of the last fit
+   */
+  AccuracyEstimate getAccuracy() {
+    return accuracy;
+  }
+
+  /**
+   * @return the loadings, one row per row of the input and one column per component
+   */
+  RowBlocks getLoadings() {
+    return loadings;
+  }
+
+  /**
+   * @return the PCs, one row per sample (column of the input) and one column per component
+   */
+  RealMatrix getPCs() {
+    return rsvd[2];
+  }
+
   /**
    * @param file dump the PCs to this text file
+   * @param outputConfig {@link OutputConfig} for writing
    * @param log
+   * @return true if the file was written
    */
-  void dumpPCsToText(String file, Logger log) {
-    //
+  boolean dumpPCsToText(String file, OutputConfig outputConfig, Logger log) {
     RealMatrix v = rsvd[2];
-    v = v.transpose();
-    List<String> pcNames = SVD.getNumberedColumnHeader("PC", v.getRowDimension());
+    List<String> pcNames = SVD.getNumberedColumnHeader("PC", v.getColumnDimension());
 
-    dumpMatrix(file, v, "SAMPLE", pcNames, originalColNames, true, log);
+    return new MatrixWriter(outputConfig, log).write(file, RowBlocks.of(v), "SAMPLE", pcNames,
+                                                     originalColNames);
   }
 
-  private static void dumpMatrix(String file, RealMatrix m, String rowTitle,
-                                 List<String> outputColumnNames, List<String> outputRowNames,
-                                 boolean transposed, Logger log) {
-    try (PrintWriter writer = new PrintWriter(new File(file))) {
+  //  private static void printDims(RealMatrix m, Logger log) {
+  //    log.info("Row:" + m.getRowDimension() + " Col: " + m.getColumnDimension());
+  //  }
 
-      StringJoiner joiner = new StringJoiner("\t");
-      joiner.add(rowTitle);
-      for (String colName : outputColumnNames) {
-        joiner.add(colName);
-      }
-      writer.println(joiner.toString());
-      log.info(outputRowNames.size() + " output rows by " + outputColumnNames.size()
-               + " output columns");
-
-      for (int outputRow = 0; outputRow < outputRowNames.size(); outputRow++) {
-        StringJoiner sample = new StringJoiner("\t");
-        sample.add(outputRowNames.get(outputRow));
-        for (int outputColumn = 0; outputColumn < outputColumnNames.size(); outputColumn++) {
-          if (transposed) {
-            sample.add(Double.toString(m.getEntry(outputColumn, outputRow)));
-          } else {
-            sample.add(Double.toString(m.getEntry(outputRow, outputColumn)));
-          }
-        }
-        writer.println(sample.toString());
+  /**
+   * @param file loadings will be computed and dumped to this file
+   * @param outputConfig {@link OutputConfig} for writing
+   * @param log
+   * @return true if the file was written
+   */
+  boolean computeAndDumpLoadings(String file, OutputConfig outputConfig, Logger log) {
+    return new MatrixWriter(outputConfig, log).write(file, selectLoadings(outputConfig), "MARKER",
+                                                     selectLoadingNames(outputConfig),
+                                                     originalRowNames);
 
-      }
-    } catch (FileNotFoundException e) {
+  }
 
-      log.log(Level.SEVERE, "unable to write to file " + file, e);
+  /**
+   * @return the loadings of the components selected by the {@link OutputConfig}
+   */
+  private RowBlocks selectLoadings(OutputConfig outputConfig) {
+    int start = outputConfig.getLoadingStart(numComponents);
+    int end = outputConfig.getLoadingEnd(numComponents);
+    log.info("Computing loadings for components " + (start + 1) + " to " + end);
+    return loadings.selectColumns(start, end);
+  }
 
-    }
+  private List<String> selectLoadingNames(OutputConfig outputConfig) {
+    return SVD.getNumberedColumnHeader("Loading", numComponents)
+              .subList(outputConfig.getLoadingStart(numComponents),
+                       outputConfig.getLoadingEnd(numComponents));
   }
 
-  //  private static void printDims(RealMatrix m, Logger log) {
-  //    log.info("Row:" + m.getRowDimension() + " Col: " + m.getColumnDimension());
-  //  }
+  /**
+   * @param file dump the PCs (one row per sample, one column per PC) to this .npy file
+   * @param outputConfig {@link OutputConfig} for writing
+   * @param log
+   * @return true if the file was written
+   */
+  boolean dumpPCsToNpy(String file, OutputConfig outputConfig, Logger log) {
+    return NpyWriter.write(file, RowBlocks.of(rsvd[2]), outputConfig.threads, log);
+  }
 
   /**
-   * @param file loadings will be computed and dumped to this file
+   * @param file dump the loadings (one row per marker, one column per selected PC) to this .npy
+   *          file
+   * @param outputConfig {@link OutputConfig} selecting the components, and for writing
    * @param log
+   * @return true if the file was written
    */
-  void computeAndDumpLoadings(String file, Logger log) {
-    RealMatrix loadingData = rsvd[0];
-    List<String> loadingNames = SVD.getNumberedColumnHeader("Loading",
-                                                            loadingData.getColumnDimension());
-    dumpMatrix(file, loadingData, "MARKER", loadingNames, originalRowNames, false, log);
+  boolean dumpLoadingsToNpy(String file, OutputConfig outputConfig, Logger log) {
+    return NpyWriter.write(file, selectLoadings(outputConfig), outputConfig.threads, log);
+  }
 
+  /**
+   * @param file dump the loadings to this bgzipped BED file, with a tabix index
+   * @param outputConfig {@link OutputConfig} for writing
+   * @param log
+   * @return true if the file and its index were written
+   */
+  boolean dumpLoadingsToBed(String file, OutputConfig outputConfig, Logger log) {
+    return BedLoadingsWriter.write(file, selectLoadings(outputConfig), originalRowNames,
+                                   selectLoadingNames(outputConfig), outputConfig, log);
+  }
+
+  /**
+   * @param file dump the singular values to this .npy file
+   * @param log
+   * @return true if the file was written
+   */
+  boolean dumpSingularValuesToNpy(String file, Logger log) {
+    return NpyWriter.write(file, rsvd[1].getColumn(0), log);
   }
 
   /**
    * @param file singular values will be dumped to this file
    * @param log
+   * @return true if the file was written
    */
-  void dumpSingularValuesToText(String file, Logger log) {
+  boolean dumpSingularValuesToText(String file, Logger log) {
     StringJoiner joiner = new StringJoiner("\n");
     joiner.add("PC\tSINGULAR_VALUES");
 
@@ -243,8 +622,10 @@ public class RandomizedSVD {
     try {
       FileUtils.writeStringToFile(new File(file), joiner.toString(), Charset.defaultCharset(),
                                   false);
+      return true;
     } catch (IOException e) {
       log.log(Level.SEVERE, "unable to write to file " + file, e);
+      return false;
     }
 
   }
@@ -0,0 +1,317 @@
+package org.pankratzlab.ngspca;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+import org.pankratzlab.ngspca.LinearAlgebraBackend.BACKEND;
+import org.pankratzlab.ngspca.SketchOperator.SKETCH_TYPE;
+
+/**
+ * Up-front estimate of the peak heap and runtime of each stage, made once the number of bins and
+ * samples is known and before anything large is allocated. If the requested {@link BACKEND} would
+ * not fit in the heap another one that does is used, and if none fit the run fails immediately
+ * instead of running out of memory hours later in the SVD.
+ * <p>
+ * Estimates are deliberately conservative: every object of a stage is assumed to be alive at the
+ * same time. Runtimes use assumed throughputs and are only meant to size a run; compare them with
+ * {@link RunMetrics} to calibrate
+ */
+class ResourcePlan {
+
+  /**
+   * Part of the max heap the plan may use, the rest is left for the JVM, GC headroom and logging
+   */
+  static final double HEAP_FRACTION = 0.9;
+
+  private static final long BYTES_PER_DOUBLE = 8;
+  /**
+   * A parsed BEDFeature (object, strings and boxed fields) held until its file is copied to the
+   * matrix
+   */
+  private static final long BYTES_PER_FEATURE = 300;
+  /**
+   * A region's UCSC name, in both the region list and the lookup set
+   */
+  private static final long BYTES_PER_REGION = 200;
+  /**
+   * The ingest queue holds this many parsed files per thread
+   */
+  private static final int FILES_PER_THREAD = 2;
+  private static final long OUTPUT_BYTES_PER_THREAD = 16L << 20;
+  /**
+   * Compressed mosdepth bytes parsed per second by one thread
+   */
+  private static final double INGEST_BYTES_PER_SECOND = 2.5e6;
+  /**
+   * Floating point operations per second of one thread of each backend (only
+   * {@link BACKEND#PURE_JAVA} uses more than one thread)
+   */
+  private static final double COMMONS_MATH_FLOPS = 0.5e9;
+  private static final double EJML_FLOPS = 1e9;
+  private static final double PURE_JAVA_FLOPS = 2e9;
+
+  private final BACKEND backend;
+  private final long entries;
+  private final long maxHeap;
+  private final Map<String, Long> stageBytes = new LinkedHashMap<>();
+  private final Map<String, Double> stageSeconds = new LinkedHashMap<>();
+
+  private ResourcePlan(BACKEND backend, long entries, long maxHeap) {
+    this.backend = backend;
+    this.entries = entries;
+    this.maxHeap = maxHeap;
+  }
+
+  /**
+   * @param bins number of bins (rows) that will be loaded
+   * @param samples number of samples (columns)
+   * @param inputBytes bytes of input to parse, or 0 if a cached matrix will be loaded instead
+   * @param svdConfig the {@link SVDConfig}, the backend is taken from the next parameter
+   * @param backend the {@link BACKEND} to plan for
+   * @param maxHeap max heap of the JVM
+   * @return the {@link ResourcePlan}
+   */
+  static ResourcePlan create(long bins, long samples, long inputBytes,
+                             SVDConfig svdConfig, BACKEND backend, long maxHeap) {
+    ResourcePlan plan = new ResourcePlan(backend, bins * samples, maxHeap);
+    long rows = Math.max(bins, samples);
+    long columns = Math.min(bins, samples);
+    long matrix = BYTES_PER_DOUBLE * bins * samples;
+    int threads = Math.max(svdConfig.threads, 1);
+    int sketchColumns = 0;
+    for (int numPcs : svdConfig.numPcs) {
+      for (int numOversamples : svdConfig.numOversamples) {
+        long l = Math.min(columns, Math.min(numPcs, columns) + numOversamples);
+        sketchColumns = Math.max(sketchColumns, (int) l);
+      }
+    }
+    int maxPcs = (int) Math.min(columns, max(svdConfig.numPcs));
+    // the range finder panel, with the accuracy probes appended in the final pass
+    long panel = BYTES_PER_DOUBLE * rows * (sketchColumns + AccuracyEstimate.NUM_PROBES);
+
+    if (inputBytes > 0) {
+      plan.stageBytes.put("ingest", matrix + bins * BYTES_PER_REGION
+                                    + FILES_PER_THREAD * threads * bins * BYTES_PER_FEATURE);
+      int cores = Math.min(threads, Runtime.getRuntime().availableProcessors());
+      plan.stageSeconds.put("ingest", inputBytes / (INGEST_BYTES_PER_SECOND * cores));
+    } else {
+      plan.stageBytes.put("deserialize", matrix + bins * BYTES_PER_REGION);
+    }
+    plan.stageBytes.put("normalization", matrix + bins * BYTES_PER_REGION
+                                         + 2 * BYTES_PER_DOUBLE * Math.max(bins, samples));
+
+    // the input matrix stays referenced while the backend's copy is in use. COMMONS_MATH uses the
+    // input as is unless wide input is transposed, and none of the backends copy A to multiply by
+    // its transpose
+    long copies;
+    switch (backend) {
+      case COMMONS_MATH:
+        copies = bins < samples ? 1 : 0;
+        break;
+      case EJML:
+      case PURE_JAVA:
+        copies = bins < samples ? 2 : 1;
+        break;
+      default:
+        throw new IllegalArgumentException("Invalid backend " + backend);
+    }
+    // Y, Z, the QR workspace and the probe panel, its copy and transpose in the final pass
+    plan.stageBytes.put("svd", matrix * (1 + copies) + bins * BYTES_PER_REGION + 6 * panel);
+    plan.stageBytes.put("output",
+                        matrix + bins * BYTES_PER_REGION + BYTES_PER_DOUBLE * rows * maxPcs
+                                  + OUTPUT_BYTES_PER_THREAD * threads);
+
+    double flops = 0;
+    for (int numPcs : svdConfig.numPcs) {
+      for (int numOversamples : svdConfig.numOversamples) {
+        long l = Math.min(columns, Math.min(numPcs, columns) + numOversamples);
+        int iterations = max(svdConfig.niters);
+        // sketch, two passes per iteration and the projection, plus the QRs
+        flops += sketchFlops(svdConfig.sketchType, rows, columns, l)
+                 + 2.0 * rows * columns * l * (2 * iterations + 1)
+                 + 4.0 * (rows + columns) * l * l * (iterations + 1);
+      }
+    }
+    plan.stageSeconds.put("svd", flops / flopsPerSecond(backend, threads));
+    return plan;
+  }
+
+  /**
+   * @param requested the {@link BACKEND} requested on the command line
+   * @return the backends to try, the requested one first
+   */
+  private static List<BACKEND> candidates(BACKEND requested) {
+    List<BACKEND> candidates = new ArrayList<>();
+    candidates.add(requested);
+    for (BACKEND backend : new BACKEND[] {BACKEND.PURE_JAVA, BACKEND.COMMONS_MATH,
+                                          BACKEND.EJML}) {
+      if (!candidates.contains(backend)) {
+        candidates.add(backend);
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * Plan for the requested backend, falling back to another backend that fits
+   *
+   * @param bins see {@link #create(long, long, long, SVDConfig, BACKEND, long)}
+   * @param samples
+   * @param inputBytes
+   * @param svdConfig the requested {@link SVDConfig}
+   * @param maxHeap
+   * @param enforce if true, throw an {@link IllegalArgumentException} if no backend fits
+   * @param metrics the chosen plan is added to this {@link RunMetrics}
+   * @param log
+   * @return the {@link SVDConfig} to use
+   */
+  static SVDConfig apply(long bins, long samples, long inputBytes, SVDConfig svdConfig,
+                         long maxHeap, boolean enforce, RunMetrics metrics, Logger log) {
+    ResourcePlan requested = null;
+    ResourcePlan chosen = null;
+    for (BACKEND candidate : candidates(svdConfig.backend)) {
+      ResourcePlan plan = create(bins, samples, inputBytes, svdConfig, candidate, maxHeap);
+      if (requested == null) {
+        requested = plan;
+      }
+      if (plan.fits()) {
+        chosen = plan;
+        break;
+      }
+    }
+    if (chosen == null) {
+      String err = requested.explain(bins, samples);
+      if (enforce) {
+        log.severe(err);
+        throw new IllegalArgumentException(err);
+      }
+      log.warning(err + "\nContinuing, since the plan is ignored");
+      chosen = requested;
+    } else if (chosen != requested) {
+      log.warning("The " + requested.backend + " backend needs an estimated "
+                  + gigabytes(requested.getPeakBytes()) + " of heap, using the "
+                  + chosen.backend + " backend which fits");
+    }
+    chosen.log(log);
+    metrics.put("plannedBackend", chosen.backend.toString());
+    metrics.put("plannedPeakHeapBytes", chosen.getPeakBytes());
+    metrics.put("plannedSeconds", chosen.getSeconds());
+    return chosen.backend == svdConfig.backend ? svdConfig : svdConfig.withBackend(chosen.backend);
+  }
+
+  /**
+   * @return largest estimated heap use of any stage
+   */
+  long getPeakBytes() {
+    long peak = 0;
+    for (long bytes : stageBytes.values()) {
+      peak = Math.max(peak, bytes);
+    }
+    return peak;
+  }
+
+  /**
+   * @return estimated runtime of the timed stages
+   */
+  double getSeconds() {
+    double seconds = 0;
+    for (double stage : stageSeconds.values()) {
+      seconds += stage;
+    }
+    return seconds;
+  }
+
+  boolean fits() {
+    if (backend == BACKEND.EJML && entries > Integer.MAX_VALUE) {
+      // a single array
+      return false;
+    }
+    return getPeakBytes() <= HEAP_FRACTION * maxHeap;
+  }
+
+  void log(Logger log) {
+    log.info("Resource plan for the " + backend + " backend, with " + gigabytes(maxHeap)
+             + " max heap:");
+    for (Entry<String, Long> stage : stageBytes.entrySet()) {
+      Double seconds = stageSeconds.get(stage.getKey());
+      log.info("  " + stage.getKey() + ": ~" + gigabytes(stage.getValue()) + " heap"
+               + (seconds == null ? "" : ", ~" + Math.round(seconds) + " s"));
+    }
+  }
+
+  /**
+   * @return why no backend fits, and what would
+   */
+  String explain(long bins, long samples) {
+    long needed = (long) Math.ceil(getPeakBytes() / HEAP_FRACTION);
+    StringBuilder err = new StringBuilder();
+    err.append("Not enough memory for " + bins + " bins by " + samples + " samples: the "
+               + backend + " backend needs an estimated " + gigabytes(getPeakBytes())
+               + " of heap");
+    String largest = null;
+    for (Entry<String, Long> stage : stageBytes.entrySet()) {
+      if (largest == null || stage.getValue() > stageBytes.get(largest)) {
+        largest = stage.getKey();
+      }
+    }
+    err.append(" (largest stage " + largest + ")");
+    err.append(", but the max heap is " + gigabytes(maxHeap) + " and no other backend fits. ");
+    err.append("Increase the heap to at least -Xmx" + (needed + (1L << 30) - 1 >> 30) + "g");
+    long factor = (long) Math.ceil((double) needed / maxHeap);
+    if (factor > 1) {
+      err.append(", or sample " + factor + " times fewer bins (see --" + CmdLine.NUM_SAMPLE_ARG
+                 + ")");
+    }
+    return err.toString();
+  }
+
+  /**
+   * @return flops of sketching a rows x columns matrix down to l columns
+   */
+  private static double sketchFlops(SKETCH_TYPE sketchType, long rows, long columns, long l) {
+    switch (sketchType) {
+      case DENSE:
+        return 2.0 * rows * columns * l;
+      case SPARSE_SIGN:
+        return 2.0 * rows * columns * Math.min(l, SparseSignSketch.DEFAULT_NONZEROS);
+      case SRHT:
+        long padded = Long.highestOneBit(columns) < columns ? Long.highestOneBit(columns) << 1
+                                                            : columns;
+        return (double) rows * padded * (64 - Long.numberOfLeadingZeros(padded));
+      default:
+        throw new IllegalArgumentException("Invalid sketch type " + sketchType);
+    }
+  }
+
+  /**
+   * The sketch runs on the backend's threads (see {@link LinearAlgebraBackend#parallel}), so like
+   * the kernels it only uses more than one thread with {@link BACKEND#PURE_JAVA}
+   */
+  private static double flopsPerSecond(BACKEND backend, int threads) {
+    switch (backend) {
+      case COMMONS_MATH:
+        return COMMONS_MATH_FLOPS;
+      case EJML:
+        return EJML_FLOPS;
+      case PURE_JAVA:
+        return PURE_JAVA_FLOPS * Math.min(threads, Runtime.getRuntime().availableProcessors());
+      default:
+        throw new IllegalArgumentException("Invalid backend " + backend);
+    }
+  }
+
+  private static int max(int[] values) {
+    int max = Integer.MIN_VALUE;
+    for (int value : values) {
+      max = Math.max(max, value);
+    }
+    return max;
+  }
+
+  private static String gigabytes(long bytes) {
+    return String.format("%.2f GB", bytes / (double) (1L << 30));
+  }
+}
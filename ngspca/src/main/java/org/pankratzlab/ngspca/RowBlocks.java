@@ -0,0 +1,92 @@
+package org.pankratzlab.ngspca;
+
+import java.util.Arrays;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * A matrix that is read in blocks of rows, so that it can be computed lazily (see
+ * {@link LazyLoadings}) and streamed to a writer without holding all of it in memory
+ */
+interface RowBlocks {
+
+  int rows();
+
+  int columns();
+
+  /**
+   * @param start first row
+   * @param end row after the last row
+   * @return rows [start, end), one array per row. Must be safe to call from multiple threads
+   */
+  double[][] getRows(int start, int end);
+
+  /**
+   * @param row
+   * @return a single row
+   */
+  default double[] getRow(int row) {
+    return getRows(row, row + 1)[0];
+  }
+
+  /**
+   * @param start first column
+   * @param end column after the last column
+   * @return columns [start, end) of these {@link RowBlocks}
+   */
+  default RowBlocks selectColumns(int start, int end) {
+    RowBlocks source = this;
+    return new RowBlocks() {
+
+      @Override
+      public int rows() {
+        return source.rows();
+      }
+
+      @Override
+      public int columns() {
+        return end - start;
+      }
+
+      @Override
+      public double[][] getRows(int startRow, int endRow) {
+        double[][] rows = source.getRows(startRow, endRow);
+        for (int i = 0; i < rows.length; i++) {
+          rows[i] = Arrays.copyOfRange(rows[i], start, end);
+        }
+        return rows;
+      }
+    };
+  }
+
+  /**
+   * @param m a {@link RealMatrix} already in memory
+   * @return {@link RowBlocks} reading from m
+   */
+  static RowBlocks of(RealMatrix m) {
+    return new RowBlocks() {
+
+      @Override
+      public int rows() {
+        return m.getRowDimension();
+      }
+
+      @Override
+      public int columns() {
+        return m.getColumnDimension();
+      }
+
+      @Override
+      public double[][] getRows(int start, int end) {
+        if (end <= start || columns() == 0) {
+          return new double[Math.max(0, end - start)][0];
+        }
+        return m.getSubMatrix(start, end - 1, 0, columns() - 1).getData();
+      }
+
+      @Override
+      public double[] getRow(int row) {
+        return m.getRow(row);
+      }
+    };
+  }
+}
@@ -0,0 +1,241 @@
+package org.pankratzlab.ngspca;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.StringJoiner;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Wall time, CPU time, GC time, peak heap and throughput of each pipeline stage, written as JSON
+ * to {@link #FILE} in the output directory. Stages may be nested (e.g. a QR within a subspace
+ * iteration); each stage's numbers include those of the stages it contains
+ */
+class RunMetrics {
+
+  static final String FILE = "run.metrics.json";
+
+  private final List<Stage> stages = new ArrayList<>();
+  private final List<Stage> open = new ArrayList<>();
+  private final Map<String, Object> run = new LinkedHashMap<>();
+  private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+  private final long started = System.nanoTime();
+
+  RunMetrics() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        heapPools.add(pool);
+      }
+    }
+    run.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+    run.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+    run.put("javaVersion", System.getProperty("java.version"));
+  }
+
+  /**
+   * @param key add a property of the whole run (e.g. number of threads or samples)
+   * @param value a {@link Number}, {@link Boolean} or String
+   */
+  synchronized void put(String key, Object value) {
+    run.put(key, value);
+  }
+
+  /**
+   * @param name stage name
+   * @return the started {@link Stage}, which is recorded when closed
+   */
+  synchronized Stage start(String name) {
+    Stage stage = new Stage(name);
+    updatePeaks();
+    for (MemoryPoolMXBean pool : heapPools) {
+      pool.resetPeakUsage();
+    }
+    stages.add(stage);
+    open.add(stage);
+    return stage;
+  }
+
+  private synchronized void stop(Stage stage) {
+    updatePeaks();
+    open.remove(stage);
+  }
+
+  /**
+   * Peaks are reset when a stage starts, so fold the peak so far into every open stage first
+   */
+  private void updatePeaks() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : heapPools) {
+      peak += pool.getPeakUsage().getUsed();
+    }
+    for (Stage stage : open) {
+      stage.peakHeapBytes = Math.max(stage.peakHeapBytes, peak);
+    }
+  }
+
+  /**
+   * A timed stage, see {@link RunMetrics#start(String)}
+   */
+  class Stage implements AutoCloseable {
+
+    private final String name;
+    private final long wallStart;
+    private final long cpuStart;
+    private final long gcStart;
+    private long wallNanos = -1;
+    private long cpuNanos = -1;
+    private long gcMillis = -1;
+    private long peakHeapBytes = 0;
+    private long bytesRead = -1;
+    private long rows = -1;
+    private long columns = -1;
+
+    private Stage(String name) {
+      this.name = name;
+      this.gcStart = gcMillis();
+      this.cpuStart = processCpuNanos();
+      this.wallStart = System.nanoTime();
+    }
+
+    /**
+     * @param bytes number of (possibly compressed) bytes read in this stage
+     * @return this {@link Stage}
+     */
+    Stage bytesRead(long bytes) {
+      this.bytesRead = bytes;
+      return this;
+    }
+
+    /**
+     * @param rows number of matrix rows (bins) processed
+     * @param columns number of matrix columns (samples) processed
+     * @return this {@link Stage}
+     */
+    Stage dimensions(long rows, long columns) {
+      this.rows = rows;
+      this.columns = columns;
+      return this;
+    }
+
+    @Override
+    public void close() {
+      wallNanos = System.nanoTime() - wallStart;
+      long cpu = processCpuNanos();
+      cpuNanos = cpu < 0 || cpuStart < 0 ? -1 : cpu - cpuStart;
+      gcMillis = gcMillis() - gcStart;
+      stop(this);
+    }
+
+    private String toJson() {
+      Map<String, Object> fields = new LinkedHashMap<>();
+      fields.put("name", name);
+      fields.put("wallSeconds", wallNanos / 1e9);
+      fields.put("cpuSeconds", cpuNanos < 0 ? null : cpuNanos / 1e9);
+      fields.put("gcSeconds", gcMillis / 1e3);
+      fields.put("peakHeapBytes", peakHeapBytes);
+      double seconds = Math.max(wallNanos, 1) / 1e9;
+      if (bytesRead >= 0) {
+        fields.put("bytesRead", bytesRead);
+        fields.put("bytesPerSecond", bytesRead / seconds);
+      }
+      if (rows >= 0) {
+        fields.put("rows", rows);
+        fields.put("columns", columns);
+        fields.put("rowsPerSecond", rows / seconds);
+        fields.put("columnsPerSecond", columns / seconds);
+      }
+      return RunMetrics.toJson(fields);
+    }
+  }
+
+  /**
+   * @param file write the recorded stages to this file
+   * @param log
+   */
+  synchronized void write(String file, Logger log) {
+    Map<String, Object> total = new LinkedHashMap<>(run);
+    total.put("wallSeconds", (System.nanoTime() - started) / 1e9);
+    long cpu = processCpuNanos();
+    total.put("cpuSeconds", cpu < 0 ? null : cpu / 1e9);
+    total.put("gcSeconds", gcMillis() / 1e3);
+
+    StringJoiner completed = new StringJoiner(",\n", "[\n", "\n  ]");
+    for (Stage stage : stages) {
+      if (stage.wallNanos >= 0) {
+        completed.add("    " + stage.toJson());
+      }
+    }
+    String json = "{\n  \"run\": " + toJson(total) + ",\n  \"stages\": "
+                  + completed.toString() + "\n}\n";
+    try {
+      FileUtils.writeStringToFile(new File(file), json, StandardCharsets.UTF_8, false);
+    } catch (IOException e) {
+      log.log(Level.SEVERE, "unable to write to file " + file, e);
+    }
+  }
+
+  private static String toJson(Map<String, Object> fields) {
+    StringJoiner joiner = new StringJoiner(", ", "{", "}");
+    for (Entry<String, Object> field : fields.entrySet()) {
+      joiner.add(quote(field.getKey()) + ": " + toJsonValue(field.getValue()));
+    }
+    return joiner.toString();
+  }
+
+  private static String toJsonValue(Object value) {
+    if (value == null) {
+      return "null";
+    } else if (value instanceof Double || value instanceof Float) {
+      double d = ((Number) value).doubleValue();
+      return Double.isFinite(d) ? Double.toString(d) : "null";
+    } else if (value instanceof Number || value instanceof Boolean) {
+      return value.toString();
+    }
+    return quote(value.toString());
+  }
+
+  private static String quote(String value) {
+    StringBuilder builder = new StringBuilder("\"");
+    for (char c : value.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        builder.append('\\').append(c);
+      } else if (c < 0x20) {
+        builder.append(String.format("\\u%04x", (int) c));
+      } else {
+        builder.append(c);
+      }
+    }
+    return builder.append('"').toString();
+  }
+
+  private static long gcMillis() {
+    long total = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      total += Math.max(gc.getCollectionTime(), 0);
+    }
+    return total;
+  }
+
+  /**
+   * @return CPU time of all threads of the JVM, or -1 if not supported
+   */
+  private static long processCpuNanos() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+    }
+    return -1;
+  }
+}
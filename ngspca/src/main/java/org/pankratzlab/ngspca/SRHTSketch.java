@@ -0,0 +1,72 @@
+package org.pankratzlab.ngspca;
+
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * {@link SketchOperator} using a subsampled randomized Hadamard transform, Omega = sqrt(N/l) * D *
+ * H * S, where D flips random signs, H is the normalized Walsh-Hadamard transform of size N (the
+ * number of columns of A padded to a power of 2) and S samples l of the N columns. Each row of A
+ * is transformed in O(N log N) rather than multiplied by a dense n x l matrix
+ */
+class SRHTSketch implements SketchOperator {
+
+  private final long randomSeed;
+
+  /**
+   * @param randomSeed random seed for the signs and sampled columns
+   */
+  SRHTSketch(long randomSeed) {
+    this.randomSeed = randomSeed;
+  }
+
+  @Override
+  public <M> M sketch(LinearAlgebraBackend<M> backend, M A, int columns) {
+    int n = backend.columns(A);
+    int paddedN = Integer.highestOneBit(n);
+    if (paddedN < n) {
+      paddedN <<= 1;
+    }
+    SplittableRandom random = new SplittableRandom(RandomMatrixGenerator.blockSeed(randomSeed, 0));
+    double[] signs = new double[n];
+    for (int j = 0; j < n; j++) {
+      signs[j] = random.nextBoolean() ? 1 : -1;
+    }
+    int[] sampled = SparseSignSketch.sampleWithoutReplacement(random, paddedN, columns);
+    double scale = 1 / Math.sqrt(columns);
+    int transformLength = paddedN;
+
+    double[][] Y = new double[backend.rows(A)][columns];
+    backend.parallel(() -> IntStream.range(0, Y.length).parallel().forEach(row -> {
+      double[] a = backend.getRow(A, row);
+      double[] x = new double[transformLength];
+      for (int j = 0; j < n; j++) {
+        x[j] = a[j] * signs[j];
+      }
+      walshHadamard(x);
+      double[] y = Y[row];
+      for (int c = 0; c < columns; c++) {
+        y[c] = x[sampled[c]] * scale;
+      }
+    }));
+    return backend.fromRows(Y);
+  }
+
+  /**
+   * In place, unnormalized fast Walsh-Hadamard transform
+   * 
+   * @param x array with a power of 2 length
+   */
+  static void walshHadamard(double[] x) {
+    for (int h = 1; h < x.length; h <<= 1) {
+      for (int i = 0; i < x.length; i += h << 1) {
+        for (int j = i; j < i + h; j++) {
+          double u = x[j];
+          double v = x[j + h];
+          x[j] = u + v;
+          x[j + h] = u - v;
+        }
+      }
+    }
+  }
+}
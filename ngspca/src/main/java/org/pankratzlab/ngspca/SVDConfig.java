@@ -0,0 +1,93 @@
+package org.pankratzlab.ngspca;
+
+import java.util.Arrays;
+import org.pankratzlab.ngspca.LinearAlgebraBackend.BACKEND;
+import org.pankratzlab.ngspca.RandomMatrixGenerator.DISTRIBUTION;
+import org.pankratzlab.ngspca.SketchOperator.SKETCH_TYPE;
+
+/**
+ * Settings for the randomized SVD. The number of PCs, iterations and oversamples hold a single
+ * value, unless a parameter sweep was requested
+ */
+class SVDConfig {
+
+  final int[] numPcs;
+  final int[] niters;
+  final int[] numOversamples;
+  final boolean sweep;
+  final int randomSeed;
+  final DISTRIBUTION distribution;
+  final SKETCH_TYPE sketchType;
+  final BACKEND backend;
+  final int threads;
+  final int checkpointEvery;
+  final int compressBits;
+
+  /**
+   * @param numPcs number of PCs to retain in the output file
+   * @param niters number of power (subspace) iterations
+   * @param numOversamples oversampling parameter
+   * @param sweep if true, every combination of numPcs, niters and numOversamples is computed
+   * @param randomSeed random seed for sampling matrix
+   * @param distribution {@link DISTRIBUTION} of the sampling matrix
+   * @param sketchType {@link SKETCH_TYPE} of the sampling matrix
+   * @param backend {@link BACKEND} for the SVD
+   * @param threads number of threads for the SVD
+   * @param checkpointEvery save a {@link SubspaceCheckpoint} every this many iterations, or never
+   *          if < 1
+   * @param compressBits store the normalized matrix as {@link CompressedColumns} of 8 or 16 bits
+   *          per entry during the SVD, or 0 for full precision
+   */
+  SVDConfig(int[] numPcs, int[] niters, int[] numOversamples, boolean sweep, int randomSeed,
+            DISTRIBUTION distribution, SKETCH_TYPE sketchType, BACKEND backend, int threads,
+            int checkpointEvery, int compressBits) {
+    if (!sweep && (numPcs.length != 1 || niters.length != 1 || numOversamples.length != 1)) {
+      throw new IllegalArgumentException("Multiple values for the number of PCs, iterations or oversamples require a parameter sweep");
+    }
+    if (compressBits != 0 && compressBits != 8 && compressBits != 16) {
+      throw new IllegalArgumentException("Invalid number of bits per compressed entry "
+                                         + compressBits + ", must be 0 (none), 8 or 16");
+    }
+    this.numPcs = numPcs;
+    this.niters = niters;
+    this.numOversamples = numOversamples;
+    this.sweep = sweep;
+    this.randomSeed = randomSeed;
+    this.distribution = distribution;
+    this.sketchType = sketchType;
+    this.backend = backend;
+    this.threads = threads;
+    this.checkpointEvery = checkpointEvery;
+    this.compressBits = compressBits;
+  }
+
+  /**
+   * @param other a different {@link BACKEND}
+   * @return a copy of this {@link SVDConfig} using the other backend
+   */
+  SVDConfig withBackend(BACKEND other) {
+    return new SVDConfig(numPcs, niters, numOversamples, sweep, randomSeed, distribution,
+                         sketchType, other, threads, checkpointEvery, compressBits);
+  }
+
+  int getNumPcs() {
+    return numPcs[0];
+  }
+
+  int getNiters() {
+    return niters[0];
+  }
+
+  int getNumOversamples() {
+    return numOversamples[0];
+  }
+
+  /**
+   * @param values comma separated integers
+   * @return the parsed values
+   */
+  static int[] parseList(String values) {
+    return Arrays.stream(values.split(",")).map(String::trim).mapToInt(Integer::parseInt)
+                 .toArray();
+  }
+}
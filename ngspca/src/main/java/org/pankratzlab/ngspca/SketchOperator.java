@@ -0,0 +1,57 @@
+package org.pankratzlab.ngspca;
+
+import org.pankratzlab.ngspca.RandomMatrixGenerator.DISTRIBUTION;
+
+/**
+ * Computes the initial sketch Y = A * Omega of the randomized range finder, for some random test
+ * matrix Omega with as many rows as A has columns and the requested number of columns.
+ * Implementations differ only in the structure of Omega.
+ */
+interface SketchOperator {
+
+  /**
+   * Structure of the random test matrix
+   */
+  enum SKETCH_TYPE {
+    /**
+     * Dense Omega, with entries from a {@link DISTRIBUTION}
+     */
+    DENSE,
+    /**
+     * Sparse sign Omega, with a few +/- entries per row
+     */
+    SPARSE_SIGN,
+    /**
+     * Subsampled randomized Hadamard transform
+     */
+    SRHT;
+  }
+
+  /**
+   * @param backend the {@link LinearAlgebraBackend} holding A
+   * @param A the matrix to sketch
+   * @param columns number of columns in the sketch
+   * @return A * Omega
+   */
+  <M> M sketch(LinearAlgebraBackend<M> backend, M A, int columns);
+
+  /**
+   * @param type {@link SKETCH_TYPE} to create
+   * @param distribution {@link DISTRIBUTION} of the entries, only used by
+   *          {@link SKETCH_TYPE#DENSE}
+   * @param randomSeed random seed for Omega
+   * @return the {@link SketchOperator}
+   */
+  static SketchOperator create(SKETCH_TYPE type, DISTRIBUTION distribution, long randomSeed) {
+    switch (type) {
+      case DENSE:
+        return new DenseSketch(distribution, randomSeed);
+      case SPARSE_SIGN:
+        return new SparseSignSketch(randomSeed);
+      case SRHT:
+        return new SRHTSketch(randomSeed);
+      default:
+        throw new IllegalArgumentException("Invalid sketch type " + type);
+    }
+  }
+}
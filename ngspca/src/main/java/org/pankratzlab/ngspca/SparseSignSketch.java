@@ -0,0 +1,82 @@
+package org.pankratzlab.ngspca;
+
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * {@link SketchOperator} using a sparse sign matrix. Each row of Omega holds a few entries of
+ * +/-1/sqrt(nonzeros) in distinct random columns, so the sketch costs O(nnz(A) * nonzeros) instead
+ * of a dense multiply
+ */
+class SparseSignSketch implements SketchOperator {
+
+  /**
+   * Number of nonzero entries per row of Omega
+   */
+  static final int DEFAULT_NONZEROS = 8;
+
+  private final long randomSeed;
+
+  /**
+   * @param randomSeed random seed for Omega
+   */
+  SparseSignSketch(long randomSeed) {
+    this.randomSeed = randomSeed;
+  }
+
+  @Override
+  public <M> M sketch(LinearAlgebraBackend<M> backend, M A, int columns) {
+    int n = backend.columns(A);
+    int nonzeros = Math.min(columns, DEFAULT_NONZEROS);
+    double value = 1 / Math.sqrt(nonzeros);
+    int[][] omegaColumns = new int[n][];
+    double[][] omegaValues = new double[n][];
+    double[][] Y = new double[backend.rows(A)][columns];
+    backend.parallel(() -> {
+      // Omega is generated row by row from independent streams, reproducible for any thread count
+      IntStream.range(0, n).parallel().forEach(row -> {
+        SplittableRandom random = new SplittableRandom(RandomMatrixGenerator.blockSeed(randomSeed,
+                                                                                       row));
+        omegaColumns[row] = sampleWithoutReplacement(random, columns, nonzeros);
+        omegaValues[row] = new double[nonzeros];
+        for (int i = 0; i < nonzeros; i++) {
+          omegaValues[row][i] = random.nextBoolean() ? value : -value;
+        }
+      });
+      IntStream.range(0, Y.length).parallel().forEach(row -> {
+        double[] a = backend.getRow(A, row);
+        double[] y = Y[row];
+        for (int j = 0; j < n; j++) {
+          double aj = a[j];
+          if (aj != 0) {
+            int[] cols = omegaColumns[j];
+            double[] vals = omegaValues[j];
+            for (int i = 0; i < cols.length; i++) {
+              y[cols[i]] += aj * vals[i];
+            }
+          }
+        }
+      });
+    });
+    return backend.fromRows(Y);
+  }
+
+  /**
+   * @return num distinct values from [0, bound), via a partial Fisher-Yates shuffle
+   */
+  static int[] sampleWithoutReplacement(SplittableRandom random, int bound, int num) {
+    int[] pool = new int[bound];
+    for (int i = 0; i < bound; i++) {
+      pool[i] = i;
+    }
+    int[] sample = new int[num];
+    for (int i = 0; i < num; i++) {
+      int pick = i + random.nextInt(bound - i);
+      int tmp = pool[pick];
+      pool[pick] = pool[i];
+      pool[i] = tmp;
+      sample[i] = tmp;
+    }
+    return sample;
+  }
+}
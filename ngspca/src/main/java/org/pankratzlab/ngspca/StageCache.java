@@ -0,0 +1,196 @@
+package org.pankratzlab.ngspca;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Manifest of the intermediate files in the output directory (selected regions, raw matrix,
+ * normalized matrix and SVD results), each stored with a key that fingerprints everything the stage
+ * was computed from. A stage is reused only if its key is unchanged and its files exist, otherwise
+ * it is recomputed.
+ * <p>
+ * Each key includes the key of the stage it was computed from, so a change to an input (the input
+ * files' paths, sizes and modification times, the exclusion bed's contents, the region strategy,
+ * sampling, normalization or SVD settings) invalidates every later stage
+ */
+class StageCache {
+
+  static final String FILE = "tmp.manifest.txt";
+
+  /**
+   * The cached stages
+   */
+  enum STAGE {
+    REGIONS, RAW, NORMALIZED, SVD;
+  }
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final String manifest;
+  private final Map<STAGE, String> keys = new LinkedHashMap<>();
+  private final Logger log;
+
+  /**
+   * @param outputDir the manifest is stored in this directory
+   * @param overwrite ignore any existing manifest, so that every stage is recomputed
+   * @param log
+   */
+  StageCache(String outputDir, boolean overwrite, Logger log) {
+    this.manifest = outputDir + FILE;
+    this.log = log;
+    if (!overwrite && FileOps.fileExists(manifest)) {
+      try {
+        for (String line : Files.readAllLines(Paths.get(manifest), StandardCharsets.UTF_8)) {
+          String[] entry = line.split("\t");
+          if (entry.length == 2) {
+            keys.put(STAGE.valueOf(entry[0]), entry[1]);
+          }
+        }
+      } catch (IOException | IllegalArgumentException e) {
+        log.log(Level.WARNING, "unable to read " + manifest + ", recomputing all stages", e);
+        keys.clear();
+      }
+    }
+  }
+
+  /**
+   * @param stage the {@link STAGE}
+   * @param key the current key of the stage
+   * @param files the stage's files
+   * @return true if the stage was stored with this key and all of its files exist
+   */
+  boolean isValid(STAGE stage, String key, String... files) {
+    if (!key.equals(keys.get(stage))) {
+      if (keys.containsKey(stage)) {
+        log.info("Inputs or settings of the " + stage + " stage changed, recomputing");
+      }
+      return false;
+    }
+    for (String file : files) {
+      if (!FileOps.fileExists(file)) {
+        log.info(file + " is missing, recomputing the " + stage + " stage");
+        return false;
+      }
+    }
+    log.info("Reusing the " + stage + " stage, its inputs and settings are unchanged");
+    return true;
+  }
+
+  /**
+   * Remove a stage before its files are rewritten, so that an interrupted stage is never reused
+   *
+   * @param stage the {@link STAGE}
+   */
+  void invalidate(STAGE stage) {
+    if (keys.remove(stage) != null) {
+      write();
+    }
+  }
+
+  /**
+   * @param stage the {@link STAGE}, once all of its files have been written
+   * @param key the key it was computed with
+   */
+  void store(STAGE stage, String key) {
+    keys.put(stage, key);
+    write();
+  }
+
+  private void write() {
+    List<String> lines = new ArrayList<>();
+    for (Entry<STAGE, String> entry : keys.entrySet()) {
+      lines.add(entry.getKey() + "\t" + entry.getValue());
+    }
+    Path file = Paths.get(manifest);
+    Path tmp = Paths.get(manifest + ".tmp");
+    try {
+      Files.write(tmp, lines, StandardCharsets.UTF_8);
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.log(Level.WARNING, "unable to write " + manifest, e);
+    }
+  }
+
+  /**
+   * @param parts the previous stage's key and the settings of this stage
+   * @return SHA-256 hex digest of the parts
+   */
+  static String key(Object... parts) {
+    MessageDigest digest = sha256();
+    for (Object part : parts) {
+      digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) '\n');
+    }
+    return hex(digest.digest());
+  }
+
+  /**
+   * @param files input files
+   * @return path, size and modification time of each file, in order
+   */
+  static String describeFiles(List<String> files) {
+    StringBuilder description = new StringBuilder();
+    for (String file : files) {
+      File f = new File(file);
+      description.append(f.getAbsolutePath()).append('\t').append(f.length()).append('\t')
+                 .append(f.lastModified()).append('\n');
+    }
+    return description.toString();
+  }
+
+  /**
+   * @param file a (small) file such as the exclusion bed, may be null
+   * @param log
+   * @return SHA-256 hex digest of the file's contents, or "none" if there is no file
+   */
+  static String hashContents(String file, Logger log) {
+    if (file == null || !FileOps.fileExists(file)) {
+      return "none";
+    }
+    MessageDigest digest = sha256();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (InputStream in = Files.newInputStream(Paths.get(file))) {
+      for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+        digest.update(buffer, 0, read);
+      }
+    } catch (IOException e) {
+      log.log(Level.WARNING, "unable to read " + file + ", using its size and modification time",
+              e);
+      return key(describeFiles(Collections.singletonList(file)));
+    }
+    return hex(digest.digest());
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM must provide SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
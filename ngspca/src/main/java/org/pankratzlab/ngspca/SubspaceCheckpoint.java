@@ -0,0 +1,211 @@
+package org.pankratzlab.ngspca;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * Saves the range finder panel Y of a {@link RandomizedSVD} every few subspace iterations, so that a
+ * preempted run can continue from the last saved iteration. The panel and the iteration count are
+ * written as raw doubles to a temporary file that is then atomically renamed over the previous
+ * checkpoint, so a checkpoint is either complete or absent.
+ * <p>
+ * A checkpoint is only resumed by a run with the same fingerprint (input data, seed, sampling
+ * matrix and backend), so the resumed run produces the same results as an uninterrupted one
+ */
+class SubspaceCheckpoint {
+
+  static final String PREFIX = "svd.checkpoint.";
+  static final String EXTENSION = ".bin";
+
+  private static final long MAGIC = 0x4E47535043414B31L;
+  /**
+   * Rows of the input sampled for the fingerprint
+   */
+  private static final int FINGERPRINT_ROWS = 1024;
+  private static final int BUFFER_SIZE = 1 << 20;
+
+  private final String directory;
+  private final int every;
+
+  /**
+   * @param directory checkpoints are written to this directory
+   * @param every save a checkpoint every this many iterations, or never if < 1
+   */
+  SubspaceCheckpoint(String directory, int every) {
+    this.directory = directory;
+    this.every = every;
+  }
+
+  /**
+   * @return a {@link SubspaceCheckpoint} that never saves or resumes
+   */
+  static SubspaceCheckpoint none() {
+    return new SubspaceCheckpoint(null, 0);
+  }
+
+  boolean isEnabled() {
+    return every > 0 && directory != null;
+  }
+
+  /**
+   * @param iteration number of completed iterations
+   * @return true if a checkpoint should be saved after this iteration
+   */
+  boolean isDue(int iteration) {
+    return isEnabled() && iteration % every == 0;
+  }
+
+  /**
+   * A saved panel
+   */
+  static class State {
+
+    final int iteration;
+    final double[][] rows;
+
+    private State(int iteration, double[][] rows) {
+      this.iteration = iteration;
+      this.rows = rows;
+    }
+  }
+
+  /**
+   * @param A the input matrix
+   * @param settings everything else that determines the iterations (seed, sampling matrix and
+   *          backend)
+   * @return fingerprint of the input and settings
+   */
+  static long fingerprint(RealMatrix A, Object... settings) {
+    long hash = 1125899906842597L;
+    hash = 31 * hash + A.getRowDimension();
+    hash = 31 * hash + A.getColumnDimension();
+    int stride = Math.max(1, A.getRowDimension() / FINGERPRINT_ROWS);
+    for (int row = 0; row < A.getRowDimension(); row += stride) {
+      for (double value : A.getRow(row)) {
+        hash = 31 * hash + Double.doubleToLongBits(value);
+      }
+    }
+    for (Object setting : settings) {
+      hash = 31 * hash + String.valueOf(setting).hashCode();
+    }
+    return hash;
+  }
+
+  private Path getFile(int sketchColumns) {
+    return Paths.get(directory, PREFIX + sketchColumns + EXTENSION);
+  }
+
+  /**
+   * @param fingerprint see {@link #fingerprint(RealMatrix, Object...)}
+   * @param iteration number of completed iterations
+   * @param rows the panel Y, one array per row
+   * @param log
+   */
+  void save(long fingerprint, int iteration, double[][] rows, Logger log) {
+    int columns = rows.length == 0 ? 0 : rows[0].length;
+    Path file = getFile(columns);
+    Path tmp = Paths.get(file + ".tmp");
+    log.info("Saving iteration " + iteration + " checkpoint to " + file);
+    CRC32 crc = new CRC32();
+    try (BufferedOutputStream buffered = new BufferedOutputStream(Files.newOutputStream(tmp),
+                                                                  BUFFER_SIZE);
+         DataOutputStream out = new DataOutputStream(new CheckedOutputStream(buffered, crc))) {
+      out.writeLong(MAGIC);
+      out.writeLong(fingerprint);
+      out.writeInt(iteration);
+      out.writeInt(rows.length);
+      out.writeInt(columns);
+      ByteBuffer buffer = ByteBuffer.allocate(columns * Double.BYTES);
+      for (double[] row : rows) {
+        buffer.clear();
+        buffer.asDoubleBuffer().put(row);
+        out.write(buffer.array());
+      }
+      out.writeLong(crc.getValue());
+    } catch (IOException e) {
+      log.log(Level.WARNING, "unable to write checkpoint " + tmp, e);
+      return;
+    }
+    try {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.log(Level.WARNING, "unable to move checkpoint to " + file, e);
+    }
+  }
+
+  /**
+   * @param fingerprint see {@link #fingerprint(RealMatrix, Object...)}
+   * @param rows expected rows of the panel
+   * @param sketchColumns expected columns of the panel
+   * @param maxIteration only resume a checkpoint that has not gone past this iteration
+   * @param log
+   * @return the saved {@link State}, or null if there is no matching checkpoint
+   */
+  State load(long fingerprint, int rows, int sketchColumns, int maxIteration, Logger log) {
+    if (!isEnabled()) {
+      return null;
+    }
+    Path file = getFile(sketchColumns);
+    if (!Files.exists(file)) {
+      return null;
+    }
+    CRC32 crc = new CRC32();
+    try (BufferedInputStream buffered = new BufferedInputStream(Files.newInputStream(file),
+                                                                BUFFER_SIZE);
+         DataInputStream in = new DataInputStream(new CheckedInputStream(buffered, crc))) {
+      if (in.readLong() != MAGIC || in.readLong() != fingerprint) {
+        log.warning("Ignoring checkpoint " + file + " from a different input or settings");
+        return null;
+      }
+      int iteration = in.readInt();
+      if (in.readInt() != rows || in.readInt() != sketchColumns) {
+        log.warning("Ignoring checkpoint " + file + " with unexpected dimensions");
+        return null;
+      }
+      if (iteration > maxIteration) {
+        log.info("Ignoring checkpoint " + file + " at iteration " + iteration + ", past "
+                 + maxIteration);
+        return null;
+      }
+      double[][] panel = new double[rows][sketchColumns];
+      byte[] bytes = new byte[sketchColumns * Double.BYTES];
+      for (double[] row : panel) {
+        in.readFully(bytes);
+        ByteBuffer.wrap(bytes).asDoubleBuffer().get(row);
+      }
+      long expected = crc.getValue();
+      if (in.readLong() != expected) {
+        log.warning("Ignoring corrupt checkpoint " + file);
+        return null;
+      }
+      log.info("Resuming from iteration " + iteration + " checkpoint " + file);
+      return new State(iteration, panel);
+    } catch (IOException e) {
+      log.log(Level.WARNING, "unable to read checkpoint " + file, e);
+      return null;
+    }
+  }
+
+  /**
+   * @param sketchColumns remove the checkpoint of a finished panel with this many columns
+   */
+  void delete(int sketchColumns) {
+    if (isEnabled()) {
+      getFile(sketchColumns).toFile().delete();
+    }
+  }
+}
@@ -0,0 +1,477 @@
+package org.pankratzlab.ngspca;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.StringJoiner;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.io.FileUtils;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+/**
+ * Writes a synthetic cohort of mosdepth *{@link MosdepthUtils#MOSDEPHT_BED_EXT} files (BGZF, fixed
+ * width bins over the GRCh38 autosomes), for scale and accuracy testing without real data.
+ * <p>
+ * The mean depth of bin b in sample s is depth * scale(s) * baseline(b) * exp(sum_r l_r(b) *
+ * f_r(s)) * cnv(b, s), observed with read counting noise. After the fold change and median
+ * centering of {@link NormalizationOperations} the planted factors f (batch centroid plus a sample
+ * specific part) are the low rank structure the PCs should recover, and are written to
+ * {@link #TRUTH_FILE}. Bin loadings l vary smoothly along the genome, some bins have no coverage
+ * (baseline 0) and each sample carries a Poisson number of CNV-like segments, listed in
+ * {@link #CNV_FILE}
+ */
+class SyntheticCohort {
+
+  static final String SAMPLES_ARG = "samples";
+  static final String DEPTH_ARG = "depth";
+  static final String RANK_ARG = "rank";
+  static final String BATCHES_ARG = "batches";
+  static final String BATCH_EFFECT_ARG = "batchEffect";
+  static final String CNV_RATE_ARG = "cnvRate";
+  static final String BIN_SIZE_ARG = "binSize";
+  static final String CHROMOSOMES_ARG = "chromosomes";
+
+  static final double DEFAULT_DEPTH = 30;
+  static final int DEFAULT_RANK = 3;
+  static final int DEFAULT_BATCHES = 4;
+  static final double DEFAULT_BATCH_EFFECT = 0.1;
+  static final double DEFAULT_CNV_RATE = 2;
+  static final int DEFAULT_BIN_SIZE = 1000;
+
+  static final String TRUTH_FILE = "synthetic.truth.txt";
+  static final String CNV_FILE = "synthetic.cnv.txt";
+
+  static final String[] GRCH38_AUTOSOMES = new String[22];
+  static final int[] GRCH38_AUTOSOME_LENGTHS = {248956422, 242193529, 198295559, 190214555,
+                                                181538259, 170805979, 159345973, 145138636,
+                                                138394717, 133797422, 135086622, 133275309,
+                                                114364328, 107043718, 101991189, 90338345,
+                                                83257441, 80373285, 58617616, 64444167, 46709983,
+                                                50818468};
+
+  static {
+    for (int i = 0; i < GRCH38_AUTOSOMES.length; i++) {
+      GRCH38_AUTOSOMES[i] = "chr" + (i + 1);
+    }
+  }
+
+  /**
+   * Reads per bp of depth assumed for the counting noise
+   */
+  private static final int READ_LENGTH = 150;
+  /**
+   * Bin loadings are constant over segments of this many bins, plus per-bin noise
+   */
+  private static final int LOADING_SEGMENT_BINS = 100;
+  private static final double NO_COVERAGE_FRACTION = 0.01;
+  private static final double SAMPLE_SCALE_SD = 0.2;
+  private static final double BASELINE_SD = 0.2;
+  private static final int MEAN_CNV_BINS = 50;
+  private static final double[] CNV_RATIOS = {0, 0.5, 1.5, 2};
+  private static final int WRITE_BUFFER = 1 << 16;
+
+  private final List<String> chromosomes;
+  private final int[] lengths;
+  /**
+   * Index of the first bin of each chromosome, and the total number of bins at the end
+   */
+  private final int[] binOffsets;
+  private final int binSize;
+  private final double depth;
+  private final int numBatches;
+  private final double batchEffect;
+  private final double cnvRate;
+  private final long seed;
+  private final float[] baseline;
+  private final float[][] loadings;
+  private final double[][] batchCentroids;
+
+  /**
+   * @param chromosomes GRCh38 autosomes to generate bins for
+   * @param binSize bin width in bp
+   * @param depth mean depth
+   * @param rank number of planted factors
+   * @param numBatches number of batches, each with its own factor centroid
+   * @param batchEffect standard deviation of the planted effects on log depth
+   * @param cnvRate mean number of CNV-like segments per sample
+   * @param seed random seed, the cohort is reproducible for a seed and sample count
+   */
+  SyntheticCohort(List<String> chromosomes, int binSize, double depth, int rank, int numBatches,
+                  double batchEffect, double cnvRate, long seed) {
+    if (binSize < 1 || depth <= 0 || rank < 0 || numBatches < 1 || batchEffect < 0
+        || cnvRate < 0) {
+      throw new IllegalArgumentException("Invalid synthetic cohort parameters");
+    }
+    this.chromosomes = chromosomes;
+    this.lengths = new int[chromosomes.size()];
+    this.binOffsets = new int[chromosomes.size() + 1];
+    for (int i = 0; i < chromosomes.size(); i++) {
+      int autosome = Arrays.asList(GRCH38_AUTOSOMES).indexOf(chromosomes.get(i));
+      if (autosome < 0) {
+        throw new IllegalArgumentException("Invalid GRCh38 autosome " + chromosomes.get(i));
+      }
+      lengths[i] = GRCH38_AUTOSOME_LENGTHS[autosome];
+      binOffsets[i + 1] = binOffsets[i] + (lengths[i] + binSize - 1) / binSize;
+    }
+    this.binSize = binSize;
+    this.depth = depth;
+    this.numBatches = numBatches;
+    this.batchEffect = batchEffect;
+    this.cnvRate = cnvRate;
+    this.seed = seed;
+
+    int bins = binOffsets[chromosomes.size()];
+    Random random = new Random(seed);
+    this.baseline = new float[bins];
+    for (int bin = 0; bin < bins; bin++) {
+      double mappable = random.nextDouble() < NO_COVERAGE_FRACTION ? 0 : 1;
+      baseline[bin] = (float) (mappable * Math.exp(BASELINE_SD * random.nextGaussian()));
+    }
+    this.loadings = new float[rank][bins];
+    for (float[] loading : loadings) {
+      double segment = 0;
+      for (int bin = 0; bin < bins; bin++) {
+        if (bin % LOADING_SEGMENT_BINS == 0) {
+          segment = random.nextGaussian();
+        }
+        // unit variance overall
+        loading[bin] = (float) ((segment + 0.5 * random.nextGaussian()) / Math.sqrt(1.25));
+      }
+    }
+    this.batchCentroids = new double[numBatches][rank];
+    for (double[] centroid : batchCentroids) {
+      for (int factor = 0; factor < rank; factor++) {
+        centroid[factor] = batchEffect * random.nextGaussian();
+      }
+    }
+  }
+
+  /**
+   * @return number of bins in each sample
+   */
+  int getNumBins() {
+    return binOffsets[chromosomes.size()];
+  }
+
+  /**
+   * @param sample
+   * @return name of the sample's file, which NGSPCA maps back to the sample name
+   */
+  static String getFileName(int sample) {
+    return getSampleName(sample) + MosdepthUtils.MOSDEPHT_BED_EXT;
+  }
+
+  /**
+   * @param sample
+   * @return sample name, as parsed from the file name by NGSPCA
+   */
+  static String getSampleName(int sample) {
+    return String.format("SYNTH%06d.", sample + 1);
+  }
+
+  /**
+   * The planted parameters of one sample
+   */
+  private static class SyntheticSample {
+
+    final int sample;
+    final int batch;
+    final double scale;
+    final double[] factors;
+    final int[] cnvStarts;
+    final int[] cnvEnds;
+    final double[] cnvRatios;
+
+    private SyntheticSample(int sample, int batch, double scale, double[] factors,
+                            int[] cnvStarts, int[] cnvEnds, double[] cnvRatios) {
+      this.sample = sample;
+      this.batch = batch;
+      this.scale = scale;
+      this.factors = factors;
+      this.cnvStarts = cnvStarts;
+      this.cnvEnds = cnvEnds;
+      this.cnvRatios = cnvRatios;
+    }
+  }
+
+  /**
+   * @param outputDir the sample files, {@link #TRUTH_FILE} and {@link #CNV_FILE} are written here
+   * @param numSamples number of samples to generate
+   * @param threads number of samples written in parallel
+   * @param log
+   */
+  void generate(String outputDir, int numSamples, int threads, Logger log) {
+    new File(outputDir).mkdirs();
+    log.info("Generating " + numSamples + " synthetic samples of " + getNumBins() + " bins in "
+             + outputDir);
+
+    StringJoiner truth = new StringJoiner("\n");
+    StringJoiner header = new StringJoiner("\t");
+    header.add("SAMPLE").add("BATCH").add("DEPTH_SCALE").add("NUM_CNV");
+    for (int factor = 0; factor < loadings.length; factor++) {
+      header.add("FACTOR" + (factor + 1));
+    }
+    truth.add(header.toString());
+    StringJoiner cnvs = new StringJoiner("\n");
+    cnvs.add("SAMPLE\tCHROM\tSTART\tEND\tRATIO");
+
+    //    https://dzone.com/articles/the-evolution-of-producer-consumer-problem-in-java
+    BlockingQueue<Future<SyntheticSample>> blockingQueue = new LinkedBlockingDeque<>(threads);
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 2));
+
+    Runnable producerTask = () -> {
+      try {
+        for (int sample = 0; sample < numSamples; sample++) {
+          int current = sample;
+          blockingQueue.put(executor.submit(() -> writeSample(outputDir, current)));
+        }
+      } catch (InterruptedException e) {
+        log.severe(e.getMessage());
+      }
+    };
+
+    executor.submit(producerTask);
+    try {
+      for (int sample = 0; sample < numSamples; sample++) {
+        SyntheticSample current = blockingQueue.take().get();
+        StringJoiner line = new StringJoiner("\t");
+        line.add(getSampleName(current.sample)).add(Integer.toString(current.batch + 1))
+            .add(Double.toString(current.scale))
+            .add(Integer.toString(current.cnvStarts.length));
+        for (double factor : current.factors) {
+          line.add(Double.toString(factor));
+        }
+        truth.add(line.toString());
+        for (int cnv = 0; cnv < current.cnvStarts.length; cnv++) {
+          int chromosome = getChromosome(current.cnvStarts[cnv]);
+          int start = (current.cnvStarts[cnv] - binOffsets[chromosome]) * binSize;
+          int end = Math.min((current.cnvEnds[cnv] - binOffsets[chromosome]) * binSize,
+                             lengths[chromosome]);
+          cnvs.add(getSampleName(current.sample) + "\t" + chromosomes.get(chromosome) + "\t"
+                   + start + "\t" + end + "\t" + current.cnvRatios[cnv]);
+        }
+        if (sample == 0 || (sample + 1) % 200 == 0) {
+          log.info("Wrote synthetic sample " + (sample + 1));
+        }
+      }
+    } catch (InterruptedException e) {
+      log.severe(e.getMessage());
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      log.log(Level.SEVERE, "Could not write synthetic sample", e);
+      throw new IllegalStateException(e);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    try {
+      FileUtils.writeStringToFile(new File(outputDir + TRUTH_FILE), truth.toString(),
+                                  Charset.defaultCharset(), false);
+      FileUtils.writeStringToFile(new File(outputDir + CNV_FILE), cnvs.toString(),
+                                  Charset.defaultCharset(), false);
+    } catch (IOException e) {
+      log.log(Level.SEVERE, "unable to write to " + outputDir, e);
+    }
+  }
+
+  private SyntheticSample writeSample(String outputDir, int sample) {
+    // independent of the number of threads and the order samples are written in
+    Random random = new Random(seed + 0x9E3779B97F4A7C15L * (sample + 1));
+    int batch = random.nextInt(numBatches);
+    double scale = Math.exp(SAMPLE_SCALE_SD * random.nextGaussian());
+    double[] factors = new double[loadings.length];
+    for (int factor = 0; factor < factors.length; factor++) {
+      factors[factor] = batchCentroids[batch][factor]
+                        + 0.5 * batchEffect * random.nextGaussian();
+    }
+    int numCnvs = nextPoisson(random, cnvRate);
+    int[] cnvStarts = new int[numCnvs];
+    int[] cnvEnds = new int[numCnvs];
+    double[] cnvRatios = new double[numCnvs];
+    for (int cnv = 0; cnv < numCnvs; cnv++) {
+      cnvStarts[cnv] = random.nextInt(getNumBins());
+      int length = 1 + (int) (-MEAN_CNV_BINS * Math.log(1 - random.nextDouble()));
+      // CNVs do not cross chromosomes
+      cnvEnds[cnv] = Math.min(cnvStarts[cnv] + length,
+                              binOffsets[getChromosome(cnvStarts[cnv]) + 1]);
+      cnvRatios[cnv] = CNV_RATIOS[random.nextInt(CNV_RATIOS.length)];
+    }
+
+    String file = outputDir + getFileName(sample);
+    byte[] buffer = new byte[WRITE_BUFFER];
+    try (OutputStream out = new BlockCompressedOutputStream(file)) {
+      int position = 0;
+      for (int chromosome = 0; chromosome < chromosomes.size(); chromosome++) {
+        byte[] contig = (chromosomes.get(chromosome) + "\t").getBytes(Charset.defaultCharset());
+        for (int bin = binOffsets[chromosome]; bin < binOffsets[chromosome + 1]; bin++) {
+          if (position > WRITE_BUFFER - 64) {
+            out.write(buffer, 0, position);
+            position = 0;
+          }
+          double effect = 0;
+          for (int factor = 0; factor < factors.length; factor++) {
+            effect += loadings[factor][bin] * factors[factor];
+          }
+          double mean = depth * scale * baseline[bin] * Math.exp(effect);
+          for (int cnv = 0; cnv < numCnvs; cnv++) {
+            if (bin >= cnvStarts[cnv] && bin < cnvEnds[cnv]) {
+              mean *= cnvRatios[cnv];
+            }
+          }
+          int start = (bin - binOffsets[chromosome]) * binSize;
+          int end = Math.min(start + binSize, lengths[chromosome]);
+          // read counts are ~Poisson(mean * width / READ_LENGTH)
+          double observed = mean + Math.sqrt(mean * READ_LENGTH / (end - start))
+                                   * random.nextGaussian();
+
+          System.arraycopy(contig, 0, buffer, position, contig.length);
+          position += contig.length;
+          position = appendInt(start, buffer, position);
+          buffer[position++] = '\t';
+          position = appendInt(end, buffer, position);
+          buffer[position++] = '\t';
+          position = appendDepth(Math.max(observed, 0), buffer, position);
+          buffer[position++] = '\n';
+        }
+      }
+      out.write(buffer, 0, position);
+    } catch (IOException e) {
+      throw new UncheckedIOException("unable to write to " + file, e);
+    }
+    return new SyntheticSample(sample, batch, scale, factors, cnvStarts, cnvEnds, cnvRatios);
+  }
+
+  private int getChromosome(int bin) {
+    int chromosome = Arrays.binarySearch(binOffsets, bin);
+    return chromosome >= 0 ? chromosome : -chromosome - 2;
+  }
+
+  private static int nextPoisson(Random random, double mean) {
+    double limit = Math.exp(-mean);
+    int count = 0;
+    for (double product = random.nextDouble(); product > limit; product *= random.nextDouble()) {
+      count++;
+    }
+    return count;
+  }
+
+  private static int appendInt(long value, byte[] buffer, int position) {
+    int length = 1;
+    for (long limit = 10; value >= limit; limit *= 10) {
+      length++;
+    }
+    for (int i = position + length - 1; i >= position; i--) {
+      buffer[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    return position + length;
+  }
+
+  /**
+   * mosdepth's "%.2f"
+   */
+  private static int appendDepth(double value, byte[] buffer, int position) {
+    long hundredths = Math.round(value * 100);
+    position = appendInt(hundredths / 100, buffer, position);
+    buffer[position++] = '.';
+    buffer[position++] = (byte) ('0' + hundredths / 10 % 10);
+    buffer[position++] = (byte) ('0' + hundredths % 10);
+    return position;
+  }
+
+  static Options generateOptions() {
+    Options options = new Options();
+    options.addOption(Option.builder("h").longOpt(CmdLine.HELP)
+                            .desc("Print application usage and exit").hasArg(false)
+                            .required(false).build());
+    options.addOption(Option.builder("o").hasArg(true).longOpt(CmdLine.OUTPUT_DIR_ARG)
+                            .desc("Directory to write the synthetic mosdepth files to")
+                            .required(true).build());
+    options.addOption(Option.builder(SAMPLES_ARG).hasArg(true).longOpt(SAMPLES_ARG)
+                            .desc("Number of samples to generate").required(true).build());
+    options.addOption(Option.builder(DEPTH_ARG).hasArg(true).longOpt(DEPTH_ARG)
+                            .desc("Mean depth. Default is " + DEFAULT_DEPTH).required(false)
+                            .build());
+    options.addOption(Option.builder(RANK_ARG).hasArg(true).longOpt(RANK_ARG)
+                            .desc("Number of planted factors. Default is " + DEFAULT_RANK)
+                            .required(false).build());
+    options.addOption(Option.builder(BATCHES_ARG).hasArg(true).longOpt(BATCHES_ARG)
+                            .desc("Number of batches, each with its own factor centroid. Default is "
+                                  + DEFAULT_BATCHES)
+                            .required(false).build());
+    options.addOption(Option.builder(BATCH_EFFECT_ARG).hasArg(true).longOpt(BATCH_EFFECT_ARG)
+                            .desc("Standard deviation of the planted effects on log depth. Default is "
+                                  + DEFAULT_BATCH_EFFECT)
+                            .required(false).build());
+    options.addOption(Option.builder(CNV_RATE_ARG).hasArg(true).longOpt(CNV_RATE_ARG)
+                            .desc("Mean number of CNV-like segments per sample. Default is "
+                                  + DEFAULT_CNV_RATE)
+                            .required(false).build());
+    options.addOption(Option.builder(BIN_SIZE_ARG).hasArg(true).longOpt(BIN_SIZE_ARG)
+                            .desc("Bin width in bp. Default is " + DEFAULT_BIN_SIZE)
+                            .required(false).build());
+    options.addOption(Option.builder(CHROMOSOMES_ARG).hasArg(true).longOpt(CHROMOSOMES_ARG)
+                            .desc("Comma separated GRCh38 autosomes to generate. Default is all")
+                            .required(false).build());
+    options.addOption(Option.builder(CmdLine.RANDOM_SEED).hasArg(true)
+                            .longOpt(CmdLine.RANDOM_SEED)
+                            .desc("Random seed. Default is " + CmdLine.DEFAULT_RANDOM_SEED)
+                            .required(false).build());
+    options.addOption(Option.builder(CmdLine.NUM_THREADS_ARG).hasArg(true)
+                            .longOpt(CmdLine.NUM_THREADS_ARG)
+                            .desc("Number of samples to write in parallel. Default is "
+                                  + CmdLine.DEFAULT_THREADS)
+                            .required(false).build());
+    return options;
+  }
+
+  public static void main(String[] args) {
+    Logger log = Logger.getLogger(SyntheticCohort.class.getName());
+    CommandLine cmd = CmdLine.generateCommandLine(log, generateOptions(), args);
+    if (cmd == null || cmd.hasOption(CmdLine.HELP)) {
+      CmdLine.printHelp(log, generateOptions());
+      System.exit(1);
+    }
+    String outputDir = cmd.getOptionValue(CmdLine.OUTPUT_DIR_ARG);
+    outputDir = outputDir.endsWith(File.separator) ? outputDir : outputDir + File.separator;
+    List<String> chromosomes = Arrays.asList(GRCH38_AUTOSOMES);
+    if (cmd.hasOption(CHROMOSOMES_ARG)) {
+      chromosomes = Arrays.asList(cmd.getOptionValue(CHROMOSOMES_ARG).split(","));
+    }
+    SyntheticCohort cohort = new SyntheticCohort(chromosomes,
+                                                 Integer.parseInt(cmd.getOptionValue(BIN_SIZE_ARG,
+                                                                                     Integer.toString(DEFAULT_BIN_SIZE))),
+                                                 Double.parseDouble(cmd.getOptionValue(DEPTH_ARG,
+                                                                                       Double.toString(DEFAULT_DEPTH))),
+                                                 Integer.parseInt(cmd.getOptionValue(RANK_ARG,
+                                                                                     Integer.toString(DEFAULT_RANK))),
+                                                 Integer.parseInt(cmd.getOptionValue(BATCHES_ARG,
+                                                                                     Integer.toString(DEFAULT_BATCHES))),
+                                                 Double.parseDouble(cmd.getOptionValue(BATCH_EFFECT_ARG,
+                                                                                       Double.toString(DEFAULT_BATCH_EFFECT))),
+                                                 Double.parseDouble(cmd.getOptionValue(CNV_RATE_ARG,
+                                                                                       Double.toString(DEFAULT_CNV_RATE))),
+                                                 Long.parseLong(cmd.getOptionValue(CmdLine.RANDOM_SEED,
+                                                                                   Integer.toString(CmdLine.DEFAULT_RANDOM_SEED))));
+    cohort.generate(outputDir, Integer.parseInt(cmd.getOptionValue(SAMPLES_ARG)),
+                    Integer.parseInt(cmd.getOptionValue(CmdLine.NUM_THREADS_ARG,
+                                                        Integer.toString(CmdLine.DEFAULT_THREADS))),
+                    log);
+  }
+}
@@ -0,0 +1,85 @@
+package org.pankratzlab.ngspca;
+
+import java.io.File;
+import java.util.logging.Logger;
+import org.apache.commons.math3.linear.BlockRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+import org.pankratzlab.ngspca.LinearAlgebraBackend.BACKEND;
+import org.pankratzlab.ngspca.RandomMatrixGenerator.DISTRIBUTION;
+import org.pankratzlab.ngspca.SketchOperator.SKETCH_TYPE;
+import junit.framework.TestCase;
+
+/**
+ * Checks the {@link AccuracyEstimate} of fits of the normalized 1000G chr1 example matrix against
+ * the exact residual ||A - QQ^T A||, and that the residuals shrink with more iterations
+ */
+public class AccuracyEstimateTest extends TestCase {
+
+  private static final String EXAMPLE_MATRIX = "../example/exampleOutput_1000G_chr1/tmp.mat.ser.gz";
+  private static final int NUM_COMPONENTS = 5;
+  private static final int[] ITERS = {0, 1, 2, 4};
+
+  private final Logger log = Logger.getLogger(AccuracyEstimateTest.class.getName());
+
+  public void testResiduals() {
+    assertTrue("Missing example matrix " + EXAMPLE_MATRIX, new File(EXAMPLE_MATRIX).exists());
+    BlockRealMatrix A = (BlockRealMatrix) FileOps.readSerial(EXAMPLE_MATRIX, log);
+    assertTrue("the loadings span Q only if A is not transposed",
+               A.getRowDimension() >= A.getColumnDimension());
+    double[][] componentResiduals = new double[ITERS.length][];
+    for (int i = 0; i < ITERS.length; i++) {
+      RandomizedSVD svd = fit(A, ITERS[i]);
+      AccuracyEstimate accuracy = svd.getAccuracy();
+      RealMatrix W = new BlockRealMatrix(svd.getLoadings().getRows(0, A.getRowDimension()));
+      RealMatrix residual = A.subtract(W.multiply(W.transpose().multiply(A)));
+      String message = ITERS[i] + " iterations";
+
+      double frobenius = residual.getFrobeniusNorm();
+      assertEquals(message, frobenius, accuracy.getResidualFrobenius(), 0.1 * frobenius);
+      assertEquals(message, frobenius / A.getFrobeniusNorm(),
+                   accuracy.getRelativeResidualFrobenius(), 0.1 * frobenius / A.getFrobeniusNorm());
+      double spectral = new SingularValueDecomposition(residual).getNorm();
+      assertTrue(message + ": spectral norm " + spectral + " above its bound "
+                 + accuracy.getResidualSpectralBound(),
+                 spectral <= accuracy.getResidualSpectralBound());
+
+      componentResiduals[i] = accuracy.getComponentResiduals();
+      for (int component = 0; component < NUM_COMPONENTS; component++) {
+        // ||A v - s u||
+        double exact = A.operate(svd.getV().getColumnVector(component))
+                        .subtract(W.getColumnVector(component)
+                                   .mapMultiply(svd.getW().getEntry(component, 0)))
+                        .getNorm();
+        double estimate = componentResiduals[i][component];
+        assertTrue(message + ", component " + component + ": " + estimate + " estimates " + exact,
+                   estimate > exact / 2 && estimate < 2 * exact);
+      }
+    }
+
+    for (int i = 1; i < ITERS.length; i++) {
+      assertTrue(ITERS[i] + " iterations", norm(componentResiduals[i])
+                                           < norm(componentResiduals[i - 1]));
+    }
+    int last = ITERS.length - 1;
+    for (int component = 0; component < NUM_COMPONENTS; component++) {
+      assertTrue("component " + component,
+                 componentResiduals[last][component] < componentResiduals[0][component]);
+    }
+  }
+
+  /**
+   * Without oversampling Q has one column per component, and spans the same space as the
+   * loadings W = QU
+   */
+  private RandomizedSVD fit(BlockRealMatrix A, int iters) {
+    RandomizedSVD svd = new RandomizedSVD(null, null, log);
+    svd.fit(A, NUM_COMPONENTS, iters, 0, 42, DISTRIBUTION.GAUSSIAN, SKETCH_TYPE.DENSE,
+            BACKEND.COMMONS_MATH, 1);
+    return svd;
+  }
+
+  private static double norm(double[] values) {
+    return Math.sqrt(PureJavaBackend.dot(values, values, 0, values.length));
+  }
+}
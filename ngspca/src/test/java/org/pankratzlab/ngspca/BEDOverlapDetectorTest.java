@@ -0,0 +1,143 @@
+package org.pankratzlab.ngspca;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.logging.Logger;
+import org.pankratzlab.ngspca.BedUtils.BEDOverlapDetector;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.OverlapDetector;
+import junit.framework.TestCase;
+
+/**
+ * Checks that the merge-join of {@link BEDOverlapDetector} removes exactly the regions that an
+ * htsjdk {@link OverlapDetector} of the same bed file finds overlaps for (or does not)
+ */
+public class BEDOverlapDetectorTest extends TestCase {
+
+  private static final String[] CONTIGS = {"chr1", "chr2", "chr3"};
+
+  private final Logger log = Logger.getLogger(BEDOverlapDetectorTest.class.getName());
+
+  public void testSortedRegions() throws IOException {
+    check(bins(false), 1);
+    check(bins(false), 3);
+  }
+
+  public void testUnsortedRegions() throws IOException {
+    check(bins(true), 2);
+  }
+
+  public void testBoundaries() throws IOException {
+    // bed is 0-based half open: [100, 200) is 1-based [101, 200], [300, 300) covers no bases
+    String bed = writeBed("chr1\t100\t200\nchr1\t300\t300\nchr1\t200\t250\nchr1\t210\t220\n");
+    BEDOverlapDetector detector = new BEDOverlapDetector(bed, log);
+    List<Interval> regions = new ArrayList<>();
+    regions.add(new Interval("chr1", 1, 100));
+    regions.add(new Interval("chr1", 100, 101));
+    regions.add(new Interval("chr1", 251, 299));
+    regions.add(new Interval("chr1", 300, 301));
+    regions.add(new Interval("chr2", 150, 160));
+    BitSet all = new BitSet();
+    all.set(0, regions.size());
+    assertEquals("{0, 2, 3, 4}", detector.nonOverlapping(regions, all, 1).toString());
+    assertEquals(1, detector.getNumExcluded());
+    assertEquals("{1}", detector.overlapping(regions, all, 1).toString());
+    // overlapping intervals are merged, adjacent ones kept, and the zero length one is dropped
+    assertEquals(Arrays.asList(new Interval("chr1", 101, 200), new Interval("chr1", 201, 250)),
+                 detector.getIntervals(Arrays.asList("chr2", "chr1")));
+  }
+
+  public void testNoBed() {
+    BEDOverlapDetector detector = new BEDOverlapDetector(null, log);
+    List<Interval> regions = bins(false);
+    BitSet all = new BitSet();
+    all.set(0, regions.size());
+    assertEquals(all, detector.nonOverlapping(regions, all, 2));
+    assertEquals(0, detector.getNumExcluded());
+    assertTrue(detector.overlapping(regions, all, 2).isEmpty());
+  }
+
+  private void check(List<Interval> regions, int threads) throws IOException {
+    String bed = randomBed();
+    OverlapDetector<?> expected = OverlapDetector.create(BedUtils.loadAll(bed));
+    BitSet candidates = new BitSet();
+    for (int i = 0; i < regions.size(); i++) {
+      if (regions.get(i).getStart() % 7 != 1) {
+        candidates.set(i);
+      }
+    }
+    BEDOverlapDetector excluder = new BEDOverlapDetector(bed, log);
+    BitSet kept = excluder.nonOverlapping(regions, candidates, threads);
+    BEDOverlapDetector targets = new BEDOverlapDetector(bed, log);
+    BitSet targeted = targets.overlapping(regions, candidates, threads);
+    int overlapping = 0;
+    for (int i = 0; i < regions.size(); i++) {
+      Interval region = regions.get(i);
+      boolean overlaps = expected.overlapsAny(region);
+      if (candidates.get(i) && overlaps) {
+        overlapping++;
+      }
+      assertEquals(region.toString(), candidates.get(i) && !overlaps, kept.get(i));
+      assertEquals(region.toString(), candidates.get(i) && overlaps, targeted.get(i));
+    }
+    assertTrue("some regions overlap", overlapping > 0);
+    assertEquals(overlapping, excluder.getNumExcluded());
+    assertEquals(candidates.cardinality() - overlapping, targets.getNumExcluded());
+  }
+
+  /**
+   * @param shuffle shuffle the bins within each contig
+   * @return 1 kb bins of each contig, the contigs together
+   */
+  private static List<Interval> bins(boolean shuffle) {
+    List<Interval> regions = new ArrayList<>();
+    for (String contig : CONTIGS) {
+      List<Interval> bins = new ArrayList<>();
+      for (int start = 1; start < 200000; start += 1000) {
+        bins.add(new Interval(contig, start, start + 999));
+      }
+      if (shuffle) {
+        Collections.shuffle(bins, new Random(42));
+      }
+      regions.addAll(bins);
+    }
+    // a contig without excluded regions
+    regions.add(new Interval("chrY", 1, 1000));
+    return regions;
+  }
+
+  /**
+   * @return an unsorted bed file of overlapping, adjacent, zero length and nested regions
+   */
+  private static String randomBed() throws IOException {
+    SplittableRandom random = new SplittableRandom(7);
+    StringBuilder bed = new StringBuilder();
+    for (int i = 0; i < 300; i++) {
+      String contig = CONTIGS[random.nextInt(CONTIGS.length)];
+      int start = random.nextInt(200000);
+      int length = random.nextInt(5) == 0 ? 0 : random.nextInt(3000);
+      bed.append(contig + "\t" + start + "\t" + (start + length) + "\n");
+      if (random.nextInt(10) == 0) {
+        bed.append(contig + "\t" + (start + length) + "\t" + (start + length + 10) + "\n");
+      }
+    }
+    return writeBed(bed.toString());
+  }
+
+  private static String writeBed(String text) throws IOException {
+    File file = File.createTempFile("exclude", ".bed");
+    file.deleteOnExit();
+    try (PrintWriter writer = new PrintWriter(file)) {
+      writer.print(text);
+    }
+    return file.getAbsolutePath();
+  }
+}
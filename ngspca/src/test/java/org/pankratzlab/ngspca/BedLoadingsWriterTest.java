@@ -0,0 +1,113 @@
+package org.pankratzlab.ngspca;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.logging.Logger;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.pankratzlab.ngspca.OutputConfig.OUTPUT_FORMAT;
+import htsjdk.samtools.util.Interval;
+import htsjdk.tribble.readers.TabixReader;
+import junit.framework.TestCase;
+
+/**
+ * Writes loadings with {@link BedLoadingsWriter} and queries them back with an htsjdk
+ * {@link TabixReader}
+ */
+public class BedLoadingsWriterTest extends TestCase {
+
+  private static final int BINS_PER_CONTIG = 20000;
+  private static final int COLUMNS = 3;
+
+  private final Logger log = Logger.getLogger(BedLoadingsWriterTest.class.getName());
+  private File directory;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("bedLoadings").toFile();
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  public void testQuery() throws IOException {
+    // markers of two contigs, shuffled so that the writer has to sort them
+    List<String> markerNames = new ArrayList<>();
+    for (String contig : new String[] {"chr2", "chr1"}) {
+      for (int bin = 0; bin < BINS_PER_CONTIG; bin++) {
+        markerNames.add(contig + ":" + (bin * 1000 + 1) + "-" + (bin + 1) * 1000);
+      }
+    }
+    Collections.shuffle(markerNames, new Random(42));
+    SplittableRandom random = new SplittableRandom(7);
+    RealMatrix loadings = new Array2DRowRealMatrix(markerNames.size(), COLUMNS);
+    for (int row = 0; row < markerNames.size(); row++) {
+      for (int column = 0; column < COLUMNS; column++) {
+        loadings.setEntry(row, column, random.nextDouble() - 0.5);
+      }
+    }
+    String file = new File(directory, "loadings" + BedLoadingsWriter.EXTENSION).getAbsolutePath();
+    OutputConfig outputConfig = new OutputConfig(OUTPUT_FORMAT.TEXT, false, true, 1, COLUMNS, 2);
+    assertTrue(BedLoadingsWriter.write(file, RowBlocks.of(loadings), markerNames,
+                                       SVD.getNumberedColumnHeader("Loading", COLUMNS),
+                                       outputConfig, log));
+    assertTrue(new File(file + BedLoadingsWriter.INDEX_EXTENSION).exists());
+
+    TabixReader reader = new TabixReader(file);
+    try {
+      // 1-based and inclusive, so the bins ending at 5000000 and starting at 5000001 overlap
+      checkQuery(reader, "chr1", 5000000, 5010001, markerNames, loadings);
+      checkQuery(reader, "chr2", 1, 1, markerNames, loadings);
+      checkQuery(reader, "chr2", (BINS_PER_CONTIG - 2) * 1000 + 1, BINS_PER_CONTIG * 1000 + 5000,
+                 markerNames, loadings);
+      assertNull(reader.query("chr3:1-1000").next());
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Checks that a query returns exactly the markers overlapping [start, end] (1-based), in order,
+   * with their loadings
+   */
+  private static void checkQuery(TabixReader reader, String contig, int start, int end,
+                                 List<String> markerNames, RealMatrix loadings) throws IOException {
+    Interval query = new Interval(contig, start, end);
+    List<Integer> expected = new ArrayList<>();
+    for (int row = 0; row < markerNames.size(); row++) {
+      if (BedUtils.parseUCSC(markerNames.get(row)).overlaps(query)) {
+        expected.add(row);
+      }
+    }
+    expected.sort((a, b) -> Integer.compare(BedUtils.parseUCSC(markerNames.get(a)).getStart(),
+                                            BedUtils.parseUCSC(markerNames.get(b)).getStart()));
+    assertFalse(expected.isEmpty());
+
+    TabixReader.Iterator iterator = reader.query(contig + ":" + start + "-" + end);
+    for (int row : expected) {
+      String line = iterator.next();
+      assertNotNull(query + " is missing " + markerNames.get(row), line);
+      String[] fields = line.split("\t");
+      Interval marker = BedUtils.parseUCSC(markerNames.get(row));
+      assertEquals(COLUMNS + 3, fields.length);
+      assertEquals(contig, fields[0]);
+      assertEquals(marker.getStart() - 1, Integer.parseInt(fields[1]));
+      assertEquals(marker.getEnd(), Integer.parseInt(fields[2]));
+      for (int column = 0; column < COLUMNS; column++) {
+        assertEquals(loadings.getEntry(row, column), Double.parseDouble(fields[column + 3]), 0);
+      }
+    }
+    assertNull(query + " returned extra rows", iterator.next());
+  }
+}
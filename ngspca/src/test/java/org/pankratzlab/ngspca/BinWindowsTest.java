@@ -0,0 +1,102 @@
+package org.pankratzlab.ngspca;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link BinWindows} joins only adjacent bins of a contig, and weights each bin by the
+ * part of its window it covers
+ */
+public class BinWindowsTest extends TestCase {
+
+  public void testAdjacentBins() {
+    BinWindows windows = BinWindows.create(bins("chr1", 1, 25, 1000), 10, 1);
+    assertEquals(Arrays.asList("chr1:1-10000", "chr1:10001-20000", "chr1:20001-25000"),
+                 windows.windows);
+    assertEquals(25, windows.bins.size());
+    assertTrue(windows.isAggregated());
+    for (int bin = 0; bin < 25; bin++) {
+      assertEquals(bin / 10, windows.getRow(bin));
+      assertEquals(bin < 20 ? 0.1 : 0.2, windows.getWeight(bin), 1e-15);
+    }
+  }
+
+  public void testGapsAndContigs() {
+    List<String> bins = new ArrayList<>();
+    bins.addAll(bins("chr1", 1, 4, 1000));
+    // an excluded bin leaves a gap
+    bins.addAll(bins("chr1", 5001, 3, 1000));
+    // the last bin of the contig is shorter
+    bins.add("chr1:8001-8500");
+    // the next contig starts where the previous one would continue
+    bins.addAll(bins("chr2", 8501, 2, 1000));
+    BinWindows windows = BinWindows.create(bins, 10, 1);
+    assertEquals(Arrays.asList("chr1:1-4000", "chr1:5001-8500", "chr2:8501-10500"),
+                 windows.windows);
+    int[] rows = {0, 0, 0, 0, 1, 1, 1, 1, 2, 2};
+    double[] weights = {0.25, 0.25, 0.25, 0.25, 1 / 3.5, 1 / 3.5, 1 / 3.5, 0.5 / 3.5, 0.5, 0.5};
+    for (int bin = 0; bin < bins.size(); bin++) {
+      assertEquals(rows[bin], windows.getRow(bin));
+      assertEquals(weights[bin], windows.getWeight(bin), 1e-15);
+    }
+    double[] total = new double[windows.windows.size()];
+    for (int bin = 0; bin < bins.size(); bin++) {
+      total[windows.getRow(bin)] += windows.getWeight(bin);
+    }
+    for (double weight : total) {
+      assertEquals(1, weight, 1e-15);
+    }
+  }
+
+  public void testSampling() {
+    BinWindows windows = BinWindows.create(bins("chr1", 1, 50, 1000), 10, 2);
+    assertEquals(Arrays.asList("chr1:1-10000", "chr1:20001-30000", "chr1:40001-50000"),
+                 windows.windows);
+    // only the bins of kept windows are loaded
+    assertEquals(30, windows.bins.size());
+    assertEquals("chr1:20001-21000", windows.bins.get(10));
+    assertEquals(1, windows.getRow(10));
+    assertEquals(2, windows.getRow(29));
+  }
+
+  public void testSingleBins() {
+    List<String> bins = bins("chr1", 1, 10, 1000);
+    BinWindows windows = BinWindows.create(bins, 1, 3);
+    assertEquals(Arrays.asList(bins.get(0), bins.get(3), bins.get(6), bins.get(9)),
+                 windows.windows);
+    assertEquals(windows.windows, windows.bins);
+    assertFalse(windows.isAggregated());
+    for (int bin = 0; bin < windows.bins.size(); bin++) {
+      assertEquals(bin, windows.getRow(bin));
+      assertEquals(1, windows.getWeight(bin), 0);
+    }
+    assertTrue(BinWindows.create(Collections.<String> emptyList(), 5, 1).windows.isEmpty());
+  }
+
+  public void testInvalid() {
+    for (int[] invalid : new int[][] {{0, 1}, {1, 0}}) {
+      try {
+        BinWindows.create(bins("chr1", 1, 2, 1000), invalid[0], invalid[1]);
+        fail("invalid " + Arrays.toString(invalid));
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  /**
+   * @return count adjacent bins of the given length in UCSC format, the first starting (1-based)
+   *         at start
+   */
+  private static List<String> bins(String contig, int start, int count, int length) {
+    List<String> bins = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      int binStart = start + i * length;
+      bins.add(contig + ":" + binStart + "-" + (binStart + length - 1));
+    }
+    return bins;
+  }
+}
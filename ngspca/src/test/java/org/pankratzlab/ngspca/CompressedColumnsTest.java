@@ -0,0 +1,115 @@
+package org.pankratzlab.ngspca;
+
+import java.util.SplittableRandom;
+import junit.framework.TestCase;
+
+/**
+ * Checks that every entry of {@link CompressedColumns} decodes to within half a quantization step
+ * of its block, and that the decoding paths agree
+ */
+public class CompressedColumnsTest extends TestCase {
+
+  /**
+   * Not a multiple of {@link CompressedColumns#BLOCK_ROWS}, so the last block is partial
+   */
+  private static final int ROWS = 5 * CompressedColumns.BLOCK_ROWS + 37;
+
+  public void testErrorBound8() {
+    checkErrorBound(8);
+  }
+
+  public void testErrorBound16() {
+    checkErrorBound(16);
+  }
+
+  public void testDecodePaths() {
+    for (int bits : new int[] {8, 16}) {
+      CompressedColumns compressed = new CompressedColumns(ROWS, 2, bits);
+      compressed.set(0, column(1));
+      compressed.set(1, column(2));
+      double[] full = compressed.getColumn(1);
+      int start = 2 * CompressedColumns.BLOCK_ROWS;
+      double[] tile = new double[ROWS - start];
+      compressed.decode(1, start, ROWS, tile);
+      for (int row = 0; row < ROWS; row++) {
+        assertEquals(full[row], compressed.get(row, 1), 0);
+        if (row >= start) {
+          assertEquals(full[row], tile[row - start], 0);
+        }
+      }
+    }
+  }
+
+  public void testConstantBlock() {
+    double[] values = column(3);
+    for (int row = 0; row < CompressedColumns.BLOCK_ROWS; row++) {
+      values[row] = -1.25;
+    }
+    CompressedColumns compressed = new CompressedColumns(ROWS, 1, 8);
+    compressed.set(0, values);
+    for (int row = 0; row < CompressedColumns.BLOCK_ROWS; row++) {
+      assertEquals(-1.25, compressed.get(row, 0), 0);
+    }
+  }
+
+  public void testInvalidBits() {
+    try {
+      new CompressedColumns(ROWS, 1, 12);
+      fail("12 bits");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private static void checkErrorBound(int bits) {
+    double[] values = column(4);
+    // a block with a far larger range must not cost the other blocks precision
+    values[CompressedColumns.BLOCK_ROWS] = 1e6;
+    CompressedColumns compressed = new CompressedColumns(ROWS, 1, bits);
+    compressed.set(0, values);
+    double[] decoded = compressed.getColumn(0);
+    int levels = (1 << bits) - 1;
+    for (int start = 0; start < ROWS; start += CompressedColumns.BLOCK_ROWS) {
+      int end = Math.min(ROWS, start + CompressedColumns.BLOCK_ROWS);
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      for (int row = start; row < end; row++) {
+        min = Math.min(min, values[row]);
+        max = Math.max(max, values[row]);
+      }
+      double halfStep = (max - min) / levels / 2;
+      // and a few ulps of rounding in the offset + scale * code
+      double bound = halfStep * (1 + 1e-9) + 4 * Math.ulp(Math.max(Math.abs(min), Math.abs(max)));
+      for (int row = start; row < end; row++) {
+        assertTrue(bits + " bits, row " + row + ": " + values[row] + " decoded as " + decoded[row],
+                   Math.abs(decoded[row] - values[row]) <= bound);
+      }
+      assertEquals(min, decoded[indexOf(values, start, end, min)], 0);
+      if (start > CompressedColumns.BLOCK_ROWS) {
+        assertTrue(halfStep < 10.0 / levels);
+      }
+    }
+  }
+
+  private static int indexOf(double[] values, int start, int end, double value) {
+    for (int row = start; row < end; row++) {
+      if (values[row] == value) {
+        return row;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return standardized-looking values, some blocks shifted away from zero
+   */
+  private static double[] column(long seed) {
+    SplittableRandom random = new SplittableRandom(seed);
+    double[] values = new double[ROWS];
+    for (int row = 0; row < ROWS; row++) {
+      double shift = row / CompressedColumns.BLOCK_ROWS % 2 == 0 ? 0 : 5;
+      values[row] = shift + 2 * (random.nextDouble() - 0.5) * (1 + random.nextInt(3));
+    }
+    return values;
+  }
+}
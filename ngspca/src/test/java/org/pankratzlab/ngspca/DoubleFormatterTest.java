@@ -0,0 +1,36 @@
+package org.pankratzlab.ngspca;
+
+import java.util.SplittableRandom;
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link DoubleFormatter} round trips, is never longer than
+ * {@link Double#toString(double)}, and uses the same layout
+ */
+public class DoubleFormatterTest extends TestCase {
+
+  public void testLayout() {
+    double[] values = {1, -1, 0.1, 0.001, 1e-4, 1234.5, 9999999, 1e7, 155.81836110329647,
+                       5.154370866730627E-11, Double.MAX_VALUE, Double.MIN_NORMAL, 0.0, -0.0,
+                       Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+    for (double value : values) {
+      assertEquals(Double.toString(value), DoubleFormatter.toString(value));
+    }
+    // Double.toString is not always the shortest round trip
+    assertEquals("1.0E23", DoubleFormatter.toString(1e23));
+  }
+
+  public void testRoundTrip() {
+    SplittableRandom random = new SplittableRandom(42);
+    for (int i = 0; i < 1000000; i++) {
+      double value = i % 2 == 0 ? Double.longBitsToDouble(random.nextLong())
+                                : (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(20) - 10);
+      if (Double.isNaN(value)) {
+        continue;
+      }
+      String formatted = DoubleFormatter.toString(value);
+      assertEquals(formatted, value, Double.parseDouble(formatted));
+      assertTrue(formatted, formatted.length() <= Double.toString(value).length());
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package org.pankratzlab.ngspca;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.pankratzlab.ngspca.LinearAlgebraBackend.BACKEND;
+import org.pankratzlab.ngspca.RandomMatrixGenerator.DISTRIBUTION;
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link LazyLoadings} computes the matching columns of the eager W = QU, for any block
+ * of rows and range of components. The backends sum the products of QU in their own order, so W is
+ * matched to a few ulps, and the loadings of a range exactly match those of every component
+ */
+public class LazyLoadingsTest extends TestCase {
+
+  private static final int ROWS = 3000;
+  private static final int COMPONENTS = 12;
+  /**
+   * Loadings are of order 1 / sqrt(ROWS), so this is a few ulps
+   */
+  private static final double DELTA = 1e-16;
+
+  public void testPureJava() {
+    check(new PureJavaBackend(2));
+  }
+
+  public void testCommonsMath() {
+    check(new CommonsMathBackend());
+  }
+
+  public void testEjml() {
+    check(LinearAlgebraBackend.create(BACKEND.EJML, 1));
+  }
+
+  private static <M> void check(LinearAlgebraBackend<M> backend) {
+    RandomMatrixGenerator generator = new RandomMatrixGenerator(DISTRIBUTION.GAUSSIAN, 42);
+    M Q = backend.orthonormalize(backend.fromRows(generator.generateRows(ROWS, COMPONENTS, 1)));
+    M U = backend.orthonormalize(backend.fromRows(generator.generateRows(COMPONENTS, COMPONENTS,
+                                                                         1)));
+    RowBlocks W = RowBlocks.of(backend.toRealMatrix(backend.multiply(Q, U)));
+
+    LazyLoadings<M> all = new LazyLoadings<>(backend, Q, U, 0, COMPONENTS);
+    assertEquals(ROWS, all.rows());
+    assertEquals(COMPONENTS, all.columns());
+    check(W, all, DELTA);
+    RowBlocks exact = RowBlocks.of(new Array2DRowRealMatrix(all.getRows(0, ROWS), false));
+
+    // a restricted range of components, and ranges selected from it and from every component
+    LazyLoadings<M> range = new LazyLoadings<>(backend, Q, U, 3, 9);
+    assertEquals(6, range.columns());
+    check(W.selectColumns(3, 9), range, DELTA);
+    check(exact.selectColumns(3, 9), range, 0);
+    check(W.selectColumns(5, 8), range.selectColumns(2, 5), DELTA);
+    check(exact.selectColumns(5, 8), range.selectColumns(2, 5), 0);
+    check(exact.selectColumns(COMPONENTS - 1, COMPONENTS),
+          all.selectColumns(COMPONENTS - 1, COMPONENTS), 0);
+    assertEquals(0, all.selectColumns(4, 4).columns());
+  }
+
+  /**
+   * Checks blocks of rows of the loadings against the expected rows
+   */
+  private static void check(RowBlocks expected, RowBlocks loadings, double delta) {
+    assertEquals(expected.columns(), loadings.columns());
+    for (int[] block : new int[][] {{0, ROWS}, {0, 1}, {17, 1041}, {ROWS - 5, ROWS},
+                                    {100, 100}}) {
+      double[][] rows = loadings.getRows(block[0], block[1]);
+      assertEquals(block[1] - block[0], rows.length);
+      for (int row = block[0]; row < block[1]; row++) {
+        double[] expectedRow = expected.getRow(row);
+        assertEquals(expectedRow.length, rows[row - block[0]].length);
+        for (int column = 0; column < expectedRow.length; column++) {
+          assertEquals("row " + row + ", column " + column, expectedRow[column],
+                       rows[row - block[0]][column], delta);
+        }
+      }
+    }
+  }
+}
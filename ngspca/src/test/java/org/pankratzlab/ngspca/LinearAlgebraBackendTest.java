@@ -0,0 +1,69 @@
+package org.pankratzlab.ngspca;
+
+import java.util.logging.Logger;
+import org.apache.commons.math3.linear.BlockRealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+import org.pankratzlab.ngspca.LinearAlgebraBackend.BACKEND;
+import org.pankratzlab.ngspca.RandomMatrixGenerator.DISTRIBUTION;
+import org.pankratzlab.ngspca.SketchOperator.SKETCH_TYPE;
+import junit.framework.TestCase;
+
+/**
+ * Checks that each {@link BACKEND} gives the same randomized SVD, for tall and for wide (transposed)
+ * input, and that the dominant singular values match an exact SVD
+ */
+public class LinearAlgebraBackendTest extends TestCase {
+
+  private static final int NUM_COMPONENTS = 4;
+  /**
+   * Components well above the noise in {@link #randomMatrix(int, int)}
+   */
+  private static final int NUM_DOMINANT = 2;
+
+  private final Logger log = Logger.getLogger(LinearAlgebraBackendTest.class.getName());
+
+  public void testTall() {
+    checkBackends(randomMatrix(500, 40));
+  }
+
+  public void testWide() {
+    checkBackends(randomMatrix(40, 500));
+  }
+
+  private void checkBackends(BlockRealMatrix A) {
+    double[] exact = new SingularValueDecomposition(A).getSingularValues();
+    double[] reference = fit(A, BACKEND.COMMONS_MATH);
+    for (int i = 0; i < NUM_DOMINANT; i++) {
+      assertEquals("singular value " + i, exact[i], reference[i], 1e-6 * exact[i]);
+    }
+    for (BACKEND backend : BACKEND.values()) {
+      double[] singularValues = fit(A, backend);
+      for (int i = 0; i < NUM_COMPONENTS; i++) {
+        assertEquals(backend + " singular value " + i, reference[i], singularValues[i],
+                     1e-9 * reference[i]);
+      }
+    }
+  }
+
+  private double[] fit(BlockRealMatrix A, BACKEND backend) {
+    RandomizedSVD svd = new RandomizedSVD(null, null, log);
+    svd.fit(A, NUM_COMPONENTS, RandomizedSVD.DEFAULT_NITERS, 10, 42, DISTRIBUTION.GAUSSIAN,
+            SKETCH_TYPE.DENSE, backend, 2);
+    return svd.getW().getColumn(0);
+  }
+
+  /**
+   * @return a matrix with a few dominant directions plus noise
+   */
+  private static BlockRealMatrix randomMatrix(int rows, int columns) {
+    double[][] noise = new RandomMatrixGenerator(DISTRIBUTION.GAUSSIAN, 7).generateRows(rows,
+                                                                                       columns, 2);
+    BlockRealMatrix A = new BlockRealMatrix(rows, columns);
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < columns; j++) {
+        A.setEntry(i, j, 0.1 * noise[i][j] + (i % 5) * (j % 3) + (i % 2) * (j % 7));
+      }
+    }
+    return A;
+  }
+}
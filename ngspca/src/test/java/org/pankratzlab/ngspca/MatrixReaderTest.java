@@ -0,0 +1,78 @@
+package org.pankratzlab.ngspca;
+
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link MatrixReader#parseDouble(byte[], int, int)} gives exactly the double (and the
+ * exception) that {@link Double#parseDouble(String)} does
+ */
+public class MatrixReaderTest extends TestCase {
+
+  public void testSpecialCases() {
+    String[] values = {"0", "-0", "+0", "0.0", "-0.00", "1", "-1", "+3", ".5", "5.", "-.5",
+                       "0001.50", "0.1", "0.3", "123.456789", "327.67", "1234567890.12345",
+                       "123456789012345", "1234567890123456", "12345678901234567890",
+                       "0.00000000000000000000001", "0.0000000000000000000000123", "1e5",
+                       "1.5E-7", "-2.5e+3", "NaN", "-Infinity", "Infinity", "0x1p3",
+                       "4.9e-324", "1.7976931348623157E308", "9007199254740993"};
+    for (String value : values) {
+      check(value);
+    }
+  }
+
+  public void testInvalid() {
+    String[] values = {"", "-", "+", ".", "-.", "abc", "1.2.3", "1-2", "--1", "1 2", "NA"};
+    for (String value : values) {
+      try {
+        Double.parseDouble(value);
+        fail(value + " is not a number");
+      } catch (NumberFormatException e) {
+        // expected
+      }
+      try {
+        fail(value + " parsed as " + parse(value));
+      } catch (NumberFormatException e) {
+        // expected
+      }
+    }
+  }
+
+  public void testRandomDecimals() {
+    SplittableRandom random = new SplittableRandom(42);
+    for (int i = 0; i < 1000000; i++) {
+      int decimals = random.nextInt(25);
+      long digits = (random.nextLong() & Long.MAX_VALUE) >>> random.nextInt(63);
+      String value = Long.toString(digits);
+      if (decimals > 0) {
+        while (value.length() <= decimals) {
+          value = "0" + value;
+        }
+        value = value.substring(0, value.length() - decimals) + "."
+                + value.substring(value.length() - decimals);
+      }
+      check(random.nextBoolean() ? "-" + value : value);
+    }
+  }
+
+  /**
+   * A value in the middle of a line is parsed from its own bytes only
+   */
+  public void testOffsets() {
+    byte[] line = "chr1:1-100\t12.5\t-0.25\t7".getBytes(StandardCharsets.ISO_8859_1);
+    assertEquals(12.5, MatrixReader.parseDouble(line, 11, 15), 0);
+    assertEquals(-0.25, MatrixReader.parseDouble(line, 16, 21), 0);
+    assertEquals(7.0, MatrixReader.parseDouble(line, 22, 23), 0);
+  }
+
+  private static void check(String value) {
+    assertEquals(value, Double.doubleToLongBits(Double.parseDouble(value)),
+                 Double.doubleToLongBits(parse(value)));
+  }
+
+  private static double parse(String value) {
+    byte[] padded = ("\t" + value + "\t").getBytes(StandardCharsets.ISO_8859_1);
+    return MatrixReader.parseDouble(padded, 1, padded.length - 1);
+  }
+}
@@ -0,0 +1,140 @@
+package org.pankratzlab.ngspca;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.logging.Logger;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.pankratzlab.ngspca.MatrixWriter.RowIndexer;
+import org.pankratzlab.ngspca.OutputConfig.OUTPUT_FORMAT;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedInputStream.FileTermination;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import junit.framework.TestCase;
+
+/**
+ * Checks that a {@link MatrixWriter} writes the same text with and without bgzip compression
+ * ({@link BgzfCompressor}) at any number of threads, and that htsjdk reads it back
+ */
+public class MatrixWriterTest extends TestCase {
+
+  /**
+   * Enough rows for several chunks, each of several BGZF blocks
+   */
+  private static final int ROWS = 40000;
+  private static final int COLUMNS = 10;
+
+  private final Logger log = Logger.getLogger(MatrixWriterTest.class.getName());
+  private File directory;
+  private RealMatrix m;
+  private List<String> rowNames;
+  private List<String> columnNames;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("writer").toFile();
+    SplittableRandom random = new SplittableRandom(42);
+    m = new Array2DRowRealMatrix(ROWS, COLUMNS);
+    rowNames = new ArrayList<>();
+    for (int row = 0; row < ROWS; row++) {
+      rowNames.add("chr1:" + (row * 1000 + 1) + "-" + (row + 1) * 1000);
+      for (int column = 0; column < COLUMNS; column++) {
+        m.setEntry(row, column, (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(8) - 4));
+      }
+    }
+    columnNames = SVD.getNumberedColumnHeader("PC", COLUMNS);
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  public void testRoundTrip() throws IOException {
+    String text = write("plain.txt", false, 1, null);
+    byte[] expected = Files.readAllBytes(new File(text).toPath());
+    checkText(expected);
+    assertTrue(Arrays.equals(expected, Files.readAllBytes(new File(write("plain4.txt", false, 4,
+                                                                         null)).toPath())));
+    for (int threads : new int[] {1, 2, 4}) {
+      String bgzip = write("matrix" + threads + ".txt.gz", true, threads, null);
+      assertEquals(FileTermination.HAS_TERMINATOR_BLOCK,
+                   BlockCompressedInputStream.checkTermination(new File(bgzip)));
+      byte[] eof = new byte[BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length];
+      try (RandomAccessFile raf = new RandomAccessFile(bgzip, "r")) {
+        raf.seek(raf.length() - eof.length);
+        raf.readFully(eof);
+      }
+      assertTrue(Arrays.equals(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK, eof));
+      try (BlockCompressedInputStream in = new BlockCompressedInputStream(new File(bgzip))) {
+        assertTrue(threads + " threads", Arrays.equals(expected, IOUtils.toByteArray(in)));
+      }
+    }
+  }
+
+  public void testIndex() throws IOException {
+    long[] offsets = new long[ROWS + 1];
+    String bgzip = write("indexed.txt.gz", true, 3, new RowIndexer() {
+
+      @Override
+      public void row(int outputRow, long virtualOffset) {
+        offsets[outputRow] = virtualOffset;
+      }
+
+      @Override
+      public void end(long virtualOffset) {
+        offsets[ROWS] = virtualOffset;
+      }
+    });
+    try (BlockCompressedInputStream in = new BlockCompressedInputStream(new File(bgzip))) {
+      for (int row : new int[] {0, 1, 12345, ROWS - 1}) {
+        in.seek(offsets[row]);
+        assertTrue(in.readLine().startsWith(rowNames.get(row) + "\t"));
+      }
+      in.seek(offsets[ROWS]);
+      assertEquals(-1, in.read());
+    }
+  }
+
+  /**
+   * Checks the header, and that every value is read back exactly
+   */
+  private void checkText(byte[] text) throws IOException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(text),
+                                                                          StandardCharsets.UTF_8))) {
+      assertEquals("MARKER\t" + String.join("\t", columnNames), reader.readLine());
+      for (int row = 0; row < ROWS; row++) {
+        String[] line = reader.readLine().split("\t");
+        assertEquals(rowNames.get(row), line[0]);
+        assertEquals(COLUMNS + 1, line.length);
+        for (int column = 0; column < COLUMNS; column++) {
+          assertEquals(m.getEntry(row, column), Double.parseDouble(line[column + 1]), 0);
+        }
+      }
+      assertNull(reader.readLine());
+    }
+  }
+
+  private String write(String name, boolean bgzip, int threads, RowIndexer indexer) {
+    String file = new File(directory, name).getAbsolutePath();
+    OutputConfig outputConfig = new OutputConfig(OUTPUT_FORMAT.TEXT, bgzip, false, 1, COLUMNS,
+                                                 threads);
+    assertTrue(new MatrixWriter(outputConfig, log).write(file, RowBlocks.of(m), null, "MARKER",
+                                                         columnNames, rowNames, indexer));
+    return file;
+  }
+}
@@ -0,0 +1,146 @@
+package org.pankratzlab.ngspca;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+import org.apache.commons.math3.linear.RealMatrix;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import junit.framework.TestCase;
+
+/**
+ * Checks that reading files in lockstep ({@link CmdLine#STREAM_BATCH_ARG}) or prefetching them on
+ * I/O threads ({@link CmdLine#IO_THREADS_ARG}) loads a matrix bit-identical to the default of
+ * reading each file whole
+ */
+public class MosdepthUtilsTest extends TestCase {
+
+  private static final int NUM_FILES = 7;
+  /**
+   * More bins than {@link LockstepReader#DEFAULT_BLOCK_ROWS}, so that row blocks span the contigs
+   */
+  private static final int[] CONTIG_BINS = {10000, 7000};
+  private static final int BIN_LENGTH = 1000;
+
+  private final Logger log = Logger.getLogger(MosdepthUtilsTest.class.getName());
+  private File directory;
+  private List<String> files;
+  private List<String> bins;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("mosdepth").toFile();
+    bins = new ArrayList<>();
+    for (int contig = 0; contig < CONTIG_BINS.length; contig++) {
+      for (int bin = 0; bin < CONTIG_BINS[contig]; bin++) {
+        bins.add("chr" + (contig + 1) + ":" + (bin * BIN_LENGTH + 1) + "-"
+                 + (bin + 1) * BIN_LENGTH);
+      }
+    }
+    files = new ArrayList<>();
+    for (int file = 0; file < NUM_FILES; file++) {
+      files.add(write("sample" + file + "." + MosdepthUtils.MOSDEPHT_BED_EXT, file));
+    }
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  public void testLockstep() throws InterruptedException, ExecutionException {
+    BinWindows windows = BinWindows.create(bins, 1, 1);
+    RealMatrix expected = load(windows, 0, 0, 0);
+    assertEquals(bins.size(), expected.getRowDimension());
+    assertTrue(expected.getNorm() > 0);
+    // batches that do and do not divide the number of files, and one larger than it
+    for (int batch : new int[] {1, 3, NUM_FILES, NUM_FILES + 2}) {
+      assertIdentical("batch " + batch, expected, load(windows, batch, 0, 0));
+    }
+  }
+
+  public void testLockstepWindows() throws InterruptedException, ExecutionException {
+    // windows of two bins still span a block boundary, and every third one is kept
+    for (BinWindows windows : new BinWindows[] {BinWindows.create(bins, 2, 1),
+                                                BinWindows.create(bins, 3, 3),
+                                                BinWindows.create(bins, 1, 3)}) {
+      RealMatrix expected = load(windows, 0, 0, 0);
+      assertEquals(windows.windows.size(), expected.getRowDimension());
+      for (int batch : new int[] {2, 4}) {
+        assertIdentical("batch " + batch, expected, load(windows, batch, 0, 0));
+      }
+    }
+  }
+
+  public void testPrefetched() throws InterruptedException, ExecutionException {
+    long fileBytes = new File(files.get(0)).length();
+    for (BinWindows windows : new BinWindows[] {BinWindows.create(bins, 1, 1),
+                                                BinWindows.create(bins, 2, 1)}) {
+      RealMatrix expected = load(windows, 0, 0, 0);
+      // a budget smaller than a single file, which is then read once nothing else is held
+      assertIdentical("budget below one file", expected, load(windows, 0, 3, fileBytes / 4));
+      assertIdentical("1 byte budget", expected, load(windows, 0, 2, 1));
+      assertIdentical("budget of a few files", expected, load(windows, 0, 1, 3 * fileBytes));
+      assertIdentical("budget of every file", expected,
+                      load(windows, 0, 4, NUM_FILES * fileBytes * 2));
+    }
+  }
+
+  private RealMatrix load(BinWindows windows, int streamBatch, int ioThreads,
+                          long ioBufferBytes) throws InterruptedException, ExecutionException {
+    return MosdepthUtils.processFiles(files, windows, null, 2, streamBatch, ioThreads,
+                                      ioBufferBytes, new RunMetrics(), log);
+  }
+
+  private static void assertIdentical(String message, RealMatrix expected, RealMatrix actual) {
+    assertEquals(message, expected.getRowDimension(), actual.getRowDimension());
+    assertEquals(message, expected.getColumnDimension(), actual.getColumnDimension());
+    for (int row = 0; row < expected.getRowDimension(); row++) {
+      for (int column = 0; column < expected.getColumnDimension(); column++) {
+        assertEquals(message + ", row " + row + ", column " + column,
+                     Double.doubleToLongBits(expected.getEntry(row, column)),
+                     Double.doubleToLongBits(actual.getEntry(row, column)));
+      }
+    }
+  }
+
+  /**
+   * @return a bgzipped mosdepth bed file of every bin, and of a contig that is not selected
+   */
+  private String write(String name, long seed) throws IOException {
+    File file = new File(directory, name);
+    SplittableRandom random = new SplittableRandom(seed);
+    try (Writer writer = new OutputStreamWriter(new BlockCompressedOutputStream(file),
+                                                StandardCharsets.UTF_8)) {
+      for (int contig = 0; contig < CONTIG_BINS.length; contig++) {
+        for (int bin = 0; bin < CONTIG_BINS[contig]; bin++) {
+          writer.write("chr" + (contig + 1) + "\t" + bin * BIN_LENGTH + "\t"
+                       + (bin + 1) * BIN_LENGTH + "\t" + coverage(random) + "\n");
+        }
+      }
+      for (int bin = 0; bin < 10; bin++) {
+        writer.write("chrX\t" + bin * BIN_LENGTH + "\t" + (bin + 1) * BIN_LENGTH + "\t"
+                     + coverage(random) + "\n");
+      }
+    }
+    return file.getAbsolutePath();
+  }
+
+  /**
+   * @return coverage with two decimals, as written by mosdepth
+   */
+  private static String coverage(SplittableRandom random) {
+    int hundredths = random.nextInt(5) == 0 ? 0 : random.nextInt(10000);
+    return hundredths / 100 + "." + hundredths / 10 % 10 + hundredths % 10;
+  }
+}
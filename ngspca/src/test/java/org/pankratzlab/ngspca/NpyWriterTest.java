@@ -0,0 +1,110 @@
+package org.pankratzlab.ngspca;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.logging.Logger;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import junit.framework.TestCase;
+
+/**
+ * Parses the .npy files written by {@link NpyWriter}, checking the header and that the payload is
+ * the matrix in column-major order
+ */
+public class NpyWriterTest extends TestCase {
+
+  /**
+   * Enough rows for several blocks
+   */
+  private static final int ROWS = 50000;
+  private static final int COLUMNS = 50;
+
+  private final Logger log = Logger.getLogger(NpyWriterTest.class.getName());
+  private File directory;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("npy").toFile();
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  public void testMatrix() throws IOException {
+    SplittableRandom random = new SplittableRandom(42);
+    RealMatrix m = new Array2DRowRealMatrix(ROWS, COLUMNS);
+    for (int row = 0; row < ROWS; row++) {
+      for (int column = 0; column < COLUMNS; column++) {
+        m.setEntry(row, column, random.nextDouble() - 0.5);
+      }
+    }
+    m.setEntry(0, 0, -0.0);
+    m.setEntry(ROWS - 1, COLUMNS - 1, Double.NaN);
+    byte[] single = write("single.npy", m, 1);
+    assertTrue(Arrays.equals(single, write("parallel.npy", m, 4)));
+
+    ByteBuffer data = parse(single, "(" + ROWS + ", " + COLUMNS + ")");
+    assertEquals((long) ROWS * COLUMNS * Double.BYTES, data.remaining());
+    for (int column = 0; column < COLUMNS; column++) {
+      for (int row = 0; row < ROWS; row++) {
+        assertEquals(Double.doubleToLongBits(m.getEntry(row, column)),
+                     Double.doubleToLongBits(data.getDouble()));
+      }
+    }
+  }
+
+  public void testVector() throws IOException {
+    double[] values = {3, -1.5, 0, 1e-300};
+    File file = new File(directory, "vector.npy");
+    assertTrue(NpyWriter.write(file.getAbsolutePath(), values, log));
+    ByteBuffer data = parse(Files.readAllBytes(file.toPath()), "(4,)");
+    assertEquals(values.length * Double.BYTES, data.remaining());
+    for (double value : values) {
+      assertEquals(value, data.getDouble(), 0);
+    }
+  }
+
+  public void testEmpty() throws IOException {
+    File file = new File(directory, "empty.npy");
+    assertTrue(NpyWriter.write(file.getAbsolutePath(), new double[0], log));
+    assertEquals(0, parse(Files.readAllBytes(file.toPath()), "(0,)").remaining());
+  }
+
+  private byte[] write(String name, RealMatrix m, int threads) throws IOException {
+    File file = new File(directory, name);
+    assertTrue(NpyWriter.write(file.getAbsolutePath(), RowBlocks.of(m), threads, log));
+    return Files.readAllBytes(file.toPath());
+  }
+
+  /**
+   * @return the payload of a version 1.0 .npy file, after checking its header
+   */
+  private static ByteBuffer parse(byte[] npy, String shape) {
+    ByteBuffer buffer = ByteBuffer.wrap(npy).order(ByteOrder.LITTLE_ENDIAN);
+    byte[] magic = new byte[6];
+    buffer.get(magic);
+    assertTrue(Arrays.equals(new byte[] {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'}, magic));
+    assertEquals("major version", 1, buffer.get());
+    assertEquals("minor version", 0, buffer.get());
+    int headerLength = buffer.getShort() & 0xffff;
+    byte[] header = new byte[headerLength];
+    buffer.get(header);
+    assertEquals("data is aligned", 0, buffer.position() % 64);
+    String dictionary = new String(header, StandardCharsets.US_ASCII);
+    assertTrue(dictionary, dictionary.endsWith("\n"));
+    assertEquals("{'descr': '<f8', 'fortran_order': True, 'shape': " + shape + ", }",
+                 dictionary.trim());
+    return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
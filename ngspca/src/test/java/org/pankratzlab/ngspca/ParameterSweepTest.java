@@ -0,0 +1,94 @@
+package org.pankratzlab.ngspca;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.math3.linear.BlockRealMatrix;
+import org.pankratzlab.ngspca.LinearAlgebraBackend.BACKEND;
+import org.pankratzlab.ngspca.OutputConfig.OUTPUT_FORMAT;
+import org.pankratzlab.ngspca.RandomMatrixGenerator.DISTRIBUTION;
+import org.pankratzlab.ngspca.SketchOperator.SKETCH_TYPE;
+import junit.framework.TestCase;
+
+/**
+ * Checks that each configuration of a {@link ParameterSweep} of the normalized 1000G chr1 example
+ * matrix writes the same files as a standalone run of that configuration
+ */
+public class ParameterSweepTest extends TestCase {
+
+  private static final String EXAMPLE_MATRIX = "../example/exampleOutput_1000G_chr1/tmp.mat.ser.gz";
+  private static final int[] NUM_PCS = {5, 8};
+  private static final int[] NUM_OVERSAMPLES = {2, 5};
+  private static final int[] NITERS = {1, 3};
+
+  private final Logger log = Logger.getLogger(ParameterSweepTest.class.getName());
+  private File directory;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("sweep").toFile();
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  public void testMatchesStandalone() throws IOException {
+    assertTrue("Missing example matrix " + EXAMPLE_MATRIX, new File(EXAMPLE_MATRIX).exists());
+    BlockRealMatrix A = (BlockRealMatrix) FileOps.readSerial(EXAMPLE_MATRIX, log);
+    List<String> samples = names("SAMPLE", A.getColumnDimension());
+    List<String> bins = names("chr1:", A.getRowDimension());
+    OutputConfig outputConfig = new OutputConfig(OUTPUT_FORMAT.BOTH, false, false, 1, 8, 2);
+    SVDConfig svdConfig = new SVDConfig(NUM_PCS, NITERS, NUM_OVERSAMPLES, true, 42,
+                                        DISTRIBUTION.GAUSSIAN, SKETCH_TYPE.DENSE,
+                                        BACKEND.PURE_JAVA, 2, 0, 0);
+    String sweepDir = directory.getAbsolutePath() + File.separator + "sweep" + File.separator;
+    assertTrue(ParameterSweep.run(new RandomizedSVD(samples, bins, log), A, sweepDir, svdConfig,
+                                  outputConfig, log));
+    List<String> summary = Files.readAllLines(new File(sweepDir
+                                                       + ParameterSweep.SUMMARY_FILE).toPath());
+    assertEquals(1 + NUM_PCS.length * NUM_OVERSAMPLES.length * NITERS.length, summary.size());
+
+    for (int numPcs : NUM_PCS) {
+      for (int numOversamples : NUM_OVERSAMPLES) {
+        for (int niters : NITERS) {
+          String config = ParameterSweep.getConfigDirectory(numPcs, numOversamples, niters);
+          String standaloneDir = directory.getAbsolutePath() + File.separator + "standalone"
+                                 + File.separator + config;
+          new File(standaloneDir).mkdirs();
+          RandomizedSVD svd = new RandomizedSVD(samples, bins, log);
+          svd.fit(A, numPcs, niters, numOversamples, svdConfig.randomSeed,
+                  svdConfig.distribution, svdConfig.sketchType, svdConfig.backend,
+                  svdConfig.threads);
+          assertTrue(NGSPCA.writeSVD(svd, standaloneDir, outputConfig, log));
+
+          String[] files = new File(standaloneDir).list();
+          Arrays.sort(files);
+          String[] swept = new File(sweepDir + config).list();
+          Arrays.sort(swept);
+          assertEquals(config, Arrays.asList(files), Arrays.asList(swept));
+          for (String file : files) {
+            assertTrue(config + file,
+                       Arrays.equals(Files.readAllBytes(new File(standaloneDir, file).toPath()),
+                                     Files.readAllBytes(new File(sweepDir + config,
+                                                                 file).toPath())));
+          }
+        }
+      }
+    }
+  }
+
+  private static List<String> names(String prefix, int count) {
+    List<String> names = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      names.add(prefix + i);
+    }
+    return names;
+  }
+}
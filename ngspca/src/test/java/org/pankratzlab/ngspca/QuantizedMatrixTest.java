@@ -0,0 +1,132 @@
+package org.pankratzlab.ngspca;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.SplittableRandom;
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link QuantizedMatrix} holds exactly the doubles it was given, whether they are
+ * quantized, escaped, or moved to an int column
+ */
+public class QuantizedMatrixTest extends TestCase {
+
+  /**
+   * Values that do not fit a short column: beyond 327.67x, more decimals, -0.0 and non-finite
+   */
+  private static final double[] ESCAPES = {327.68, -327.68, 1e300, -1e300, 0.125, 1.0 / 3, -0.0,
+                                           Double.NaN, Double.POSITIVE_INFINITY,
+                                           Double.NEGATIVE_INFINITY, Double.MIN_VALUE, 3e7};
+
+  public void testQuantize() {
+    assertEquals(0, QuantizedMatrix.quantize(0));
+    assertEquals(123, QuantizedMatrix.quantize(1.23));
+    assertEquals(-32767, QuantizedMatrix.quantize(-327.67));
+    assertEquals(2100000000L, QuantizedMatrix.quantize(21000000));
+    for (double escape : new double[] {0.125, 1.0 / 3, -0.0, Double.NaN, 1e300, 3e7}) {
+      assertEquals(Double.toString(escape), Long.MIN_VALUE, QuantizedMatrix.quantize(escape));
+    }
+  }
+
+  public void testShortColumn() {
+    double[] values = depths(1000, 327.67);
+    for (int i = 0; i < ESCAPES.length; i++) {
+      values[i * 50] = ESCAPES[i];
+    }
+    checkColumn(values);
+  }
+
+  public void testIntColumn() {
+    double[] values = depths(1000, 100000);
+    for (int i = 0; i < ESCAPES.length; i++) {
+      values[i * 50] = ESCAPES[i];
+    }
+    checkColumn(values);
+  }
+
+  /**
+   * Entries set one at a time start as shorts, and the column is widened once too many escape
+   */
+  public void testWidening() throws IOException, ClassNotFoundException {
+    int rows = 640;
+    QuantizedMatrix m = new QuantizedMatrix(rows, 2);
+    double[] expected = new double[rows];
+    for (int row = 0; row < rows; row++) {
+      expected[row] = row / 100.0;
+      m.setEntry(row, 0, expected[row]);
+      m.setEntry(row, 1, expected[row]);
+    }
+    long shortBytes = serialize(m).length;
+    // 20 deep values, more than 1/64 of the rows, then an escape that an int can not hold either
+    for (int row = 0; row < 20; row++) {
+      expected[row] = 1000 + row / 100.0;
+      m.setEntry(row, 0, expected[row]);
+    }
+    expected[20] = -0.0;
+    m.setEntry(20, 0, expected[20]);
+    // an escaped value that is overwritten by one that quantizes is no longer escaped
+    m.setEntry(21, 0, 0.001);
+    m.setEntry(21, 0, expected[21]);
+    assertBitsEqual(expected, m.getColumn(0));
+    assertTrue("column 0 was widened", serialize(m).length > shortBytes + rows * 2 - 100);
+
+    QuantizedMatrix copy = deserialize(serialize(m));
+    assertBitsEqual(expected, copy.getColumn(0));
+    assertBitsEqual(expected, m.copy().getColumn(0));
+    for (int row = 0; row < rows; row++) {
+      assertEquals(row / 100.0, copy.getEntry(row, 1), 0);
+    }
+  }
+
+  private static void checkColumn(double[] values) {
+    QuantizedMatrix m = new QuantizedMatrix(values.length, 2);
+    m.setColumn(0, values);
+    for (int row = 0; row < values.length; row++) {
+      m.setEntry(row, 1, values[row]);
+    }
+    assertBitsEqual(values, m.getColumn(0));
+    assertBitsEqual(values, m.getColumn(1));
+    for (int row = 0; row < values.length; row++) {
+      assertEquals(Double.doubleToLongBits(values[row]),
+                   Double.doubleToLongBits(m.getEntry(row, 0)));
+    }
+  }
+
+  /**
+   * @return depths with two decimals, up to max
+   */
+  private static double[] depths(int rows, double max) {
+    SplittableRandom random = new SplittableRandom(42);
+    double[] values = new double[rows];
+    for (int row = 0; row < rows; row++) {
+      values[row] = random.nextInt((int) (max * 100) + 1) / 100.0;
+    }
+    return values;
+  }
+
+  private static void assertBitsEqual(double[] expected, double[] actual) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals("row " + i + ": " + expected[i] + " vs " + actual[i],
+                   Double.doubleToLongBits(expected[i]), Double.doubleToLongBits(actual[i]));
+    }
+  }
+
+  private static byte[] serialize(QuantizedMatrix m) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(m);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static QuantizedMatrix deserialize(byte[] bytes) throws IOException,
+                                                          ClassNotFoundException {
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+      return (QuantizedMatrix) in.readObject();
+    }
+  }
+}
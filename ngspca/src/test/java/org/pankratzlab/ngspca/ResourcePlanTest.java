@@ -0,0 +1,89 @@
+package org.pankratzlab.ngspca;
+
+import java.util.logging.Logger;
+import org.pankratzlab.ngspca.LinearAlgebraBackend.BACKEND;
+import org.pankratzlab.ngspca.RandomMatrixGenerator.DISTRIBUTION;
+import org.pankratzlab.ngspca.SketchOperator.SKETCH_TYPE;
+import junit.framework.TestCase;
+
+/**
+ * Checks the {@link ResourcePlan} estimate of a known shape, which backends fit, and the advice
+ * given when none does
+ */
+public class ResourcePlanTest extends TestCase {
+
+  private static final long BINS = 100000;
+  private static final long SAMPLES = 1000;
+  private static final long REGIONS = 200 * BINS;
+  private static final long MATRIX = 8 * BINS * SAMPLES;
+  /**
+   * 10 PCs and 10 oversamples, plus the accuracy probes, over the longer dimension
+   */
+  private static final long PANEL = 8 * BINS * (20 + AccuracyEstimate.NUM_PROBES);
+
+  private final Logger log = Logger.getLogger(ResourcePlanTest.class.getName());
+
+  private static SVDConfig config(BACKEND backend) {
+    return new SVDConfig(new int[] {10}, new int[] {2}, new int[] {10}, false, 42,
+                         DISTRIBUTION.GAUSSIAN, SKETCH_TYPE.DENSE, backend, 1, 0, 0);
+  }
+
+  private static ResourcePlan plan(long bins, long samples, BACKEND backend, long maxHeap) {
+    return ResourcePlan.create(bins, samples, 0, config(backend), backend, maxHeap);
+  }
+
+  public void testTallPeak() {
+    // the svd stage is the largest, with no copy of A for COMMONS_MATH and one for the others
+    assertEquals(MATRIX + REGIONS + 6 * PANEL,
+                 plan(BINS, SAMPLES, BACKEND.COMMONS_MATH, 1L << 40).getPeakBytes());
+    assertEquals(2 * MATRIX + REGIONS + 6 * PANEL,
+                 plan(BINS, SAMPLES, BACKEND.EJML, 1L << 40).getPeakBytes());
+    assertEquals(2 * MATRIX + REGIONS + 6 * PANEL,
+                 plan(BINS, SAMPLES, BACKEND.PURE_JAVA, 1L << 40).getPeakBytes());
+  }
+
+  public void testWidePeak() {
+    // wide input is transposed into a copy, which the other backends make from their own copy
+    long regions = 200 * SAMPLES;
+    assertEquals(2 * MATRIX + regions + 6 * PANEL,
+                 plan(SAMPLES, BINS, BACKEND.COMMONS_MATH, 1L << 40).getPeakBytes());
+    assertEquals(3 * MATRIX + regions + 6 * PANEL,
+                 plan(SAMPLES, BINS, BACKEND.PURE_JAVA, 1L << 40).getPeakBytes());
+  }
+
+  public void testFits() {
+    long peak = MATRIX + REGIONS + 6 * PANEL;
+    long heap = (long) Math.ceil(peak / ResourcePlan.HEAP_FRACTION);
+    assertTrue(plan(BINS, SAMPLES, BACKEND.COMMONS_MATH, heap).fits());
+    assertFalse(plan(BINS, SAMPLES, BACKEND.COMMONS_MATH, heap - 1024).fits());
+    assertFalse(plan(BINS, SAMPLES, BACKEND.PURE_JAVA, heap).fits());
+    // EJML holds the matrix in a single array
+    assertFalse(plan(100000, 30000, BACKEND.EJML, 1L << 50).fits());
+    assertTrue(plan(100000, 30000, BACKEND.PURE_JAVA, 1L << 50).fits());
+  }
+
+  public void testExplain() {
+    long heap = 1L << 28;
+    String err = plan(BINS, SAMPLES, BACKEND.COMMONS_MATH, heap).explain(BINS, SAMPLES);
+    long needed = (long) Math.ceil((MATRIX + REGIONS + 6 * PANEL) / ResourcePlan.HEAP_FRACTION);
+    assertTrue(err, err.contains("100000 bins by 1000 samples"));
+    assertTrue(err, err.contains("(largest stage svd)"));
+    assertTrue(err, err.contains("-Xmx" + (needed + (1L << 30) - 1 >> 30) + "g"));
+    assertTrue(err, err.contains("sample " + (long) Math.ceil((double) needed / heap)
+                                 + " times fewer bins"));
+  }
+
+  public void testApply() {
+    long heap = (long) Math.ceil((MATRIX + REGIONS + 6 * PANEL) / ResourcePlan.HEAP_FRACTION);
+    SVDConfig chosen = ResourcePlan.apply(BINS, SAMPLES, 0, config(BACKEND.PURE_JAVA), heap, true,
+                                          new RunMetrics(), log);
+    assertEquals(BACKEND.COMMONS_MATH, chosen.backend);
+    try {
+      ResourcePlan.apply(BINS, SAMPLES, 0, config(BACKEND.PURE_JAVA), heap / 2, true,
+                         new RunMetrics(), log);
+      fail("no backend fits");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Not enough memory"));
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package org.pankratzlab.ngspca;
+
+import java.io.File;
+import java.util.logging.Logger;
+import org.apache.commons.math3.linear.BlockRealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+import org.pankratzlab.ngspca.LinearAlgebraBackend.BACKEND;
+import org.pankratzlab.ngspca.RandomMatrixGenerator.DISTRIBUTION;
+import org.pankratzlab.ngspca.SketchOperator.SKETCH_TYPE;
+import junit.framework.TestCase;
+
+/**
+ * Compares the accuracy of each {@link SKETCH_TYPE} against the dense default, using the
+ * normalized 1000G chr1 example matrix, and checks that sketches and random matrices do not depend
+ * on the number of threads
+ */
+public class SketchOperatorTest extends TestCase {
+
+  private static final String EXAMPLE_MATRIX = "../example/exampleOutput_1000G_chr1/tmp.mat.ser.gz";
+  private static final int NUM_COMPONENTS = 5;
+  private static final int NUM_OVERSAMPLES = 5;
+  private static final int NUM_ITERS = RandomizedSVD.DEFAULT_NITERS;
+  private static final int RANDOM_SEED = 42;
+
+  private final Logger log = Logger.getLogger(SketchOperatorTest.class.getName());
+
+  public void testSketchAccuracy() {
+    assertTrue("Missing example matrix " + EXAMPLE_MATRIX, new File(EXAMPLE_MATRIX).exists());
+    BlockRealMatrix A = (BlockRealMatrix) FileOps.readSerial(EXAMPLE_MATRIX, log);
+    double[] exact = new SingularValueDecomposition(A).getSingularValues();
+
+    double denseError = maxRelativeError(exact, fit(A, SKETCH_TYPE.DENSE));
+    assertTrue("Dense sketch error too large: " + denseError, denseError < 1e-3);
+    for (SKETCH_TYPE type : SKETCH_TYPE.values()) {
+      if (type == SKETCH_TYPE.DENSE) {
+        continue;
+      }
+      double error = maxRelativeError(exact, fit(A, type));
+      assertTrue(type + " sketch error " + error + " is not comparable to the dense sketch error "
+                 + denseError, error < Math.max(1e-3, 10 * denseError));
+    }
+  }
+
+  public void testSketchReproducible() {
+    BlockRealMatrix A = (BlockRealMatrix) FileOps.readSerial(EXAMPLE_MATRIX, log);
+    PureJavaBackend single = new PureJavaBackend(1);
+    PureJavaBackend parallel = new PureJavaBackend(4);
+    for (SKETCH_TYPE type : SKETCH_TYPE.values()) {
+      for (DISTRIBUTION distribution : DISTRIBUTION.values()) {
+        SketchOperator first = SketchOperator.create(type, distribution, RANDOM_SEED);
+        SketchOperator second = SketchOperator.create(type, distribution, RANDOM_SEED);
+        ColumnMatrix expected = first.sketch(single, single.fromRealMatrix(A), 10);
+        ColumnMatrix actual = second.sketch(parallel, parallel.fromRealMatrix(A), 10);
+        for (int row = 0; row < A.getRowDimension(); row++) {
+          assertBitIdentical(type + " " + distribution + " row " + row,
+                             single.getRow(expected, row), parallel.getRow(actual, row));
+        }
+      }
+    }
+  }
+
+  public void testDistributions() {
+    // more than one row block, and a partial last block
+    int rows = 5 * RandomMatrixGenerator.ROW_BLOCK_SIZE / 2;
+    int columns = 20;
+    double sqrt3 = Math.sqrt(3);
+    for (DISTRIBUTION distribution : DISTRIBUTION.values()) {
+      double[][] expected = new RandomMatrixGenerator(distribution,
+                                                      RANDOM_SEED).generateRows(rows, columns, 1);
+      double[][] actual = new RandomMatrixGenerator(distribution,
+                                                    RANDOM_SEED).generateRows(rows, columns, 4);
+      double sum = 0;
+      double sumSquares = 0;
+      int zeros = 0;
+      for (int row = 0; row < rows; row++) {
+        assertBitIdentical(distribution + " row " + row, expected[row], actual[row]);
+        for (double value : expected[row]) {
+          sum += value;
+          sumSquares += value * value;
+          if (value == 0) {
+            zeros++;
+          }
+          if (distribution == DISTRIBUTION.RADEMACHER) {
+            assertEquals(1, Math.abs(value), 0);
+          } else if (distribution == DISTRIBUTION.SPARSE) {
+            assertTrue(distribution + " value " + value, value == 0 || Math.abs(value) == sqrt3);
+          }
+        }
+      }
+      double n = (double) rows * columns;
+      // every distribution has mean 0 and variance 1
+      assertEquals(distribution + " mean", 0, sum / n, 0.02);
+      assertEquals(distribution + " variance", 1, sumSquares / n, 0.03);
+      double expectedZeros = distribution == DISTRIBUTION.SPARSE ? 2.0 / 3 : 0;
+      assertEquals(distribution + " zeros", expectedZeros, zeros / n, 0.01);
+    }
+  }
+
+  private double[] fit(BlockRealMatrix A, SKETCH_TYPE type) {
+    RandomizedSVD svd = new RandomizedSVD(null, null, log);
+    svd.fit(A, NUM_COMPONENTS, NUM_ITERS, NUM_OVERSAMPLES, RANDOM_SEED, DISTRIBUTION.GAUSSIAN,
+            type, BACKEND.COMMONS_MATH, 1);
+    return svd.getW().getColumn(0);
+  }
+
+  private static void assertBitIdentical(String message, double[] expected, double[] actual) {
+    assertEquals(message, expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(message, Double.doubleToLongBits(expected[i]),
+                   Double.doubleToLongBits(actual[i]));
+    }
+  }
+
+  private static double maxRelativeError(double[] exact, double[] approximate) {
+    double max = 0;
+    for (int i = 0; i < approximate.length; i++) {
+      max = Math.max(max, Math.abs(exact[i] - approximate[i]) / exact[i]);
+    }
+    return max;
+  }
+}
@@ -0,0 +1,141 @@
+package org.pankratzlab.ngspca;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import org.pankratzlab.ngspca.StageCache.STAGE;
+import junit.framework.TestCase;
+
+/**
+ * Checks that a {@link StageCache} reuses a stage only with its stored key and files, and that a
+ * change to an input or setting invalidates that stage and every later one
+ */
+public class StageCacheTest extends TestCase {
+
+  private final Logger log = Logger.getLogger(StageCacheTest.class.getName());
+  private File directory;
+  private String outputDir;
+  private String input;
+  private String bed;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("stages").toFile();
+    outputDir = directory.getAbsolutePath() + File.separator;
+    input = write("input.bed", "chr1\t0\t1000\t5.5\n");
+    bed = write("exclude.bed", "chr1\t100\t200\n");
+    for (STAGE stage : STAGE.values()) {
+      write(stage + ".txt", stage.toString());
+    }
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  public void testChain() throws IOException {
+    String[] keys = keys(10, 5);
+    StageCache cache = new StageCache(outputDir, false, log);
+    for (STAGE stage : STAGE.values()) {
+      assertFalse(cache.isValid(stage, keys[stage.ordinal()], file(stage)));
+      cache.store(stage, keys[stage.ordinal()]);
+    }
+    // the manifest is read back by the next run
+    assertValid(new StageCache(outputDir, false, log), keys, STAGE.SVD);
+
+    // an SVD setting only invalidates the SVD
+    assertValid(new StageCache(outputDir, false, log), keys(10, 6), STAGE.NORMALIZED);
+    // sampling invalidates the raw matrix and everything computed from it
+    assertValid(new StageCache(outputDir, false, log), keys(5, 5), STAGE.REGIONS);
+    // a modified input invalidates every stage, the size changes even if the modification time
+    // does not at the file system's resolution
+    write("input.bed", "chr1\t0\t1000\t5.5\nchr1\t1000\t2000\t6.5\n");
+    assertValid(new StageCache(outputDir, false, log), keys(10, 5), null);
+  }
+
+  public void testFilesAndInvalidation() throws IOException {
+    String[] keys = keys(10, 5);
+    StageCache cache = new StageCache(outputDir, false, log);
+    for (STAGE stage : STAGE.values()) {
+      cache.store(stage, keys[stage.ordinal()]);
+    }
+    // every file of a stage must exist
+    assertFalse(cache.isValid(STAGE.SVD, keys[STAGE.SVD.ordinal()], file(STAGE.SVD),
+                              outputDir + "missing.txt"));
+    new File(file(STAGE.RAW)).delete();
+    assertFalse(cache.isValid(STAGE.RAW, keys[STAGE.RAW.ordinal()], file(STAGE.RAW)));
+    write(STAGE.RAW + ".txt", STAGE.RAW.toString());
+
+    // an invalidated stage stays invalid for the next run, until it is stored again
+    cache.invalidate(STAGE.NORMALIZED);
+    StageCache next = new StageCache(outputDir, false, log);
+    assertFalse(next.isValid(STAGE.NORMALIZED, keys[STAGE.NORMALIZED.ordinal()],
+                             file(STAGE.NORMALIZED)));
+    assertTrue(next.isValid(STAGE.SVD, keys[STAGE.SVD.ordinal()], file(STAGE.SVD)));
+    next.store(STAGE.NORMALIZED, keys[STAGE.NORMALIZED.ordinal()]);
+    assertValid(new StageCache(outputDir, false, log), keys, STAGE.SVD);
+
+    // overwrite ignores the manifest
+    assertValid(new StageCache(outputDir, true, log), keys, null);
+  }
+
+  public void testUnreadableManifest() throws IOException {
+    write(StageCache.FILE, "UNKNOWN\tkey\n");
+    StageCache cache = new StageCache(outputDir, false, log);
+    assertFalse(cache.isValid(STAGE.REGIONS, "key", file(STAGE.REGIONS)));
+  }
+
+  public void testHashContents() throws IOException {
+    String copy = write("copy.bed", "chr1\t100\t200\n");
+    assertEquals(StageCache.hashContents(bed, log), StageCache.hashContents(copy, log));
+    write("copy.bed", "chr1\t100\t201\n");
+    assertFalse(StageCache.hashContents(bed, log).equals(StageCache.hashContents(copy, log)));
+    assertEquals("none", StageCache.hashContents(null, log));
+    assertEquals("none", StageCache.hashContents(outputDir + "missing.bed", log));
+    assertFalse(StageCache.key("a", "b").equals(StageCache.key("b", "a")));
+    assertEquals(64, StageCache.key().length());
+  }
+
+  /**
+   * @return keys of each {@link STAGE}, each computed from the previous one
+   */
+  private String[] keys(int sampleAt, int numPcs) {
+    List<String> inputs = Collections.singletonList(input);
+    String regions = StageCache.key(StageCache.describeFiles(inputs),
+                                    StageCache.hashContents(bed, log));
+    String raw = StageCache.key(regions, sampleAt);
+    String normalized = StageCache.key(raw, true);
+    String svd = StageCache.key(normalized, numPcs);
+    return new String[] {regions, raw, normalized, svd};
+  }
+
+  /**
+   * @param lastValid stages up to this one are valid, and later ones are not. null if none are
+   */
+  private void assertValid(StageCache cache, String[] keys, STAGE lastValid) {
+    for (STAGE stage : STAGE.values()) {
+      boolean valid = lastValid != null && stage.ordinal() <= lastValid.ordinal();
+      assertEquals(stage.toString(), valid,
+                   cache.isValid(stage, keys[stage.ordinal()], file(stage)));
+    }
+  }
+
+  private String file(STAGE stage) {
+    return outputDir + stage + ".txt";
+  }
+
+  private String write(String name, String text) throws IOException {
+    File file = new File(directory, name);
+    Files.write(file.toPath(), Arrays.asList(text), StandardCharsets.UTF_8);
+    return file.getAbsolutePath();
+  }
+}
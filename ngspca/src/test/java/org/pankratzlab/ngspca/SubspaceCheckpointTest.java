@@ -0,0 +1,129 @@
+package org.pankratzlab.ngspca;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.logging.Logger;
+import org.apache.commons.math3.linear.BlockRealMatrix;
+import junit.framework.TestCase;
+
+/**
+ * Checks that a {@link SubspaceCheckpoint} is resumed exactly, and only by a run with the same
+ * fingerprint and panel, and never when it is corrupt
+ */
+public class SubspaceCheckpointTest extends TestCase {
+
+  private static final long FINGERPRINT = 42;
+  private static final int ROWS = 300;
+  private static final int COLUMNS = 12;
+
+  private final Logger log = Logger.getLogger(SubspaceCheckpointTest.class.getName());
+  private File directory;
+  private SubspaceCheckpoint checkpoint;
+  private double[][] panel;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("checkpoint").toFile();
+    checkpoint = new SubspaceCheckpoint(directory.getAbsolutePath(), 3);
+    SplittableRandom random = new SplittableRandom(7);
+    panel = new double[ROWS][COLUMNS];
+    for (double[] row : panel) {
+      Arrays.setAll(row, i -> random.nextDouble() - 0.5);
+    }
+    panel[0][0] = -0.0;
+    panel[0][1] = Double.NaN;
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  public void testRoundTrip() {
+    checkpoint.save(FINGERPRINT, 6, panel, log);
+    assertEquals(Arrays.asList(SubspaceCheckpoint.PREFIX + COLUMNS + SubspaceCheckpoint.EXTENSION),
+                 Arrays.asList(directory.list()));
+    SubspaceCheckpoint.State state = checkpoint.load(FINGERPRINT, ROWS, COLUMNS, 6, log);
+    assertEquals(6, state.iteration);
+    for (int row = 0; row < ROWS; row++) {
+      for (int column = 0; column < COLUMNS; column++) {
+        assertEquals(Double.doubleToLongBits(panel[row][column]),
+                     Double.doubleToLongBits(state.rows[row][column]));
+      }
+    }
+    // a later checkpoint replaces the earlier one
+    panel[5][5] = 1;
+    checkpoint.save(FINGERPRINT, 9, panel, log);
+    state = checkpoint.load(FINGERPRINT, ROWS, COLUMNS, 10, log);
+    assertEquals(9, state.iteration);
+    assertEquals(1, state.rows[5][5], 0);
+    assertEquals(1, directory.list().length);
+
+    checkpoint.delete(COLUMNS);
+    assertNull(checkpoint.load(FINGERPRINT, ROWS, COLUMNS, 10, log));
+  }
+
+  public void testMismatch() {
+    checkpoint.save(FINGERPRINT, 6, panel, log);
+    assertNull("fingerprint", checkpoint.load(FINGERPRINT + 1, ROWS, COLUMNS, 6, log));
+    assertNull("rows", checkpoint.load(FINGERPRINT, ROWS + 1, COLUMNS, 6, log));
+    assertNull("columns", checkpoint.load(FINGERPRINT, ROWS, COLUMNS + 1, 6, log));
+    assertNull("past the requested iterations",
+               checkpoint.load(FINGERPRINT, ROWS, COLUMNS, 5, log));
+    assertNotNull(checkpoint.load(FINGERPRINT, ROWS, COLUMNS, 6, log));
+  }
+
+  public void testCorrupt() throws IOException {
+    checkpoint.save(FINGERPRINT, 6, panel, log);
+    File file = new File(directory, SubspaceCheckpoint.PREFIX + COLUMNS
+                                    + SubspaceCheckpoint.EXTENSION);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      long position = 28 + 1000;
+      raf.seek(position);
+      int b = raf.read();
+      raf.seek(position);
+      raf.write(b ^ 1);
+    }
+    assertNull("flipped bit", checkpoint.load(FINGERPRINT, ROWS, COLUMNS, 6, log));
+
+    checkpoint.save(FINGERPRINT, 6, panel, log);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(raf.length() - 100);
+    }
+    assertNull("truncated", checkpoint.load(FINGERPRINT, ROWS, COLUMNS, 6, log));
+  }
+
+  public void testDisabled() {
+    SubspaceCheckpoint none = SubspaceCheckpoint.none();
+    assertFalse(none.isEnabled());
+    assertFalse(none.isDue(3));
+    checkpoint.save(FINGERPRINT, 6, panel, log);
+    assertNull(none.load(FINGERPRINT, ROWS, COLUMNS, 6, log));
+    assertFalse(new SubspaceCheckpoint(directory.getAbsolutePath(), 0).isDue(3));
+    assertTrue(checkpoint.isDue(3));
+    assertFalse(checkpoint.isDue(4));
+    assertTrue(checkpoint.isDue(6));
+  }
+
+  public void testFingerprint() {
+    BlockRealMatrix A = new BlockRealMatrix(panel);
+    long fingerprint = SubspaceCheckpoint.fingerprint(A, 42, "GAUSSIAN", "PURE_JAVA");
+    assertEquals(fingerprint, SubspaceCheckpoint.fingerprint(A.copy(), 42, "GAUSSIAN",
+                                                             "PURE_JAVA"));
+    assertFalse(fingerprint == SubspaceCheckpoint.fingerprint(A, 43, "GAUSSIAN", "PURE_JAVA"));
+    assertFalse(fingerprint == SubspaceCheckpoint.fingerprint(A, 42, "GAUSSIAN", "EJML"));
+    BlockRealMatrix changed = A.copy();
+    changed.setEntry(ROWS - 1, COLUMNS - 1, 2);
+    assertFalse(fingerprint == SubspaceCheckpoint.fingerprint(changed, 42, "GAUSSIAN",
+                                                              "PURE_JAVA"));
+    assertFalse(fingerprint == SubspaceCheckpoint.fingerprint(A.transpose(), 42, "GAUSSIAN",
+                                                              "PURE_JAVA"));
+  }
+}